@@ -3,18 +3,24 @@
 
 package org.torproject.metrics.onionoo.cron;
 
+import org.torproject.metrics.onionoo.docs.DateTimeHelper;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
+import org.torproject.metrics.onionoo.updater.BackfillRunner;
 import org.torproject.metrics.onionoo.updater.DescriptorSource;
 import org.torproject.metrics.onionoo.updater.DescriptorSourceFactory;
 import org.torproject.metrics.onionoo.updater.StatusUpdateRunner;
+import org.torproject.metrics.onionoo.util.RunReport;
 import org.torproject.metrics.onionoo.writer.DocumentWriterRunner;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 import java.util.concurrent.Executors;
@@ -48,6 +54,14 @@ public class Main implements Runnable {
 
   boolean writeOnly = false;
 
+  boolean updateArchivedOnly = false;
+
+  boolean backfill = false;
+
+  String backfillFromMonth;
+
+  String backfillToMonth;
+
   /* TODO Parsing command-line arguments is only a workaround until we're
    * more certain what kind of options we want to support.  We should then
    * switch to some library that parses options for us. */
@@ -72,10 +86,21 @@ public class Main implements Runnable {
         case "--write-only":
           this.writeOnly = true;
           break;
+        case "--update-archived-only":
+          this.updateOnly = true;
+          this.updateArchivedOnly = true;
+          break;
         default:
           validArgs = false;
       }
-    } else if (args.length > 1) {
+    } else if (args.length == 3 && args[0].equals("--backfill")
+        && args[1].matches("\\d{4}-\\d{2}")
+        && args[2].matches("\\d{4}-\\d{2}")
+        && args[1].compareTo(args[2]) <= 0) {
+      this.backfill = true;
+      this.backfillFromMonth = args[1];
+      this.backfillToMonth = args[2];
+    } else {
       validArgs = false;
     }
     if (!validArgs) {
@@ -95,6 +120,16 @@ public class Main implements Runnable {
         + "internal status files, then exit.");
     System.err.println("  --write-only     Only run step 3: write "
         + "output document files, then exit.");
+    System.err.println("  --update-archived-only");
+    System.err.println("                   Only run step 2 for archived "
+        + "descriptors, then exit.");
+    System.err.println("  --backfill <from> <to>");
+    System.err.println("                   Rebuild internal status files "
+        + "from archived descriptors");
+    System.err.println("                   from month <from> to month <to>, "
+        + "formatted as yyyy-MM,");
+    System.err.println("                   in parallel shards, then "
+        + "exit.");
     System.err.println("  --help           Print out this help message "
         + "and exit.");
     System.exit(status);
@@ -127,6 +162,10 @@ public class Main implements Runnable {
 
   @Override
   public void run() {
+    if (this.backfill) {
+      this.runBackfill();
+      return;
+    }
     this.initialize();
     this.downloadDescriptors();
     this.updateStatuses();
@@ -142,18 +181,39 @@ public class Main implements Runnable {
 
   private File outDir = new File("out");
 
+  /* Directory containing machine-readable reports on the most recent
+   * runs, of which only the given number is kept. */
+  private File runReportsDir = new File(new File("status"), "run-reports");
+
+  private static final int RUN_REPORTS_TO_KEEP = 7 * 24;
+
+  private RunReport runReport;
+
   private StatusUpdateRunner sur;
 
   private DocumentWriterRunner dwr;
 
   private void initialize() {
     logger.debug("Started update ...");
+    this.runReport = new RunReport();
     if (!this.writeOnly) {
       this.dso = DescriptorSourceFactory.getDescriptorSource();
+      this.runReport.addCounter("descriptors_read",
+          this.dso::getReadDescriptors);
+      this.runReport.addCounter("descriptor_bytes_read",
+          this.dso::getReadBytes);
       logger.info("Initialized descriptor source");
     }
     if (!this.downloadOnly) {
       this.ds = DocumentStoreFactory.getDocumentStore();
+      this.runReport.addCounter("documents_read",
+          this.ds::getRetrievedFiles);
+      this.runReport.addCounter("document_bytes_read",
+          this.ds::getRetrievedBytes);
+      this.runReport.addCounter("documents_written",
+          this.ds::getStoredFiles);
+      this.runReport.addCounter("document_bytes_written",
+          this.ds::getStoredBytes);
       logger.info("Initialized document store");
     }
     if (!this.downloadOnly && !this.writeOnly) {
@@ -172,7 +232,8 @@ public class Main implements Runnable {
       return;
     }
     logger.info("Downloading descriptors.");
-    this.dso.downloadDescriptors();
+    this.runReport.measure("download_descriptors",
+        this.dso::downloadDescriptors);
   }
 
   private void updateStatuses() {
@@ -180,9 +241,10 @@ public class Main implements Runnable {
       return;
     }
     logger.info("Reading descriptors.");
-    this.dso.readDescriptors();
+    this.runReport.measure("read_descriptors", this.updateArchivedOnly
+        ? this.dso::readArchivedDescriptors : this.dso::readDescriptors);
     logger.info("Updating internal status files.");
-    this.sur.updateStatuses();
+    this.sur.updateStatuses(this.runReport);
   }
 
   private void writeDocuments() {
@@ -190,19 +252,24 @@ public class Main implements Runnable {
       return;
     }
     logger.info("Updating document files.");
-    this.dwr.writeDocuments();
+    this.dwr.writeDocuments(this.runReport);
   }
 
+  /* Flushes the document cache before writing parse histories, so that a
+   * crash in between makes us read descriptors again rather than skip
+   * descriptors whose statuses were never persisted. */
   private void shutDown() {
     logger.info("Shutting down.");
-    if (this.dso != null) {
-      this.dso.writeHistoryFiles();
-      logger.info("Wrote parse histories");
-    }
     if (this.ds != null) {
-      this.ds.flushDocumentCache();
+      this.runReport.measure("flush_document_cache",
+          this.ds::flushDocumentCache);
       logger.info("Flushed document cache");
     }
+    if (this.dso != null) {
+      this.runReport.measure("write_history_files",
+          this.dso::writeHistoryFiles);
+      logger.info("Wrote parse histories");
+    }
   }
 
   private void gatherStatistics() {
@@ -219,6 +286,49 @@ public class Main implements Runnable {
     if (this.ds != null) {
       logger.info("Document store\n{}", this.ds.getStatsString());
     }
+    this.runReport.writeReport(this.runReportsDir,
+        DateTimeHelper.format(this.runReport.getStartedMillis(),
+        "yyyy-MM-dd-HH-mm-ss"), RUN_REPORTS_TO_KEEP);
+    logger.info("Wrote run report");
+  }
+
+  /* Rebuilds status files from archived descriptors by running this class
+   * with --update-archived-only in separate processes for shards of the
+   * given range of months, and merges their results. */
+  private void runBackfill() {
+    logger.info("Starting backfill from {} to {}.", this.backfillFromMonth,
+        this.backfillToMonth);
+    BackfillRunner backfillRunner = new BackfillRunner(
+        this.backfillFromMonth, this.backfillToMonth,
+        this.createShardCommand());
+    if (backfillRunner.runBackfill()) {
+      logger.info("Finished backfill.");
+    } else {
+      logger.error("Backfill did not complete.");
+    }
+    DocumentStoreFactory.setDocumentStore(null);
+  }
+
+  /* Returns the command for running this class in a new Java process with
+   * the same JVM arguments except for the heap size, which is split between
+   * shards processed in parallel, and an absolute class path, so that it
+   * can be run in a shard working directory. */
+  private List<String> createShardCommand() {
+    List<String> command = new ArrayList<>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"),
+        "java").getAbsolutePath());
+    command.addAll(BackfillRunner.createShardJvmArguments(
+        ManagementFactory.getRuntimeMXBean().getInputArguments()));
+    List<String> classPath = new ArrayList<>();
+    for (String entry
+        : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      classPath.add(new File(entry).getAbsolutePath());
+    }
+    command.add("-cp");
+    command.add(String.join(File.pathSeparator, classPath));
+    command.add(Main.class.getName());
+    command.add("--update-archived-only");
+    return command;
   }
 
   private void cleanUp() {
@@ -0,0 +1,163 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Write or read history of a relay or bridge consisting of intervals with
+ * distinct start times, sorted by start, each with the number of bytes
+ * written or read in that interval.
+ *
+ * <p>Intervals are stored in three parallel arrays of start and end times
+ * in milliseconds since the epoch and bandwidth values.</p>
+ */
+class BandwidthIntervals {
+
+  private long[] startMillis = new long[4];
+
+  private long[] endMillis = new long[4];
+
+  private long[] values = new long[4];
+
+  private int size = 0;
+
+  int size() {
+    return this.size;
+  }
+
+  long getStartMillis(int index) {
+    return this.startMillis[index];
+  }
+
+  long getEndMillis(int index) {
+    return this.endMillis[index];
+  }
+
+  long getValue(int index) {
+    return this.values[index];
+  }
+
+  /* Returns the index of the last interval starting at or before the given
+   * time, or -1 if there is no such interval. */
+  private int floorIndex(long millis) {
+    if (this.size > 0 && this.startMillis[this.size - 1] <= millis) {
+      /* Shortcut for the common case of appending intervals. */
+      return this.size - 1;
+    }
+    int index = Arrays.binarySearch(this.startMillis, 0, this.size, millis);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  /* Inserts an interval at the given index, shifting all following
+   * intervals. */
+  private void insert(int index, long start, long end, long value) {
+    if (this.size == this.startMillis.length) {
+      int capacity = this.size * 2;
+      this.startMillis = Arrays.copyOf(this.startMillis, capacity);
+      this.endMillis = Arrays.copyOf(this.endMillis, capacity);
+      this.values = Arrays.copyOf(this.values, capacity);
+    }
+    int following = this.size - index;
+    System.arraycopy(this.startMillis, index, this.startMillis, index + 1,
+        following);
+    System.arraycopy(this.endMillis, index, this.endMillis, index + 1,
+        following);
+    System.arraycopy(this.values, index, this.values, index + 1, following);
+    this.startMillis[index] = start;
+    this.endMillis[index] = end;
+    this.values[index] = value;
+    this.size++;
+  }
+
+  /** Adds an interval, replacing any interval that starts at the same
+   * time. */
+  void put(long start, long end, long value) {
+    int index = this.floorIndex(start);
+    if (index >= 0 && this.startMillis[index] == start) {
+      this.endMillis[index] = end;
+      this.values[index] = value;
+    } else {
+      this.insert(index + 1, start, end, value);
+    }
+  }
+
+  /** Adds an interval unless it overlaps with an existing interval or
+   * starts at the same time as an existing interval, and returns whether
+   * the interval was added. */
+  boolean addIfNotOverlapping(long start, long end, long value) {
+    int index = this.floorIndex(start);
+    if (index >= 0 && (this.startMillis[index] == start
+        || this.endMillis[index] > start)) {
+      return false;
+    }
+    if (index + 1 < this.size && this.startMillis[index + 1] < end) {
+      return false;
+    }
+    this.insert(index + 1, start, end, value);
+    return true;
+  }
+
+  /** Merges directly adjacent intervals that end in the same interval of
+   * the length determined by how long before the given last seen time
+   * they end, and that start in the same UTC month. */
+  void compress(long lastSeenMillis) {
+    int compressed = -1;
+    long lastEndMillis = 0L;
+    String lastMonthString = "1970-01";
+    for (int index = 0; index < this.size; index++) {
+      long start = this.startMillis[index];
+      long end = this.endMillis[index];
+      long intervalLengthMillis;
+      if (lastSeenMillis - end <= DateTimeHelper.THREE_DAYS) {
+        intervalLengthMillis = DateTimeHelper.FIFTEEN_MINUTES;
+      } else if (lastSeenMillis - end <= DateTimeHelper.ONE_WEEK) {
+        intervalLengthMillis = DateTimeHelper.ONE_HOUR;
+      } else if (lastSeenMillis - end
+          <= DateTimeHelper.ROUGHLY_ONE_MONTH) {
+        intervalLengthMillis = DateTimeHelper.FOUR_HOURS;
+      } else if (lastSeenMillis - end
+          <= DateTimeHelper.ROUGHLY_SIX_MONTHS) {
+        intervalLengthMillis = DateTimeHelper.ONE_DAY;
+      } else if (lastSeenMillis - end
+          <= DateTimeHelper.ROUGHLY_ONE_YEAR) {
+        intervalLengthMillis = DateTimeHelper.TWO_DAYS;
+      } else {
+        intervalLengthMillis = DateTimeHelper.TEN_DAYS;
+      }
+      String monthString = DateTimeHelper.format(start,
+          DateTimeHelper.ISO_YEARMONTH_FORMAT);
+      if (compressed >= 0 && lastEndMillis == start
+          && ((lastEndMillis - 1L) / intervalLengthMillis)
+          == ((end - 1L) / intervalLengthMillis)
+          && lastMonthString.equals(monthString)) {
+        this.endMillis[compressed] = end;
+        this.values[compressed] += this.values[index];
+      } else {
+        compressed++;
+        this.startMillis[compressed] = start;
+        this.endMillis[compressed] = end;
+        this.values[compressed] = this.values[index];
+      }
+      lastEndMillis = end;
+      lastMonthString = monthString;
+    }
+    this.size = compressed + 1;
+  }
+
+  /** Returns an unmodifiable copy of all intervals as map with start times
+   * as keys and arrays of start time, end time, and bandwidth value as
+   * values. */
+  SortedMap<Long, long[]> toSortedMap() {
+    SortedMap<Long, long[]> history = new TreeMap<>();
+    for (int i = 0; i < this.size; i++) {
+      history.put(this.startMillis[i], new long[] { this.startMillis[i],
+          this.endMillis[i], this.values[i] });
+    }
+    return Collections.unmodifiableSortedMap(history);
+  }
+}
@@ -8,10 +8,14 @@ import org.torproject.descriptor.BandwidthHistory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.SortedMap;
-import java.util.TreeMap;
 
 public class BandwidthStatus extends Document {
 
@@ -28,26 +32,51 @@ public class BandwidthStatus extends Document {
     this.isDirty = false;
   }
 
-  private SortedMap<Long, long[]> writeHistory = new TreeMap<>();
+  /* Write and read histories as primitive arrays of intervals. */
+  private BandwidthIntervals writeHistory = new BandwidthIntervals();
 
+  /** Replaces the write history with the given intervals, with start
+   * times as keys and arrays of start time, end time, and bandwidth value
+   * as values. */
   public void setWriteHistory(SortedMap<Long, long[]> writeHistory) {
-    this.writeHistory = writeHistory;
+    this.writeHistory = toIntervals(writeHistory);
   }
 
+  /** Returns an unmodifiable copy of the write history, with start times
+   * as keys and arrays of start time, end time, and bandwidth value as
+   * values. */
   public SortedMap<Long, long[]> getWriteHistory() {
-    return this.writeHistory;
+    return this.writeHistory.toSortedMap();
   }
 
-  private SortedMap<Long, long[]> readHistory = new TreeMap<>();
+  private BandwidthIntervals readHistory = new BandwidthIntervals();
 
+  /** Replaces the read history with the given intervals, with start
+   * times as keys and arrays of start time, end time, and bandwidth value
+   * as values. */
   public void setReadHistory(SortedMap<Long, long[]> readHistory) {
-    this.readHistory = readHistory;
+    this.readHistory = toIntervals(readHistory);
   }
 
+  /** Returns an unmodifiable copy of the read history, with start times
+   * as keys and arrays of start time, end time, and bandwidth value as
+   * values. */
   public SortedMap<Long, long[]> getReadHistory() {
-    return this.readHistory;
+    return this.readHistory.toSortedMap();
   }
 
+  private static BandwidthIntervals toIntervals(
+      SortedMap<Long, long[]> history) {
+    BandwidthIntervals intervals = new BandwidthIntervals();
+    for (long[] interval : history.values()) {
+      intervals.put(interval[0], interval[1], interval[2]);
+    }
+    return intervals;
+  }
+
+  /** Parses the legacy text format with one line per interval, like
+   * "w 2020-01-01 00:00:00 2020-01-01 00:15:00 12345", skipping intervals
+   * that overlap with previously parsed intervals. */
   @Override
   public void setFromDocumentString(String documentString) {
     try (Scanner s = new Scanner(documentString)) {
@@ -59,30 +88,113 @@ public class BandwidthStatus extends Document {
               + "line.", line);
           continue;
         }
-        SortedMap<Long, long[]> history = parts[0].equals("r")
-            ? readHistory : writeHistory;
-        long startMillis = DateTimeHelper.parse(parts[1] + " " + parts[2]);
-        long endMillis = DateTimeHelper.parse(parts[3] + " " + parts[4]);
+        BandwidthIntervals history = parts[0].equals("r")
+            ? this.readHistory : this.writeHistory;
+        /* Parse timestamps directly from the line, which contains them as
+         * parts[1] + " " + parts[2] and parts[3] + " " + parts[4]. */
+        int startStart = parts[0].length() + 1;
+        int startEnd = startStart + parts[1].length() + 1 + parts[2].length();
+        int endEnd = startEnd + 1 + parts[3].length() + 1 + parts[4].length();
+        long startMillis = DateTimeHelper.parse(line, startStart, startEnd,
+            DateTimeHelper.ISO_DATETIME_FORMAT);
+        long endMillis = DateTimeHelper.parse(line, startEnd + 1, endEnd,
+            DateTimeHelper.ISO_DATETIME_FORMAT);
         if (startMillis < 0L || endMillis < 0L) {
           logger.error("Could not parse timestamp while reading "
               + "bandwidth history.  Skipping.");
           break;
         }
         long bandwidth = Long.parseLong(parts[5]);
-        long previousEndMillis = history.headMap(startMillis).isEmpty()
-            ? startMillis
-            : history.get(history.headMap(startMillis).lastKey())[1];
-        long nextStartMillis = history.tailMap(startMillis).isEmpty()
-            ? endMillis : history.tailMap(startMillis).firstKey();
-        if (previousEndMillis <= startMillis
-            && nextStartMillis >= endMillis) {
-          history.put(startMillis, new long[] { startMillis, endMillis,
-              bandwidth });
-        }
+        history.addIfNotOverlapping(startMillis, endMillis, bandwidth);
       }
     }
   }
 
+  /* First byte of the binary encoding, which cannot be the first byte of
+   * the legacy text format, followed by the version of the encoding. */
+  private static final int BINARY_MARKER = 0x00;
+
+  private static final int BINARY_VERSION = 1;
+
+  /** Encodes write and read histories in a compact binary format.
+   *
+   * <p>After a marker and version byte, each history starts with the
+   * number of intervals, followed by the start time of each interval in
+   * seconds since the start of the previous interval or since the epoch,
+   * its length in seconds, and its bandwidth value.  All numbers are
+   * written as variable-length integers, and times are truncated to whole
+   * seconds like in the legacy text format.</p> */
+  @Override
+  public byte[] toDocumentBytes() {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (DataOutputStream dos = new DataOutputStream(baos)) {
+      dos.writeByte(BINARY_MARKER);
+      dos.writeByte(BINARY_VERSION);
+      writeIntervals(dos, this.writeHistory);
+      writeIntervals(dos, this.readHistory);
+    } catch (IOException e) {
+      /* Writing to a byte array cannot fail. */
+      throw new IllegalStateException(e);
+    }
+    return baos.toByteArray();
+  }
+
+  private static void writeIntervals(DataOutputStream dos,
+      BandwidthIntervals intervals) throws IOException {
+    Varints.writeUnsigned(dos, intervals.size());
+    long previousStartSeconds = 0L;
+    for (int i = 0; i < intervals.size(); i++) {
+      long startSeconds = intervals.getStartMillis(i)
+          / DateTimeHelper.ONE_SECOND;
+      long endSeconds = intervals.getEndMillis(i) / DateTimeHelper.ONE_SECOND;
+      Varints.writeUnsigned(dos, startSeconds - previousStartSeconds);
+      Varints.writeUnsigned(dos, endSeconds - startSeconds);
+      Varints.writeSigned(dos, intervals.getValue(i));
+      previousStartSeconds = startSeconds;
+    }
+  }
+
+  /** Parses write and read histories from the binary format written by
+   * {@link #toDocumentBytes()}, or returns false without keeping any
+   * intervals if the given bytes are not in binary format, are in an
+   * unsupported version of it, or are truncated or otherwise corrupt. */
+  @Override
+  public boolean setFromDocumentBytes(byte[] documentBytes) {
+    if (documentBytes.length == 0 || documentBytes[0] != BINARY_MARKER) {
+      return false;
+    }
+    try (DataInputStream dis = new DataInputStream(
+        new ByteArrayInputStream(documentBytes))) {
+      dis.readUnsignedByte();
+      int version = dis.readUnsignedByte();
+      if (BINARY_VERSION != version) {
+        logger.error("Unsupported bandwidth status version {}.", version);
+        return false;
+      }
+      BandwidthIntervals writeHistory = new BandwidthIntervals();
+      BandwidthIntervals readHistory = new BandwidthIntervals();
+      readIntervals(dis, writeHistory);
+      readIntervals(dis, readHistory);
+      this.writeHistory = writeHistory;
+      this.readHistory = readHistory;
+    } catch (IOException e) {
+      logger.error("Could not parse binary bandwidth status.", e);
+      return false;
+    }
+    return true;
+  }
+
+  private static void readIntervals(DataInputStream dis,
+      BandwidthIntervals intervals) throws IOException {
+    long startSeconds = 0L;
+    for (int count = Varints.readUnsignedInt(dis); count > 0; count--) {
+      startSeconds += Varints.readUnsigned(dis);
+      long endSeconds = startSeconds + Varints.readUnsigned(dis);
+      intervals.put(startSeconds * DateTimeHelper.ONE_SECOND,
+          endSeconds * DateTimeHelper.ONE_SECOND, Varints.readSigned(dis));
+    }
+  }
+
   public void addToWriteHistory(BandwidthHistory bandwidthHistory) {
     this.addToHistory(this.writeHistory, bandwidthHistory);
   }
@@ -91,7 +203,7 @@ public class BandwidthStatus extends Document {
     this.addToHistory(this.readHistory, bandwidthHistory);
   }
 
-  private void addToHistory(SortedMap<Long, long[]> history,
+  private void addToHistory(BandwidthIntervals history,
       BandwidthHistory bandwidthHistory) {
     long intervalMillis = bandwidthHistory.getIntervalLength()
         * DateTimeHelper.ONE_SECOND;
@@ -100,87 +212,76 @@ public class BandwidthStatus extends Document {
       long endMillis = e.getKey();
       long startMillis = endMillis - intervalMillis;
       long bandwidthValue = e.getValue();
-      /* TODO Should we first check whether an interval is already
-       * contained in history? */
-      history.put(startMillis, new long[] { startMillis, endMillis,
-          bandwidthValue });
-      this.isDirty = true;
+      this.addToHistory(history, startMillis, endMillis, bandwidthValue);
     }
   }
 
-  public void compressHistory(long lastSeenMillis) {
-    this.compressHistory(this.writeHistory, lastSeenMillis);
-    this.compressHistory(this.readHistory, lastSeenMillis);
-  }
-
-  private void compressHistory(SortedMap<Long, long[]> history,
-      long lastSeenMillis) {
-    SortedMap<Long, long[]> uncompressedHistory = new TreeMap<>(history);
-    history.clear();
-    long lastStartMillis = 0L;
-    long lastEndMillis = 0L;
-    long lastBandwidth = 0L;
-    String lastMonthString = "1970-01";
-    for (long[] v : uncompressedHistory.values()) {
-      long startMillis = v[0];
-      long endMillis = v[1];
-      long bandwidth = v[2];
-      long intervalLengthMillis;
-      if (lastSeenMillis - endMillis <= DateTimeHelper.THREE_DAYS) {
-        intervalLengthMillis = DateTimeHelper.FIFTEEN_MINUTES;
-      } else if (lastSeenMillis - endMillis <= DateTimeHelper.ONE_WEEK) {
-        intervalLengthMillis = DateTimeHelper.ONE_HOUR;
-      } else if (lastSeenMillis - endMillis
-          <= DateTimeHelper.ROUGHLY_ONE_MONTH) {
-        intervalLengthMillis = DateTimeHelper.FOUR_HOURS;
-      } else if (lastSeenMillis - endMillis
-          <= DateTimeHelper.ROUGHLY_SIX_MONTHS) {
-        intervalLengthMillis = DateTimeHelper.ONE_DAY;
-      } else if (lastSeenMillis - endMillis
-          <= DateTimeHelper.ROUGHLY_ONE_YEAR) {
-        intervalLengthMillis = DateTimeHelper.TWO_DAYS;
-      } else {
-        intervalLengthMillis = DateTimeHelper.TEN_DAYS;
-      }
-      String monthString = DateTimeHelper.format(startMillis,
-          DateTimeHelper.ISO_YEARMONTH_FORMAT);
-      if (lastEndMillis == startMillis
-          && ((lastEndMillis - 1L) / intervalLengthMillis)
-          == ((endMillis - 1L) / intervalLengthMillis)
-          && lastMonthString.equals(monthString)) {
-        lastEndMillis = endMillis;
-        lastBandwidth += bandwidth;
-      } else {
-        if (lastStartMillis > 0L) {
-          history.put(lastStartMillis, new long[] { lastStartMillis,
-              lastEndMillis, lastBandwidth });
-        }
-        lastStartMillis = startMillis;
-        lastEndMillis = endMillis;
-        lastBandwidth = bandwidth;
+  /** Adds a single write history interval, replacing any interval that
+   * starts at the same time. */
+  public void addToWriteHistory(long startMillis, long endMillis,
+      long bandwidthValue) {
+    this.addToHistory(this.writeHistory, startMillis, endMillis,
+        bandwidthValue);
+  }
+
+  /** Adds a single read history interval, replacing any interval that
+   * starts at the same time. */
+  public void addToReadHistory(long startMillis, long endMillis,
+      long bandwidthValue) {
+    this.addToHistory(this.readHistory, startMillis, endMillis,
+        bandwidthValue);
+  }
+
+  private void addToHistory(BandwidthIntervals history,
+      long startMillis, long endMillis, long bandwidthValue) {
+    /* TODO Should we first check whether an interval is already
+     * contained in history? */
+    history.put(startMillis, endMillis, bandwidthValue);
+    this.isDirty = true;
+  }
+
+  /** Adds all write and read history intervals of the given bandwidth
+   * status that don't overlap with existing intervals, for example, when
+   * merging statuses computed from different time ranges. */
+  public void addToHistory(BandwidthStatus other) {
+    this.addToHistory(this.writeHistory, other.writeHistory);
+    this.addToHistory(this.readHistory, other.readHistory);
+  }
+
+  private void addToHistory(BandwidthIntervals history,
+      BandwidthIntervals otherHistory) {
+    for (int i = 0; i < otherHistory.size(); i++) {
+      if (history.addIfNotOverlapping(otherHistory.getStartMillis(i),
+          otherHistory.getEndMillis(i), otherHistory.getValue(i))) {
+        this.isDirty = true;
       }
-      lastMonthString = monthString;
-    }
-    if (lastStartMillis > 0L) {
-      history.put(lastStartMillis, new long[] { lastStartMillis,
-          lastEndMillis, lastBandwidth });
     }
   }
 
+  public void compressHistory(long lastSeenMillis) {
+    this.writeHistory.compress(lastSeenMillis);
+    this.readHistory.compress(lastSeenMillis);
+  }
+
+  /** Formats write and read histories in the legacy text format, which is
+   * no longer used for storing bandwidth statuses. */
   @Override
   public String toDocumentString() {
     StringBuilder sb = new StringBuilder();
-    for (long[] v : writeHistory.values()) {
-      sb.append("w ").append(DateTimeHelper.format(v[0])).append(" ")
-          .append(DateTimeHelper.format(v[1])).append(" ")
-          .append(v[2]).append("\n");
-    }
-    for (long[] v : readHistory.values()) {
-      sb.append("r ").append(DateTimeHelper.format(v[0])).append(" ")
-          .append(DateTimeHelper.format(v[1])).append(" ")
-          .append(v[2]).append("\n");
-    }
+    appendIntervals(sb, "w ", this.writeHistory);
+    appendIntervals(sb, "r ", this.readHistory);
     return sb.toString();
   }
+
+  private static void appendIntervals(StringBuilder sb, String prefix,
+      BandwidthIntervals intervals) {
+    for (int i = 0; i < intervals.size(); i++) {
+      DateTimeHelper.appendTo(sb.append(prefix), intervals.getStartMillis(i),
+          DateTimeHelper.ISO_DATETIME_FORMAT);
+      DateTimeHelper.appendTo(sb.append(" "), intervals.getEndMillis(i),
+          DateTimeHelper.ISO_DATETIME_FORMAT);
+      sb.append(" ").append(intervals.getValue(i)).append("\n");
+    }
+  }
 }
 
@@ -0,0 +1,74 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only arena of byte records kept in large byte arrays.
+ *
+ * <p>Records are referenced by the index of the array containing them in
+ * the upper and their offset within that array in the lower 32 bits of a
+ * long.  Replaced records are not reclaimed but only counted as freed, so
+ * that the owner can copy all live records to a new arena once too many
+ * bytes are freed, after which the old arena and all of its arrays are
+ * garbage collected like any other object.  An arena may be read from
+ * multiple threads as long as no records are added at the same time.</p>
+ */
+final class ByteArena {
+
+  /* Size of each array, unless a single record is larger. */
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  private final List<byte[]> chunks = new ArrayList<>();
+
+  /* Offset of the next record in the last chunk. */
+  private int position = 0;
+
+  private long usedBytes = 0L;
+
+  private long freedBytes = 0L;
+
+  /** Returns the number of bytes in all records added to this arena,
+   * including freed records. */
+  long getUsedBytes() {
+    return this.usedBytes;
+  }
+
+  /** Returns the number of bytes in freed records. */
+  long getFreedBytes() {
+    return this.freedBytes;
+  }
+
+  /** Appends the first length bytes of the given array as new record and
+   * returns a reference to it. */
+  long add(byte[] bytes, int length) {
+    byte[] chunk = this.chunks.isEmpty() ? null
+        : this.chunks.get(this.chunks.size() - 1);
+    if (null == chunk || chunk.length - this.position < length) {
+      chunk = new byte[Math.max(CHUNK_SIZE, length)];
+      this.chunks.add(chunk);
+      this.position = 0;
+    }
+    int offset = this.position;
+    System.arraycopy(bytes, 0, chunk, offset, length);
+    this.position += length;
+    this.usedBytes += length;
+    return ((long) (this.chunks.size() - 1) << 32) | offset;
+  }
+
+  /** Returns a copy of the record with the given reference and length. */
+  byte[] get(long reference, int length) {
+    int offset = (int) reference;
+    return Arrays.copyOfRange(this.chunks.get((int) (reference >>> 32)),
+        offset, offset + length);
+  }
+
+  /** Counts a record of the given length as freed. */
+  void free(int length) {
+    this.freedBytes += length;
+  }
+}
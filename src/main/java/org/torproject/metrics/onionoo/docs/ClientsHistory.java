@@ -140,8 +140,10 @@ public class ClientsHistory implements Comparable<ClientsHistory> {
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    sb.append(DateTimeHelper.format(startMillis));
-    sb.append(" ").append(DateTimeHelper.format(endMillis));
+    DateTimeHelper.appendTo(sb, startMillis,
+        DateTimeHelper.ISO_DATETIME_FORMAT);
+    DateTimeHelper.appendTo(sb.append(" "), endMillis,
+        DateTimeHelper.ISO_DATETIME_FORMAT);
     sb.append(" ").append(String.format("%.3f", this.totalResponses));
     this.appendResponses(sb, this.responsesByCountry);
     this.appendResponses(sb, this.responsesByTransport);
@@ -11,6 +11,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TimeZone;
 
 public class DateTimeHelper {
 
@@ -84,14 +85,105 @@ public class DateTimeHelper {
     return threadDateFormats.get(format);
   }
 
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  /* Returns whether date formats of the current thread use UTC, as set by
+   * the main classes, in which case fixed formats can be parsed and
+   * formatted arithmetically with identical results. */
+  private static boolean usesUtc(String format) {
+    return getDateFormat(format).getTimeZone().hasSameRules(UTC);
+  }
+
+  /* Returns the length of the given format if it is one of the fixed
+   * formats that are parsed and formatted arithmetically, or -1
+   * otherwise. */
+  private static int fixedFormatLength(String format) {
+    if (ISO_DATETIME_FORMAT.equals(format)
+        || ISO_DATETIME_TAB_FORMAT.equals(format)) {
+      return 19;
+    } else if (DATEHOUR_NOSPACE_FORMAT.equals(format)) {
+      return 13;
+    } else if (ISO_YEARMONTH_FORMAT.equals(format)) {
+      return 7;
+    } else {
+      return -1;
+    }
+  }
+
+  /* Largest time in milliseconds since the epoch that is formatted with
+   * four year digits, which is 9999-12-31 23:59:59.999. */
+  private static final long MAX_FIXED_FORMAT_MILLIS = 253402300799999L;
+
+  /** Formats the given time in milliseconds since the epoch using the
+   * given format. */
   public static String format(long millis, String format) {
-    return getDateFormat(format).format(millis);
+    if (fixedFormatLength(format) < 0) {
+      return getDateFormat(format).format(millis);
+    }
+    return appendTo(new StringBuilder(19), millis, format).toString();
   }
 
   public static String format(long millis) {
     return format(millis, ISO_DATETIME_FORMAT);
   }
 
+  /** Appends the given time in milliseconds since the epoch formatted
+   * using the given format to the given string builder, without creating
+   * intermediate objects for fixed formats. */
+  public static StringBuilder appendTo(StringBuilder sb, long millis,
+      String format) {
+    int length = fixedFormatLength(format);
+    if (length < 0 || millis < 0L || millis > MAX_FIXED_FORMAT_MILLIS
+        || !usesUtc(format)) {
+      return sb.append(getDateFormat(format).format(millis));
+    }
+    int start = sb.length();
+    sb.setLength(start + length);
+    long days = millis / ONE_DAY;
+    long millisOfDay = millis % ONE_DAY;
+    /* Convert days since the epoch to year, month, and day of month in the
+     * proleptic Gregorian calendar, using eras of 400 years starting on
+     * March 1. */
+    long shiftedDays = days + 719468L;
+    long era = shiftedDays / 146097L;
+    long dayOfEra = shiftedDays - era * 146097L;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460L + dayOfEra / 36524L
+        - dayOfEra / 146096L) / 365L;
+    long dayOfYear = dayOfEra - (365L * yearOfEra + yearOfEra / 4L
+        - yearOfEra / 100L);
+    long shiftedMonth = (5L * dayOfYear + 2L) / 153L;
+    int day = (int) (dayOfYear - (153L * shiftedMonth + 2L) / 5L + 1L);
+    int month = (int) (shiftedMonth < 10L ? shiftedMonth + 3L
+        : shiftedMonth - 9L);
+    int year = (int) (yearOfEra + era * 400L + (month <= 2 ? 1L : 0L));
+    setDigits(sb, start, year, 4);
+    sb.setCharAt(start + 4, '-');
+    setDigits(sb, start + 5, month, 2);
+    if (length > 7) {
+      int secondOfDay = (int) (millisOfDay / ONE_SECOND);
+      sb.setCharAt(start + 7, '-');
+      setDigits(sb, start + 8, day, 2);
+      sb.setCharAt(start + 10, ISO_DATETIME_TAB_FORMAT.equals(format) ? '\t'
+          : ISO_DATETIME_FORMAT.equals(format) ? ' ' : '-');
+      setDigits(sb, start + 11, secondOfDay / 3600, 2);
+      if (length > 13) {
+        sb.setCharAt(start + 13, ':');
+        setDigits(sb, start + 14, secondOfDay / 60 % 60, 2);
+        sb.setCharAt(start + 16, ':');
+        setDigits(sb, start + 17, secondOfDay % 60, 2);
+      }
+    }
+    return sb;
+  }
+
+  private static void setDigits(StringBuilder sb, int start, int value,
+      int digits) {
+    for (int i = start + digits - 1; i >= start; i--) {
+      sb.setCharAt(i, (char) ('0' + value % 10));
+      value /= 10;
+    }
+  }
+
   /** Parses the given string using the given format and return the time
    * in milliseconds since the epoch or {@link #NO_TIME_AVAILABLE} if the
    * string cannot be parsed. */
@@ -100,14 +192,117 @@ public class DateTimeHelper {
       logger.warn("Date String was null.");
       return NO_TIME_AVAILABLE;
     }
+    return parse(string, 0, string.length(), format);
+  }
+
+  /** Parses the given range of characters using the given format and
+   * return the time in milliseconds since the epoch or
+   * {@link #NO_TIME_AVAILABLE} if the characters cannot be parsed.
+   *
+   * <p>Characters in one of the fixed formats with valid field values are
+   * parsed arithmetically without creating any objects, and all other
+   * characters are parsed using a date format, which also logs why they
+   * could not be parsed.</p> */
+  public static long parse(CharSequence chars, int start, int end,
+      String format) {
+    long millis = parseFixed(chars, start, end, format);
+    if (millis >= 0L && usesUtc(format)) {
+      return millis;
+    }
     try {
-      return getDateFormat(format).parse(string).getTime();
+      return getDateFormat(format).parse(
+          chars.subSequence(start, end).toString()).getTime();
     } catch (ParseException e) {
       logger.warn(e.getMessage(), e);
       return NO_TIME_AVAILABLE;
     }
   }
 
+  /* Parses the given range of characters in one of the fixed formats, or
+   * returns -1 if the format is not fixed, if the characters are not in
+   * exactly that format, or if any field value is out of range, leaving
+   * it to the date format to parse them or to report an error. */
+  private static long parseFixed(CharSequence chars, int start, int end,
+      String format) {
+    int length = fixedFormatLength(format);
+    if (length < 0 || end - start != length) {
+      return -1L;
+    }
+    int year = parseDigits(chars, start, 4);
+    int month = parseDigits(chars, start + 5, 2);
+    if (year < 1970 || chars.charAt(start + 4) != '-' || month < 1
+        || month > 12) {
+      return -1L;
+    }
+    int day = 1;
+    int hour = 0;
+    int minute = 0;
+    int second = 0;
+    if (length > 7) {
+      char separator = ISO_DATETIME_TAB_FORMAT.equals(format) ? '\t'
+          : ISO_DATETIME_FORMAT.equals(format) ? ' ' : '-';
+      day = parseDigits(chars, start + 8, 2);
+      hour = parseDigits(chars, start + 11, 2);
+      if (chars.charAt(start + 7) != '-' || day < 1
+          || day > daysInMonth(year, month)
+          || chars.charAt(start + 10) != separator || hour < 0
+          || hour > 23) {
+        return -1L;
+      }
+      if (length > 13) {
+        minute = parseDigits(chars, start + 14, 2);
+        second = parseDigits(chars, start + 17, 2);
+        if (chars.charAt(start + 13) != ':' || minute < 0 || minute > 59
+            || chars.charAt(start + 16) != ':' || second < 0
+            || second > 59) {
+          return -1L;
+        }
+      }
+    }
+    /* Convert year, month, and day of month to days since the epoch in
+     * the proleptic Gregorian calendar, using eras of 400 years starting
+     * on March 1. */
+    int shiftedYear = month <= 2 ? year - 1 : year;
+    long era = shiftedYear / 400;
+    long yearOfEra = shiftedYear - era * 400L;
+    long dayOfYear = (153L * (month > 2 ? month - 3 : month + 9) + 2L) / 5L
+        + day - 1L;
+    long dayOfEra = yearOfEra * 365L + yearOfEra / 4L - yearOfEra / 100L
+        + dayOfYear;
+    long days = era * 146097L + dayOfEra - 719468L;
+    return days * ONE_DAY + hour * ONE_HOUR + minute * ONE_MINUTE
+        + second * ONE_SECOND;
+  }
+
+  /* Parses the given number of ASCII digits, or returns -1 if any of the
+   * characters is not an ASCII digit. */
+  private static int parseDigits(CharSequence chars, int start, int digits) {
+    int value = 0;
+    for (int i = start; i < start + digits; i++) {
+      char c = chars.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))
+            ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
   /** Parses the given string using {@link #ISO_DATETIME_FORMAT} as format
    * and return the time in milliseconds since the epoch or
    * {@link #NO_TIME_AVAILABLE} if the string cannot be parsed. */
@@ -42,5 +42,21 @@ public abstract class Document {
     /* Subclasses may override this method to write documentString. */
     return null;
   }
+
+  /** Parses the given file contents if they are in a binary encoding
+   * supported by this document type and returns true, or returns false if
+   * they are not in that encoding or could not be parsed completely, in
+   * which case this document must not contain any parsed contents. */
+  public boolean setFromDocumentBytes(byte[] documentBytes) {
+    /* Subclasses may override this method to parse a binary encoding. */
+    return false;
+  }
+
+  /** Returns file contents in a binary encoding, or null if this document
+   * type is stored as document string. */
+  public byte[] toDocumentBytes() {
+    /* Subclasses may override this method to write a binary encoding. */
+    return null;
+  }
 }
 
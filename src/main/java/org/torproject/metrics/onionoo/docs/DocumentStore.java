@@ -24,15 +24,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.Stack;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 // TODO For later migration from disk to database, do the following:
 // - read from database and then from disk if not found
@@ -46,7 +49,13 @@ public class DocumentStore {
 
   private static ObjectMapper objectMapper = new ObjectMapper();
 
-  private final File statusDir = new File("status");
+  private File statusDir = new File("status");
+
+  /** Sets the directory containing status files, which is the status/
+   * directory in the working directory by default. */
+  public void setStatusDir(File statusDir) {
+    this.statusDir = statusDir;
+  }
 
   private File outDir = null;
 
@@ -54,31 +63,41 @@ public class DocumentStore {
     this.outDir = outDir;
   }
 
-  private long listOperations = 0L;
+  /* Counters of listed, stored, unchanged, retrieved, and removed
+   * document files, which may be updated concurrently when status
+   * updaters or document writers run in parallel or when storing or
+   * retrieving documents with different fingerprints from multiple
+   * threads. */
+  private final AtomicLong listOperations = new AtomicLong();
 
-  private long listedFiles = 0L;
+  private final AtomicLong listedFiles = new AtomicLong();
 
-  private long storedFiles = 0L;
+  private final AtomicLong storedFiles = new AtomicLong();
 
-  private long storedBytes = 0L;
+  private final AtomicLong storedBytes = new AtomicLong();
 
-  private long unchangedFiles = 0L;
+  private final AtomicLong unchangedFiles = new AtomicLong();
 
-  private long unchangedBytes = 0L;
+  private final AtomicLong unchangedBytes = new AtomicLong();
 
-  private long retrievedFiles = 0L;
+  private final AtomicLong retrievedFiles = new AtomicLong();
 
-  private long retrievedBytes = 0L;
+  private final AtomicLong retrievedBytes = new AtomicLong();
 
-  private long removedFiles = 0L;
+  private final AtomicLong removedFiles = new AtomicLong();
 
   /* Node statuses and summary documents are cached in memory, as opposed
    * to all other document types.  These caches are initialized when first
    * accessing or modifying a NodeStatus or SummaryDocument document,
-   * respectively. */
-  private SortedMap<String, NodeStatus> cachedNodeStatuses;
+   * respectively, possibly from concurrently running status updaters or
+   * document writers.  Once initialized, a cache may be read from
+   * multiple threads, but it must only be modified by one thread at a
+   * time.  Node statuses are kept in a columnar table rather than as node
+   * status objects, which are only created when retrieving them. */
+  private volatile NodeStatusTable cachedNodeStatuses;
 
-  private SortedMap<String, SummaryDocument> cachedSummaryDocuments;
+  private volatile SortedMap<String, SummaryDocument>
+      cachedSummaryDocuments;
 
   /* Last-modified timestamp of cached network statuses and summary
    * documents when reading them from disk. */
@@ -117,12 +136,15 @@ public class DocumentStore {
     if (updatedAfter >= this.lastModifiedNodeStatuses) {
       return new TreeSet<>(this.updatedNodeStatuses);
     } else {
-      return new TreeSet<>(this.cachedNodeStatuses.keySet());
+      return this.cachedNodeStatuses.getFingerprints();
     }
   }
 
-  private void cacheNodeStatuses() {
-    SortedMap<String, NodeStatus> parsedNodeStatuses = new TreeMap<>();
+  private synchronized void cacheNodeStatuses() {
+    if (this.cachedNodeStatuses != null) {
+      return;
+    }
+    NodeStatusTable parsedNodeStatuses = new NodeStatusTable();
     File directory = this.statusDir;
     if (directory != null) {
       File summaryFile = new File(directory, "summary");
@@ -136,20 +158,20 @@ public class DocumentStore {
             }
             NodeStatus node = NodeStatus.fromString(line);
             if (node != null) {
-              parsedNodeStatuses.put(node.getFingerprint(), node);
+              parsedNodeStatuses.put(node);
             }
           }
           this.lastModifiedNodeStatuses = summaryFile.lastModified();
-          this.listedFiles += parsedNodeStatuses.size();
-          this.listOperations++;
+          this.listedFiles.addAndGet(parsedNodeStatuses.size());
+          this.listOperations.incrementAndGet();
         } catch (IOException e) {
           logger.error("Could not read file '{}'.",
               summaryFile.getAbsolutePath(), e);
         }
       }
     }
-    this.cachedNodeStatuses = parsedNodeStatuses;
     this.updatedNodeStatuses = new TreeSet<>();
+    this.cachedNodeStatuses = parsedNodeStatuses;
   }
 
   private SortedSet<String> listSummaryDocuments(long updatedAfter) {
@@ -163,7 +185,10 @@ public class DocumentStore {
     }
   }
 
-  private void cacheSummaryDocuments() {
+  private synchronized void cacheSummaryDocuments() {
+    if (this.cachedSummaryDocuments != null) {
+      return;
+    }
     SortedMap<String, SummaryDocument> parsedSummaryDocuments = new TreeMap<>();
     if (this.outDir != null) {
       File summaryFile = new File(this.outDir, "summary");
@@ -183,16 +208,16 @@ public class DocumentStore {
             }
           }
           this.lastModifiedSummaryDocuments = summaryFile.lastModified();
-          this.listedFiles += parsedSummaryDocuments.size();
-          this.listOperations++;
+          this.listedFiles.addAndGet(parsedSummaryDocuments.size());
+          this.listOperations.incrementAndGet();
         } catch (IOException e) {
           logger.error("Could not parse summary document '{}' from file '{}'.",
               line, summaryFile.getAbsolutePath(), e);
         }
       }
     }
-    this.cachedSummaryDocuments = parsedSummaryDocuments;
     this.updatedSummaryDocuments = new TreeSet<>();
+    this.cachedSummaryDocuments = parsedSummaryDocuments;
   }
 
   private <T extends Document> SortedSet<String> listDocumentFiles(
@@ -245,8 +270,8 @@ public class DocumentStore {
         }
       }
     }
-    this.listOperations++;
-    this.listedFiles += fingerprints.size();
+    this.listOperations.incrementAndGet();
+    this.listedFiles.addAndGet(fingerprints.size());
     return fingerprints;
   }
 
@@ -255,7 +280,8 @@ public class DocumentStore {
   }
 
   /** Stores the given document using the given fingerprint as
-   * identifier. */
+   * identifier; documents other than node statuses and summary documents
+   * may be stored concurrently as long as fingerprints differ. */
   public <T extends Document> boolean store(T document,
       String fingerprint) {
     if (document instanceof NodeStatus) {
@@ -263,6 +289,8 @@ public class DocumentStore {
     } else if (document instanceof SummaryDocument) {
       return this.storeSummaryDocument((SummaryDocument) document,
           fingerprint);
+    } else if (document instanceof UptimeStatus && fingerprint == null) {
+      return this.storeNetworkUptimeStatus((UptimeStatus) document);
     } else {
       return this.storeDocumentFile(document, fingerprint);
     }
@@ -274,7 +302,7 @@ public class DocumentStore {
       this.cacheNodeStatuses();
     }
     this.updatedNodeStatuses.add(fingerprint);
-    this.cachedNodeStatuses.put(fingerprint, nodeStatus);
+    this.cachedNodeStatuses.put(nodeStatus);
     return true;
   }
 
@@ -301,9 +329,13 @@ public class DocumentStore {
     if (documentFile == null) {
       return false;
     }
-    String documentString;
+    String documentString = null;
+    byte[] documentBytes = null;
     if (document.getDocumentString() != null) {
       documentString = document.getDocumentString();
+    } else if (document instanceof BandwidthStatus
+        || document instanceof WeightsStatus) {
+      documentBytes = document.toDocumentBytes();
     } else if (document instanceof BandwidthDocument
         || document instanceof WeightsDocument
         || document instanceof ClientsDocument
@@ -340,9 +372,7 @@ public class DocumentStore {
             documentString.indexOf("{") + 1,
             documentString.lastIndexOf("}"));
       }
-    } else if (document instanceof BandwidthStatus
-        || document instanceof WeightsStatus
-        || document instanceof ClientsStatus
+    } else if (document instanceof ClientsStatus
         || document instanceof UptimeStatus
         || document instanceof UpdateStatus) {
       documentString = document.toDocumentString();
@@ -351,31 +381,34 @@ public class DocumentStore {
           document.getClass().getName());
       return false;
     }
+    if (documentBytes == null) {
+      documentBytes = documentString.getBytes(StandardCharsets.US_ASCII);
+    }
     try {
-      if (documentString.length() > ONE_MIBIBYTE) {
+      if (documentBytes.length > ONE_MIBIBYTE) {
         logger.warn("Attempting to store very large document file: path='{}', "
             + "bytes={}", documentFile.getAbsolutePath(),
-            documentString.length());
+            documentBytes.length);
       }
       documentFile.getParentFile().mkdirs();
       if (documentFile.exists()) {
         try (InputStream stream = Files.newInputStream(documentFile.toPath())) {
           String existingFileDigest = DigestUtils.sha256Hex(stream);
-          String newFileDigest = DigestUtils.sha256Hex(documentString);
+          String newFileDigest = DigestUtils.sha256Hex(documentBytes);
           if (existingFileDigest.equals(newFileDigest)) {
-            this.unchangedFiles++;
-            this.unchangedBytes += documentString.length();
+            this.unchangedFiles.incrementAndGet();
+            this.unchangedBytes.addAndGet(documentBytes.length);
             return true;
           }
         }
       }
       File documentTempFile = new File(
           documentFile.getAbsolutePath() + ".tmp");
-      writeToFile(documentTempFile, documentString);
+      writeToFile(documentTempFile, documentBytes);
       documentFile.delete();
       documentTempFile.renameTo(documentFile);
-      this.storedFiles++;
-      this.storedBytes += documentString.length();
+      this.storedFiles.incrementAndGet();
+      this.storedBytes.addAndGet(documentBytes.length);
     } catch (IOException e) {
       logger.error("Could not write file '{}'.", documentFile.getAbsolutePath(),
           e);
@@ -390,13 +423,18 @@ public class DocumentStore {
   }
 
   /** Retrieves the document with given type and identified by the given
-   * fingerprint, and either parses it or returns it unparsed. */
+   * fingerprint, and either parses it or returns it unparsed; documents
+   * other than node statuses and summary documents may be retrieved
+   * concurrently as long as fingerprints differ. */
   public <T extends Document> T retrieve(Class<T> documentType,
       boolean parse, String fingerprint) {
     if (documentType.equals(NodeStatus.class)) {
       return documentType.cast(this.retrieveNodeStatus(fingerprint));
     } else if (documentType.equals(SummaryDocument.class)) {
       return documentType.cast(this.retrieveSummaryDocument(fingerprint));
+    } else if (documentType.equals(UptimeStatus.class)
+        && fingerprint == null) {
+      return documentType.cast(this.retrieveNetworkUptimeStatus(0L));
     } else {
       return this.retrieveDocumentFile(documentType, parse, fingerprint);
     }
@@ -500,9 +538,27 @@ public class DocumentStore {
         /* Document file is empty. */
         return null;
       }
+      this.retrievedFiles.incrementAndGet();
+      this.retrievedBytes.addAndGet(allData.length);
+      if (documentType.equals(BandwidthStatus.class)
+          || documentType.equals(WeightsStatus.class)) {
+        /* Bandwidth and weights statuses are stored in a binary encoding,
+         * but may still be contained in files using the former text
+         * format. */
+        T result = this.retrieveParsedBinaryStatusFile(documentType,
+            allData);
+        if (result != null) {
+          return result;
+        } else if (0 == allData[0]) {
+          /* The legacy text format never starts with a zero byte, so this
+           * is a binary status that is corrupt or in an unsupported
+           * version, which must not be parsed as text. */
+          logger.error("Could not parse binary status file '{}'.",
+              documentFile.getAbsolutePath());
+          return null;
+        }
+      }
       documentString = new String(allData, StandardCharsets.US_ASCII);
-      this.retrievedFiles++;
-      this.retrievedBytes += documentString.length();
     } catch (IOException e) {
       logger.error("Could not read file '{}'.", documentFile.getAbsolutePath(),
           e);
@@ -539,6 +595,19 @@ public class DocumentStore {
     return result;
   }
 
+  private <T extends Document> T retrieveParsedBinaryStatusFile(
+      Class<T> documentType, byte[] documentBytes) {
+    try {
+      T result = documentType.getDeclaredConstructor().newInstance();
+      if (result.setFromDocumentBytes(documentBytes)) {
+        return result;
+      }
+    } catch (ReflectiveOperationException e) {
+      logger.error(e.getMessage(), e);
+    }
+    return null;
+  }
+
   private <T extends Document> T retrieveParsedStatusFile(
       Class<T> documentType, String documentString) {
     T result = null;
@@ -590,6 +659,123 @@ public class DocumentStore {
     return result;
   }
 
+  /* Directory containing the uptime status of all relays and bridges in
+   * monthly segments, which replaces the former single status file. */
+  private File getNetworkUptimeSegmentsDir() {
+    return new File(this.statusDir, "uptime-months");
+  }
+
+  /** Retrieves the uptime status of all relays and bridges, including at
+   * least all hours from the given time in milliseconds since the epoch
+   * on, by reading only the monthly segments that end after that time,
+   * or returns null if no such status exists.
+   *
+   * <p>Reads the former single status file in full if it still exists,
+   * with segments taking precedence over it.</p> */
+  public UptimeStatus retrieveNetworkUptimeStatus(long fromMillis) {
+    UptimeStatus uptimeStatus = null;
+    File legacyFile = this.getDocumentFile(UptimeStatus.class, null);
+    if (legacyFile.exists()) {
+      uptimeStatus = this.retrieveDocumentFile(UptimeStatus.class, true,
+          null);
+    }
+    UptimeStatus segmentsStatus = null;
+    File[] segmentFiles = this.getNetworkUptimeSegmentsDir().listFiles();
+    if (segmentFiles != null) {
+      this.listOperations.incrementAndGet();
+      this.listedFiles.addAndGet(segmentFiles.length);
+      for (File segmentFile : segmentFiles) {
+        YearMonth month;
+        try {
+          month = YearMonth.parse(segmentFile.getName());
+        } catch (DateTimeParseException e) {
+          /* Not a segment file, for example, a leftover temporary file. */
+          continue;
+        }
+        if (month.plusMonths(1).atDay(1).atStartOfDay()
+            .toEpochSecond(ZoneOffset.UTC) * 1000L <= fromMillis) {
+          continue;
+        }
+        try {
+          byte[] segment = Files.readAllBytes(segmentFile.toPath());
+          if (segmentsStatus == null) {
+            segmentsStatus = new UptimeStatus();
+          }
+          segmentsStatus.addMonthSegment(segment);
+          this.retrievedFiles.incrementAndGet();
+          this.retrievedBytes.addAndGet(segment.length);
+        } catch (IOException e) {
+          logger.error("Could not read file '{}'.",
+              segmentFile.getAbsolutePath(), e);
+        }
+      }
+    }
+    if (uptimeStatus == null) {
+      uptimeStatus = segmentsStatus;
+    } else if (segmentsStatus != null) {
+      uptimeStatus.addToHistory(segmentsStatus);
+    }
+    if (uptimeStatus != null) {
+      uptimeStatus.compressHistory();
+      uptimeStatus.clearDirty();
+    }
+    return uptimeStatus;
+  }
+
+  /** Stores the uptime status of all relays and bridges by writing one
+   * segment per month contained in the given status, skipping segments
+   * that have not changed, which typically leaves all but the current
+   * month untouched.
+   *
+   * <p>Merges the given status into the former single status file if it
+   * still exists, writes all of its months as segments, and deletes
+   * it.</p> */
+  public boolean storeNetworkUptimeStatus(UptimeStatus uptimeStatus) {
+    File legacyFile = this.getDocumentFile(UptimeStatus.class, null);
+    if (legacyFile.exists()) {
+      UptimeStatus legacyStatus = this.retrieveDocumentFile(
+          UptimeStatus.class, true, null);
+      if (legacyStatus != null) {
+        legacyStatus.addToHistory(uptimeStatus);
+        uptimeStatus = legacyStatus;
+      }
+    }
+    File segmentsDir = this.getNetworkUptimeSegmentsDir();
+    for (YearMonth month : uptimeStatus.getMonths()) {
+      File segmentFile = new File(segmentsDir, month.toString());
+      byte[] segment = uptimeStatus.toMonthSegment(month);
+      try {
+        if (segmentFile.exists() && Arrays.equals(segment,
+            Files.readAllBytes(segmentFile.toPath()))) {
+          this.unchangedFiles.incrementAndGet();
+          this.unchangedBytes.addAndGet(segment.length);
+          continue;
+        }
+        segmentsDir.mkdirs();
+        File segmentTempFile = new File(
+            segmentFile.getAbsolutePath() + ".tmp");
+        Files.write(segmentTempFile.toPath(), segment);
+        segmentFile.delete();
+        segmentTempFile.renameTo(segmentFile);
+        this.storedFiles.incrementAndGet();
+        this.storedBytes.addAndGet(segment.length);
+      } catch (IOException e) {
+        logger.error("Could not write file '{}'.",
+            segmentFile.getAbsolutePath(), e);
+        return false;
+      }
+    }
+    if (legacyFile.exists()) {
+      if (!legacyFile.delete()) {
+        logger.error("Could not delete file '{}'.",
+            legacyFile.getAbsolutePath());
+        return false;
+      }
+      this.removedFiles.incrementAndGet();
+    }
+    return true;
+  }
+
   public <T extends Document> boolean remove(Class<T> documentType) {
     return this.remove(documentType, null);
   }
@@ -612,7 +798,7 @@ public class DocumentStore {
       this.cacheNodeStatuses();
     }
     this.updatedNodeStatuses.remove(fingerprint);
-    return this.cachedNodeStatuses.remove(fingerprint) != null;
+    return this.cachedNodeStatuses.remove(fingerprint);
   }
 
   private boolean removeSummaryDocument(String fingerprint) {
@@ -631,7 +817,7 @@ public class DocumentStore {
           documentFile.getAbsolutePath());
       return false;
     }
-    this.removedFiles++;
+    this.removedFiles.incrementAndGet();
     return true;
   }
 
@@ -739,33 +925,22 @@ public class DocumentStore {
       return;
     }
     File summaryFile = new File(directory, "summary");
-    SortedMap<String, NodeStatus> cachedRelays = new TreeMap<>();
-    SortedMap<String, NodeStatus> cachedBridges = new TreeMap<>();
-    for (Map.Entry<String, NodeStatus> e :
-        this.cachedNodeStatuses.entrySet()) {
-      if (e.getValue().isRelay()) {
-        cachedRelays.put(e.getKey(), e.getValue());
-      } else {
-        cachedBridges.put(e.getKey(), e.getValue());
-      }
-    }
+    SortedSet<String> fingerprints =
+        this.cachedNodeStatuses.getFingerprints();
     StringBuilder sb = new StringBuilder();
-    for (NodeStatus relay : cachedRelays.values()) {
-      String line = relay.toString();
-      if (line != null) {
-        sb.append(line).append("\n");
-      } else {
-        logger.error("Could not serialize relay node status '{}'",
-            relay.getFingerprint());
-      }
-    }
-    for (NodeStatus bridge : cachedBridges.values()) {
-      String line = bridge.toString();
-      if (line != null) {
-        sb.append(line).append("\n");
-      } else {
-        logger.error("Could not serialize bridge node status '{}'",
-            bridge.getFingerprint());
+    for (boolean writeRelays : new boolean[] { true, false }) {
+      for (String fingerprint : fingerprints) {
+        if (this.cachedNodeStatuses.isRelay(fingerprint) != writeRelays) {
+          continue;
+        }
+        NodeStatus nodeStatus = this.cachedNodeStatuses.get(fingerprint);
+        String line = nodeStatus.toString();
+        if (line != null) {
+          sb.append(line).append("\n");
+        } else {
+          logger.error("Could not serialize {} node status '{}'",
+              writeRelays ? "relay" : "bridge", fingerprint);
+        }
       }
     }
     String documentString = sb.toString();
@@ -774,8 +949,8 @@ public class DocumentStore {
       writeToFile(summaryFile, documentString);
       this.lastModifiedNodeStatuses = summaryFile.lastModified();
       this.updatedNodeStatuses.clear();
-      this.storedFiles++;
-      this.storedBytes += documentString.length();
+      this.storedFiles.incrementAndGet();
+      this.storedBytes.addAndGet(documentString.length());
     } catch (IOException e) {
       logger.error("Could not write file '{}'.", summaryFile.getAbsolutePath(),
           e);
@@ -790,6 +965,14 @@ public class DocumentStore {
     }
   }
 
+  private static void writeToFile(File file, byte[] content)
+      throws IOException {
+    try (BufferedOutputStream bos = new BufferedOutputStream(
+        new FileOutputStream(file))) {
+      bos.write(content);
+    }
+  }
+
   private void writeSummaryDocuments() {
     if (this.outDir == null) {
       /* Can't write out/summary without knowing the path of out/. */
@@ -818,8 +1001,8 @@ public class DocumentStore {
       writeToFile(summaryFile, documentString);
       this.lastModifiedSummaryDocuments = summaryFile.lastModified();
       this.updatedSummaryDocuments.clear();
-      this.storedFiles++;
-      this.storedBytes += documentString.length();
+      this.storedFiles.incrementAndGet();
+      this.storedBytes.addAndGet(documentString.length());
     } catch (IOException e) {
       logger.error("Could not write file '{}'.", summaryFile.getAbsolutePath(),
           e);
@@ -836,6 +1019,22 @@ public class DocumentStore {
     this.store(updateStatus);
   }
 
+  public long getStoredFiles() {
+    return this.storedFiles.get();
+  }
+
+  public long getStoredBytes() {
+    return this.storedBytes.get();
+  }
+
+  public long getRetrievedFiles() {
+    return this.retrievedFiles.get();
+  }
+
+  public long getRetrievedBytes() {
+    return this.retrievedBytes.get();
+  }
+
   /** Returns a string with statistics on document storage operations. */
   public String getStatsString() {
     return String.format("    %s list operations performed\n"
@@ -847,15 +1046,15 @@ public class DocumentStore {
         + "    %s files retrieved\n"
         + "    %s retrieved\n"
         + "    %s files removed\n",
-        FormattingUtils.formatDecimalNumber(listOperations),
-        FormattingUtils.formatDecimalNumber(listedFiles),
-        FormattingUtils.formatDecimalNumber(storedFiles),
-        FormattingUtils.formatBytes(storedBytes),
-        FormattingUtils.formatDecimalNumber(unchangedFiles),
-        FormattingUtils.formatBytes(unchangedBytes),
-        FormattingUtils.formatDecimalNumber(retrievedFiles),
-        FormattingUtils.formatBytes(retrievedBytes),
-        FormattingUtils.formatDecimalNumber(removedFiles));
+        FormattingUtils.formatDecimalNumber(this.listOperations.get()),
+        FormattingUtils.formatDecimalNumber(this.listedFiles.get()),
+        FormattingUtils.formatDecimalNumber(this.storedFiles.get()),
+        FormattingUtils.formatBytes(this.storedBytes.get()),
+        FormattingUtils.formatDecimalNumber(this.unchangedFiles.get()),
+        FormattingUtils.formatBytes(this.unchangedBytes.get()),
+        FormattingUtils.formatDecimalNumber(this.retrievedFiles.get()),
+        FormattingUtils.formatBytes(this.retrievedBytes.get()),
+        FormattingUtils.formatDecimalNumber(this.removedFiles.get()));
   }
 }
 
@@ -86,13 +86,24 @@ public class NodeStatus extends Document {
 
   /** Sets the contact to a lower-cased variant of the given string with
    * all non-printable characters outside of ASCII code 32 (space) to 126
-   * (dash) replaced with spaces. */
+   * (dash) replaced with spaces, keeping the given string if it does not
+   * contain any such characters. */
   public void setContact(String contact) {
     if (contact == null) {
       this.contact = null;
     } else {
+      String lowerCaseContact = contact.toLowerCase();
+      boolean printable = true;
+      for (int i = 0; printable && i < lowerCaseContact.length(); i++) {
+        char c = lowerCaseContact.charAt(i);
+        printable = c >= 32 && c < 127;
+      }
+      if (printable) {
+        this.contact = lowerCaseContact;
+        return;
+      }
       StringBuilder sb = new StringBuilder();
-      for (char c : contact.toLowerCase().toCharArray()) {
+      for (char c : lowerCaseContact.toCharArray()) {
         if (c >= 32 && c < 127) {
           sb.append(c);
         } else {
@@ -287,6 +298,17 @@ public class NodeStatus extends Document {
     return result;
   }
 
+  /* Returns relay flags as words of a bit set with bit indexes shared by
+   * all node statuses, or null if relay flags have not been set. */
+  long[] getRelayFlagsWords() {
+    return null == this.relayFlags ? null : this.relayFlags.toLongArray();
+  }
+
+  void setRelayFlagsWords(long[] relayFlagsWords) {
+    this.relayFlags = null == relayFlagsWords ? null
+        : BitSet.valueOf(relayFlagsWords);
+  }
+
   private long consensusWeight;
 
   public void setConsensusWeight(long consensusWeight) {
@@ -339,6 +361,15 @@ public class NodeStatus extends Document {
     this.lastAddresses.get(lastSeenMillis).addAll(addressesAndPorts);
   }
 
+  /** Adds all addresses and ports from the given history of last seen
+   * addresses and ports, as returned by {@link #getLastAddresses()}. */
+  public void addLastAddresses(SortedMap<Long, Set<String>> lastAddresses) {
+    for (Map.Entry<Long, Set<String>> e : lastAddresses.entrySet()) {
+      this.lastAddresses.putIfAbsent(e.getKey(), new TreeSet<>());
+      this.lastAddresses.get(e.getKey()).addAll(e.getValue());
+    }
+  }
+
   /** Returns the time in milliseconds since the epoch when addresses or
    * ports were last changed. */
   public long getLastChangedOrAddressOrPort() {
@@ -413,6 +444,16 @@ public class NodeStatus extends Document {
     return new TreeSet<>(this.exitAddresses);
   }
 
+  public boolean hasExitAddresses() {
+    return null != this.exitAddresses && !this.exitAddresses.isEmpty();
+  }
+
+  /* Returns exit addresses without copying them, or null if they have not
+   * been set. */
+  SortedSet<String> getExitAddressesOrNull() {
+    return this.exitAddresses;
+  }
+
   /* GeoIP lookup results: */
 
   private String countryCode;
@@ -510,6 +551,36 @@ public class NodeStatus extends Document {
     return stringArrayToSortedSet(this.extendedFamily);
   }
 
+  /** Sets effective and extended family from sorted arrays without copying
+   * them, where the extended family does not include this relay; neither
+   * array may be modified afterwards. */
+  public void setEffectiveAndExtendedFamily(String[] effectiveFamily,
+      String[] extendedFamily) {
+    this.effectiveFamily = null == effectiveFamily
+        || effectiveFamily.length == 0 ? null : effectiveFamily;
+    this.extendedFamily = null == extendedFamily
+        || extendedFamily.length == 0 ? null : extendedFamily;
+  }
+
+  /* Family arrays as stored in this node status, for storing them in a
+   * node status table without copying them to sets and back. */
+
+  String[] getDeclaredFamilyArray() {
+    return this.declaredFamily;
+  }
+
+  void setDeclaredFamilyArray(String[] declaredFamily) {
+    this.declaredFamily = declaredFamily;
+  }
+
+  String[] getEffectiveFamilyArray() {
+    return this.effectiveFamily;
+  }
+
+  String[] getExtendedFamilyArray() {
+    return this.extendedFamily;
+  }
+
   /** Returns the alleged family consisting of all relays in this relay's
    * declared family that are not in a mutual family relationship with
    * this relay. */
@@ -718,8 +789,8 @@ public class NodeStatus extends Document {
     if (this.isRelay) {
       sb.append(StringUtils.join(this.exitAddresses, "+"));
     }
-    sb.append("\t").append(DateTimeHelper.format(this.lastSeenMillis,
-        DateTimeHelper.ISO_DATETIME_TAB_FORMAT));
+    DateTimeHelper.appendTo(sb.append("\t"), this.lastSeenMillis,
+        DateTimeHelper.ISO_DATETIME_TAB_FORMAT);
     sb.append("\t").append(this.orPort);
     sb.append("\t").append(this.dirPort).append("\t");
     sb.append(StringUtils.join(this.getRelayFlags(), ","));
@@ -735,12 +806,12 @@ public class NodeStatus extends Document {
     } else {
       sb.append("\t-1\t??\t\t-1\tnull\tnull");
     }
-    sb.append("\t").append(DateTimeHelper.format(this.firstSeenMillis,
-        DateTimeHelper.ISO_DATETIME_TAB_FORMAT));
+    DateTimeHelper.appendTo(sb.append("\t"), this.firstSeenMillis,
+        DateTimeHelper.ISO_DATETIME_TAB_FORMAT);
     if (this.isRelay) {
-      sb.append("\t").append(DateTimeHelper.format(
+      DateTimeHelper.appendTo(sb.append("\t"),
           this.getLastChangedOrAddressOrPort(),
-          DateTimeHelper.ISO_DATETIME_TAB_FORMAT));
+          DateTimeHelper.ISO_DATETIME_TAB_FORMAT);
       sb.append("\t").append((this.asNumber != null ? this.asNumber : "null"));
     } else {
       sb.append("\tnull\tnull\tnull");
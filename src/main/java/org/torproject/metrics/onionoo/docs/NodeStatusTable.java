@@ -0,0 +1,626 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import org.torproject.metrics.onionoo.updater.TorVersionStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Table of node statuses keyed by fingerprint that stores the contents of
+ * all node statuses in columns rather than in node status objects.
+ *
+ * <p>Rows are found by fingerprint in a hash table of row numbers.
+ * Other strings are interned in a pool shared by all columns, so that each
+ * distinct nickname, address, contact, or family member is only kept once.
+ * Relay flags are stored as bitmask with the same bit indexes as in node
+ * statuses, and timestamps, ports, and consensus weights in primitive
+ * columns.  Variable-length fields like additional addresses, last seen
+ * addresses, host names, and families are encoded as one record per node
+ * in an arena of large byte arrays.  Once enough records have been
+ * replaced or removed, live records and the strings they or the string
+ * columns refer to are copied to a new arena and pool, so that neither
+ * keeps growing with strings and records that are no longer used.</p>
+ *
+ * <p>Node statuses returned by {@link #get(String)} are views created from
+ * a row, which are not backed by this table; changes need to be written
+ * back using {@link #put(NodeStatus)}.  A table may be read from multiple
+ * threads as long as it is not modified at the same time.</p>
+ */
+public class NodeStatusTable {
+
+  /* Interned strings used in string columns and records. */
+  private StringPool strings = new StringPool();
+
+  /* Hash table of rows plus one, found by fingerprint using open
+   * addressing with linear probing, or 0 for empty slots. */
+  private int[] rowSlots = new int[32];
+
+  private int size = 0;
+
+  private String[] fingerprints = new String[16];
+
+  /* Bit 0 is set for relays, bit 1 for nodes with exit addresses, bits 2
+   * and 3 contain the recommended version flag (0 for null, 1 for false, 2
+   * for true), and bits 4 and higher the ordinal of the version status plus
+   * one, or 0 for null. */
+  private int[] states = new int[16];
+
+  private static final int RELAY_STATE = 1;
+
+  private static final int EXIT_ADDRESSES_STATE = 2;
+
+  private static final int RECOMMENDED_VERSION_SHIFT = 2;
+
+  private static final int VERSION_STATUS_SHIFT = 4;
+
+  private static final TorVersionStatus[] VERSION_STATUSES =
+      TorVersionStatus.values();
+
+  /* First word of the relay flags bit set; further words are stored in the
+   * variable-length record. */
+  private long[] relayFlags = new long[16];
+
+  private long[] firstSeenMillis = new long[16];
+
+  private long[] lastSeenMillis = new long[16];
+
+  private long[] consensusWeights = new long[16];
+
+  private long[] lastRdnsLookups = new long[16];
+
+  private int[] orPorts = new int[16];
+
+  private int[] dirPorts = new int[16];
+
+  /* Columns of string identifiers, or -1 for null strings. */
+  private static final int NICKNAME = 0;
+
+  private static final int ADDRESS = 1;
+
+  private static final int CONTACT = 2;
+
+  private static final int COUNTRY_CODE = 3;
+
+  private static final int AS_NUMBER = 4;
+
+  private static final int AS_NAME = 5;
+
+  private static final int DEFAULT_POLICY = 6;
+
+  private static final int PORT_LIST = 7;
+
+  private static final int VERSION = 8;
+
+  private static final int OPERATING_SYSTEM = 9;
+
+  private static final int HOST_NAME = 10;
+
+  private int[][] stringColumns = new int[HOST_NAME + 1][16];
+
+  /* References to and lengths of variable-length records in the arena. */
+  private long[] recordReferences = new long[16];
+
+  private int[] recordLengths = new int[16];
+
+  private ByteArena records = new ByteArena();
+
+  /* Minimum number of freed bytes in the arena before copying live
+   * records and strings to a new arena and pool. */
+  private static final long MIN_FREED_BYTES_TO_COMPACT = 1L << 20;
+
+  private boolean frozen = false;
+
+  /** Returns the number of node statuses in this table. */
+  public int size() {
+    return this.size;
+  }
+
+  /* Returns the row of the given fingerprint, or -1 if this table does
+   * not contain a node status with that fingerprint. */
+  private int findRow(String fingerprint) {
+    if (null == fingerprint) {
+      return -1;
+    }
+    int mask = this.rowSlots.length - 1;
+    for (int slot = spread(fingerprint.hashCode()) & mask;
+        this.rowSlots[slot] != 0; slot = (slot + 1) & mask) {
+      int row = this.rowSlots[slot] - 1;
+      if (this.fingerprints[row].equals(fingerprint)) {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  /* Returns the slot in the hash table that contains the given row. */
+  private int findSlot(int row) {
+    int mask = this.rowSlots.length - 1;
+    int slot = spread(this.fingerprints[row].hashCode()) & mask;
+    while (this.rowSlots[slot] != row + 1) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /* Adds the given row to the hash table, first doubling the hash table
+   * if that is necessary to keep its load factor at or below 0.5. */
+  private void addSlot(int row) {
+    if (2 * this.size > this.rowSlots.length) {
+      this.rowSlots = new int[this.rowSlots.length * 2];
+      for (int otherRow = 0; otherRow < this.size; otherRow++) {
+        if (otherRow != row) {
+          this.insertSlot(otherRow);
+        }
+      }
+    }
+    this.insertSlot(row);
+  }
+
+  private void insertSlot(int row) {
+    int mask = this.rowSlots.length - 1;
+    int slot = spread(this.fingerprints[row].hashCode()) & mask;
+    while (this.rowSlots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    this.rowSlots[slot] = row + 1;
+  }
+
+  /* Empties the given slot and moves later rows in the same probe
+   * sequence back, so that lookups do not stop at the emptied slot. */
+  private void removeSlot(int slot) {
+    int mask = this.rowSlots.length - 1;
+    int gap = slot;
+    for (int next = (slot + 1) & mask; this.rowSlots[next] != 0;
+        next = (next + 1) & mask) {
+      int home = spread(this.fingerprints[this.rowSlots[next] - 1]
+          .hashCode()) & mask;
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        this.rowSlots[gap] = this.rowSlots[next];
+        gap = next;
+      }
+    }
+    this.rowSlots[gap] = 0;
+  }
+
+  private static int spread(int hashCode) {
+    return hashCode ^ (hashCode >>> 16);
+  }
+
+  /* Returns the number of strings in the pool, including strings that are
+   * no longer used, for testing. */
+  int getPooledStrings() {
+    return this.strings.size();
+  }
+
+  /** Returns whether this table contains a node status with the given
+   * fingerprint. */
+  public boolean contains(String fingerprint) {
+    return this.findRow(fingerprint) >= 0;
+  }
+
+  /** Returns whether the node status with the given fingerprint belongs
+   * to a relay, or false if there is no such node status. */
+  public boolean isRelay(String fingerprint) {
+    int row = this.findRow(fingerprint);
+    return row >= 0 && (this.states[row] & RELAY_STATE) != 0;
+  }
+
+  /** Returns when the node with the given fingerprint was last seen, or 0
+   * if there is no such node status. */
+  public long getLastSeenMillis(String fingerprint) {
+    int row = this.findRow(fingerprint);
+    return row < 0 ? 0L : this.lastSeenMillis[row];
+  }
+
+  /** Returns whether the node with the given fingerprint has exit
+   * addresses, or false if there is no such node status. */
+  public boolean hasExitAddresses(String fingerprint) {
+    int row = this.findRow(fingerprint);
+    return row >= 0 && (this.states[row] & EXIT_ADDRESSES_STATE) != 0;
+  }
+
+  /** Returns the platform version of the node with the given fingerprint,
+   * or null if it is unknown or if there is no such node status. */
+  public String getVersion(String fingerprint) {
+    int row = this.findRow(fingerprint);
+    return row < 0 ? null : this.getString(VERSION, row);
+  }
+
+  /** Returns whether the version of the node with the given fingerprint
+   * is recommended, or null if this is unknown or if there is no such node
+   * status. */
+  public Boolean isRecommendedVersion(String fingerprint) {
+    int row = this.findRow(fingerprint);
+    return row < 0 ? null : decodeRecommendedVersion(this.states[row]);
+  }
+
+  /** Returns the version status of the node with the given fingerprint,
+   * or null if it is unknown or if there is no such node status. */
+  public TorVersionStatus getVersionStatus(String fingerprint) {
+    int row = this.findRow(fingerprint);
+    return row < 0 ? null : decodeVersionStatus(this.states[row]);
+  }
+
+  /** Returns a new sorted set of the fingerprints of all node statuses in
+   * this table. */
+  public SortedSet<String> getFingerprints() {
+    SortedSet<String> result = new TreeSet<>();
+    for (int row = 0; row < this.size; row++) {
+      result.add(this.fingerprints[row]);
+    }
+    return result;
+  }
+
+  /** Returns a new node status created from the row with the given
+   * fingerprint, or null if there is no such row. */
+  public NodeStatus get(String fingerprint) {
+    int row = this.findRow(fingerprint);
+    return row < 0 ? null : this.createNodeStatus(row);
+  }
+
+  /** Adds the given node status or replaces the node status with the same
+   * fingerprint.
+   *
+   * @throws IllegalStateException Thrown if this table is frozen.
+   */
+  public void put(NodeStatus nodeStatus) {
+    this.checkNotFrozen();
+    int row = this.findRow(nodeStatus.getFingerprint());
+    if (row < 0) {
+      if (this.size == this.fingerprints.length) {
+        this.grow();
+      }
+      row = this.size++;
+      this.fingerprints[row] = nodeStatus.getFingerprint();
+      this.addSlot(row);
+    } else {
+      this.records.free(this.recordLengths[row]);
+    }
+    this.setRow(row, nodeStatus);
+    if (this.records.getFreedBytes() > MIN_FREED_BYTES_TO_COMPACT
+        && 2L * this.records.getFreedBytes() > this.records.getUsedBytes()) {
+      this.compact();
+    }
+  }
+
+  /** Removes the node status with the given fingerprint and returns
+   * whether this table contained such a node status.
+   *
+   * @throws IllegalStateException Thrown if this table is frozen.
+   */
+  public boolean remove(String fingerprint) {
+    this.checkNotFrozen();
+    int row = this.findRow(fingerprint);
+    if (row < 0) {
+      return false;
+    }
+    this.records.free(this.recordLengths[row]);
+    this.removeSlot(this.findSlot(row));
+    int lastRow = --this.size;
+    if (row != lastRow) {
+      this.moveRow(lastRow, row);
+    }
+    this.fingerprints[lastRow] = null;
+    return true;
+  }
+
+  /** Makes this table read-only, so that it can be read from multiple
+   * threads without accidentally being modified. */
+  public void freeze() {
+    this.frozen = true;
+  }
+
+  private void checkNotFrozen() {
+    if (this.frozen) {
+      throw new IllegalStateException("Node status table is frozen.");
+    }
+  }
+
+  private void grow() {
+    int capacity = this.fingerprints.length * 2;
+    this.fingerprints = Arrays.copyOf(this.fingerprints, capacity);
+    this.states = Arrays.copyOf(this.states, capacity);
+    this.relayFlags = Arrays.copyOf(this.relayFlags, capacity);
+    this.firstSeenMillis = Arrays.copyOf(this.firstSeenMillis, capacity);
+    this.lastSeenMillis = Arrays.copyOf(this.lastSeenMillis, capacity);
+    this.consensusWeights = Arrays.copyOf(this.consensusWeights, capacity);
+    this.lastRdnsLookups = Arrays.copyOf(this.lastRdnsLookups, capacity);
+    this.orPorts = Arrays.copyOf(this.orPorts, capacity);
+    this.dirPorts = Arrays.copyOf(this.dirPorts, capacity);
+    for (int column = 0; column < this.stringColumns.length; column++) {
+      this.stringColumns[column] = Arrays.copyOf(
+          this.stringColumns[column], capacity);
+    }
+    this.recordReferences = Arrays.copyOf(this.recordReferences, capacity);
+    this.recordLengths = Arrays.copyOf(this.recordLengths, capacity);
+  }
+
+  /* Copies all columns of one row to another row, overwriting it. */
+  private void moveRow(int from, int to) {
+    this.rowSlots[this.findSlot(from)] = to + 1;
+    this.fingerprints[to] = this.fingerprints[from];
+    this.states[to] = this.states[from];
+    this.relayFlags[to] = this.relayFlags[from];
+    this.firstSeenMillis[to] = this.firstSeenMillis[from];
+    this.lastSeenMillis[to] = this.lastSeenMillis[from];
+    this.consensusWeights[to] = this.consensusWeights[from];
+    this.lastRdnsLookups[to] = this.lastRdnsLookups[from];
+    this.orPorts[to] = this.orPorts[from];
+    this.dirPorts[to] = this.dirPorts[from];
+    for (int[] stringColumn : this.stringColumns) {
+      stringColumn[to] = stringColumn[from];
+    }
+    this.recordReferences[to] = this.recordReferences[from];
+    this.recordLengths[to] = this.recordLengths[from];
+  }
+
+  /* Copies all live records to a new arena and all strings that they or
+   * the string columns refer to to a new pool, and drops the old arena and
+   * pool including freed records and strings that are no longer used. */
+  private void compact() {
+    StringPool compactedStrings = new StringPool();
+    ByteArena compactedRecords = new ByteArena();
+    for (int row = 0; row < this.size; row++) {
+      for (int[] stringColumn : this.stringColumns) {
+        stringColumn[row] = compactedStrings.intern(
+            this.strings.get(stringColumn[row]));
+      }
+      byte[] record = this.compactRecord(this.records.get(
+          this.recordReferences[row], this.recordLengths[row]),
+          compactedStrings);
+      this.recordReferences[row] = compactedRecords.add(record,
+          record.length);
+      this.recordLengths[row] = record.length;
+    }
+    this.strings = compactedStrings;
+    this.records = compactedRecords;
+  }
+
+  /* Copies the given record while replacing string identifiers with those
+   * of the same strings in the given pool. */
+  private byte[] compactRecord(byte[] record, StringPool compactedStrings) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(record.length);
+    try (DataInputStream dis = new DataInputStream(
+        new ByteArrayInputStream(record));
+        DataOutputStream dos = new DataOutputStream(baos)) {
+      int furtherWords = Varints.readUnsignedInt(dis);
+      Varints.writeUnsigned(dos, furtherWords);
+      for (int i = 0; i < furtherWords; i++) {
+        dos.writeLong(dis.readLong());
+      }
+      for (int i = 0; i < RECORD_STRING_SETS; i++) {
+        this.compactStrings(dis, dos, compactedStrings);
+      }
+      int lastAddresses = Varints.readUnsignedInt(dis);
+      Varints.writeUnsigned(dos, lastAddresses);
+      for (int i = 0; i < lastAddresses; i++) {
+        Varints.writeSigned(dos, Varints.readSigned(dis));
+        this.compactStrings(dis, dos, compactedStrings);
+      }
+    } catch (IOException e) {
+      /* Records are only written by this table. */
+      throw new IllegalStateException(e);
+    }
+    return baos.toByteArray();
+  }
+
+  private void compactStrings(DataInputStream dis, DataOutputStream dos,
+      StringPool compactedStrings) throws IOException {
+    int length = Varints.readUnsignedInt(dis);
+    Varints.writeUnsigned(dos, length);
+    for (int i = 1; i < length; i++) {
+      Varints.writeUnsigned(dos, compactedStrings.intern(this.strings.get(
+          Varints.readUnsignedInt(dis) - 1)) + 1L);
+    }
+  }
+
+  private void setRow(int row, NodeStatus nodeStatus) {
+    int state = nodeStatus.isRelay() ? RELAY_STATE : 0;
+    if (nodeStatus.hasExitAddresses()) {
+      state |= EXIT_ADDRESSES_STATE;
+    }
+    if (null != nodeStatus.isRecommendedVersion()) {
+      state |= (nodeStatus.isRecommendedVersion() ? 2 : 1)
+          << RECOMMENDED_VERSION_SHIFT;
+    }
+    if (null != nodeStatus.getVersionStatus()) {
+      state |= (nodeStatus.getVersionStatus().ordinal() + 1)
+          << VERSION_STATUS_SHIFT;
+    }
+    this.states[row] = state;
+    long[] relayFlagsWords = nodeStatus.getRelayFlagsWords();
+    this.relayFlags[row] = null == relayFlagsWords
+        || relayFlagsWords.length == 0 ? 0L : relayFlagsWords[0];
+    this.firstSeenMillis[row] = nodeStatus.getFirstSeenMillis();
+    this.lastSeenMillis[row] = nodeStatus.getLastSeenMillis();
+    this.consensusWeights[row] = nodeStatus.getConsensusWeight();
+    this.lastRdnsLookups[row] = nodeStatus.getLastRdnsLookup();
+    this.orPorts[row] = nodeStatus.getOrPort();
+    this.dirPorts[row] = nodeStatus.getDirPort();
+    this.setString(NICKNAME, row, nodeStatus.getNickname());
+    this.setString(ADDRESS, row, nodeStatus.getAddress());
+    this.setString(CONTACT, row, nodeStatus.getContact());
+    this.setString(COUNTRY_CODE, row, nodeStatus.getCountryCode());
+    this.setString(AS_NUMBER, row, nodeStatus.getAsNumber());
+    this.setString(AS_NAME, row, nodeStatus.getAsName());
+    this.setString(DEFAULT_POLICY, row, nodeStatus.getDefaultPolicy());
+    this.setString(PORT_LIST, row, nodeStatus.getPortList());
+    this.setString(VERSION, row, nodeStatus.getVersion());
+    this.setString(OPERATING_SYSTEM, row, nodeStatus.getOperatingSystem());
+    this.setString(HOST_NAME, row, nodeStatus.getHostName());
+    byte[] record = this.encodeRecord(nodeStatus, relayFlagsWords);
+    this.recordReferences[row] = this.records.add(record, record.length);
+    this.recordLengths[row] = record.length;
+  }
+
+  private void setString(int column, int row, String string) {
+    this.stringColumns[column][row] = this.strings.intern(string);
+  }
+
+  private String getString(int column, int row) {
+    return this.strings.get(this.stringColumns[column][row]);
+  }
+
+  private static Boolean decodeRecommendedVersion(int state) {
+    int recommendedVersion = (state >>> RECOMMENDED_VERSION_SHIFT) & 3;
+    return recommendedVersion == 0 ? null : recommendedVersion == 2;
+  }
+
+  private static TorVersionStatus decodeVersionStatus(int state) {
+    int versionStatus = state >>> VERSION_STATUS_SHIFT;
+    return versionStatus == 0 ? null : VERSION_STATUSES[versionStatus - 1];
+  }
+
+  private NodeStatus createNodeStatus(int row) {
+    NodeStatus nodeStatus = new NodeStatus(this.fingerprints[row]);
+    int state = this.states[row];
+    nodeStatus.setRelay((state & RELAY_STATE) != 0);
+    nodeStatus.setRecommendedVersion(decodeRecommendedVersion(state));
+    nodeStatus.setVersionStatus(decodeVersionStatus(state));
+    nodeStatus.setFirstSeenMillis(this.firstSeenMillis[row]);
+    nodeStatus.setLastSeenMillis(this.lastSeenMillis[row]);
+    nodeStatus.setConsensusWeight(this.consensusWeights[row]);
+    nodeStatus.setLastRdnsLookup(this.lastRdnsLookups[row]);
+    nodeStatus.setOrPort(this.orPorts[row]);
+    nodeStatus.setDirPort(this.dirPorts[row]);
+    nodeStatus.setNickname(this.getString(NICKNAME, row));
+    nodeStatus.setAddress(this.getString(ADDRESS, row));
+    nodeStatus.setContact(this.getString(CONTACT, row));
+    nodeStatus.setCountryCode(this.getString(COUNTRY_CODE, row));
+    nodeStatus.setAsNumber(this.getString(AS_NUMBER, row));
+    nodeStatus.setAsName(this.getString(AS_NAME, row));
+    nodeStatus.setDefaultPolicy(this.getString(DEFAULT_POLICY, row));
+    nodeStatus.setPortList(this.getString(PORT_LIST, row));
+    nodeStatus.setVersion(this.getString(VERSION, row));
+    nodeStatus.setOperatingSystem(this.getString(OPERATING_SYSTEM, row));
+    nodeStatus.setHostName(this.getString(HOST_NAME, row));
+    this.decodeRecord(this.records.get(this.recordReferences[row],
+        this.recordLengths[row]), this.relayFlags[row], nodeStatus);
+    return nodeStatus;
+  }
+
+  /* Number of string sets and arrays in a record between relay flags and
+   * last seen addresses. */
+  private static final int RECORD_STRING_SETS = 7;
+
+  /* Encodes all variable-length fields of the given node status as
+   * record, which starts with further words of relay flags followed by
+   * sets and arrays of strings and last seen addresses.  Strings are
+   * written as string identifiers plus one, or 0 for null, and sets and
+   * arrays as number of strings plus one, or 0 for null, followed by
+   * their strings.  All numbers are variable-length integers. */
+  private byte[] encodeRecord(NodeStatus nodeStatus,
+      long[] relayFlagsWords) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (DataOutputStream dos = new DataOutputStream(baos)) {
+      int furtherWords = null == relayFlagsWords
+          || relayFlagsWords.length <= 1 ? 0 : relayFlagsWords.length - 1;
+      Varints.writeUnsigned(dos, furtherWords);
+      for (int i = 1; i <= furtherWords; i++) {
+        dos.writeLong(relayFlagsWords[i]);
+      }
+      this.writeStrings(dos, nodeStatus.getOrAddressesAndPorts());
+      this.writeStrings(dos, nodeStatus.getExitAddressesOrNull());
+      this.writeStrings(dos, nodeStatus.getVerifiedHostNames());
+      this.writeStrings(dos, nodeStatus.getUnverifiedHostNames());
+      this.writeStrings(dos, arrayAsList(
+          nodeStatus.getDeclaredFamilyArray()));
+      this.writeStrings(dos, arrayAsList(
+          nodeStatus.getEffectiveFamilyArray()));
+      this.writeStrings(dos, arrayAsList(
+          nodeStatus.getExtendedFamilyArray()));
+      SortedMap<Long, Set<String>> lastAddresses =
+          nodeStatus.getLastAddresses();
+      Varints.writeUnsigned(dos, lastAddresses.size());
+      for (Map.Entry<Long, Set<String>> e : lastAddresses.entrySet()) {
+        Varints.writeSigned(dos, e.getKey());
+        this.writeStrings(dos, e.getValue());
+      }
+    } catch (IOException e) {
+      /* Writing to a byte array cannot fail. */
+      throw new IllegalStateException(e);
+    }
+    return baos.toByteArray();
+  }
+
+  private static Collection<String> arrayAsList(String[] array) {
+    return null == array ? null : Arrays.asList(array);
+  }
+
+  private void writeStrings(DataOutputStream dos, Collection<String> set)
+      throws IOException {
+    if (null == set) {
+      Varints.writeUnsigned(dos, 0L);
+      return;
+    }
+    Varints.writeUnsigned(dos, set.size() + 1L);
+    for (String string : set) {
+      Varints.writeUnsigned(dos, this.strings.intern(string) + 1L);
+    }
+  }
+
+  private void decodeRecord(byte[] record, long firstRelayFlagsWord,
+      NodeStatus nodeStatus) {
+    try (DataInputStream dis = new DataInputStream(
+        new ByteArrayInputStream(record))) {
+      long[] relayFlagsWords = new long[1 + Varints.readUnsignedInt(dis)];
+      relayFlagsWords[0] = firstRelayFlagsWord;
+      for (int i = 1; i < relayFlagsWords.length; i++) {
+        relayFlagsWords[i] = dis.readLong();
+      }
+      nodeStatus.setRelayFlagsWords(relayFlagsWords);
+      nodeStatus.setOrAddressesAndPorts(this.readSortedSet(dis));
+      nodeStatus.setExitAddresses(this.readSortedSet(dis));
+      nodeStatus.setVerifiedHostNames(this.readSortedSet(dis));
+      nodeStatus.setUnverifiedHostNames(this.readSortedSet(dis));
+      nodeStatus.setDeclaredFamilyArray(this.readArray(dis));
+      nodeStatus.setEffectiveAndExtendedFamily(this.readArray(dis),
+          this.readArray(dis));
+      SortedMap<Long, Set<String>> lastAddresses =
+          new TreeMap<>(Collections.reverseOrder());
+      for (int count = Varints.readUnsignedInt(dis); count > 0; count--) {
+        long lastSeenMillis = Varints.readSigned(dis);
+        SortedSet<String> addresses = this.readSortedSet(dis);
+        lastAddresses.put(lastSeenMillis, null == addresses
+            ? Collections.emptySet() : addresses);
+      }
+      nodeStatus.addLastAddresses(lastAddresses);
+    } catch (IOException e) {
+      /* Records are only written by this table. */
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private String[] readArray(DataInputStream dis) throws IOException {
+    int length = Varints.readUnsignedInt(dis) - 1;
+    if (length < 0) {
+      return null;
+    }
+    String[] array = new String[length];
+    for (int i = 0; i < length; i++) {
+      array[i] = this.strings.get(Varints.readUnsignedInt(dis) - 1);
+    }
+    return array;
+  }
+
+  private SortedSet<String> readSortedSet(DataInputStream dis)
+      throws IOException {
+    String[] array = this.readArray(dis);
+    return null == array ? null : new TreeSet<>(Arrays.asList(array));
+  }
+}
@@ -0,0 +1,80 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import java.util.Arrays;
+
+/**
+ * Pool of distinct strings, each identified by a dense, non-negative
+ * integer in the order in which strings were first added.
+ *
+ * <p>Strings are kept in an array and found using open addressing with
+ * linear probing, which avoids map entries and boxed integers.  A pool may
+ * be read from multiple threads as long as no strings are added at the
+ * same time.</p>
+ */
+final class StringPool {
+
+  /* Strings by identifier. */
+  private String[] strings = new String[64];
+
+  private int size = 0;
+
+  /* Hash table of string identifiers plus one, or 0 for empty slots. */
+  private int[] slots = new int[128];
+
+  int size() {
+    return this.size;
+  }
+
+  /** Returns the string with the given identifier, or null if the
+   * identifier is negative. */
+  String get(int id) {
+    return id < 0 ? null : this.strings[id];
+  }
+
+  /** Adds the given string if it is not yet contained in this pool, and
+   * returns its identifier, or -1 if the string is null. */
+  int intern(String string) {
+    if (null == string) {
+      return -1;
+    }
+    int mask = this.slots.length - 1;
+    int slot = spread(string.hashCode()) & mask;
+    for (; this.slots[slot] != 0; slot = (slot + 1) & mask) {
+      int id = this.slots[slot] - 1;
+      if (this.strings[id].equals(string)) {
+        return id;
+      }
+    }
+    if (this.size == this.strings.length) {
+      this.strings = Arrays.copyOf(this.strings, this.size * 2);
+    }
+    int id = this.size++;
+    this.strings[id] = string;
+    this.slots[slot] = id + 1;
+    if (2 * this.size > this.slots.length) {
+      this.rehash();
+    }
+    return id;
+  }
+
+  /* Doubles the hash table to keep its load factor at or below 0.5. */
+  private void rehash() {
+    int[] rehashedSlots = new int[this.slots.length * 2];
+    int mask = rehashedSlots.length - 1;
+    for (int id = 0; id < this.size; id++) {
+      int slot = spread(this.strings[id].hashCode()) & mask;
+      while (rehashedSlots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      rehashedSlots[slot] = id + 1;
+    }
+    this.slots = rehashedSlots;
+  }
+
+  private static int spread(int hashCode) {
+    return hashCode ^ (hashCode >>> 16);
+  }
+}
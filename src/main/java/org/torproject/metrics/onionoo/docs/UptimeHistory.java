@@ -96,8 +96,8 @@ public class UptimeHistory implements Comparable<UptimeHistory> {
   public String toString() {
     StringBuilder sb = new StringBuilder();
     sb.append(this.relay ? (this.flags == null ? "r" : "R") : "b");
-    sb.append(" ").append(DateTimeHelper.format(this.startMillis,
-        DateTimeHelper.DATEHOUR_NOSPACE_FORMAT));
+    DateTimeHelper.appendTo(sb.append(" "), this.startMillis,
+        DateTimeHelper.DATEHOUR_NOSPACE_FORMAT);
     sb.append(" ").append(String.format("%d", this.uptimeHours));
     if (this.flags != null) {
       for (String flag : this.flags) {
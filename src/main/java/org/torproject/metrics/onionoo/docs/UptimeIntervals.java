@@ -0,0 +1,291 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Run-length encoded uptime history of a relay, a bridge, or the network,
+ * consisting of non-overlapping intervals of whole hours sorted by start,
+ * each with the identifier of an interned set of relay flags.
+ *
+ * <p>Intervals are stored in three parallel arrays of hours since the
+ * epoch, lengths in hours, and flag set identifiers.  Flag set identifier
+ * 0 stands for an interval without flags, and all other identifiers are
+ * shared by all histories in the process.</p>
+ */
+class UptimeIntervals {
+
+  /* Interned flag sets by identifier and identifiers by flag set, where
+   * identifier 0 stands for no flags. */
+  private static final List<SortedSet<String>> flagSets =
+      new CopyOnWriteArrayList<>(Collections.singletonList(null));
+
+  private static final Map<SortedSet<String>, Integer> internedFlagSets =
+      new ConcurrentHashMap<>();
+
+  /** Returns the identifier of the given set of flags, which is 0 for
+   * null, interning the set if it has not been seen before. */
+  static int flagSetId(SortedSet<String> flags) {
+    if (null == flags) {
+      return 0;
+    }
+    Integer flagSetId = internedFlagSets.get(flags);
+    if (null == flagSetId) {
+      synchronized (flagSets) {
+        flagSetId = internedFlagSets.get(flags);
+        if (null == flagSetId) {
+          flagSetId = flagSets.size();
+          SortedSet<String> flagSet =
+              Collections.unmodifiableSortedSet(new TreeSet<>(flags));
+          flagSets.add(flagSet);
+          internedFlagSets.put(flagSet, flagSetId);
+        }
+      }
+    }
+    return flagSetId;
+  }
+
+  /** Returns the interned set of flags with the given identifier, or null
+   * for identifier 0. */
+  static SortedSet<String> flagSet(int flagSetId) {
+    return flagSets.get(flagSetId);
+  }
+
+  private int[] startHours = new int[4];
+
+  private int[] lengths = new int[4];
+
+  private int[] flagSetIds = new int[4];
+
+  private int size = 0;
+
+  int size() {
+    return this.size;
+  }
+
+  int getStartHour(int index) {
+    return this.startHours[index];
+  }
+
+  int getLength(int index) {
+    return this.lengths[index];
+  }
+
+  int getFlagSetId(int index) {
+    return this.flagSetIds[index];
+  }
+
+  private int getEndHour(int index) {
+    return this.startHours[index] + this.lengths[index];
+  }
+
+  /** Returns the total number of hours in all intervals. */
+  long getTotalHours() {
+    long totalHours = 0L;
+    for (int i = 0; i < this.size; i++) {
+      totalHours += this.lengths[i];
+    }
+    return totalHours;
+  }
+
+  /* Returns the index of the last interval starting at or before the given
+   * hour, or -1 if there is no such interval. */
+  private int floorIndex(int hour) {
+    int index = Arrays.binarySearch(this.startHours, 0, this.size, hour);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  /* Inserts an interval at the given index, shifting all following
+   * intervals. */
+  private void insert(int index, int startHour, int length,
+      int flagSetId) {
+    if (this.size == this.startHours.length) {
+      int capacity = this.size * 2;
+      this.startHours = Arrays.copyOf(this.startHours, capacity);
+      this.lengths = Arrays.copyOf(this.lengths, capacity);
+      this.flagSetIds = Arrays.copyOf(this.flagSetIds, capacity);
+    }
+    int following = this.size - index;
+    System.arraycopy(this.startHours, index, this.startHours, index + 1,
+        following);
+    System.arraycopy(this.lengths, index, this.lengths, index + 1,
+        following);
+    System.arraycopy(this.flagSetIds, index, this.flagSetIds, index + 1,
+        following);
+    this.startHours[index] = startHour;
+    this.lengths[index] = length;
+    this.flagSetIds[index] = flagSetId;
+    this.size++;
+  }
+
+  /* Removes the interval at the given index. */
+  private void remove(int index) {
+    int following = this.size - index - 1;
+    System.arraycopy(this.startHours, index + 1, this.startHours, index,
+        following);
+    System.arraycopy(this.lengths, index + 1, this.lengths, index,
+        following);
+    System.arraycopy(this.flagSetIds, index + 1, this.flagSetIds, index,
+        following);
+    this.size--;
+  }
+
+  /** Adds an interval that does not overlap with any existing interval,
+   * for example, when parsing a history. */
+  void addInterval(int startHour, int length, int flagSetId) {
+    if (length > 0) {
+      this.insert(this.floorIndex(startHour) + 1, startHour, length,
+          flagSetId);
+    }
+  }
+
+  /** Sets the flag set of the given hour, splitting an existing interval
+   * containing the hour if it has a different flag set, and merging the
+   * hour with adjacent intervals with the same flag set if requested;
+   * returns whether the history has changed. */
+  boolean set(int hour, int flagSetId, boolean merge) {
+    int index = this.floorIndex(hour);
+    if (index >= 0 && hour < this.getEndHour(index)) {
+      if (this.flagSetIds[index] == flagSetId) {
+        return false;
+      }
+      int startHour = this.startHours[index];
+      int hoursAfter = this.getEndHour(index) - hour - 1;
+      int previousFlagSetId = this.flagSetIds[index];
+      this.remove(index);
+      if (hour > startHour) {
+        this.insert(index++, startHour, hour - startHour, previousFlagSetId);
+      }
+      this.insert(index, hour, 1, flagSetId);
+      if (hoursAfter > 0) {
+        this.insert(index + 1, hour + 1, hoursAfter, previousFlagSetId);
+      }
+      if (merge) {
+        this.mergeAround(index);
+      }
+      return true;
+    }
+    this.insert(index + 1, hour, 1, flagSetId);
+    if (merge) {
+      this.mergeAround(index + 1);
+    }
+    return true;
+  }
+
+  /* Merges the interval at the given index with directly adjacent
+   * intervals with the same flag set. */
+  private void mergeAround(int index) {
+    if (index + 1 < this.size
+        && this.getEndHour(index) == this.startHours[index + 1]
+        && this.flagSetIds[index] == this.flagSetIds[index + 1]) {
+      this.lengths[index] += this.lengths[index + 1];
+      this.remove(index + 1);
+    }
+    if (index > 0 && this.getEndHour(index - 1) == this.startHours[index]
+        && this.flagSetIds[index - 1] == this.flagSetIds[index]) {
+      this.lengths[index - 1] += this.lengths[index];
+      this.remove(index);
+    }
+  }
+
+  /** Adds all intervals of the given history in a single pass over both
+   * histories, letting intervals of the given history take precedence
+   * over overlapping intervals, and returns whether the history has
+   * changed.  The result is not compressed. */
+  boolean addAll(UptimeIntervals other) {
+    if (other.size == 0) {
+      return false;
+    }
+    int capacity = Math.max(4, this.size + 2 * other.size);
+    int[] mergedStartHours = new int[capacity];
+    int[] mergedLengths = new int[capacity];
+    int[] mergedFlagSetIds = new int[capacity];
+    int merged = 0;
+    long unchangedHours = 0L;
+    int index = 0;
+    int otherIndex = 0;
+    int currentStartHour = this.size > 0 ? this.startHours[0] : 0;
+    while (index < this.size || otherIndex < other.size) {
+      if (merged + 2 > mergedStartHours.length) {
+        capacity = mergedStartHours.length * 2;
+        mergedStartHours = Arrays.copyOf(mergedStartHours, capacity);
+        mergedLengths = Arrays.copyOf(mergedLengths, capacity);
+        mergedFlagSetIds = Arrays.copyOf(mergedFlagSetIds, capacity);
+      }
+      if (otherIndex >= other.size || (index < this.size
+          && currentStartHour < other.startHours[otherIndex])) {
+        /* Copy the part of this interval before the next other interval
+         * starts. */
+        int endHour = this.getEndHour(index);
+        int limitHour = otherIndex < other.size
+            ? Math.min(endHour, other.startHours[otherIndex]) : endHour;
+        mergedStartHours[merged] = currentStartHour;
+        mergedLengths[merged] = limitHour - currentStartHour;
+        mergedFlagSetIds[merged++] = this.flagSetIds[index];
+        if (limitHour == endHour) {
+          index++;
+          currentStartHour = index < this.size ? this.startHours[index] : 0;
+        } else {
+          currentStartHour = limitHour;
+        }
+      } else {
+        /* Copy the other interval and skip all parts of this history that
+         * it overlaps. */
+        int otherEndHour = other.getEndHour(otherIndex);
+        int otherFlagSetId = other.flagSetIds[otherIndex];
+        mergedStartHours[merged] = other.startHours[otherIndex];
+        mergedLengths[merged] = other.lengths[otherIndex];
+        mergedFlagSetIds[merged++] = otherFlagSetId;
+        while (index < this.size && currentStartHour < otherEndHour) {
+          int endHour = this.getEndHour(index);
+          if (this.flagSetIds[index] == otherFlagSetId) {
+            unchangedHours += Math.min(endHour, otherEndHour)
+                - currentStartHour;
+          }
+          if (endHour <= otherEndHour) {
+            index++;
+            currentStartHour = index < this.size ? this.startHours[index]
+                : 0;
+          } else {
+            currentStartHour = otherEndHour;
+          }
+        }
+        otherIndex++;
+      }
+    }
+    this.startHours = mergedStartHours;
+    this.lengths = mergedLengths;
+    this.flagSetIds = mergedFlagSetIds;
+    this.size = merged;
+    return unchangedHours < other.getTotalHours();
+  }
+
+  /** Merges all directly adjacent intervals with the same flag set. */
+  void compress() {
+    if (this.size == 0) {
+      return;
+    }
+    int compressed = 0;
+    for (int index = 1; index < this.size; index++) {
+      if (this.getEndHour(compressed) == this.startHours[index]
+          && this.flagSetIds[compressed] == this.flagSetIds[index]) {
+        this.lengths[compressed] += this.lengths[index];
+      } else {
+        compressed++;
+        this.startHours[compressed] = this.startHours[index];
+        this.lengths[compressed] = this.lengths[index];
+        this.flagSetIds[compressed] = this.flagSetIds[index];
+      }
+    }
+    this.size = compressed + 1;
+  }
+}
@@ -6,7 +6,20 @@ package org.torproject.metrics.onionoo.docs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.NavigableSet;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -26,18 +39,82 @@ public class UptimeStatus extends Document {
     this.isDirty = false;
   }
 
-  private SortedSet<UptimeHistory> relayHistory = new TreeSet<>();
+  /* Relay and bridge uptime histories as run-length encoded hourly
+   * intervals with interned flag sets. */
+  private final UptimeIntervals relayIntervals = new UptimeIntervals();
 
+  private final UptimeIntervals bridgeIntervals = new UptimeIntervals();
+
+  /* Sorted sets of uptime history objects created from intervals when
+   * first requested, or null if intervals have changed since. */
+  private transient SortedSet<UptimeHistory> relayHistory;
+
+  private transient SortedSet<UptimeHistory> bridgeHistory;
+
+  /** Returns an unmodifiable view of the relay uptime history. */
   public SortedSet<UptimeHistory> getRelayHistory() {
+    if (null == this.relayHistory) {
+      this.relayHistory = toHistory(true, this.relayIntervals);
+    }
     return this.relayHistory;
   }
 
-  private SortedSet<UptimeHistory> bridgeHistory = new TreeSet<>();
-
+  /** Returns an unmodifiable view of the bridge uptime history. */
   public SortedSet<UptimeHistory> getBridgeHistory() {
+    if (null == this.bridgeHistory) {
+      this.bridgeHistory = toHistory(false, this.bridgeIntervals);
+    }
     return this.bridgeHistory;
   }
 
+  private static SortedSet<UptimeHistory> toHistory(boolean relay,
+      UptimeIntervals intervals) {
+    SortedSet<UptimeHistory> history = new TreeSet<>();
+    for (int i = 0; i < intervals.size(); i++) {
+      history.add(new UptimeHistory(relay,
+          intervals.getStartHour(i) * DateTimeHelper.ONE_HOUR,
+          intervals.getLength(i),
+          UptimeIntervals.flagSet(intervals.getFlagSetId(i))));
+    }
+    return Collections.unmodifiableSortedSet(history);
+  }
+
+  private UptimeIntervals getIntervals(boolean relay) {
+    if (relay) {
+      this.relayHistory = null;
+      return this.relayIntervals;
+    } else {
+      this.bridgeHistory = null;
+      return this.bridgeIntervals;
+    }
+  }
+
+  private static int toHour(long millis) {
+    return (int) (millis / DateTimeHelper.ONE_HOUR);
+  }
+
+  /** Returns the total number of hours contained in the relay or bridge
+   * uptime history. */
+  public long getTotalHours(boolean relay) {
+    return relay ? this.relayIntervals.getTotalHours()
+        : this.bridgeIntervals.getTotalHours();
+  }
+
+  /** Returns the start time of the first relay or bridge uptime interval
+   * in milliseconds since the epoch, or Long.MAX_VALUE if both histories
+   * are empty. */
+  public long getFirstHourMillis() {
+    long firstHour = Long.MAX_VALUE;
+    if (this.relayIntervals.size() > 0) {
+      firstHour = this.relayIntervals.getStartHour(0);
+    }
+    if (this.bridgeIntervals.size() > 0) {
+      firstHour = Math.min(firstHour, this.bridgeIntervals.getStartHour(0));
+    }
+    return firstHour == Long.MAX_VALUE ? Long.MAX_VALUE
+        : firstHour * DateTimeHelper.ONE_HOUR;
+  }
+
   @Override
   public void setFromDocumentString(String documentString) {
     try (Scanner s = new Scanner(documentString)) {
@@ -45,11 +122,10 @@ public class UptimeStatus extends Document {
         String line = s.nextLine();
         UptimeHistory parsedLine = UptimeHistory.fromString(line);
         if (parsedLine != null) {
-          if (parsedLine.isRelay()) {
-            this.relayHistory.add(parsedLine);
-          } else {
-            this.bridgeHistory.add(parsedLine);
-          }
+          this.getIntervals(parsedLine.isRelay()).addInterval(
+              toHour(parsedLine.getStartMillis()),
+              parsedLine.getUptimeHours(),
+              UptimeIntervals.flagSetId(parsedLine.getFlags()));
         } else {
           logger.error("Could not parse uptime history line '{}'. Skipping.",
               line);
@@ -58,97 +134,217 @@ public class UptimeStatus extends Document {
     }
   }
 
-  /** Adds all given uptime history objects that don't overlap with
-   * existing uptime history objects. */
+  /** Adds the given hour with the given flags to the history unless it is
+   * already contained with the same flags, replacing the flags of an
+   * existing interval containing that hour otherwise. */
   public void addToHistory(boolean relay, long startMillis,
       SortedSet<String> flags) {
-    SortedSet<UptimeHistory> history = relay ? this.relayHistory
-        : this.bridgeHistory;
-    UptimeHistory interval = new UptimeHistory(relay, startMillis, 1,
-        flags);
-    NavigableSet<UptimeHistory> existingIntervals =
-        new TreeSet<>(history.headSet(new UptimeHistory(
-        relay, startMillis + DateTimeHelper.ONE_HOUR, 0, flags)));
-    for (UptimeHistory prev : existingIntervals.descendingSet()) {
-      if (prev.isRelay() != interval.isRelay()
-          || prev.getStartMillis() + DateTimeHelper.ONE_HOUR
-          * prev.getUptimeHours() <= interval.getStartMillis()) {
-        break;
-      }
-      if (prev.getFlags() == interval.getFlags()
-          || (prev.getFlags() != null && interval.getFlags() != null
-          && prev.getFlags().equals(interval.getFlags()))) {
-        /* The exact same interval is already contained in history. */
-        return;
-      }
-      /* There is an interval that includes the new interval, but it
-       * contains different flags.  Remove the old interval, put in any
-       * parts before or after the new interval, and add the new interval
-       * further down below. */
-      history.remove(prev);
-      int hoursBefore = (int) ((interval.getStartMillis()
-          - prev.getStartMillis()) / DateTimeHelper.ONE_HOUR);
-      if (hoursBefore > 0) {
-        history.add(new UptimeHistory(relay,
-            prev.getStartMillis(), hoursBefore, prev.getFlags()));
-      }
-      int hoursAfter = (int) (prev.getStartMillis()
-          / DateTimeHelper.ONE_HOUR + prev.getUptimeHours()
-          - interval.getStartMillis() / DateTimeHelper.ONE_HOUR - 1);
-      if (hoursAfter > 0) {
-        history.add(new UptimeHistory(relay,
-            interval.getStartMillis() + DateTimeHelper.ONE_HOUR,
-            hoursAfter, prev.getFlags()));
-      }
-      break;
+    if (this.getIntervals(relay).set(toHour(startMillis),
+        UptimeIntervals.flagSetId(flags), false)) {
+      this.isDirty = true;
+    }
+  }
+
+  /** Adds the given hour with the given flags to the history like
+   * {@link #addToHistory(boolean, long, SortedSet)}, but merges it with
+   * directly adjacent intervals with the same flags right away, which keeps
+   * the history compact when collecting many hours. */
+  public void appendToHistory(boolean relay, long startMillis,
+      SortedSet<String> flags) {
+    if (this.getIntervals(relay).set(toHour(startMillis),
+        UptimeIntervals.flagSetId(flags), true)) {
+      this.isDirty = true;
+    }
+  }
+
+  /** Adds all uptime intervals of the given uptime status, for example,
+   * when merging statuses computed from different time ranges, and
+   * compresses the resulting history.  Flags of the given status take
+   * precedence over flags of overlapping intervals. */
+  public void addToHistory(UptimeStatus other) {
+    if (this.getIntervals(true).addAll(other.relayIntervals)) {
+      this.isDirty = true;
+    }
+    if (this.getIntervals(false).addAll(other.bridgeIntervals)) {
+      this.isDirty = true;
     }
-    history.add(interval);
-    this.isDirty = true;
+    this.compressHistory();
   }
 
   /** Compresses the history of uptime objects by merging adjacent
    * intervals. */
   public void compressHistory() {
-    this.compressHistory(this.relayHistory);
-    this.compressHistory(this.bridgeHistory);
-  }
-
-  private void compressHistory(SortedSet<UptimeHistory> history) {
-    SortedSet<UptimeHistory> uncompressedHistory = new TreeSet<>(history);
-    history.clear();
-    UptimeHistory lastInterval = null;
-    for (UptimeHistory interval : uncompressedHistory) {
-      if (lastInterval != null
-          && lastInterval.getStartMillis() + DateTimeHelper.ONE_HOUR
-          * lastInterval.getUptimeHours() == interval.getStartMillis()
-          && lastInterval.isRelay() == interval.isRelay()
-          && (lastInterval.getFlags() == interval.getFlags()
-          || (lastInterval.getFlags() != null
-          && interval.getFlags() != null
-          && lastInterval.getFlags().equals(interval.getFlags())))) {
-        lastInterval.addUptime(interval);
-      } else {
-        if (lastInterval != null) {
-          history.add(lastInterval);
-        }
-        lastInterval = interval;
-      }
-    }
-    if (lastInterval != null) {
-      history.add(lastInterval);
-    }
+    this.getIntervals(true).compress();
+    this.getIntervals(false).compress();
   }
 
   @Override
   public String toDocumentString() {
     StringBuilder sb = new StringBuilder();
-    for (UptimeHistory interval : this.relayHistory) {
-      sb.append(interval.toString()).append("\n");
+    appendIntervals(sb, true, this.relayIntervals);
+    appendIntervals(sb, false, this.bridgeIntervals);
+    return sb.toString();
+  }
+
+  private static void appendIntervals(StringBuilder sb, boolean relay,
+      UptimeIntervals intervals) {
+    for (int i = 0; i < intervals.size(); i++) {
+      sb.append(new UptimeHistory(relay,
+          intervals.getStartHour(i) * DateTimeHelper.ONE_HOUR,
+          intervals.getLength(i),
+          UptimeIntervals.flagSet(intervals.getFlagSetId(i))).toString())
+          .append("\n");
     }
-    for (UptimeHistory interval : this.bridgeHistory) {
-      sb.append(interval.toString()).append("\n");
+  }
+
+  /* Version of the binary encoding of monthly segments. */
+  private static final int SEGMENT_VERSION = 1;
+
+  private static int startHour(YearMonth month) {
+    return (int) (month.atDay(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC)
+        / 3600L);
+  }
+
+  private static YearMonth month(int hour) {
+    return YearMonth.from(LocalDateTime.ofEpochSecond(hour * 3600L, 0,
+        ZoneOffset.UTC));
+  }
+
+  /** Returns all UTC months that contain at least one hour of the relay
+   * or bridge uptime history, which are the months to be stored as
+   * separate segments. */
+  SortedSet<YearMonth> getMonths() {
+    SortedSet<YearMonth> months = new TreeSet<>();
+    for (UptimeIntervals intervals : Arrays.asList(this.relayIntervals,
+        this.bridgeIntervals)) {
+      for (int i = 0; i < intervals.size(); i++) {
+        int startHour = intervals.getStartHour(i);
+        YearMonth lastMonth = month(startHour + intervals.getLength(i) - 1);
+        for (YearMonth month = month(startHour); !month.isAfter(lastMonth);
+             month = month.plusMonths(1)) {
+          months.add(month);
+        }
+      }
+    }
+    return months;
+  }
+
+  /** Encodes the parts of the relay and bridge uptime histories within the
+   * given UTC month as a compact binary segment.
+   *
+   * <p>A segment starts with a version byte and the month's first hour,
+   * followed by a table of the flag sets used in the segment and by the
+   * relay and bridge intervals, each encoded as the number of hours since
+   * the end of the previous interval, the length in hours, and the index
+   * into the flag set table, where 0 stands for no flags.  All numbers
+   * except for the version are written as variable-length integers.</p> */
+  byte[] toMonthSegment(YearMonth month) {
+    int monthStartHour = startHour(month);
+    int monthEndHour = startHour(month.plusMonths(1));
+    List<Integer> flagSetIds = new ArrayList<>();
+    Map<Integer, Integer> localFlagSetIds = new HashMap<>();
+    for (UptimeIntervals intervals : Arrays.asList(this.relayIntervals,
+        this.bridgeIntervals)) {
+      for (int i = 0; i < intervals.size(); i++) {
+        int flagSetId = intervals.getFlagSetId(i);
+        if (overlaps(intervals, i, monthStartHour, monthEndHour)
+            && 0 != flagSetId && !localFlagSetIds.containsKey(flagSetId)) {
+          flagSetIds.add(flagSetId);
+          localFlagSetIds.put(flagSetId, flagSetIds.size());
+        }
+      }
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (DataOutputStream dos = new DataOutputStream(baos)) {
+      dos.writeByte(SEGMENT_VERSION);
+      Varints.writeUnsigned(dos, monthStartHour);
+      Varints.writeUnsigned(dos, flagSetIds.size());
+      for (int flagSetId : flagSetIds) {
+        SortedSet<String> flags = UptimeIntervals.flagSet(flagSetId);
+        Varints.writeUnsigned(dos, flags.size());
+        for (String flag : flags) {
+          dos.writeUTF(flag);
+        }
+      }
+      for (UptimeIntervals intervals : Arrays.asList(this.relayIntervals,
+          this.bridgeIntervals)) {
+        int count = 0;
+        for (int i = 0; i < intervals.size(); i++) {
+          if (overlaps(intervals, i, monthStartHour, monthEndHour)) {
+            count++;
+          }
+        }
+        Varints.writeUnsigned(dos, count);
+        int previousEndHour = monthStartHour;
+        for (int i = 0; i < intervals.size(); i++) {
+          if (overlaps(intervals, i, monthStartHour, monthEndHour)) {
+            int startHour = Math.max(monthStartHour,
+                intervals.getStartHour(i));
+            int endHour = Math.min(monthEndHour,
+                intervals.getStartHour(i) + intervals.getLength(i));
+            int flagSetId = intervals.getFlagSetId(i);
+            Varints.writeUnsigned(dos, startHour - previousEndHour);
+            Varints.writeUnsigned(dos, endHour - startHour);
+            Varints.writeUnsigned(dos, 0 == flagSetId ? 0
+                : localFlagSetIds.get(flagSetId));
+            previousEndHour = endHour;
+          }
+        }
+      }
+    } catch (IOException e) {
+      /* Writing to a byte array cannot fail. */
+      throw new IllegalStateException(e);
+    }
+    return baos.toByteArray();
+  }
+
+  private static boolean overlaps(UptimeIntervals intervals, int index,
+      int startHour, int endHour) {
+    int intervalStartHour = intervals.getStartHour(index);
+    return intervalStartHour < endHour
+        && intervalStartHour + intervals.getLength(index) > startHour;
+  }
+
+  /** Adds all relay and bridge uptime intervals contained in the given
+   * binary segment, which must not overlap with any intervals contained in
+   * this status, without compressing the resulting history.
+   *
+   * @throws IOException Thrown if the segment cannot be decoded.
+   */
+  void addMonthSegment(byte[] segment) throws IOException {
+    try (DataInputStream dis = new DataInputStream(
+        new ByteArrayInputStream(segment))) {
+      int version = dis.readUnsignedByte();
+      if (SEGMENT_VERSION != version) {
+        throw new IOException("Unsupported uptime segment version "
+            + version + ".");
+      }
+      int monthStartHour = Varints.readUnsignedInt(dis);
+      int[] flagSetIds = new int[Varints.readUnsignedInt(dis) + 1];
+      for (int i = 1; i < flagSetIds.length; i++) {
+        SortedSet<String> flags = new TreeSet<>();
+        for (int size = Varints.readUnsignedInt(dis); size > 0; size--) {
+          flags.add(dis.readUTF());
+        }
+        flagSetIds[i] = UptimeIntervals.flagSetId(flags);
+      }
+      for (boolean relay : new boolean[] { true, false }) {
+        UptimeIntervals intervals = this.getIntervals(relay);
+        int previousEndHour = monthStartHour;
+        for (int count = Varints.readUnsignedInt(dis); count > 0; count--) {
+          int startHour = previousEndHour + Varints.readUnsignedInt(dis);
+          int length = Varints.readUnsignedInt(dis);
+          int localFlagSetId = Varints.readUnsignedInt(dis);
+          if (localFlagSetId >= flagSetIds.length) {
+            throw new IOException("Invalid flag set index "
+                + localFlagSetId + " in uptime segment.");
+          }
+          intervals.addInterval(startHour, length,
+              flagSetIds[localFlagSetId]);
+          previousEndHour = startHour + length;
+        }
+      }
     }
-    return sb.toString();
   }
 }
 
@@ -0,0 +1,76 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable-length integers as used in binary status encodings, with seven
+ * bits per byte, least significant group first, and the most significant
+ * bit of each byte set if more bytes follow.
+ */
+final class Varints {
+
+  private Varints() {
+  }
+
+  /** Writes the given non-negative number as variable-length integer. */
+  static void writeUnsigned(DataOutput out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0L) {
+      out.writeByte((int) (value & 0x7FL) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /** Reads a non-negative number written as variable-length integer.
+   *
+   * @throws IOException Thrown if the input ends or if the number does not
+   *     fit into a long.
+   */
+  static long readUnsigned(DataInput in) throws IOException {
+    long value = 0L;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid variable-length integer.");
+  }
+
+  /** Reads a non-negative number written as variable-length integer that
+   * must fit into an int.
+   *
+   * @throws IOException Thrown if the input ends or if the number does not
+   *     fit into an int.
+   */
+  static int readUnsignedInt(DataInput in) throws IOException {
+    long value = readUnsigned(in);
+    if (value < 0L || value > Integer.MAX_VALUE) {
+      throw new IOException("Variable-length integer " + value
+          + " out of range.");
+    }
+    return (int) value;
+  }
+
+  /** Writes the given number as zigzag-encoded variable-length integer,
+   * which keeps small negative numbers short. */
+  static void writeSigned(DataOutput out, long value) throws IOException {
+    writeUnsigned(out, (value << 1) ^ (value >> 63));
+  }
+
+  /** Reads a number written as zigzag-encoded variable-length integer.
+   *
+   * @throws IOException Thrown if the input ends or if the number does not
+   *     fit into a long.
+   */
+  static long readSigned(DataInput in) throws IOException {
+    long value = readUnsigned(in);
+    return (value >>> 1) ^ -(value & 1L);
+  }
+}
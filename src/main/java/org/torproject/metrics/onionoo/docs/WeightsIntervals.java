@@ -0,0 +1,232 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Weights history of a relay consisting of intervals sorted by start and
+ * end time, each with a fixed number of path selection weights.
+ *
+ * <p>Intervals are stored in two parallel arrays of start and end times in
+ * milliseconds since the epoch and a flat array of weights, with
+ * {@link #WEIGHTS} consecutive weights per interval.</p>
+ */
+class WeightsIntervals {
+
+  /** Number of weights per interval. */
+  static final int WEIGHTS = 7;
+
+  /** Orders arrays of start and end time by start time first and end
+   * time second. */
+  static final Comparator<long[]> INTERVAL_COMPARATOR =
+      Comparator.<long[]>comparingLong(interval -> interval[0])
+      .thenComparingLong(interval -> interval[1]);
+
+  private long[] startMillis = new long[4];
+
+  private long[] endMillis = new long[4];
+
+  private double[] weights = new double[WEIGHTS * 4];
+
+  private int size = 0;
+
+  int size() {
+    return this.size;
+  }
+
+  long getStartMillis(int index) {
+    return this.startMillis[index];
+  }
+
+  long getEndMillis(int index) {
+    return this.endMillis[index];
+  }
+
+  double getWeight(int index, int weight) {
+    return this.weights[WEIGHTS * index + weight];
+  }
+
+  /** Returns a copy of the weights of the interval at the given index. */
+  double[] copyWeights(int index) {
+    return Arrays.copyOfRange(this.weights, WEIGHTS * index,
+        WEIGHTS * (index + 1));
+  }
+
+  /* Returns the index of the first interval that starts after the given
+   * start time or at the same time but ends at or after the given end
+   * time, or the number of intervals if there is no such interval. */
+  private int lowerBound(long start, long end) {
+    if (this.size == 0 || compare(this.startMillis[this.size - 1],
+        this.endMillis[this.size - 1], start, end) < 0) {
+      /* Shortcut for the common case of appending intervals. */
+      return this.size;
+    }
+    int low = 0;
+    int high = this.size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (compare(this.startMillis[middle], this.endMillis[middle], start,
+          end) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static int compare(long start, long end, long otherStart,
+      long otherEnd) {
+    int relation = Long.compare(start, otherStart);
+    return 0 != relation ? relation : Long.compare(end, otherEnd);
+  }
+
+  private boolean isAt(int index, long start, long end) {
+    return index < this.size && this.startMillis[index] == start
+        && this.endMillis[index] == end;
+  }
+
+  /* Inserts an interval at the given index, shifting all following
+   * intervals. */
+  private void insert(int index, long start, long end,
+      double[] intervalWeights) {
+    if (this.size == this.startMillis.length) {
+      int capacity = this.size * 2;
+      this.startMillis = Arrays.copyOf(this.startMillis, capacity);
+      this.endMillis = Arrays.copyOf(this.endMillis, capacity);
+      this.weights = Arrays.copyOf(this.weights, WEIGHTS * capacity);
+    }
+    int following = this.size - index;
+    System.arraycopy(this.startMillis, index, this.startMillis, index + 1,
+        following);
+    System.arraycopy(this.endMillis, index, this.endMillis, index + 1,
+        following);
+    System.arraycopy(this.weights, WEIGHTS * index, this.weights,
+        WEIGHTS * (index + 1), WEIGHTS * following);
+    this.startMillis[index] = start;
+    this.endMillis[index] = end;
+    this.size++;
+    this.setWeights(index, intervalWeights);
+  }
+
+  private void setWeights(int index, double[] intervalWeights) {
+    if (intervalWeights.length != WEIGHTS) {
+      throw new IllegalArgumentException("Expected " + WEIGHTS
+          + " weights, but got " + intervalWeights.length + ".");
+    }
+    System.arraycopy(intervalWeights, 0, this.weights, WEIGHTS * index,
+        WEIGHTS);
+  }
+
+  /** Adds an interval, replacing the weights of an existing interval with
+   * the same start and end time. */
+  void put(long start, long end, double[] intervalWeights) {
+    int index = this.lowerBound(start, end);
+    if (this.isAt(index, start, end)) {
+      this.setWeights(index, intervalWeights);
+    } else {
+      this.insert(index, start, end, intervalWeights);
+    }
+  }
+
+  /** Adds an interval unless it overlaps with an existing interval, and
+   * returns whether the interval was added. */
+  boolean addIfNotOverlapping(long start, long end,
+      double[] intervalWeights) {
+    int index = this.lowerBound(start, end);
+    if ((index > 0 && this.endMillis[index - 1] > start)
+        || (index < this.size && this.startMillis[index] < end)) {
+      return false;
+    }
+    this.put(start, end, intervalWeights);
+    return true;
+  }
+
+  /** Merges directly adjacent intervals with the same missing weights that
+   * end in the same interval of the length determined by how long before
+   * the given last seen time they end, and that start in the same UTC
+   * month, using averages of their weights weighted by interval length in
+   * full hours. */
+  void compress(long lastSeenMillis) {
+    int compressed = -1;
+    long lastStartMillis = 0L;
+    long lastEndMillis = 0L;
+    String lastMonthString = "1970-01";
+    int lastMissingValues = -1;
+    for (int index = 0; index < this.size; index++) {
+      long start = this.startMillis[index];
+      long end = this.endMillis[index];
+      long intervalLengthMillis;
+      if (lastSeenMillis - end <= DateTimeHelper.ONE_WEEK) {
+        intervalLengthMillis = DateTimeHelper.ONE_HOUR;
+      } else if (lastSeenMillis - end
+          <= DateTimeHelper.ROUGHLY_ONE_MONTH) {
+        intervalLengthMillis = DateTimeHelper.FOUR_HOURS;
+      } else if (lastSeenMillis - end
+          <= DateTimeHelper.ROUGHLY_SIX_MONTHS) {
+        intervalLengthMillis = DateTimeHelper.ONE_DAY;
+      } else if (lastSeenMillis - end
+          <= DateTimeHelper.ROUGHLY_ONE_YEAR) {
+        intervalLengthMillis = DateTimeHelper.TWO_DAYS;
+      } else {
+        intervalLengthMillis = DateTimeHelper.TEN_DAYS;
+      }
+      String monthString = DateTimeHelper.format(start,
+          DateTimeHelper.ISO_YEARMONTH_FORMAT);
+      int missingValues = 0;
+      for (int i = 0; i < WEIGHTS; i++) {
+        if (Double.isNaN(this.weights[WEIGHTS * index + i])) {
+          missingValues += 1 << i;
+        }
+      }
+      if (compressed >= 0 && lastEndMillis == start
+          && ((lastEndMillis - 1L) / intervalLengthMillis)
+          == ((end - 1L) / intervalLengthMillis)
+          && lastMonthString.equals(monthString)
+          && lastMissingValues == missingValues) {
+        double lastIntervalInHours = (double) ((lastEndMillis
+            - lastStartMillis) / DateTimeHelper.ONE_HOUR);
+        double currentIntervalInHours = (double) ((end - start)
+            / DateTimeHelper.ONE_HOUR);
+        double newIntervalInHours = (double) ((end - lastStartMillis)
+            / DateTimeHelper.ONE_HOUR);
+        for (int i = 0; i < WEIGHTS; i++) {
+          int lastOffset = WEIGHTS * compressed + i;
+          this.weights[lastOffset] *= lastIntervalInHours;
+          this.weights[lastOffset] += this.weights[WEIGHTS * index + i]
+              * currentIntervalInHours;
+          this.weights[lastOffset] /= newIntervalInHours;
+        }
+        this.endMillis[compressed] = end;
+        lastEndMillis = end;
+      } else {
+        compressed++;
+        this.startMillis[compressed] = start;
+        this.endMillis[compressed] = end;
+        System.arraycopy(this.weights, WEIGHTS * index, this.weights,
+            WEIGHTS * compressed, WEIGHTS);
+        lastStartMillis = start;
+        lastEndMillis = end;
+      }
+      lastMonthString = monthString;
+      lastMissingValues = missingValues;
+    }
+    this.size = compressed + 1;
+  }
+
+  /** Returns a copy of all intervals as map with arrays of start and end
+   * time as keys and copies of weights as values. */
+  SortedMap<long[], double[]> toSortedMap() {
+    SortedMap<long[], double[]> history = new TreeMap<>(INTERVAL_COMPARATOR);
+    for (int i = 0; i < this.size; i++) {
+      history.put(new long[] { this.startMillis[i], this.endMillis[i] },
+          this.copyWeights(i));
+    }
+    return history;
+  }
+}
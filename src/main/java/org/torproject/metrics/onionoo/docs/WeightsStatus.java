@@ -6,11 +6,14 @@ package org.torproject.metrics.onionoo.docs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Comparator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.SortedMap;
-import java.util.TreeMap;
 
 public class WeightsStatus extends Document {
 
@@ -27,23 +30,24 @@ public class WeightsStatus extends Document {
     this.isDirty = false;
   }
 
-  private Comparator<long[]> histComparator = (first, second) -> {
-    int relation = Long.compare(first[0], second[0]);
-    if (0 != relation) {
-      return relation;
-    } else {
-      return Long.compare(first[1], second[1]);
-    }
-  };
-
-  private SortedMap<long[], double[]> history = new TreeMap<>(histComparator);
+  /* Weights history as primitive arrays of intervals. */
+  private WeightsIntervals history = new WeightsIntervals();
 
+  /** Replaces the history with the given intervals, with arrays of start
+   * and end time as keys and arrays of seven weights as values. */
   public void setHistory(SortedMap<long[], double[]> history) {
-    this.history = history;
+    WeightsIntervals intervals = new WeightsIntervals();
+    for (Map.Entry<long[], double[]> e : history.entrySet()) {
+      intervals.put(e.getKey()[0], e.getKey()[1], e.getValue());
+    }
+    this.history = intervals;
   }
 
+  /** Returns a copy of the history, with arrays of start and end time as
+   * keys and arrays of seven weights as values, ordered by start time
+   * first and end time second. */
   public SortedMap<long[], double[]> getHistory() {
-    return this.history;
+    return this.history.toSortedMap();
   }
 
   @Override
@@ -67,8 +71,15 @@ public class WeightsStatus extends Document {
            * after. */
           continue;
         }
-        long validAfterMillis = DateTimeHelper.parse(parts[0] + " " + parts[1]);
-        long freshUntilMillis = DateTimeHelper.parse(parts[2] + " " + parts[3]);
+        /* Parse timestamps directly from the line, which contains them as
+         * parts[0] + " " + parts[1] and parts[2] + " " + parts[3]. */
+        int validAfterEnd = parts[0].length() + 1 + parts[1].length();
+        int freshUntilEnd = validAfterEnd + 1 + parts[2].length() + 1
+            + parts[3].length();
+        long validAfterMillis = DateTimeHelper.parse(line, 0, validAfterEnd,
+            DateTimeHelper.ISO_DATETIME_FORMAT);
+        long freshUntilMillis = DateTimeHelper.parse(line, validAfterEnd + 1,
+            freshUntilEnd, DateTimeHelper.ISO_DATETIME_FORMAT);
         if (validAfterMillis < 0L || freshUntilMillis < 0L) {
           logger.error("Could not parse timestamp while reading "
               + "weights status file.  Skipping.");
@@ -79,7 +90,6 @@ public class WeightsStatus extends Document {
               + "Skipping.", line);
           break;
         }
-        long[] interval = new long[] { validAfterMillis, freshUntilMillis };
         double[] weights;
         try {
           weights = new double[] { -1.0,
@@ -95,7 +105,7 @@ public class WeightsStatus extends Document {
               + "reading weights status file. Skipping.", line);
           break;
         }
-        this.history.put(interval, weights);
+        this.history.put(validAfterMillis, freshUntilMillis, weights);
       }
     }
   }
@@ -105,108 +115,151 @@ public class WeightsStatus extends Document {
         ? Double.NaN : Double.parseDouble(in);
   }
 
+  /* First byte of the binary encoding, which cannot be the first byte of
+   * the legacy text format, followed by the version of the encoding. */
+  private static final int BINARY_MARKER = 0x00;
+
+  private static final int BINARY_VERSION = 1;
+
+  /* Weight value used for weights that are not available, for example,
+   * because they are not computed at all. */
+  private static final double UNAVAILABLE_WEIGHT = -1.0;
+
+  /** Encodes the history in a compact binary format.
+   *
+   * <p>After a marker and version byte and the number of intervals, each
+   * interval starts with its start time in seconds since the start of the
+   * previous interval or since the epoch and its length in seconds, both
+   * written as variable-length integers, followed by two bytes with one
+   * bit set for each weight that is NaN or -1.0, respectively, and all
+   * other weights as 8-byte doubles.  Times are truncated to whole seconds
+   * like in the legacy text format, whereas weights are kept at full
+   * precision.</p> */
+  @Override
+  public byte[] toDocumentBytes() {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (DataOutputStream dos = new DataOutputStream(baos)) {
+      dos.writeByte(BINARY_MARKER);
+      dos.writeByte(BINARY_VERSION);
+      Varints.writeUnsigned(dos, this.history.size());
+      long previousStartSeconds = 0L;
+      for (int i = 0; i < this.history.size(); i++) {
+        long startSeconds = this.history.getStartMillis(i)
+            / DateTimeHelper.ONE_SECOND;
+        long endSeconds = this.history.getEndMillis(i)
+            / DateTimeHelper.ONE_SECOND;
+        Varints.writeUnsigned(dos, startSeconds - previousStartSeconds);
+        Varints.writeSigned(dos, endSeconds - startSeconds);
+        int missingWeights = 0;
+        int unavailableWeights = 0;
+        for (int j = 0; j < WeightsIntervals.WEIGHTS; j++) {
+          double weight = this.history.getWeight(i, j);
+          if (Double.isNaN(weight)) {
+            missingWeights |= 1 << j;
+          } else if (UNAVAILABLE_WEIGHT == weight) {
+            unavailableWeights |= 1 << j;
+          }
+        }
+        dos.writeByte(missingWeights);
+        dos.writeByte(unavailableWeights);
+        for (int j = 0; j < WeightsIntervals.WEIGHTS; j++) {
+          if (((missingWeights | unavailableWeights) & (1 << j)) == 0) {
+            dos.writeDouble(this.history.getWeight(i, j));
+          }
+        }
+        previousStartSeconds = startSeconds;
+      }
+    } catch (IOException e) {
+      /* Writing to a byte array cannot fail. */
+      throw new IllegalStateException(e);
+    }
+    return baos.toByteArray();
+  }
+
+  /** Parses the history from the binary format written by
+   * {@link #toDocumentBytes()}, or returns false without keeping any
+   * intervals if the given bytes are not in binary format, are in an
+   * unsupported version of it, or are truncated or otherwise corrupt. */
+  @Override
+  public boolean setFromDocumentBytes(byte[] documentBytes) {
+    if (documentBytes.length == 0 || documentBytes[0] != BINARY_MARKER) {
+      return false;
+    }
+    try (DataInputStream dis = new DataInputStream(
+        new ByteArrayInputStream(documentBytes))) {
+      dis.readUnsignedByte();
+      int version = dis.readUnsignedByte();
+      if (BINARY_VERSION != version) {
+        logger.error("Unsupported weights status version {}.", version);
+        return false;
+      }
+      WeightsIntervals history = new WeightsIntervals();
+      long startSeconds = 0L;
+      double[] weights = new double[WeightsIntervals.WEIGHTS];
+      for (int count = Varints.readUnsignedInt(dis); count > 0; count--) {
+        startSeconds += Varints.readUnsigned(dis);
+        long endSeconds = startSeconds + Varints.readSigned(dis);
+        int missingWeights = dis.readUnsignedByte();
+        int unavailableWeights = dis.readUnsignedByte();
+        for (int j = 0; j < WeightsIntervals.WEIGHTS; j++) {
+          if ((missingWeights & (1 << j)) != 0) {
+            weights[j] = Double.NaN;
+          } else if ((unavailableWeights & (1 << j)) != 0) {
+            weights[j] = UNAVAILABLE_WEIGHT;
+          } else {
+            weights[j] = dis.readDouble();
+          }
+        }
+        history.put(startSeconds * DateTimeHelper.ONE_SECOND,
+            endSeconds * DateTimeHelper.ONE_SECOND, weights);
+      }
+      this.history = history;
+    } catch (IOException e) {
+      logger.error("Could not parse binary weights status.", e);
+      return false;
+    }
+    return true;
+  }
+
   /** Adds all given weights history objects that don't overlap with
    * existing weights history objects. */
   public void addToHistory(long validAfterMillis, long freshUntilMillis,
       double[] weights) {
-    long[] interval = new long[] { validAfterMillis, freshUntilMillis };
-    if ((this.history.headMap(interval).isEmpty()
-        || this.history.headMap(interval).lastKey()[1]
-        <= validAfterMillis)
-        && (this.history.tailMap(interval).isEmpty()
-        || this.history.tailMap(interval).firstKey()[0]
-        >= freshUntilMillis)) {
-      this.history.put(interval, weights);
+    if (this.history.addIfNotOverlapping(validAfterMillis, freshUntilMillis,
+        weights)) {
       this.isDirty = true;
     }
   }
 
+  /** Adds all history intervals of the given weights status that don't
+   * overlap with existing intervals, for example, when merging statuses
+   * computed from different time ranges. */
+  public void addToHistory(WeightsStatus other) {
+    for (int i = 0; i < other.history.size(); i++) {
+      this.addToHistory(other.history.getStartMillis(i),
+          other.history.getEndMillis(i), other.history.copyWeights(i));
+    }
+  }
+
   /** Compresses the history of weights objects by merging adjacent
    * intervals, depending on how far back in the past they lie. */
   public void compressHistory(long lastSeenMillis) {
-    SortedMap<long[], double[]> uncompressedHistory =
-        new TreeMap<>(histComparator);
-    uncompressedHistory.putAll(this.history);
-    history.clear();
-    long lastStartMillis = 0L;
-    long lastEndMillis = 0L;
-    double[] lastWeights = null;
-    String lastMonthString = "1970-01";
-    int lastMissingValues = -1;
-    for (Map.Entry<long[], double[]> e : uncompressedHistory.entrySet()) {
-      long startMillis = e.getKey()[0];
-      long endMillis = e.getKey()[1];
-      double[] weights = e.getValue();
-      long intervalLengthMillis;
-      if (lastSeenMillis - endMillis <= DateTimeHelper.ONE_WEEK) {
-        intervalLengthMillis = DateTimeHelper.ONE_HOUR;
-      } else if (lastSeenMillis - endMillis
-          <= DateTimeHelper.ROUGHLY_ONE_MONTH) {
-        intervalLengthMillis = DateTimeHelper.FOUR_HOURS;
-      } else if (lastSeenMillis - endMillis
-          <= DateTimeHelper.ROUGHLY_SIX_MONTHS) {
-        intervalLengthMillis = DateTimeHelper.ONE_DAY;
-      } else if (lastSeenMillis - endMillis
-          <= DateTimeHelper.ROUGHLY_ONE_YEAR) {
-        intervalLengthMillis = DateTimeHelper.TWO_DAYS;
-      } else {
-        intervalLengthMillis = DateTimeHelper.TEN_DAYS;
-      }
-      String monthString = DateTimeHelper.format(startMillis,
-          DateTimeHelper.ISO_YEARMONTH_FORMAT);
-      int missingValues = 0;
-      for (int i = 0; i < weights.length; i++) {
-        if (Double.valueOf(weights[i]).isNaN()) {
-          missingValues += 1 << i;
-        }
-      }
-      if (lastEndMillis == startMillis
-          && ((lastEndMillis - 1L) / intervalLengthMillis)
-          == ((endMillis - 1L) / intervalLengthMillis)
-          && lastMonthString.equals(monthString)
-          && lastMissingValues == missingValues) {
-        double lastIntervalInHours = (double) ((lastEndMillis
-            - lastStartMillis) / DateTimeHelper.ONE_HOUR);
-        double currentIntervalInHours = (double) ((endMillis
-            - startMillis) / DateTimeHelper.ONE_HOUR);
-        double newIntervalInHours = (double) ((endMillis
-            - lastStartMillis) / DateTimeHelper.ONE_HOUR);
-        for (int i = 0; i < lastWeights.length; i++) {
-          lastWeights[i] *= lastIntervalInHours;
-          lastWeights[i] += weights[i] * currentIntervalInHours;
-          lastWeights[i] /= newIntervalInHours;
-        }
-        lastEndMillis = endMillis;
-      } else {
-        if (lastStartMillis > 0L) {
-          this.history.put(new long[] { lastStartMillis, lastEndMillis },
-              lastWeights);
-        }
-        lastStartMillis = startMillis;
-        lastEndMillis = endMillis;
-        lastWeights = weights;
-      }
-      lastMonthString = monthString;
-      lastMissingValues = missingValues;
-    }
-    if (lastStartMillis > 0L) {
-      this.history.put(new long[] { lastStartMillis, lastEndMillis },
-          lastWeights);
-    }
+    this.history.compress(lastSeenMillis);
   }
 
   @Override
   public String toDocumentString() {
     StringBuilder sb = new StringBuilder();
-    for (Map.Entry<long[], double[]> e : history.entrySet()) {
-      long[] fresh = e.getKey();
-      double[] weights = e.getValue();
-      sb.append(DateTimeHelper.format(fresh[0])).append(" ")
-          .append(DateTimeHelper.format(fresh[1]));
-      for (int i = 0; i < weights.length; i++) {
+    for (int i = 0; i < this.history.size(); i++) {
+      DateTimeHelper.appendTo(sb, this.history.getStartMillis(i),
+          DateTimeHelper.ISO_DATETIME_FORMAT);
+      DateTimeHelper.appendTo(sb.append(" "), this.history.getEndMillis(i),
+          DateTimeHelper.ISO_DATETIME_FORMAT);
+      for (int j = 0; j < WeightsIntervals.WEIGHTS; j++) {
         sb.append(" ");
-        if (i != 0 && i != 5 && !Double.valueOf(weights[i]).isNaN()) {
-          sb.append(String.format("%.12f", weights[i]));
+        double weight = this.history.getWeight(i, j);
+        if (j != 0 && j != 5 && !Double.isNaN(weight)) {
+          sb.append(String.format("%.12f", weight));
         }
       }
       sb.append("\n");
@@ -3,20 +3,22 @@
 
 package org.torproject.metrics.onionoo.server;
 
+import java.util.concurrent.atomic.LongAdder;
+
 class Counter {
 
-  int value = 0;
+  final LongAdder value = new LongAdder();
 
   void increment() {
-    this.value++;
+    this.value.increment();
   }
 
   @Override
   public String toString() {
-    return String.valueOf(this.value);
+    return String.valueOf(this.value.sum());
   }
 
   void clear() {
-    this.value = 0;
+    this.value.reset();
   }
 }
@@ -3,38 +3,37 @@
 
 package org.torproject.metrics.onionoo.server;
 
-import java.util.Arrays;
-
 class IntegerDistribution {
 
   /**
    * Counts by power of two with negative values at index 0, values < 2^0 at
    * index 1, values < 2^1 at index 2, and values >= 2^63 at index 64.
    */
-  int[] logValues = new int[65];
+  final ThreadLocalCounts logValues = new ThreadLocalCounts(65);
 
   void addLong(long value) {
     if (value < 0L) {
-      logValues[0]++;
+      logValues.increment(0);
     } else {
-      logValues[65 - Long.numberOfLeadingZeros(value)]++;
+      logValues.increment(65 - Long.numberOfLeadingZeros(value));
     }
   }
 
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    int totalValues = 0;
-    for (int logValue : logValues) {
+    long[] logValues = this.logValues.sum();
+    long totalValues = 0L;
+    for (long logValue : logValues) {
       totalValues += logValue;
     }
     int[] permilles = new int[] { 500, 900, 990, 999 };
-    if (totalValues > 0) {
-      int seenValues = 0;
+    if (totalValues > 0L) {
+      long seenValues = 0L;
       for (int i = 0, j = 0; i < logValues.length; i++) {
         seenValues += logValues[i];
         while (j < permilles.length
-            && (seenValues * 1000 > totalValues * permilles[j])) {
+            && (seenValues * 1000L > totalValues * permilles[j])) {
           sb.append(j > 0 ? ", " : "").append(".").append(permilles[j]);
           if (i == 0) {
             sb.append("<0");
@@ -58,7 +57,9 @@ class IntegerDistribution {
     return sb.toString();
   }
 
+  /* Resets counts in all buckets, including the last one for values of
+   * 2^62 and more, which was not reset in the past. */
   void clear() {
-    Arrays.fill(logValues, 0, logValues.length - 1, 0);
+    logValues.clear();
   }
 }
@@ -0,0 +1,107 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.server;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in milliseconds with log-linear buckets, similar
+ * to an HdrHistogram with two significant bits: values below 4 have their
+ * own bucket, and every power of two above is split into four buckets of
+ * equal width, which keeps the relative error below 25 percent.
+ *
+ * <p>Counts are cumulative since startup and can be recorded and read
+ * concurrently without locking, and threads record into their own copies
+ * of bucket counts, which are only summed up when written out.</p>
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 2;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /* Highest power of two with its own buckets; values of 2^18 ms or more,
+   * that is, above four minutes, only go into the overflow bucket. */
+  private static final int MAX_EXPONENT = 17;
+
+  /** Number of buckets with a finite upper bound. */
+  static final int FINITE_BUCKETS = SUB_BUCKETS
+      + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final ThreadLocalCounts counts =
+      new ThreadLocalCounts(FINITE_BUCKETS + 1);
+
+  private final LongAdder sum = new LongAdder();
+
+  /** Returns the index of the bucket containing the given value, or
+   * {@link #FINITE_BUCKETS} if the value is too large for any of the
+   * finite buckets. */
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) Math.max(0L, value);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return FINITE_BUCKETS;
+    }
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+        & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS
+        + subBucket;
+  }
+
+  /** Returns the largest value contained in the bucket with the given
+   * index. */
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = SUB_BUCKET_BITS + (index - SUB_BUCKETS) / SUB_BUCKETS;
+    int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket + 1)
+        << (exponent - SUB_BUCKET_BITS)) - 1L;
+  }
+
+  void record(long valueMillis) {
+    this.counts.increment(bucketIndex(valueMillis));
+    this.sum.add(Math.max(0L, valueMillis));
+  }
+
+  long getCount() {
+    long count = 0L;
+    for (long bucketCount : this.counts.sum()) {
+      count += bucketCount;
+    }
+    return count;
+  }
+
+  long getSumMillis() {
+    return this.sum.sum();
+  }
+
+  /** Appends this histogram in Prometheus text format with the given
+   * metric name and label string, converting milliseconds to seconds. */
+  void appendTo(StringBuilder sb, String name, String labels) {
+    long[] bucketCounts = this.counts.sum();
+    long cumulativeCount = 0L;
+    for (int i = 0; i < FINITE_BUCKETS; i++) {
+      cumulativeCount += bucketCounts[i];
+      sb.append(name).append("_bucket{").append(labels).append(",le=\"")
+          .append(millisToSeconds(bucketUpperBound(i))).append("\"} ")
+          .append(cumulativeCount).append('\n');
+    }
+    cumulativeCount += bucketCounts[FINITE_BUCKETS];
+    sb.append(name).append("_bucket{").append(labels)
+        .append(",le=\"+Inf\"} ").append(cumulativeCount).append('\n');
+    sb.append(name).append("_sum{").append(labels).append("} ")
+        .append(millisToSeconds(this.getSumMillis())).append('\n');
+    sb.append(name).append("_count{").append(labels).append("} ")
+        .append(cumulativeCount).append('\n');
+  }
+
+  static String millisToSeconds(long millis) {
+    return BigDecimal.valueOf(millis, 3).toPlainString();
+  }
+}
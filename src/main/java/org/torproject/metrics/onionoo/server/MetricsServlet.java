@@ -0,0 +1,77 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.server;
+
+import org.torproject.metrics.onionoo.docs.DocumentStore;
+import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet exposing request statistics, index state, and document store
+ * statistics in the Prometheus text exposition format.
+ */
+public class MetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = -3306297066391512151L;
+
+  @Override
+  public void doGet(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    this.doGet(new HttpServletResponseWrapper(response),
+        System.currentTimeMillis());
+  }
+
+  /** Writes all metrics as of the given time to the wrapped
+   * {@code response}, which is wrapped to facilitate testing. */
+  public void doGet(HttpServletResponseWrapper response, long nowMillis)
+      throws IOException {
+    StringBuilder sb = new StringBuilder();
+    PerformanceMetrics.appendMetrics(sb);
+    NodeIndexer nodeIndexer = NodeIndexerFactory.getNodeIndexer();
+    long lastIndexed = nodeIndexer.getLastIndexed(0L);
+    if (lastIndexed >= 0L) {
+      sb.append("# HELP onionoo_index_age_seconds Time since the updater "
+          + "wrote the data contained in the current index.\n")
+          .append("# TYPE onionoo_index_age_seconds gauge\n")
+          .append("onionoo_index_age_seconds ")
+          .append(LatencyHistogram.millisToSeconds(nowMillis - lastIndexed))
+          .append('\n');
+    }
+    NodeIndex nodeIndex = nodeIndexer.getLatestNodeIndex(0L);
+    if (null != nodeIndex) {
+      sb.append("# HELP onionoo_index_documents Summary documents held in "
+          + "the current index.\n")
+          .append("# TYPE onionoo_index_documents gauge\n")
+          .append("onionoo_index_documents{type=\"relay\"} ")
+          .append(nodeIndex.getRelaysCount()).append('\n')
+          .append("onionoo_index_documents{type=\"bridge\"} ")
+          .append(nodeIndex.getBridgesCount()).append('\n');
+    }
+    DocumentStore documentStore = DocumentStoreFactory.getDocumentStore();
+    sb.append("# HELP onionoo_document_store_retrieved_files_total Document "
+        + "files read from disk.\n")
+        .append("# TYPE onionoo_document_store_retrieved_files_total "
+        + "counter\n")
+        .append("onionoo_document_store_retrieved_files_total ")
+        .append(documentStore.getRetrievedFiles()).append('\n');
+    sb.append("# HELP onionoo_document_store_retrieved_bytes_total Bytes of "
+        + "document files read from disk.\n")
+        .append("# TYPE onionoo_document_store_retrieved_bytes_total "
+        + "counter\n")
+        .append("onionoo_document_store_retrieved_bytes_total ")
+        .append(documentStore.getRetrievedBytes()).append('\n');
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("utf-8");
+    response.setHeader("Cache-Control", "no-cache");
+    try (PrintWriter pw = response.getWriter()) {
+      pw.write(sb.toString());
+    }
+  }
+}
@@ -4,38 +4,58 @@
 package org.torproject.metrics.onionoo.server;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 class MostFrequentString {
 
-  Map<String, Integer> stringFrequencies = new HashMap<>();
+  /**
+   * Maximum number of distinct strings to count; further strings are
+   * ignored until the next clear, which keeps memory bounded even if many
+   * rarely seen strings are added.
+   */
+  static final int MAX_DISTINCT_STRINGS = 1000;
+
+  ConcurrentMap<String, LongAdder> stringFrequencies =
+      new ConcurrentHashMap<>();
 
   void addString(String string) {
-    this.stringFrequencies.put(string,
-        this.stringFrequencies.getOrDefault(string, 0) + 1);
+    LongAdder frequency = this.stringFrequencies.get(string);
+    if (null == frequency) {
+      if (this.stringFrequencies.size() >= MAX_DISTINCT_STRINGS) {
+        return;
+      }
+      LongAdder newFrequency = new LongAdder();
+      frequency = this.stringFrequencies.putIfAbsent(string, newFrequency);
+      if (null == frequency) {
+        frequency = newFrequency;
+      }
+    }
+    frequency.increment();
   }
 
   @Override
   public String toString() {
-    SortedMap<Integer, SortedSet<String>> sortedFrequencies = new TreeMap<>(
+    SortedMap<Long, SortedSet<String>> sortedFrequencies = new TreeMap<>(
         Collections.reverseOrder());
     if (this.stringFrequencies.isEmpty()) {
       return "null (0)";
     }
-    for (Map.Entry<String, Integer> e : stringFrequencies.entrySet()) {
-      sortedFrequencies.putIfAbsent(e.getValue(), new TreeSet<>());
-      sortedFrequencies.get(e.getValue()).add(e.getKey());
+    for (Map.Entry<String, LongAdder> e : stringFrequencies.entrySet()) {
+      sortedFrequencies.computeIfAbsent(e.getValue().sum(),
+          k -> new TreeSet<>()).add(e.getKey());
     }
     StringBuilder sb = new StringBuilder();
     int stringsToAdd = 3;
     int written = 0;
     SortedSet<String> remainingStrings = new TreeSet<>();
-    for (Map.Entry<Integer, SortedSet<String>> e :
+    for (Map.Entry<Long, SortedSet<String>> e :
         sortedFrequencies.entrySet()) {
       for (String string : e.getValue()) {
         if (stringsToAdd-- > 0) {
@@ -5,6 +5,7 @@ package org.torproject.metrics.onionoo.server;
 
 import org.torproject.metrics.onionoo.docs.SummaryDocument;
 import org.torproject.metrics.onionoo.updater.TorVersion;
+import org.torproject.metrics.onionoo.util.FamilyGraph;
 
 import java.text.SimpleDateFormat;
 import java.util.Map;
@@ -39,6 +40,26 @@ class NodeIndex {
     return bridgesPublishedString;
   }
 
+  private int relaysCount;
+
+  public void setRelaysCount(int relaysCount) {
+    this.relaysCount = relaysCount;
+  }
+
+  public int getRelaysCount() {
+    return this.relaysCount;
+  }
+
+  private int bridgesCount;
+
+  public void setBridgesCount(int bridgesCount) {
+    this.bridgesCount = bridgesCount;
+  }
+
+  public int getBridgesCount() {
+    return this.bridgesCount;
+  }
+
   private Map<String, SummaryDocument> relayFingerprintSummaryLines;
 
   public void setRelayFingerprintSummaryLines(
@@ -124,14 +145,14 @@ class NodeIndex {
     return relaysByContact;
   }
 
-  private Map<String, Set<String>> relaysByFamily = null;
+  private FamilyGraph relayFamilies = null;
 
-  public void setRelaysByFamily(Map<String, Set<String>> relaysByFamily) {
-    this.relaysByFamily = relaysByFamily;
+  public void setRelayFamilies(FamilyGraph relayFamilies) {
+    this.relayFamilies = relayFamilies;
   }
 
-  public Map<String, Set<String>> getRelaysByFamily() {
-    return this.relaysByFamily;
+  public FamilyGraph getRelayFamilies() {
+    return this.relayFamilies;
   }
 
   private SortedMap<Integer, Set<String>> relaysByFirstSeenDays;
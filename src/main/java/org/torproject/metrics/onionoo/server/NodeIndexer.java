@@ -5,17 +5,25 @@ package org.torproject.metrics.onionoo.server;
 
 import static org.torproject.metrics.onionoo.docs.DateTimeHelper.ONE_DAY;
 import static org.torproject.metrics.onionoo.docs.DateTimeHelper.ONE_MINUTE;
+import static org.torproject.metrics.onionoo.docs.DateTimeHelper.TEN_SECONDS;
 
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.SummaryDocument;
 import org.torproject.metrics.onionoo.docs.UpdateStatus;
 import org.torproject.metrics.onionoo.updater.TorVersion;
+import org.torproject.metrics.onionoo.util.FamilyGraph;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -24,6 +32,7 @@ import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
@@ -44,6 +53,7 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     }
     DocumentStore documentStore = DocumentStoreFactory.getDocumentStore();
     documentStore.setOutDir(outDir);
+    this.outDir = outDir;
     /* The servlet container created us, and we need to avoid that
      * ApplicationFactory creates another instance of us. */
     NodeIndexerFactory.setNodeIndexer(this);
@@ -102,13 +112,34 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     }
   }
 
+  /* Directory containing the update file written by the hourly updater, or
+   * null if we don't know where that is and can only poll the document
+   * store. */
+  private File outDir = null;
+
+  /* Time to wait after the last file system event in the out directory
+   * before reading the new index.  The hourly updater writes the update file
+   * last, but it may still be writing it or the summary file when we first
+   * learn about it. */
+  private static final long DEBOUNCE_MILLIS = TEN_SECONDS;
+
+  /* Last-modified time of the update file when the index was last loaded
+   * successfully, used to avoid reading that file again if it has not
+   * changed since.  Only set after loading succeeded, so that a failed read
+   * is retried on the next poll. */
+  private long updateFileLastModified = -1L;
+
   @Override
   public void run() {
-    try {
+    try (WatchService watchService = this.createWatchService()) {
       while (this.nodeIndexerThread != null) {
         this.indexNodeStatuses();
         try {
-          Thread.sleep(ONE_MINUTE);
+          if (null == watchService) {
+            Thread.sleep(ONE_MINUTE);
+          } else {
+            this.awaitUpdateFileChange(watchService);
+          }
         } catch (InterruptedException e) {
           /* Nothing that we could handle, just check if there's new data
            * to index now. */
@@ -119,18 +150,92 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     }
   }
 
+  /* Registers a watch service for changes to files in the out directory, or
+   * returns null if we don't know the out directory or the file system does
+   * not support watching it, in which case we fall back to polling. */
+  private WatchService createWatchService() {
+    if (null == this.outDir) {
+      return null;
+    }
+    WatchService watchService = null;
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      this.outDir.toPath().register(watchService,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+      return watchService;
+    } catch (IOException | UnsupportedOperationException e) {
+      logger.warn("Unable to watch {} for changes. Falling back to checking "
+          + "for new data once per minute.", this.outDir, e);
+      if (null != watchService) {
+        try {
+          watchService.close();
+        } catch (IOException ioe) {
+          /* Nothing left to clean up. */
+        }
+      }
+      return null;
+    }
+  }
+
+  /* Blocks until the update file in the out directory has changed and no
+   * further changes have happened for DEBOUNCE_MILLIS, or until ONE_MINUTE
+   * has passed without any change, whichever comes first. */
+  private void awaitUpdateFileChange(WatchService watchService)
+      throws InterruptedException {
+    long timeoutMillis = ONE_MINUTE;
+    boolean updateFileChanged = false;
+    while (this.nodeIndexerThread != null) {
+      WatchKey watchKey = watchService.poll(timeoutMillis,
+          TimeUnit.MILLISECONDS);
+      if (null == watchKey) {
+        /* Either the update file changed and everything has been quiet
+         * since, or nothing happened at all and we're polling anyway. */
+        return;
+      }
+      for (WatchEvent<?> event : watchKey.pollEvents()) {
+        /* The hourly updater writes update.tmp and renames it to update, so
+         * that either file name tells us that new data is on its way. */
+        if (StandardWatchEventKinds.OVERFLOW == event.kind()
+            || String.valueOf(event.context()).startsWith("update")) {
+          updateFileChanged = true;
+        }
+      }
+      if (!watchKey.reset()) {
+        /* Subsequent polls will simply time out, which makes us fall back
+         * to checking for new data once per minute. */
+        logger.warn("Stopped watching {} for changes.", this.outDir);
+        return;
+      }
+      if (updateFileChanged) {
+        timeoutMillis = DEBOUNCE_MILLIS;
+      }
+    }
+  }
+
   /** Stop the background process that is periodically reading the node
    * index. */
   public synchronized void stopIndexing() {
     Thread indexerThread = this.nodeIndexerThread;
     this.nodeIndexerThread = null;
-    indexerThread.interrupt();
+    if (null != indexerThread) {
+      indexerThread.interrupt();
+    }
   }
 
   /* specialTime is only used for testing, see ResourceServletTest */
   private long specialTime = -1L;
 
   private void indexNodeStatuses() {
+    long updateFileLastModified = -1L;
+    if (null != this.outDir) {
+      updateFileLastModified = new File(this.outDir, "update").lastModified();
+      if (updateFileLastModified > 0L
+          && updateFileLastModified == this.updateFileLastModified) {
+        /* Update file has not changed since we last read it. */
+        return;
+      }
+    }
     long updateStatusMillis = -1L;
     DocumentStore documentStore = DocumentStoreFactory.getDocumentStore();
     UpdateStatus updateStatus = documentStore.retrieve(UpdateStatus.class,
@@ -140,7 +245,12 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     }
     synchronized (this) {
       if (updateStatusMillis <= this.lastIndexed) {
-        /* Index on disk is no more recent than the one in memory. */
+        /* Index on disk is no more recent than the one in memory, which
+         * only means that we're done with this update file if we could
+         * actually read it. */
+        if (null != updateStatus) {
+          this.updateFileLastModified = updateFileLastModified;
+        }
         return;
       }
     }
@@ -155,7 +265,7 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     Map<String, Set<String>> newRelaysByFlag = new HashMap<>();
     Map<String, Set<String>> newBridgesByFlag = new HashMap<>();
     Map<String, Set<String>> newRelaysByContact = new HashMap<>();
-    Map<String, Set<String>> newRelaysByFamily = new HashMap<>();
+    Map<String, SortedSet<String>> newEffectiveFamilies = new HashMap<>();
     Map<TorVersion, Set<String>> newRelaysByVersion = new HashMap<>();
     Map<TorVersion, Set<String>> newBridgesByVersion = new HashMap<>();
     Map<String, Set<String>> newRelaysByOperatingSystem = new HashMap<>();
@@ -190,11 +300,6 @@ public class NodeIndexer implements ServletContextListener, Runnable {
         currentBridges.add(node);
       }
     }
-
-    /* This variable can go away once all Onionoo services had their
-     * hourly updater write effective families to summary documents at
-     * least once.  Remove this code after September 8, 2015. */
-    SortedMap<String, Set<String>> computedEffectiveFamilies = new TreeMap<>();
     for (SummaryDocument entry : currentRelays) {
       String fingerprint = entry.getFingerprint().toUpperCase();
       String hashedFingerprint = entry.getHashedFingerprint()
@@ -236,16 +341,9 @@ public class NodeIndexer implements ServletContextListener, Runnable {
         newRelaysByFlag.get(flagLowerCase).add(fingerprint);
         newRelaysByFlag.get(flagLowerCase).add(hashedFingerprint);
       }
-      /* This condition can go away once all Onionoo services had their
-       * hourly updater write effective families to summary documents at
-       * least once.  Remove this code after September 8, 2015. */
-      if (entry.getFamilyFingerprints() != null
-          && !entry.getFamilyFingerprints().isEmpty()) {
-        computedEffectiveFamilies.put(fingerprint,
-            entry.getFamilyFingerprints());
-      }
-      if (entry.getEffectiveFamily() != null) {
-        newRelaysByFamily.put(fingerprint, entry.getEffectiveFamily());
+      SortedSet<String> effectiveFamily = entry.getEffectiveFamily();
+      if (null != effectiveFamily && !effectiveFamily.isEmpty()) {
+        newEffectiveFamilies.put(fingerprint, effectiveFamily);
       }
       int daysSinceFirstSeen = (int) ((
           (specialTime < 0 ? System.currentTimeMillis() : specialTime)
@@ -300,22 +398,6 @@ public class NodeIndexer implements ServletContextListener, Runnable {
             hashedFingerprint);
       }
     }
-    /* This loop can go away once all Onionoo services had their hourly
-     * updater write effective families to summary documents at least
-     * once.  Remove this code after September 8, 2015. */
-    for (Map.Entry<String, Set<String>> e :
-        computedEffectiveFamilies.entrySet()) {
-      String fingerprint = e.getKey();
-      Set<String> inMutualFamilyRelation = new HashSet<>();
-      for (String otherFingerprint : e.getValue()) {
-        if (computedEffectiveFamilies.containsKey(otherFingerprint)
-            && computedEffectiveFamilies.get(otherFingerprint).contains(
-            fingerprint)) {
-          inMutualFamilyRelation.add(otherFingerprint);
-        }
-      }
-      newRelaysByFamily.put(fingerprint, inMutualFamilyRelation);
-    }
     for (SummaryDocument entry : currentBridges) {
       String hashedFingerprint = entry.getFingerprint().toUpperCase();
       String hashedHashedFingerprint = entry.getHashedFingerprint()
@@ -371,6 +453,8 @@ public class NodeIndexer implements ServletContextListener, Runnable {
       }
     }
     NodeIndex newNodeIndex = new NodeIndex();
+    newNodeIndex.setRelaysCount(currentRelays.size());
+    newNodeIndex.setBridgesCount(currentBridges.size());
     newNodeIndex.setRelayFingerprintSummaryLines(
         newRelayFingerprintSummaryLines);
     newNodeIndex.setBridgeFingerprintSummaryLines(
@@ -381,7 +465,8 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     newNodeIndex.setRelaysByFlag(newRelaysByFlag);
     newNodeIndex.setBridgesByFlag(newBridgesByFlag);
     newNodeIndex.setRelaysByContact(newRelaysByContact);
-    newNodeIndex.setRelaysByFamily(newRelaysByFamily);
+    newNodeIndex.setRelayFamilies(
+        FamilyGraph.fromEffectiveFamilies(newEffectiveFamilies));
     newNodeIndex.setRelaysByFirstSeenDays(newRelaysByFirstSeenDays);
     newNodeIndex.setRelaysByLastSeenDays(newRelaysByLastSeenDays);
     newNodeIndex.setBridgesByFirstSeenDays(newBridgesByFirstSeenDays);
@@ -398,8 +483,13 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     synchronized (this) {
       this.lastIndexed = updateStatusMillis;
       this.latestNodeIndex = newNodeIndex;
+      this.updateFileLastModified = updateFileLastModified;
       this.notifyAll();
     }
+    if (this.specialTime < 0L) {
+      PerformanceMetrics.logIndexFreshness(updateStatusMillis,
+          System.currentTimeMillis());
+    }
   }
 }
 
@@ -9,112 +9,207 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.text.SimpleDateFormat;
-import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PerformanceMetrics {
 
   private static final Logger logger = LoggerFactory.getLogger(
       PerformanceMetrics.class);
 
-  private static final Object lock = new Object();
-
-  private static long lastLoggedMillis = -1L;
+  private static final AtomicLong lastLoggedMillis = new AtomicLong(-1L);
 
   private static final long LOG_INTERVAL_SECONDS = 60L * 60L;
 
   private static final long LOG_INTERVAL_MILLIS =
       LOG_INTERVAL_SECONDS * 1000L;
 
-  private static Counter totalProcessedRequests = new Counter();
-
-  private static MostFrequentString requestsByResourceType =
-      new MostFrequentString();
+  /* Requests taking longer than this to handle and build a response for
+   * are logged together with their trace. */
+  private static final long SLOW_REQUEST_MILLIS = DateTimeHelper.ONE_SECOND;
+
+  /* Request statistics of the current log interval, which are replaced as
+   * a whole when the interval ends, so that the previous statistics can be
+   * logged while requests are recorded into new statistics. */
+  private static final AtomicReference<IntervalStatistics> statistics =
+      new AtomicReference<>(new IntervalStatistics());
+
+  private static class IntervalStatistics {
+
+    private final Counter totalProcessedRequests = new Counter();
+
+    private final MostFrequentString requestsByResourceType =
+        new MostFrequentString();
+
+    private final MostFrequentString requestsByParameters =
+        new MostFrequentString();
+
+    private final IntegerDistribution matchingRelayDocuments =
+        new IntegerDistribution();
+
+    private final IntegerDistribution matchingBridgeDocuments =
+        new IntegerDistribution();
+
+    private final IntegerDistribution writtenChars =
+        new IntegerDistribution();
+
+    private final IntegerDistribution handleRequestMillis =
+        new IntegerDistribution();
+
+    private final IntegerDistribution buildResponseMillis =
+        new IntegerDistribution();
+
+    private final IntegerDistribution indexFreshnessLagMillis =
+        new IntegerDistribution();
+
+    private void log(long intervalEndMillis) {
+      SimpleDateFormat dateTimeFormat = new SimpleDateFormat(
+          "yyyy-MM-dd HH:mm:ss");
+      logger.info("Request statistics ({}, {} s):",
+          dateTimeFormat.format(intervalEndMillis), LOG_INTERVAL_SECONDS);
+      logger.info("  Total processed requests: {}",
+          this.totalProcessedRequests);
+      logger.info("  Most frequently requested resource: {}",
+          this.requestsByResourceType);
+      logger.info("  Most frequently requested parameter combinations: {}",
+          this.requestsByParameters);
+      logger.info("  Matching relays per request: {}",
+          this.matchingRelayDocuments);
+      logger.info("  Matching bridges per request: {}",
+          this.matchingBridgeDocuments);
+      logger.info("  Written characters per response: {}",
+          this.writtenChars);
+      logger.info("  Milliseconds to handle request: {}",
+          this.handleRequestMillis);
+      logger.info("  Milliseconds to build response: {}",
+          this.buildResponseMillis);
+      logger.info("  Milliseconds until new data was indexed: {}",
+          this.indexFreshnessLagMillis);
+    }
+  }
 
-  private static MostFrequentString requestsByParameters =
-      new MostFrequentString();
+  /* Cumulative statistics by resource type for the metrics endpoint, which
+   * are never cleared. */
+  private static final SortedMap<String, LongAdder> totalRequests =
+      new ConcurrentSkipListMap<>();
 
-  private static IntegerDistribution matchingRelayDocuments =
-      new IntegerDistribution();
+  private static final SortedMap<String, LongAdder> totalWrittenChars =
+      new ConcurrentSkipListMap<>();
 
-  private static IntegerDistribution matchingBridgeDocuments =
-      new IntegerDistribution();
+  private static final SortedMap<String, LatencyHistogram> handleLatencies =
+      new ConcurrentSkipListMap<>();
 
-  private static IntegerDistribution writtenChars =
-      new IntegerDistribution();
+  private static final SortedMap<String, LatencyHistogram> buildLatencies =
+      new ConcurrentSkipListMap<>();
 
-  private static IntegerDistribution handleRequestMillis =
-      new IntegerDistribution();
+  private static volatile long lastIndexFreshnessLagMillis = -1L;
 
-  private static IntegerDistribution buildResponseMillis =
-      new IntegerDistribution();
+  /** Collects statistics on the time between the hourly updater writing new
+   * data and that data becoming available to requests. */
+  public static void logIndexFreshness(long updatedMillis,
+      long indexedMillis) {
+    long lagMillis = indexedMillis - updatedMillis;
+    lastIndexFreshnessLagMillis = lagMillis;
+    statistics.get().indexFreshnessLagMillis.addLong(lagMillis);
+    logger.info("Indexed data written at {}, {} ms after it was written.",
+        DateTimeHelper.format(updatedMillis), lagMillis);
+  }
 
   /** Collects aggregate statistics on a given request for periodic
    * request statistics, and logs requests taking longer than expected to
-   * process. */
+   * process together with their parameters and trace.
+   *
+   * <p>This method is called by many request threads at once and never
+   * blocks: all statistics are recorded into thread-local or lock-free
+   * structures, and the one thread that ends a log interval logs the
+   * statistics of that interval after replacing them.</p> */
   public static void logStatistics(long receivedRequestMillis,
-      String resourceType, Collection<String> parameterKeys,
+      String resourceType, Map<String, String> parameters,
       long parsedRequestMillis, int relayDocumentsWritten,
       int bridgeDocumentsWritten, int charsWritten,
-      long writtenResponseMillis) {
-    synchronized (lock) {
-      if (lastLoggedMillis < 0L) {
-        lastLoggedMillis = System.currentTimeMillis();
-      } else if (receivedRequestMillis - lastLoggedMillis
-          > LOG_INTERVAL_MILLIS) {
-        SimpleDateFormat dateTimeFormat = new SimpleDateFormat(
-            "yyyy-MM-dd HH:mm:ss");
-        logger.info("Request statistics ({}, {} s):",
-            dateTimeFormat.format(lastLoggedMillis + LOG_INTERVAL_MILLIS),
-            LOG_INTERVAL_SECONDS);
-        logger.info("  Total processed requests: {}", totalProcessedRequests);
-        logger.info("  Most frequently requested resource: {}",
-            requestsByResourceType);
-        logger.info("  Most frequently requested parameter combinations: {}",
-            requestsByParameters);
-        logger.info("  Matching relays per request: {}",
-            matchingRelayDocuments);
-        logger.info("  Matching bridges per request: {}",
-            matchingBridgeDocuments);
-        logger.info("  Written characters per response: {}",
-            writtenChars);
-        logger.info("  Milliseconds to handle request: {}",
-            handleRequestMillis);
-        logger.info("  Milliseconds to build response: {}",
-            buildResponseMillis);
-        totalProcessedRequests.clear();
-        requestsByResourceType.clear();
-        requestsByParameters.clear();
-        matchingRelayDocuments.clear();
-        matchingBridgeDocuments.clear();
-        writtenChars.clear();
-        handleRequestMillis.clear();
-        buildResponseMillis.clear();
-        do {
-          lastLoggedMillis += LOG_INTERVAL_MILLIS;
-        } while (receivedRequestMillis - lastLoggedMillis
-            > LOG_INTERVAL_MILLIS);
-      }
-      totalProcessedRequests.increment();
-      long handlingTime = parsedRequestMillis - receivedRequestMillis;
-      if (handlingTime > DateTimeHelper.ONE_SECOND) {
-        logger.warn("longer request handling: {} ms for {} params: {} and {} "
-            + "chars.", handlingTime, resourceType, parameterKeys,
-            charsWritten);
+      long writtenResponseMillis, RequestTrace trace) {
+    long handlingTime = parsedRequestMillis - receivedRequestMillis;
+    long responseTime = writtenResponseMillis - parsedRequestMillis;
+    totalRequests.computeIfAbsent(resourceType, k -> new LongAdder())
+        .increment();
+    totalWrittenChars.computeIfAbsent(resourceType, k -> new LongAdder())
+        .add(charsWritten);
+    handleLatencies.computeIfAbsent(resourceType, k -> new LatencyHistogram())
+        .record(handlingTime);
+    buildLatencies.computeIfAbsent(resourceType, k -> new LatencyHistogram())
+        .record(responseTime);
+    long lastLogged = lastLoggedMillis.get();
+    if (lastLogged < 0L) {
+      lastLoggedMillis.compareAndSet(lastLogged, System.currentTimeMillis());
+    } else if (receivedRequestMillis - lastLogged > LOG_INTERVAL_MILLIS) {
+      long nextLogged = lastLogged;
+      do {
+        nextLogged += LOG_INTERVAL_MILLIS;
+      } while (receivedRequestMillis - nextLogged > LOG_INTERVAL_MILLIS);
+      if (lastLoggedMillis.compareAndSet(lastLogged, nextLogged)) {
+        /* Requests that are being recorded concurrently may still end up in
+         * the replaced statistics, possibly after they have been logged. */
+        statistics.getAndSet(new IntervalStatistics())
+            .log(lastLogged + LOG_INTERVAL_MILLIS);
       }
-      handleRequestMillis.addLong(handlingTime);
-      requestsByResourceType.addString(resourceType);
-      requestsByParameters.addString(parameterKeys.toString());
-      matchingRelayDocuments.addLong(relayDocumentsWritten);
-      matchingBridgeDocuments.addLong(bridgeDocumentsWritten);
-      writtenChars.addLong(charsWritten);
-      long responseTime = writtenResponseMillis - parsedRequestMillis;
-      if (responseTime > DateTimeHelper.ONE_SECOND) {
-        logger.warn("longer response building: {} ms for {} params: {} and {} "
-            + "chars.", responseTime, resourceType, parameterKeys,
-            charsWritten);
-      }
-      buildResponseMillis.addLong(responseTime);
+    }
+    IntervalStatistics current = statistics.get();
+    current.totalProcessedRequests.increment();
+    current.handleRequestMillis.addLong(handlingTime);
+    current.requestsByResourceType.addString(resourceType);
+    current.requestsByParameters.addString(parameters.keySet().toString());
+    current.matchingRelayDocuments.addLong(relayDocumentsWritten);
+    current.matchingBridgeDocuments.addLong(bridgeDocumentsWritten);
+    current.writtenChars.addLong(charsWritten);
+    current.buildResponseMillis.addLong(responseTime);
+    if (handlingTime + responseTime > SLOW_REQUEST_MILLIS) {
+      logger.warn("Slow request: {} ms to handle and {} ms to build {} "
+          + "response with parameters {} and {} chars; steps: {}",
+          handlingTime, responseTime, resourceType, new TreeMap<>(parameters),
+          charsWritten, trace);
     }
   }
-}
 
+  /** Appends cumulative request statistics since startup in Prometheus text
+   * format. */
+  static void appendMetrics(StringBuilder sb) {
+    sb.append("# HELP onionoo_requests_total Processed requests.\n")
+        .append("# TYPE onionoo_requests_total counter\n");
+    for (Map.Entry<String, LongAdder> e : totalRequests.entrySet()) {
+      sb.append("onionoo_requests_total{resource=\"").append(e.getKey())
+          .append("\"} ").append(e.getValue().sum()).append('\n');
+    }
+    sb.append("# HELP onionoo_response_bytes_total Written response "
+        + "characters, which are ASCII-only and hence bytes.\n")
+        .append("# TYPE onionoo_response_bytes_total counter\n");
+    for (Map.Entry<String, LongAdder> e : totalWrittenChars.entrySet()) {
+      sb.append("onionoo_response_bytes_total{resource=\"").append(e.getKey())
+          .append("\"} ").append(e.getValue().sum()).append('\n');
+    }
+    sb.append("# HELP onionoo_request_duration_seconds Time to handle a "
+        + "request (phase handle) and to build its response (phase "
+        + "build).\n")
+        .append("# TYPE onionoo_request_duration_seconds histogram\n");
+    for (Map.Entry<String, LatencyHistogram> e : handleLatencies.entrySet()) {
+      e.getValue().appendTo(sb, "onionoo_request_duration_seconds",
+          "resource=\"" + e.getKey() + "\",phase=\"handle\"");
+    }
+    for (Map.Entry<String, LatencyHistogram> e : buildLatencies.entrySet()) {
+      e.getValue().appendTo(sb, "onionoo_request_duration_seconds",
+          "resource=\"" + e.getKey() + "\",phase=\"build\"");
+    }
+    if (lastIndexFreshnessLagMillis >= 0L) {
+      sb.append("# HELP onionoo_index_freshness_lag_seconds Time between "
+          + "the updater writing new data and that data being indexed.\n")
+          .append("# TYPE onionoo_index_freshness_lag_seconds gauge\n")
+          .append("onionoo_index_freshness_lag_seconds ")
+          .append(LatencyHistogram.millisToSeconds(
+          lastIndexFreshnessLagMillis)).append('\n');
+    }
+  }
+}
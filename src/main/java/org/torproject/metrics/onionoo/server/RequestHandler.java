@@ -168,34 +168,60 @@ public class RequestHandler {
 
   private Map<String, SummaryDocument> filteredBridges = new HashMap<>();
 
+  private RequestTrace trace = new RequestTrace();
+
+  public void setTrace(RequestTrace trace) {
+    this.trace = trace;
+  }
+
   /** Handles this request by filtering by all given parameters and then
    * possibly ordering, offsetting, and limiting results. */
   public void handleRequest() {
-    this.filteredRelays.putAll(
-        this.nodeIndex.getRelayFingerprintSummaryLines());
-    this.filteredBridges.putAll(
-        this.nodeIndex.getBridgeFingerprintSummaryLines());
-    this.filterByResourceType();
-    this.filterByType();
-    this.filterByRunning();
-    this.filterBySearchTerms();
-    this.filterByLookup();
-    this.filterByFingerprint();
-    this.filterByCountryCode();
-    this.filterByAsNumber();
-    this.filterByAsName();
-    this.filterByFlag();
-    this.filterNodesByFirstSeenDays();
-    this.filterNodesByLastSeenDays();
-    this.filterByContact();
-    this.filterByFamily();
-    this.filterByVersion();
-    this.filterByOperatingSystem();
-    this.filterByHostName();
-    this.filterByRecommendedVersion();
-    this.order();
-    this.offset();
-    this.limit();
+    this.filter("index", () -> {
+      this.filteredRelays.putAll(
+          this.nodeIndex.getRelayFingerprintSummaryLines());
+      this.filteredBridges.putAll(
+          this.nodeIndex.getBridgeFingerprintSummaryLines());
+    });
+    this.filter("resource_type", this::filterByResourceType);
+    this.filter("type", this::filterByType);
+    this.filter("running", this::filterByRunning);
+    this.filter("search", this::filterBySearchTerms);
+    this.filter("lookup", this::filterByLookup);
+    this.filter("fingerprint", this::filterByFingerprint);
+    this.filter("country", this::filterByCountryCode);
+    this.filter("as", this::filterByAsNumber);
+    this.filter("as_name", this::filterByAsName);
+    this.filter("flag", this::filterByFlag);
+    this.filter("first_seen_days", this::filterNodesByFirstSeenDays);
+    this.filter("last_seen_days", this::filterNodesByLastSeenDays);
+    this.filter("contact", this::filterByContact);
+    this.filter("family", this::filterByFamily);
+    this.filter("version", this::filterByVersion);
+    this.filter("os", this::filterByOperatingSystem);
+    this.filter("host_name", this::filterByHostName);
+    this.filter("recommended_version", this::filterByRecommendedVersion);
+    this.arrange("order", this::order);
+    this.arrange("offset", this::offset);
+    this.arrange("limit", this::limit);
+  }
+
+  /* Runs a filter step and adds a span with the number of relays and
+   * bridges still matching after that step to the trace. */
+  private void filter(String name, Runnable step) {
+    long startedNanos = System.nanoTime();
+    step.run();
+    this.trace.addSpan(name, System.nanoTime() - startedNanos,
+        this.filteredRelays.size(), this.filteredBridges.size());
+  }
+
+  /* Runs an order, offset, or limit step and adds a span with the number of
+   * relays and bridges to be returned after that step to the trace. */
+  private void arrange(String name, Runnable step) {
+    long startedNanos = System.nanoTime();
+    step.run();
+    this.trace.addSpan(name, System.nanoTime() - startedNanos,
+        this.orderedRelays.size(), this.orderedBridges.size());
   }
 
   private void filterByResourceType() {
@@ -555,15 +581,17 @@ public class RequestHandler {
       /* Not filtering by relay family. */
       return;
     }
-    Set<String> removeRelays = new HashSet<>(this.filteredRelays.keySet());
-    removeRelays.remove(this.family);
-    if (this.nodeIndex.getRelaysByFamily().containsKey(this.family)) {
-      removeRelays.removeAll(this.nodeIndex.getRelaysByFamily()
-          .get(this.family));
+    Map<String, SummaryDocument> matchingRelays = new HashMap<>();
+    if (this.filteredRelays.containsKey(this.family)) {
+      matchingRelays.put(this.family, this.filteredRelays.get(this.family));
     }
-    for (String fingerprint : removeRelays) {
-      this.filteredRelays.remove(fingerprint);
+    for (String fingerprint
+        : this.nodeIndex.getRelayFamilies().getFamily(this.family)) {
+      if (this.filteredRelays.containsKey(fingerprint)) {
+        matchingRelays.put(fingerprint, this.filteredRelays.get(fingerprint));
+      }
     }
+    this.filteredRelays = matchingRelays;
     this.filteredBridges.clear();
   }
 
@@ -0,0 +1,88 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timing and sizes of the steps taken to handle a single request and build
+ * its response, which is logged for requests taking longer than expected.
+ *
+ * <p>A trace is written by the single thread handling the request.  Steps
+ * are recorded as spans with the time they took and the number of relays
+ * and bridges left after the step, while document reads are only summed
+ * up, because there can be thousands of them per request.</p>
+ */
+class RequestTrace {
+
+  private static class Span {
+
+    private final String name;
+
+    private final long nanos;
+
+    private final int relays;
+
+    private final int bridges;
+
+    private Span(String name, long nanos, int relays, int bridges) {
+      this.name = name;
+      this.nanos = nanos;
+      this.relays = relays;
+      this.bridges = bridges;
+    }
+  }
+
+  private final List<Span> spans = new ArrayList<>();
+
+  private int documentsRead;
+
+  private long bytesRead;
+
+  private long readNanos;
+
+  /** Adds a span for a step that took the given time and left the given
+   * number of relays and bridges. */
+  void addSpan(String name, long nanos, int relays, int bridges) {
+    this.spans.add(new Span(name, nanos, relays, bridges));
+  }
+
+  /** Adds a single document read from the document store that took the
+   * given time and returned a document of the given length. */
+  void addDocumentRead(long nanos, int length) {
+    this.documentsRead++;
+    this.bytesRead += length;
+    this.readNanos += nanos;
+  }
+
+  int getSpanCount() {
+    return this.spans.size();
+  }
+
+  int getDocumentsRead() {
+    return this.documentsRead;
+  }
+
+  long getBytesRead() {
+    return this.bytesRead;
+  }
+
+  /** Returns all spans as a comma-separated list of step names, times in
+   * microseconds, and relays and bridges left after each step, followed by
+   * document reads. */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Span span : this.spans) {
+      sb.append(sb.length() > 0 ? ", " : "").append(span.name).append(' ')
+          .append(span.nanos / 1000L).append(" us (").append(span.relays)
+          .append(" relays, ").append(span.bridges).append(" bridges)");
+    }
+    sb.append("; read ").append(this.documentsRead).append(" documents, ")
+        .append(this.bytesRead).append(" bytes in ")
+        .append(this.readNanos / 1000L).append(" us");
+    return sb.toString();
+  }
+}
@@ -131,7 +131,9 @@ public class ResourceServlet extends HttpServlet {
       return;
     }
 
+    RequestTrace trace = new RequestTrace();
     RequestHandler rh = new RequestHandler(nodeIndex);
+    rh.setTrace(trace);
     rh.setResourceType(resourceType);
 
     /* Extract parameters either from the old-style URI or from request
@@ -383,6 +385,7 @@ public class ResourceServlet extends HttpServlet {
     long parsedRequestMillis = System.currentTimeMillis();
 
     ResponseBuilder rb = new ResponseBuilder();
+    rb.setTrace(trace);
     rb.setResourceType(resourceType);
     rb.setRelaysPublishedString(rh.getRelaysPublishedString());
     rb.setBridgesPublishedString(rh.getBridgesPublishedString());
@@ -422,8 +425,8 @@ public class ResourceServlet extends HttpServlet {
     int charsWritten = rb.getCharsWritten();
     long writtenResponseMillis = System.currentTimeMillis();
     PerformanceMetrics.logStatistics(receivedRequestMillis, resourceType,
-        parameterMap.keySet(), parsedRequestMillis, relayDocumentsWritten,
-        bridgeDocumentsWritten, charsWritten, writtenResponseMillis);
+        parameterMap, parsedRequestMillis, relayDocumentsWritten,
+        bridgeDocumentsWritten, charsWritten, writtenResponseMillis, trace);
   }
 
   private static Pattern searchQueryStringPattern =
@@ -6,6 +6,7 @@ package org.torproject.metrics.onionoo.server;
 import org.torproject.metrics.onionoo.docs.BandwidthDocument;
 import org.torproject.metrics.onionoo.docs.ClientsDocument;
 import org.torproject.metrics.onionoo.docs.DetailsDocument;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.SummaryDocument;
@@ -113,9 +114,35 @@ public class ResponseBuilder {
     this.fields = Arrays.asList(fields);
   }
 
+  private RequestTrace trace = new RequestTrace();
+
+  public void setTrace(RequestTrace trace) {
+    this.trace = trace;
+  }
+
+  /** Builds the response and writes it to the given writer, adding spans
+   * for writing relays and bridges and all document reads to the trace. */
   public void buildResponse(PrintWriter pw) {
+    long startedNanos = System.nanoTime();
     writeRelays(this.orderedRelays, pw);
+    long writtenRelaysNanos = System.nanoTime();
+    this.trace.addSpan("write_relays", writtenRelaysNanos - startedNanos,
+        this.orderedRelays.size(), 0);
     writeBridges(this.orderedBridges, pw);
+    this.trace.addSpan("write_bridges",
+        System.nanoTime() - writtenRelaysNanos, 0,
+        this.orderedBridges.size());
+  }
+
+  private <T extends Document> T retrieve(Class<T> documentType,
+      String fingerprint) {
+    long startedNanos = System.nanoTime();
+    T document = this.documentStore.retrieve(documentType, false,
+        fingerprint);
+    this.trace.addDocumentRead(System.nanoTime() - startedNanos,
+        null == document || null == document.getDocumentString() ? 0
+        : document.getDocumentString().length());
+    return document;
   }
 
   private int charsWritten = 0;
@@ -235,8 +262,8 @@ public class ResponseBuilder {
 
   private String writeDetailsLines(SummaryDocument entry) {
     String fingerprint = entry.getFingerprint();
-    DetailsDocument detailsDocument = documentStore.retrieve(
-        DetailsDocument.class, false, fingerprint);
+    DetailsDocument detailsDocument = this.retrieve(
+        DetailsDocument.class, fingerprint);
     String documentString = "";
     if (null != detailsDocument) {
       documentString = detailsDocument.getDocumentString();
@@ -260,8 +287,8 @@ public class ResponseBuilder {
 
   private String writeBandwidthLines(SummaryDocument entry) {
     String fingerprint = entry.getFingerprint();
-    BandwidthDocument bandwidthDocument = this.documentStore.retrieve(
-        BandwidthDocument.class, false, fingerprint);
+    BandwidthDocument bandwidthDocument = this.retrieve(
+        BandwidthDocument.class, fingerprint);
     if (bandwidthDocument != null
         && bandwidthDocument.getDocumentString() != null) {
       return bandwidthDocument.getDocumentString();
@@ -272,8 +299,8 @@ public class ResponseBuilder {
 
   private String writeWeightsLines(SummaryDocument entry) {
     String fingerprint = entry.getFingerprint();
-    WeightsDocument weightsDocument = this.documentStore.retrieve(
-        WeightsDocument.class, false, fingerprint);
+    WeightsDocument weightsDocument = this.retrieve(
+        WeightsDocument.class, fingerprint);
     if (weightsDocument != null
         && weightsDocument.getDocumentString() != null) {
       return weightsDocument.getDocumentString();
@@ -284,8 +311,8 @@ public class ResponseBuilder {
 
   private String writeClientsLines(SummaryDocument entry) {
     String fingerprint = entry.getFingerprint();
-    ClientsDocument clientsDocument = this.documentStore.retrieve(
-        ClientsDocument.class, false, fingerprint);
+    ClientsDocument clientsDocument = this.retrieve(
+        ClientsDocument.class, fingerprint);
     if (clientsDocument != null
         && clientsDocument.getDocumentString() != null) {
       return clientsDocument.getDocumentString();
@@ -296,8 +323,8 @@ public class ResponseBuilder {
 
   private String writeUptimeLines(SummaryDocument entry) {
     String fingerprint = entry.getFingerprint();
-    UptimeDocument uptimeDocument = this.documentStore.retrieve(
-        UptimeDocument.class, false, fingerprint);
+    UptimeDocument uptimeDocument = this.retrieve(
+        UptimeDocument.class, fingerprint);
     if (uptimeDocument != null
         && uptimeDocument.getDocumentString() != null) {
       return uptimeDocument.getDocumentString();
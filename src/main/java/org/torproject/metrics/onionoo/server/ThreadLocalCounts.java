@@ -0,0 +1,103 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed number of counts that are incremented by many threads and read
+ * rarely.
+ *
+ * <p>Every thread increments its own copy of the counts, so that recording
+ * never blocks and never contends with other threads, and copies are only
+ * summed up when counts are read.  Copies of threads that have terminated
+ * are folded into a shared copy on read, so that short-lived threads do not
+ * leave behind an ever-growing number of copies.</p>
+ */
+class ThreadLocalCounts {
+
+  private final int length;
+
+  private final Queue<ThreadCounts> threadCounts =
+      new ConcurrentLinkedQueue<>();
+
+  private final AtomicLongArray terminatedThreadCounts;
+
+  private final ThreadLocal<ThreadCounts> localCounts =
+      ThreadLocal.withInitial(this::registerThread);
+
+  ThreadLocalCounts(int length) {
+    this.length = length;
+    this.terminatedThreadCounts = new AtomicLongArray(length);
+  }
+
+  /* Counts of a single thread, which are only ever written by that thread
+   * and can therefore be incremented without compare-and-set. */
+  private static class ThreadCounts {
+
+    private final Thread thread = Thread.currentThread();
+
+    private final AtomicLongArray counts;
+
+    private ThreadCounts(int length) {
+      this.counts = new AtomicLongArray(length);
+    }
+  }
+
+  private ThreadCounts registerThread() {
+    ThreadCounts counts = new ThreadCounts(this.length);
+    this.threadCounts.add(counts);
+    return counts;
+  }
+
+  int length() {
+    return this.length;
+  }
+
+  void increment(int index) {
+    this.add(index, 1L);
+  }
+
+  void add(int index, long delta) {
+    AtomicLongArray counts = this.localCounts.get().counts;
+    counts.lazySet(index, counts.get(index) + delta);
+  }
+
+  /** Returns the sum of counts over all threads, which may or may not
+   * include counts being added concurrently. */
+  long[] sum() {
+    long[] sum = new long[this.length];
+    for (ThreadCounts counts : this.threadCounts) {
+      if (!counts.thread.isAlive()
+          && this.threadCounts.remove(counts)) {
+        for (int i = 0; i < this.length; i++) {
+          this.terminatedThreadCounts.addAndGet(i, counts.counts.get(i));
+        }
+      } else {
+        for (int i = 0; i < this.length; i++) {
+          sum[i] += counts.counts.get(i);
+        }
+      }
+    }
+    for (int i = 0; i < this.length; i++) {
+      sum[i] += this.terminatedThreadCounts.get(i);
+    }
+    return sum;
+  }
+
+  /** Resets all counts to zero, possibly losing counts being added
+   * concurrently. */
+  void clear() {
+    for (ThreadCounts counts : this.threadCounts) {
+      for (int i = 0; i < this.length; i++) {
+        counts.counts.set(i, 0L);
+      }
+    }
+    for (int i = 0; i < this.length; i++) {
+      this.terminatedThreadCounts.set(i, 0L);
+    }
+  }
+}
@@ -0,0 +1,521 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import org.torproject.descriptor.Descriptor;
+import org.torproject.descriptor.DescriptorParser;
+import org.torproject.descriptor.DescriptorSourceFactory;
+import org.torproject.descriptor.UnparseableDescriptor;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reader for archived descriptors in tarballs and plain descriptor files
+ * that decompresses and parses multiple tarballs concurrently and that
+ * can resume reading a tarball that could not be read completely.
+ *
+ * <p>Tarballs are processed in the lexicographical order of their paths.
+ * A pool of threads decompresses and parses tarballs ahead of the tarball
+ * whose descriptors are currently returned, and each of these threads
+ * blocks as soon as it has parsed a bounded number of tarball entries
+ * that have not been returned yet.</p>
+ *
+ * <p>Progress is recorded in two files: the parse history contains
+ * completely read tarballs, which are skipped in later executions unless
+ * their last-modified time changes, and the checkpoints file contains the
+ * number of entries of a tarball whose descriptors have all been returned
+ * before reading that tarball failed, for example, because it was
+ * truncated.  Progress is only kept in memory while reading and written
+ * to both files by {@link #writeHistoryFiles()}, which must not be called
+ * before all descriptors returned so far have been processed and the
+ * resulting statuses have been persisted, or else a later execution would
+ * skip descriptors that never made it into any status.  A later execution
+ * skips entries contained in a checkpoint without parsing them, unless
+ * the tarball's last-modified time changes.</p>
+ *
+ * <p>As the caller only writes history files after all descriptors have
+ * been read, an execution that crashes or is stopped writes neither file,
+ * and the next execution reads all tarballs of the crashed execution
+ * again from their beginning.</p>
+ */
+class ArchiveDescriptorReader {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ArchiveDescriptorReader.class);
+
+  /** Parser for the contents of a single tarball entry or plain file. */
+  interface EntryParser {
+
+    /** Parses the given raw descriptor bytes contained in the given
+     * tarball or plain file under the given entry name, and returns the
+     * parsed descriptors. */
+    List<Descriptor> parseEntry(byte[] rawDescriptorBytes, File file,
+        String entryName);
+  }
+
+  private final int readerThreads;
+
+  private final int maxEntriesInQueue;
+
+  private final EntryParser entryParser;
+
+  private File historyFile;
+
+  private File checkpointsFile;
+
+  /* Completely read files and their last-modified times. */
+  private final Map<String, Long> history = new HashMap<>();
+
+  /* Partially read files, their last-modified times, and the number of
+   * entries whose descriptors have all been returned. */
+  private final Map<String, Checkpoint> checkpoints = new HashMap<>();
+
+  private static class Checkpoint {
+
+    private final long lastModified;
+
+    private long completedEntries;
+
+    private Checkpoint(long lastModified, long completedEntries) {
+      this.lastModified = lastModified;
+      this.completedEntries = completedEntries;
+    }
+  }
+
+  private DescriptorIterator descriptorIterator;
+
+  private int historySizeBefore;
+
+  int getHistorySizeBefore() {
+    return this.historySizeBefore;
+  }
+
+  private int resumedFiles;
+
+  int getResumedFiles() {
+    return this.resumedFiles;
+  }
+
+  private int completedFiles;
+
+  int getCompletedFiles() {
+    return this.completedFiles;
+  }
+
+  private long returnedDescriptors = 0L;
+
+  long getReturnedDescriptors() {
+    return this.returnedDescriptors;
+  }
+
+  private long returnedBytes = 0L;
+
+  long getReturnedBytes() {
+    return this.returnedBytes;
+  }
+
+  /* Parsers are created once per reader thread, because they are not
+   * guaranteed to be thread-safe. */
+  private static final ThreadLocal<DescriptorParser> descriptorParsers =
+      ThreadLocal.withInitial(DescriptorSourceFactory::createDescriptorParser);
+
+  /** Creates a reader using the given number of threads, each of which
+   * parses at most the given number of tarball entries ahead. */
+  ArchiveDescriptorReader(int readerThreads, int maxEntriesInQueue) {
+    this(readerThreads, maxEntriesInQueue,
+        ArchiveDescriptorReader::parseEntry);
+  }
+
+  /* Creates a reader with a custom entry parser, which facilitates
+   * testing. */
+  ArchiveDescriptorReader(int readerThreads, int maxEntriesInQueue,
+      EntryParser entryParser) {
+    this.readerThreads = Math.max(1, readerThreads);
+    this.maxEntriesInQueue = Math.max(1, maxEntriesInQueue);
+    this.entryParser = entryParser;
+  }
+
+  private static List<Descriptor> parseEntry(byte[] rawDescriptorBytes,
+      File file, String entryName) {
+    List<Descriptor> descriptors = new ArrayList<>();
+    for (Descriptor descriptor : descriptorParsers.get().parseDescriptors(
+        rawDescriptorBytes, file, entryName)) {
+      descriptors.add(descriptor);
+    }
+    return descriptors;
+  }
+
+  /** Reads the parse history and checkpoints from the given files, if
+   * they exist, and writes progress to the same files when requested
+   * later on. */
+  void readHistoryFiles(File historyFile, File checkpointsFile) {
+    this.historyFile = historyFile;
+    this.checkpointsFile = checkpointsFile;
+    if (historyFile.isFile()) {
+      try {
+        this.history.putAll(ParseHistory.read(historyFile));
+      } catch (IOException e) {
+        logger.error("Could not read history file '{}'. Not excluding "
+            + "descriptors in this execution.",
+            historyFile.getAbsolutePath(), e);
+      }
+    }
+    this.historySizeBefore = this.history.size();
+    if (checkpointsFile.isFile()) {
+      try (BufferedReader br = Files.newBufferedReader(
+          checkpointsFile.toPath(), StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = br.readLine()) != null) {
+          String[] parts = line.split(" ", 3);
+          try {
+            this.checkpoints.put(parts[2], new Checkpoint(
+                Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+          } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            logger.warn("Illegal line '{}' in checkpoints file {}. "
+                + "Skipping line.", line, checkpointsFile);
+          }
+        }
+      } catch (IOException e) {
+        logger.error("Could not read checkpoints file '{}'. Not resuming "
+            + "partially read tarballs.", checkpointsFile.getAbsolutePath(),
+            e);
+      }
+    }
+  }
+
+  /** Writes the parse history and checkpoints to disk, if they have been
+   * read before, which must only happen after statuses derived from all
+   * descriptors returned so far have been persisted. */
+  void writeHistoryFiles() {
+    if (null == this.historyFile) {
+      return;
+    }
+    this.history.keySet().removeIf(
+        absolutePath -> !new File(absolutePath).exists());
+    this.checkpoints.keySet().removeIf(
+        absolutePath -> !new File(absolutePath).exists());
+    this.historyFile.getParentFile().mkdirs();
+    try {
+      ParseHistory.write(this.historyFile, this.history);
+    } catch (IOException e) {
+      logger.error("Could not write history file '{}'. Not excluding "
+          + "descriptors in next execution.",
+          this.historyFile.getAbsolutePath(), e);
+    }
+    File tempFile = new File(this.checkpointsFile.getParentFile(),
+        this.checkpointsFile.getName() + ".tmp");
+    try {
+      try (BufferedWriter bw = Files.newBufferedWriter(tempFile.toPath(),
+          StandardCharsets.UTF_8)) {
+        for (Map.Entry<String, Checkpoint> e : this.checkpoints.entrySet()) {
+          if (e.getValue().completedEntries == 0L) {
+            continue;
+          }
+          bw.write(String.format("%d %d %s%n", e.getValue().lastModified,
+              e.getValue().completedEntries, e.getKey()));
+        }
+      }
+      Files.move(tempFile.toPath(), this.checkpointsFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      logger.error("Could not write checkpoints file '{}'. Not resuming "
+          + "partially read tarballs in next execution.",
+          this.checkpointsFile.getAbsolutePath(), e);
+    }
+  }
+
+  /** Returns an iterator over all descriptors in tarballs and plain files
+   * in the given directory and its subdirectories that have not been read
+   * completely before, which starts reading files right away. */
+  Iterator<Descriptor> readDescriptors(File directory) {
+    List<File> files = new ArrayList<>();
+    this.listFiles(directory, files);
+    files.sort(null);
+    this.descriptorIterator = new DescriptorIterator(files);
+    return this.descriptorIterator;
+  }
+
+  private void listFiles(File directory, List<File> files) {
+    File[] children = directory.listFiles();
+    if (null == children) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        this.listFiles(child, files);
+      } else if (!child.getName().startsWith(".")) {
+        Long lastModified = this.history.get(child.getAbsolutePath());
+        if (null == lastModified || lastModified != child.lastModified()) {
+          files.add(child);
+        }
+      }
+    }
+  }
+
+  /** Stops all reader threads, for example, after an error while
+   * processing descriptors. */
+  void close() {
+    if (null != this.descriptorIterator) {
+      this.descriptorIterator.executorService.shutdownNow();
+    }
+  }
+
+  /* Parsed descriptors of a single tarball entry or plain file. */
+  private static class ParsedEntry {
+
+    private final List<Descriptor> descriptors;
+
+    private final boolean last;
+
+    private final boolean failed;
+
+    private ParsedEntry(List<Descriptor> descriptors, boolean last,
+        boolean failed) {
+      this.descriptors = descriptors;
+      this.last = last;
+      this.failed = failed;
+    }
+  }
+
+  /* Task for reading a single file, which puts parsed entries into a
+   * bounded queue, followed by a last entry. */
+  private class ArchivedFileReader implements Runnable {
+
+    private final File file;
+
+    private final long lastModified;
+
+    private final long skipEntries;
+
+    private final BlockingQueue<ParsedEntry> parsedEntries =
+        new ArrayBlockingQueue<>(maxEntriesInQueue);
+
+    private ArchivedFileReader(File file, long lastModified, long skipEntries) {
+      this.file = file;
+      this.lastModified = lastModified;
+      this.skipEntries = skipEntries;
+    }
+
+    @Override
+    public void run() {
+      boolean failed = false;
+      try {
+        if (isTarball(this.file.getName())) {
+          this.readTarball();
+        } else if (this.skipEntries == 0L) {
+          this.parse(Files.readAllBytes(this.file.toPath()),
+              this.file.getName());
+        }
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Unable to read archived descriptor file {}. Not "
+            + "recording it as read.", this.file, e);
+        failed = true;
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        this.parsedEntries.put(new ParsedEntry(Collections.emptyList(), true,
+            failed));
+      } catch (InterruptedException e) {
+        /* Reading has been stopped. */
+      }
+    }
+
+    private void readTarball() throws IOException, InterruptedException {
+      try (TarArchiveInputStream tais = new TarArchiveInputStream(
+          decompress(this.file))) {
+        long entries = 0L;
+        TarArchiveEntry entry;
+        while ((entry = tais.getNextTarEntry()) != null) {
+          if (!entry.isFile()) {
+            continue;
+          }
+          if (entries++ < this.skipEntries) {
+            continue;
+          }
+          byte[] rawDescriptorBytes = IOUtils.toByteArray(tais);
+          String entryName = entry.getName();
+          this.parse(rawDescriptorBytes,
+              entryName.substring(entryName.lastIndexOf('/') + 1));
+        }
+      }
+    }
+
+    private void parse(byte[] rawDescriptorBytes, String entryName)
+        throws InterruptedException {
+      List<Descriptor> descriptors;
+      try {
+        descriptors = entryParser.parseEntry(rawDescriptorBytes, this.file,
+            entryName);
+        descriptors.removeIf(
+            descriptor -> descriptor instanceof UnparseableDescriptor);
+      } catch (RuntimeException e) {
+        logger.warn("Unable to parse entry {} in archived descriptor file "
+            + "{}. Skipping.", entryName, this.file, e);
+        descriptors = Collections.emptyList();
+      }
+      this.parsedEntries.put(new ParsedEntry(descriptors, false, false));
+    }
+  }
+
+  private static boolean isTarball(String fileName) {
+    return fileName.endsWith(".tar") || fileName.endsWith(".tar.xz")
+        || fileName.endsWith(".tar.bz2") || fileName.endsWith(".tar.gz");
+  }
+
+  private static InputStream decompress(File tarball) throws IOException {
+    InputStream is = new BufferedInputStream(new FileInputStream(tarball));
+    String fileName = tarball.getName();
+    if (fileName.endsWith(".xz")) {
+      return new XZCompressorInputStream(is);
+    } else if (fileName.endsWith(".bz2")) {
+      return new BZip2CompressorInputStream(is);
+    } else if (fileName.endsWith(".gz")) {
+      return new GzipCompressorInputStream(is);
+    } else {
+      return is;
+    }
+  }
+
+  private class DescriptorIterator implements Iterator<Descriptor> {
+
+    private final Iterator<File> files;
+
+    private final ExecutorService executorService;
+
+    private final Deque<ArchivedFileReader> fileReaders = new ArrayDeque<>();
+
+    private Iterator<Descriptor> currentDescriptors =
+        Collections.emptyIterator();
+
+    /* Whether descriptors of the current entry have been returned, so that
+     * the entry can be counted as completed once they have all been
+     * processed. */
+    private boolean currentEntryStarted = false;
+
+    private DescriptorIterator(List<File> files) {
+      this.files = files.iterator();
+      this.executorService = Executors.newFixedThreadPool(
+          Math.min(readerThreads, Math.max(1, files.size())), runnable -> {
+            Thread thread = new Thread(runnable, "archive-reader");
+            thread.setDaemon(true);
+            return thread;
+          });
+      this.submitFiles();
+    }
+
+    /* Submits files for reading until each thread has a file to read. */
+    private void submitFiles() {
+      while (this.fileReaders.size() < readerThreads
+          && this.files.hasNext()) {
+        File file = this.files.next();
+        String absolutePath = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long skipEntries = 0L;
+        Checkpoint checkpoint = checkpoints.get(absolutePath);
+        if (null != checkpoint && checkpoint.lastModified == lastModified
+            && checkpoint.completedEntries > 0L) {
+          skipEntries = checkpoint.completedEntries;
+          resumedFiles++;
+          logger.info("Resuming {} after {} entries read before.",
+              absolutePath, skipEntries);
+        } else {
+          checkpoints.put(absolutePath, new Checkpoint(lastModified, 0L));
+        }
+        ArchivedFileReader fileReader = new ArchivedFileReader(file,
+            lastModified, skipEntries);
+        this.fileReaders.add(fileReader);
+        this.executorService.submit(fileReader);
+      }
+      if (this.fileReaders.isEmpty()) {
+        this.executorService.shutdown();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!this.currentDescriptors.hasNext()
+          && !this.fileReaders.isEmpty()) {
+        ArchivedFileReader fileReader = this.fileReaders.getFirst();
+        if (this.currentEntryStarted) {
+          this.completeEntry(fileReader);
+        }
+        ParsedEntry parsedEntry;
+        try {
+          parsedEntry = fileReader.parsedEntries.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          this.executorService.shutdownNow();
+          this.fileReaders.clear();
+          break;
+        }
+        if (parsedEntry.last) {
+          this.fileReaders.removeFirst();
+          if (!parsedEntry.failed) {
+            this.completeFile(fileReader);
+          }
+          this.submitFiles();
+        } else {
+          this.currentDescriptors = parsedEntry.descriptors.iterator();
+          this.currentEntryStarted = true;
+        }
+      }
+      return this.currentDescriptors.hasNext();
+    }
+
+    private void completeEntry(ArchivedFileReader fileReader) {
+      this.currentEntryStarted = false;
+      checkpoints.get(fileReader.file.getAbsolutePath()).completedEntries++;
+    }
+
+    private void completeFile(ArchivedFileReader fileReader) {
+      String absolutePath = fileReader.file.getAbsolutePath();
+      checkpoints.remove(absolutePath);
+      history.put(absolutePath, fileReader.lastModified);
+      completedFiles++;
+    }
+
+    @Override
+    public Descriptor next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Descriptor descriptor = this.currentDescriptors.next();
+      returnedDescriptors++;
+      returnedBytes += descriptor.getRawDescriptorLength();
+      return descriptor;
+    }
+  }
+}
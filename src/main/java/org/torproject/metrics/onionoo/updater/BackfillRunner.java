@@ -0,0 +1,450 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import org.torproject.metrics.onionoo.docs.BandwidthStatus;
+import org.torproject.metrics.onionoo.docs.ClientsStatus;
+import org.torproject.metrics.onionoo.docs.DetailsStatus;
+import org.torproject.metrics.onionoo.docs.Document;
+import org.torproject.metrics.onionoo.docs.DocumentStore;
+import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
+import org.torproject.metrics.onionoo.docs.NodeStatus;
+import org.torproject.metrics.onionoo.docs.UptimeStatus;
+import org.torproject.metrics.onionoo.docs.WeightsStatus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Rebuilds status files from archived descriptors in a given range of
+ * months by splitting that range into shards of consecutive months,
+ * processing shards in parallel in separate processes, and merging the
+ * resulting status trees into the status/ directory.
+ *
+ * <p>Each shard is processed in its own working directory below
+ * backfill/, which contains links to the shard's tarballs in in/archive/
+ * and its own status/ directory, by running the given shard command in
+ * that directory.  Shards that have been processed completely are not
+ * processed again if a backfill is interrupted and started again.</p>
+ *
+ * <p>Shard status trees are merged in chronological order using the
+ * merge semantics of each status type: node statuses keep the earliest
+ * first-seen time and otherwise the contents of the most recently seen
+ * status, details statuses are taken from the shard with the most recent
+ * node status, and bandwidth, weights, clients, and uptime statuses
+ * combine their histories.</p>
+ */
+public class BackfillRunner {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      BackfillRunner.class);
+
+  private static final Pattern MONTH_PATTERN = Pattern.compile(
+      "\\d{4}-\\d{2}");
+
+  private final File inArchiveDir = new File(new File("in"), "archive");
+
+  private final File statusDir = new File("status");
+
+  private final File geoipDir = new File("geoip");
+
+  private final File backfillDir = new File("backfill");
+
+  private final String fromMonth;
+
+  private final String toMonth;
+
+  private final List<String> shardCommand;
+
+  private final int shards = getParallelShards();
+
+  /** Returns the number of shards processed in parallel, which can be
+   * configured using system property onionoo.backfill.shards and which
+   * defaults to half the number of available processors. */
+  public static int getParallelShards() {
+    return Math.max(1, Integer.getInteger("onionoo.backfill.shards",
+        Runtime.getRuntime().availableProcessors() / 2));
+  }
+
+  /* Prefixes of JVM arguments that configure the heap size, which are not
+   * passed on to shard processes, because each of them would otherwise be
+   * allowed to use as much memory as all of them together. */
+  private static final String[] HEAP_ARGUMENT_PREFIXES = new String[] {
+      "-Xmx", "-Xms", "-Xmn", "-XX:MaxHeapSize=", "-XX:InitialHeapSize=",
+      "-XX:MinHeapSize=", "-XX:MaxRAM=", "-XX:MaxRAMPercentage=",
+      "-XX:InitialRAMPercentage=", "-XX:MinRAMPercentage=" };
+
+  /** Returns the given JVM arguments of this process for running a shard
+   * process, with arguments configuring the heap size replaced by a
+   * maximum heap size per shard process, which is either configured using
+   * system property onionoo.backfill.heap, for example "2g", or the
+   * maximum heap size of this process divided by the number of shards
+   * processed in parallel. */
+  public static List<String> createShardJvmArguments(
+      List<String> jvmArguments) {
+    return createShardJvmArguments(jvmArguments,
+        System.getProperty("onionoo.backfill.heap"),
+        Runtime.getRuntime().maxMemory(), getParallelShards());
+  }
+
+  static List<String> createShardJvmArguments(List<String> jvmArguments,
+      String shardHeap, long maxHeapBytes, int shards) {
+    List<String> shardJvmArguments = new ArrayList<>();
+    for (String argument : jvmArguments) {
+      boolean heapArgument = false;
+      for (String prefix : HEAP_ARGUMENT_PREFIXES) {
+        if (argument.startsWith(prefix)) {
+          heapArgument = true;
+          break;
+        }
+      }
+      if (!heapArgument) {
+        shardJvmArguments.add(argument);
+      }
+    }
+    if (null != shardHeap && !shardHeap.isEmpty()) {
+      shardJvmArguments.add("-Xmx" + shardHeap);
+    } else if (maxHeapBytes < Long.MAX_VALUE) {
+      long shardHeapMegabytes = Math.max(1L,
+          maxHeapBytes / Math.max(1, shards) / (1024L * 1024L));
+      shardJvmArguments.add("-Xmx" + shardHeapMegabytes + "m");
+    }
+    return shardJvmArguments;
+  }
+
+  /** Instantiates a new backfill runner for archived descriptors from the
+   * given first to the given last month, both formatted as yyyy-MM, which
+   * processes shards by running the given command in the shard working
+   * directory. */
+  public BackfillRunner(String fromMonth, String toMonth,
+      List<String> shardCommand) {
+    this.fromMonth = fromMonth;
+    this.toMonth = toMonth;
+    this.shardCommand = shardCommand;
+  }
+
+  /* Tarballs of consecutive months processed together. */
+  static class Shard {
+
+    final String firstMonth;
+
+    final String lastMonth;
+
+    final List<File> tarballs;
+
+    Shard(String firstMonth, String lastMonth, List<File> tarballs) {
+      this.firstMonth = firstMonth;
+      this.lastMonth = lastMonth;
+      this.tarballs = tarballs;
+    }
+
+    String getName() {
+      return this.firstMonth + "--" + this.lastMonth;
+    }
+  }
+
+  /** Processes all shards, merges their status trees into the status/
+   * directory, and returns whether the backfill was successful. */
+  public boolean runBackfill() {
+    List<File> tarballs = new ArrayList<>();
+    listFiles(this.inArchiveDir, tarballs);
+    List<Shard> plannedShards = planShards(tarballs, this.fromMonth,
+        this.toMonth, this.shards);
+    if (plannedShards.isEmpty()) {
+      logger.warn("No archived descriptors found in {} from {} to {}. "
+          + "Nothing to backfill.", this.inArchiveDir.getAbsolutePath(),
+          this.fromMonth, this.toMonth);
+      return false;
+    }
+    logger.info("Backfilling archived descriptors from {} to {} in {} "
+        + "shards.", this.fromMonth, this.toMonth, plannedShards.size());
+    ExecutorService executorService = Executors.newFixedThreadPool(
+        plannedShards.size());
+    List<Future<Boolean>> processedShards = new ArrayList<>();
+    for (Shard shard : plannedShards) {
+      processedShards.add(executorService.submit(
+          () -> this.processShard(shard)));
+    }
+    executorService.shutdown();
+    boolean allShardsProcessed = true;
+    for (int i = 0; i < plannedShards.size(); i++) {
+      try {
+        allShardsProcessed &= processedShards.get(i).get();
+      } catch (InterruptedException | ExecutionException e) {
+        logger.error("Unable to process shard {}.",
+            plannedShards.get(i).getName(), e);
+        allShardsProcessed = false;
+      }
+    }
+    if (!allShardsProcessed) {
+      logger.error("Not all shards were processed successfully. Not "
+          + "merging status trees. Run the backfill again to process the "
+          + "remaining shards.");
+      return false;
+    }
+    DocumentStore documentStore = DocumentStoreFactory.getDocumentStore();
+    for (Shard shard : plannedShards) {
+      File shardDir = new File(this.backfillDir, shard.getName());
+      logger.info("Merging status tree of shard {}.", shard.getName());
+      mergeStatusTree(new File(shardDir, "status"), documentStore);
+      this.mergeArchivedHistory(shardDir);
+    }
+    documentStore.flushDocumentCache();
+    logger.info("Merged status trees of {} shards.", plannedShards.size());
+    deleteRecursively(this.backfillDir);
+    return true;
+  }
+
+  private static void listFiles(File directory, List<File> files) {
+    File[] children = directory.listFiles();
+    if (null == children) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        listFiles(child, files);
+      } else if (!child.getName().startsWith(".")) {
+        files.add(child);
+      }
+    }
+  }
+
+  /** Splits the given tarballs with months between the given first and
+   * last month in their file names into at most the given number of
+   * shards of consecutive months with roughly the same number of
+   * months. */
+  static List<Shard> planShards(List<File> tarballs, String fromMonth,
+      String toMonth, int maxShards) {
+    SortedMap<String, List<File>> tarballsByMonth = new TreeMap<>();
+    for (File tarball : tarballs) {
+      Matcher matcher = MONTH_PATTERN.matcher(tarball.getName());
+      if (!matcher.find()) {
+        logger.warn("Unable to determine month of archived descriptor "
+            + "file {}. Skipping.", tarball);
+        continue;
+      }
+      String month = matcher.group();
+      if (month.compareTo(fromMonth) >= 0 && month.compareTo(toMonth) <= 0) {
+        tarballsByMonth.computeIfAbsent(month, m -> new ArrayList<>())
+            .add(tarball);
+      }
+    }
+    List<String> months = new ArrayList<>(tarballsByMonth.keySet());
+    int shards = Math.min(Math.max(1, maxShards), months.size());
+    List<Shard> plannedShards = new ArrayList<>();
+    for (int i = 0; i < shards; i++) {
+      List<String> shardMonths = months.subList(i * months.size() / shards,
+          (i + 1) * months.size() / shards);
+      List<File> shardTarballs = new ArrayList<>();
+      for (String month : shardMonths) {
+        shardTarballs.addAll(tarballsByMonth.get(month));
+      }
+      shardTarballs.sort(null);
+      plannedShards.add(new Shard(shardMonths.get(0),
+          shardMonths.get(shardMonths.size() - 1), shardTarballs));
+    }
+    return plannedShards;
+  }
+
+  /* Prepares the working directory of the given shard and runs the shard
+   * command in it, unless the shard has been processed completely
+   * before, and returns whether the shard was processed successfully. */
+  private boolean processShard(Shard shard) throws IOException,
+      InterruptedException {
+    File shardDir = new File(this.backfillDir, shard.getName());
+    File completedFile = new File(shardDir, "completed");
+    if (completedFile.exists()) {
+      logger.info("Shard {} was processed before. Skipping.",
+          shard.getName());
+      return true;
+    }
+    Path shardArchivePath = new File(new File(shardDir, "in"), "archive")
+        .toPath();
+    Path archivePath = this.inArchiveDir.getAbsoluteFile().toPath();
+    for (File tarball : shard.tarballs) {
+      Path tarballPath = tarball.getAbsoluteFile().toPath();
+      Path link = shardArchivePath.resolve(
+          archivePath.relativize(tarballPath));
+      if (!Files.exists(link, LinkOption.NOFOLLOW_LINKS)) {
+        Files.createDirectories(link.getParent());
+        Files.createSymbolicLink(link, tarballPath);
+      }
+    }
+    Path geoipLink = new File(shardDir, "geoip").toPath();
+    if (this.geoipDir.exists()
+        && !Files.exists(geoipLink, LinkOption.NOFOLLOW_LINKS)) {
+      Files.createSymbolicLink(geoipLink,
+          this.geoipDir.getAbsoluteFile().toPath());
+    }
+    logger.info("Processing shard {} with {} tarballs.", shard.getName(),
+        shard.tarballs.size());
+    Process process = new ProcessBuilder(this.shardCommand)
+        .directory(shardDir).redirectErrorStream(true)
+        .redirectOutput(new File(shardDir, "backfill.log")).start();
+    int exitValue = process.waitFor();
+    if (0 != exitValue) {
+      logger.error("Processing shard {} failed with exit value {}. See {} "
+          + "for details.", shard.getName(), exitValue,
+          new File(shardDir, "backfill.log").getAbsolutePath());
+      return false;
+    }
+    Files.createFile(completedFile.toPath());
+    logger.info("Processed shard {}.", shard.getName());
+    return true;
+  }
+
+  /** Merges all status files in the given shard status directory into the
+   * given document store. */
+  static void mergeStatusTree(File shardStatusDir,
+      DocumentStore documentStore) {
+    DocumentStore shardDocumentStore = new DocumentStore();
+    shardDocumentStore.setStatusDir(shardStatusDir);
+    for (String fingerprint : shardDocumentStore.list(NodeStatus.class)) {
+      NodeStatus shardNodeStatus = shardDocumentStore.retrieve(
+          NodeStatus.class, true, fingerprint);
+      NodeStatus nodeStatus = documentStore.retrieve(NodeStatus.class, true,
+          fingerprint);
+      if (null == nodeStatus) {
+        documentStore.store(shardNodeStatus, fingerprint);
+        mergeDetailsStatus(shardDocumentStore, documentStore, fingerprint);
+      } else if (shardNodeStatus.getLastSeenMillis()
+          >= nodeStatus.getLastSeenMillis()) {
+        mergeNodeStatuses(shardNodeStatus, nodeStatus);
+        documentStore.store(shardNodeStatus, fingerprint);
+        mergeDetailsStatus(shardDocumentStore, documentStore, fingerprint);
+      } else {
+        mergeNodeStatuses(nodeStatus, shardNodeStatus);
+        documentStore.store(nodeStatus, fingerprint);
+      }
+    }
+    mergeStatuses(shardDocumentStore, documentStore, BandwidthStatus.class,
+        BandwidthStatus::addToHistory);
+    mergeStatuses(shardDocumentStore, documentStore, WeightsStatus.class,
+        WeightsStatus::addToHistory);
+    mergeStatuses(shardDocumentStore, documentStore, ClientsStatus.class,
+        (status, shardStatus) -> status.addToHistory(
+        shardStatus.getHistory()));
+    mergeStatuses(shardDocumentStore, documentStore, UptimeStatus.class,
+        UptimeStatus::addToHistory);
+    UptimeStatus shardNetworkUptimeStatus = shardDocumentStore.retrieve(
+        UptimeStatus.class, true);
+    if (null != shardNetworkUptimeStatus) {
+      UptimeStatus networkUptimeStatus = documentStore.retrieve(
+          UptimeStatus.class, true);
+      if (null == networkUptimeStatus) {
+        documentStore.store(shardNetworkUptimeStatus);
+      } else {
+        networkUptimeStatus.addToHistory(shardNetworkUptimeStatus);
+        documentStore.store(networkUptimeStatus);
+      }
+    }
+  }
+
+  /* Merges the older node status into the more recently seen node status,
+   * keeping the earliest first-seen time, all last seen addresses, and
+   * the most recent reverse domain name lookup time. */
+  private static void mergeNodeStatuses(NodeStatus newer, NodeStatus older) {
+    newer.setFirstSeenMillis(Math.min(newer.getFirstSeenMillis(),
+        older.getFirstSeenMillis()));
+    newer.addLastAddresses(older.getLastAddresses());
+    newer.setLastRdnsLookup(Math.max(newer.getLastRdnsLookup(),
+        older.getLastRdnsLookup()));
+  }
+
+  private static void mergeDetailsStatus(DocumentStore shardDocumentStore,
+      DocumentStore documentStore, String fingerprint) {
+    DetailsStatus detailsStatus = shardDocumentStore.retrieve(
+        DetailsStatus.class, true, fingerprint);
+    if (null != detailsStatus) {
+      documentStore.store(detailsStatus, fingerprint);
+    }
+  }
+
+  private static <T extends Document> void mergeStatuses(
+      DocumentStore shardDocumentStore, DocumentStore documentStore,
+      Class<T> documentType, BiConsumer<T, T> merge) {
+    for (String fingerprint : shardDocumentStore.list(documentType)) {
+      T shardStatus = shardDocumentStore.retrieve(documentType, true,
+          fingerprint);
+      if (null == shardStatus) {
+        continue;
+      }
+      T status = documentStore.retrieve(documentType, true, fingerprint);
+      if (null == status) {
+        documentStore.store(shardStatus, fingerprint);
+      } else {
+        merge.accept(status, shardStatus);
+        documentStore.store(status, fingerprint);
+      }
+    }
+  }
+
+  /* Adds tarballs read completely in the given shard to the parse history
+   * of archived descriptors, so that they are not read again. */
+  private void mergeArchivedHistory(File shardDir) {
+    File shardHistoryFile = new File(new File(shardDir, "status"),
+        DescriptorHistory.ARCHIVED_HISTORY.getFileName());
+    File historyFile = new File(this.statusDir,
+        DescriptorHistory.ARCHIVED_HISTORY.getFileName());
+    Path shardArchivePath = new File(new File(shardDir, "in"), "archive")
+        .getAbsoluteFile().toPath();
+    Path archivePath = this.inArchiveDir.getAbsoluteFile().toPath();
+    try {
+      Map<String, Long> history = historyFile.exists()
+          ? ParseHistory.read(historyFile) : new HashMap<>();
+      if (shardHistoryFile.exists()) {
+        for (Map.Entry<String, Long> e
+            : ParseHistory.read(shardHistoryFile).entrySet()) {
+          Path link = new File(e.getKey()).toPath();
+          if (link.startsWith(shardArchivePath)) {
+            history.put(archivePath.resolve(shardArchivePath.relativize(link))
+                .toString(), e.getValue());
+          }
+        }
+      }
+      historyFile.getParentFile().mkdirs();
+      ParseHistory.write(historyFile, history);
+    } catch (IOException e) {
+      logger.error("Could not merge history file '{}' into '{}'. Archived "
+          + "descriptors will be read again in the next execution.",
+          shardHistoryFile.getAbsolutePath(), historyFile.getAbsolutePath(),
+          e);
+    }
+  }
+
+  private static void deleteRecursively(File directory) {
+    try (Stream<Path> paths = Files.walk(directory.toPath())) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+        try {
+          Files.delete(path);
+        } catch (IOException e) {
+          logger.warn("Unable to delete {}.", path, e);
+        }
+      });
+    } catch (IOException e) {
+      logger.warn("Unable to delete {}.", directory.getAbsolutePath(), e);
+    }
+  }
+}
@@ -3,12 +3,27 @@
 
 package org.torproject.metrics.onionoo.updater;
 
+import org.torproject.descriptor.BandwidthHistory;
 import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.ExtraInfoDescriptor;
 import org.torproject.metrics.onionoo.docs.BandwidthStatus;
+import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.NodeStatus;
+import org.torproject.metrics.onionoo.util.FormattingUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.stream.IntStream;
 
 public class BandwidthStatusUpdater implements DescriptorListener,
     StatusUpdater {
@@ -38,41 +53,186 @@ public class BandwidthStatusUpdater implements DescriptorListener,
     if (descriptor instanceof ExtraInfoDescriptor) {
       this.parseDescriptor((ExtraInfoDescriptor) descriptor);
     }
+    this.updateBandwidthStatusesIfBufferFull();
+  }
+
+  /* Buffers history intervals of all descriptors in the batch by
+   * fingerprint before checking whether the buffer is full, so that each
+   * bandwidth status is retrieved and stored at most once per batch. */
+  @Override
+  public void processDescriptors(List<Descriptor> descriptors,
+      boolean relay) {
+    for (Descriptor descriptor : descriptors) {
+      if (descriptor instanceof ExtraInfoDescriptor) {
+        this.parseDescriptor((ExtraInfoDescriptor) descriptor);
+      }
+    }
+    this.updateBandwidthStatusesIfBufferFull();
   }
 
   @Override
   public void updateStatuses() {
-    /* Status files are already updated while processing descriptors. */
+    this.updateBandwidthStatuses();
+  }
+
+  private int processedDescriptors = 0;
+
+  private int updatedStatuses = 0;
+
+  /* History intervals from one or more bandwidth histories, stored as
+   * start, end, and bandwidth value triples in the order in which they were
+   * added. */
+  private static class IntervalBuffer {
+
+    private long[] intervals = new long[0];
+
+    private int size = 0;
+
+    private int add(BandwidthHistory bandwidthHistory) {
+      long intervalMillis = bandwidthHistory.getIntervalLength()
+          * DateTimeHelper.ONE_SECOND;
+      SortedMap<Long, Long> bandwidthValues =
+          bandwidthHistory.getBandwidthValues();
+      if (3 * (this.size + bandwidthValues.size()) > this.intervals.length) {
+        this.intervals = Arrays.copyOf(this.intervals, Math.max(
+            3 * (this.size + bandwidthValues.size()),
+            2 * this.intervals.length));
+      }
+      for (Map.Entry<Long, Long> e : bandwidthValues.entrySet()) {
+        this.intervals[3 * this.size] = e.getKey() - intervalMillis;
+        this.intervals[3 * this.size + 1] = e.getKey();
+        this.intervals[3 * this.size + 2] = e.getValue();
+        this.size++;
+      }
+      return bandwidthValues.size();
+    }
+  }
+
+  /* Write and read history intervals of a single relay or bridge from all
+   * extra-info descriptors processed since its bandwidth status was last
+   * updated. */
+  private static class HistoryBuffer {
+
+    private final IntervalBuffer writeHistory = new IntervalBuffer();
+
+    private final IntervalBuffer readHistory = new IntervalBuffer();
+
+    private void addTo(BandwidthStatus bandwidthStatus) {
+      long[] intervals = this.writeHistory.intervals;
+      for (int i = 0; i < this.writeHistory.size; i++) {
+        bandwidthStatus.addToWriteHistory(intervals[3 * i],
+            intervals[3 * i + 1], intervals[3 * i + 2]);
+      }
+      intervals = this.readHistory.intervals;
+      for (int i = 0; i < this.readHistory.size; i++) {
+        bandwidthStatus.addToReadHistory(intervals[3 * i],
+            intervals[3 * i + 1], intervals[3 * i + 2]);
+      }
+    }
   }
 
+  /* Buffered history intervals by fingerprint, which are merged into
+   * bandwidth status files in updateStatuses() or whenever the number of
+   * buffered intervals exceeds a limit that can be configured using a
+   * system property, for example while reading archived extra-info
+   * descriptors. */
+  private Map<String, HistoryBuffer> historyBuffers = new HashMap<>();
+
+  private int bufferedIntervals = 0;
+
+  private final int maxBufferedIntervals = Integer.getInteger(
+      "onionoo.bandwidth.buffer", 1000000);
+
+  /* Number of bandwidth statuses that are retrieved from the document
+   * store before merging buffered intervals into them and compressing
+   * them in parallel, and storing them again. */
+  private static final int STATUSES_PER_CHUNK = 1000;
+
   private void parseDescriptor(ExtraInfoDescriptor descriptor) {
-    String fingerprint = descriptor.getFingerprint();
-    BandwidthStatus bandwidthStatus = this.documentStore.retrieve(
-        BandwidthStatus.class, true, fingerprint);
-    if (bandwidthStatus == null) {
-      bandwidthStatus = new BandwidthStatus();
+    this.processedDescriptors++;
+    if (descriptor.getWriteHistory() == null
+        && descriptor.getReadHistory() == null) {
+      return;
     }
+    HistoryBuffer historyBuffer = this.historyBuffers.computeIfAbsent(
+        descriptor.getFingerprint(), fingerprint -> new HistoryBuffer());
     if (descriptor.getWriteHistory() != null) {
-      bandwidthStatus.addToWriteHistory(descriptor.getWriteHistory());
+      this.bufferedIntervals += historyBuffer.writeHistory.add(
+          descriptor.getWriteHistory());
     }
     if (descriptor.getReadHistory() != null) {
-      bandwidthStatus.addToReadHistory(descriptor.getReadHistory());
+      this.bufferedIntervals += historyBuffer.readHistory.add(
+          descriptor.getReadHistory());
+    }
+  }
+
+  private void updateBandwidthStatusesIfBufferFull() {
+    if (this.bufferedIntervals >= this.maxBufferedIntervals) {
+      this.updateBandwidthStatuses();
     }
-    if (bandwidthStatus.isDirty()) {
-      NodeStatus nodeStatus = this.documentStore.retrieve(NodeStatus.class,
-          true, fingerprint);
-      if (null != nodeStatus) {
-        bandwidthStatus.compressHistory(nodeStatus.getLastSeenMillis());
+  }
+
+  /* Merges all buffered history intervals into bandwidth status files,
+   * retrieving, compressing, and storing each file at most once.  Statuses
+   * are retrieved and stored one chunk at a time, because the document
+   * store is not thread-safe, and merged and compressed in parallel. */
+  private void updateBandwidthStatuses() {
+    List<String> fingerprints = new ArrayList<>(
+        this.historyBuffers.keySet());
+    for (int from = 0; from < fingerprints.size();
+         from += STATUSES_PER_CHUNK) {
+      List<String> chunk = fingerprints.subList(from,
+          Math.min(from + STATUSES_PER_CHUNK, fingerprints.size()));
+      BandwidthStatus[] bandwidthStatuses =
+          new BandwidthStatus[chunk.size()];
+      long[] lastSeenMillis = new long[chunk.size()];
+      for (int i = 0; i < chunk.size(); i++) {
+        String fingerprint = chunk.get(i);
+        bandwidthStatuses[i] = this.documentStore.retrieve(
+            BandwidthStatus.class, true, fingerprint);
+        if (null == bandwidthStatuses[i]) {
+          bandwidthStatuses[i] = new BandwidthStatus();
+        }
+        NodeStatus nodeStatus = this.documentStore.retrieve(NodeStatus.class,
+            true, fingerprint);
+        lastSeenMillis[i] = null == nodeStatus ? -1L
+            : nodeStatus.getLastSeenMillis();
+      }
+      IntStream.range(0, chunk.size()).parallel().forEach(i -> {
+        this.historyBuffers.get(chunk.get(i)).addTo(bandwidthStatuses[i]);
+        if (bandwidthStatuses[i].isDirty() && lastSeenMillis[i] >= 0L) {
+          bandwidthStatuses[i].compressHistory(lastSeenMillis[i]);
+        }
+      });
+      for (int i = 0; i < chunk.size(); i++) {
+        if (bandwidthStatuses[i].isDirty()) {
+          this.documentStore.store(bandwidthStatuses[i], chunk.get(i));
+          this.updatedStatuses++;
+          bandwidthStatuses[i].clearDirty();
+        }
       }
-      this.documentStore.store(bandwidthStatus, fingerprint);
-      bandwidthStatus.clearDirty();
     }
+    this.historyBuffers = new HashMap<>();
+    this.bufferedIntervals = 0;
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(BandwidthStatus.class,
+        NodeStatus.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(BandwidthStatus.class);
   }
 
   @Override
   public String getStatsString() {
-    /* TODO Add statistics string. */
-    return null;
+    return String.format("    %s extra-info descriptors processed\n"
+        + "    %s bandwidth status files updated\n",
+        FormattingUtils.formatDecimalNumber(this.processedDescriptors),
+        FormattingUtils.formatDecimalNumber(this.updatedStatuses));
   }
 }
 
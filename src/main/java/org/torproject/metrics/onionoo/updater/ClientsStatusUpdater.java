@@ -8,12 +8,17 @@ import org.torproject.descriptor.ExtraInfoDescriptor;
 import org.torproject.metrics.onionoo.docs.ClientsHistory;
 import org.torproject.metrics.onionoo.docs.ClientsStatus;
 import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.NodeStatus;
 import org.torproject.metrics.onionoo.util.FormattingUtils;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
@@ -166,6 +171,16 @@ public class ClientsStatusUpdater implements DescriptorListener,
     }
   }
 
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(ClientsStatus.class, NodeStatus.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(ClientsStatus.class);
+  }
+
   @Override
   public String getStatsString() {
     int newIntervals = 0;
@@ -0,0 +1,78 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import org.torproject.descriptor.Descriptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collector of descriptors that delivers them to descriptor listeners in
+ * batches of up to a configurable number of descriptors.
+ *
+ * <p>A batch only contains descriptors that are delivered to the same set
+ * of listeners, which is the case for descriptors of the same type, and
+ * batches are delivered as soon as a descriptor for a different set of
+ * listeners is added, so that the order of descriptors is the same as
+ * when delivering them one by one.</p>
+ */
+class DescriptorBatcher {
+
+  private final int batchSize;
+
+  private Set<DescriptorListener> batchListeners;
+
+  private boolean batchRelay;
+
+  private List<Descriptor> batch = new ArrayList<>();
+
+  private long deliveredBatches = 0L;
+
+  long getDeliveredBatches() {
+    return this.deliveredBatches;
+  }
+
+  /** Returns whether there are no descriptors left to be delivered. */
+  boolean isEmpty() {
+    return this.batch.isEmpty();
+  }
+
+  /** Creates a batcher that delivers at most the given number of
+   * descriptors at once. */
+  DescriptorBatcher(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /** Adds a descriptor to be delivered to the given listeners, first
+   * delivering the current batch if it is for a different set of
+   * listeners, and then delivering the new batch if it is full. */
+  void add(Descriptor descriptor, Set<DescriptorListener> listeners,
+      boolean relay) {
+    if (!this.batch.isEmpty() && (listeners != this.batchListeners
+        || relay != this.batchRelay)) {
+      this.flush();
+    }
+    this.batchListeners = listeners;
+    this.batchRelay = relay;
+    this.batch.add(descriptor);
+    if (this.batch.size() >= this.batchSize) {
+      this.flush();
+    }
+  }
+
+  /** Delivers all descriptors added since the last delivery. */
+  void flush() {
+    if (this.batch.isEmpty()) {
+      return;
+    }
+    List<Descriptor> descriptors = this.batch;
+    this.batch = new ArrayList<>();
+    for (DescriptorListener listener : this.batchListeners) {
+      listener.processDescriptors(descriptors, this.batchRelay);
+    }
+    this.deliveredBatches++;
+  }
+}
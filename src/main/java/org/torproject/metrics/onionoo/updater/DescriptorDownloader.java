@@ -0,0 +1,371 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloader for descriptor files from one or more CollecTor hosts that
+ * fetches indexes and files concurrently using a bounded number of
+ * connections, only downloads files that are missing locally or that
+ * have changed since they were last downloaded, and resumes partial
+ * downloads.
+ *
+ * <p>For each host, the downloader first fetches the CollecTor index at
+ * {@code index/index.json} and compares the size and last-modified time
+ * of each indexed file in the requested remote directories to the local
+ * copy below the host's local directory, which has its last-modified time
+ * set to the indexed time after downloading.  Files are downloaded to
+ * hidden {@code .part} files, which are only renamed to their final names
+ * after they have been downloaded completely.  If a download is
+ * interrupted, the next execution resumes it using an HTTP range request
+ * with an {@code If-Range} header containing the entity tag or
+ * last-modified time of the first response, which is kept in a hidden
+ * {@code .validator} file, so that the server sends the whole file again
+ * if it has changed in the meantime.  Local files that are not contained
+ * in the index anymore are deleted.</p>
+ *
+ * <p>A failure to fetch an index or to download a file is logged and does
+ * not affect any other index or file.</p>
+ */
+class DescriptorDownloader {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      DescriptorDownloader.class);
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final String INDEX_LAST_MODIFIED_FORMAT =
+      "yyyy-MM-dd HH:mm";
+
+  private static final int TIMEOUT_MILLIS = (int) DateTimeHelper.ONE_MINUTE;
+
+  private final int downloadThreads;
+
+  private final AtomicLong downloadedFiles = new AtomicLong();
+
+  long getDownloadedFiles() {
+    return this.downloadedFiles.get();
+  }
+
+  private final AtomicLong downloadedBytes = new AtomicLong();
+
+  long getDownloadedBytes() {
+    return this.downloadedBytes.get();
+  }
+
+  private final AtomicLong resumedFiles = new AtomicLong();
+
+  long getResumedFiles() {
+    return this.resumedFiles.get();
+  }
+
+  private final AtomicLong unchangedFiles = new AtomicLong();
+
+  long getUnchangedFiles() {
+    return this.unchangedFiles.get();
+  }
+
+  private final AtomicLong failedFiles = new AtomicLong();
+
+  long getFailedFiles() {
+    return this.failedFiles.get();
+  }
+
+  /** Creates a downloader that uses at most the given number of concurrent
+   * connections. */
+  DescriptorDownloader(int downloadThreads) {
+    this.downloadThreads = Math.max(1, downloadThreads);
+  }
+
+  /* File contained in a CollecTor index. */
+  private static class IndexedFile {
+
+    private final String remotePath;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private IndexedFile(String remotePath, long size, long lastModified) {
+      this.remotePath = remotePath;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /** Downloads all files in the given remote directories, like
+   * {@code /recent/exit-lists}, from each of the given CollecTor base URLs
+   * to the local directory given for that base URL, and waits until all
+   * downloads have completed or failed. */
+  void collectDescriptors(Map<String, File> localDirectories,
+      String[] remoteDirectories) {
+    ExecutorService executorService = Executors.newFixedThreadPool(
+        this.downloadThreads, runnable -> {
+          Thread thread = new Thread(runnable, "descriptor-downloader");
+          thread.setDaemon(true);
+          return thread;
+        });
+    try {
+      List<Future<List<Future<?>>>> indexes = new ArrayList<>();
+      for (Map.Entry<String, File> e : localDirectories.entrySet()) {
+        indexes.add(executorService.submit(() -> this.collectFromHost(
+            executorService, e.getKey(), remoteDirectories, e.getValue())));
+      }
+      List<Future<?>> downloads = new ArrayList<>();
+      for (Future<List<Future<?>>> index : indexes) {
+        try {
+          downloads.addAll(index.get());
+        } catch (ExecutionException e) {
+          logger.warn("Unable to collect descriptors from a CollecTor "
+              + "host. Continuing with other hosts.", e.getCause());
+        }
+      }
+      for (Future<?> download : downloads) {
+        try {
+          download.get();
+        } catch (ExecutionException e) {
+          logger.warn("Unable to download a descriptor file. Continuing "
+              + "with other files.", e.getCause());
+          this.failedFiles.incrementAndGet();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  /* Fetches the index of the given host, deletes local files that are not
+   * contained in the index, submits downloads for all files that have
+   * changed, and returns the submitted downloads. */
+  private List<Future<?>> collectFromHost(ExecutorService executorService,
+      String collecTorBaseUrl, String[] remoteDirectories,
+      File localDirectory) {
+    List<Future<?>> downloads = new ArrayList<>();
+    Map<String, IndexedFile> indexedFiles = new HashMap<>();
+    try {
+      JsonNode index = this.fetchIndex(collecTorBaseUrl);
+      collectIndexedFiles(index, "", indexedFiles);
+    } catch (IOException e) {
+      logger.warn("Unable to fetch index from {}. Skipping.",
+          collecTorBaseUrl, e);
+      return downloads;
+    }
+    for (String remoteDirectory : remoteDirectories) {
+      String prefix = remoteDirectory.endsWith("/") ? remoteDirectory
+          : remoteDirectory + "/";
+      for (IndexedFile indexedFile : indexedFiles.values()) {
+        if (!indexedFile.remotePath.startsWith(prefix)) {
+          continue;
+        }
+        File localFile = new File(localDirectory, indexedFile.remotePath);
+        if (localFile.exists() && localFile.length() == indexedFile.size
+            && localFile.lastModified() >= indexedFile.lastModified) {
+          this.unchangedFiles.incrementAndGet();
+          continue;
+        }
+        downloads.add(executorService.submit(() -> this.download(
+            collecTorBaseUrl, indexedFile, localFile)));
+      }
+      deleteExtraneousFiles(new File(localDirectory, remoteDirectory),
+          remoteDirectory.replaceAll("/+$", ""), indexedFiles);
+    }
+    return downloads;
+  }
+
+  private JsonNode fetchIndex(String collecTorBaseUrl) throws IOException {
+    HttpURLConnection connection = openConnection(
+        collecTorBaseUrl + "/index/index.json");
+    try {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Unexpected response code "
+            + connection.getResponseCode() + ".");
+      }
+      try (InputStream is = connection.getInputStream()) {
+        return objectMapper.readTree(is);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /* Adds all files contained in the given index directory node and its
+   * subdirectories to the given map with remote paths as keys. */
+  private static void collectIndexedFiles(JsonNode directory,
+      String directoryPath, Map<String, IndexedFile> indexedFiles) {
+    for (JsonNode file : directory.path("files")) {
+      String remotePath = directoryPath + "/" + file.path("path").asText();
+      long lastModified = DateTimeHelper.parse(
+          file.path("last_modified").asText(), INDEX_LAST_MODIFIED_FORMAT);
+      indexedFiles.put(remotePath, new IndexedFile(remotePath,
+          file.path("size").asLong(), lastModified));
+    }
+    for (JsonNode subdirectory : directory.path("directories")) {
+      collectIndexedFiles(subdirectory,
+          directoryPath + "/" + subdirectory.path("path").asText(),
+          indexedFiles);
+    }
+  }
+
+  /* Deletes files in the given local directory and its subdirectories
+   * that are not contained in the index anymore, including partially
+   * downloaded files. */
+  private static void deleteExtraneousFiles(File localDirectory,
+      String remoteDirectory, Map<String, IndexedFile> indexedFiles) {
+    File[] children = localDirectory.listFiles();
+    if (null == children) {
+      return;
+    }
+    for (File child : children) {
+      String name = child.getName();
+      if (child.isDirectory()) {
+        deleteExtraneousFiles(child, remoteDirectory + "/" + name,
+            indexedFiles);
+        continue;
+      }
+      if (name.startsWith(".") && name.endsWith(".part")) {
+        name = name.substring(1, name.length() - ".part".length());
+      } else if (name.startsWith(".") && name.endsWith(".validator")) {
+        name = name.substring(1, name.length() - ".validator".length());
+      }
+      if (!indexedFiles.containsKey(remoteDirectory + "/" + name)
+          && !child.delete()) {
+        logger.warn("Unable to delete extraneous local file {}.", child);
+      }
+    }
+  }
+
+  /* Downloads the given file, resuming a previous partial download if
+   * the remote file has not changed since. */
+  private void download(String collecTorBaseUrl, IndexedFile indexedFile,
+      File localFile) {
+    File partFile = new File(localFile.getParentFile(),
+        "." + localFile.getName() + ".part");
+    File validatorFile = new File(localFile.getParentFile(),
+        "." + localFile.getName() + ".validator");
+    try {
+      localFile.getParentFile().mkdirs();
+      long offset = partFile.exists() ? partFile.length() : 0L;
+      String validator = null;
+      if (offset > 0L && validatorFile.exists()) {
+        validator = new String(Files.readAllBytes(validatorFile.toPath()),
+            StandardCharsets.US_ASCII).trim();
+      }
+      if (offset > indexedFile.size || null == validator
+          || validator.isEmpty()) {
+        /* We cannot tell whether the partial download still belongs to
+         * the remote file, so we rather start over. */
+        offset = 0L;
+      }
+      if (offset < indexedFile.size || 0L == indexedFile.size) {
+        HttpURLConnection connection = openConnection(collecTorBaseUrl
+            + indexedFile.remotePath);
+        try {
+          if (offset > 0L) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            connection.setRequestProperty("If-Range", validator);
+          }
+          int responseCode = connection.getResponseCode();
+          boolean append;
+          if (responseCode == HttpURLConnection.HTTP_PARTIAL && offset > 0L) {
+            append = true;
+            this.resumedFiles.incrementAndGet();
+          } else if (responseCode == HttpURLConnection.HTTP_OK) {
+            /* Either we asked for the whole file, or the remote file has
+             * changed and the server sends all of it again. */
+            append = false;
+            writeValidator(connection, validatorFile);
+          } else {
+            throw new IOException("Unexpected response code " + responseCode
+                + ".");
+          }
+          try (InputStream is = new BufferedInputStream(
+              connection.getInputStream());
+              OutputStream os = new FileOutputStream(partFile, append)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+              os.write(buffer, 0, read);
+              this.downloadedBytes.addAndGet(read);
+            }
+          }
+        } finally {
+          connection.disconnect();
+        }
+      }
+      if (partFile.length() != indexedFile.size) {
+        Files.deleteIfExists(partFile.toPath());
+        Files.deleteIfExists(validatorFile.toPath());
+        throw new IOException("Downloaded " + partFile.length()
+            + " bytes instead of " + indexedFile.size + " bytes.");
+      }
+      Files.move(partFile.toPath(), localFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      Files.deleteIfExists(validatorFile.toPath());
+      if (indexedFile.lastModified > 0L) {
+        localFile.setLastModified(indexedFile.lastModified);
+      }
+      this.downloadedFiles.incrementAndGet();
+    } catch (IOException e) {
+      logger.warn("Unable to download {}{}. Trying again in the next "
+          + "execution.", collecTorBaseUrl, indexedFile.remotePath, e);
+      this.failedFiles.incrementAndGet();
+    }
+  }
+
+  /* Writes the strong entity tag or, if there is none, the last-modified
+   * time of the given response to the given file for resuming the download
+   * later on, or deletes that file if the response contains neither. */
+  private static void writeValidator(HttpURLConnection connection,
+      File validatorFile) throws IOException {
+    String validator = connection.getHeaderField("ETag");
+    if (null == validator || validator.startsWith("W/")) {
+      validator = connection.getHeaderField("Last-Modified");
+    }
+    if (null == validator || validator.isEmpty()) {
+      Files.deleteIfExists(validatorFile.toPath());
+    } else {
+      Files.write(validatorFile.toPath(),
+          validator.getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  private static HttpURLConnection openConnection(String url)
+      throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(TIMEOUT_MILLIS);
+    connection.setReadTimeout(TIMEOUT_MILLIS);
+    return connection;
+  }
+}
@@ -13,7 +13,8 @@ public enum DescriptorHistory {
   BRIDGE_SERVER_HISTORY("bridge-server-history"),
   BRIDGE_EXTRAINFO_HISTORY("bridge-extrainfo-history"),
   BRIDGE_POOL_ASSIGNMENTS_HISTORY("bridge-pool-assignments-history"),
-  ARCHIVED_HISTORY("archived-history");
+  ARCHIVED_HISTORY("archived-history"),
+  ARCHIVED_CHECKPOINTS("archived-checkpoints");
 
   private String fileName;
 
@@ -5,7 +5,19 @@ package org.torproject.metrics.onionoo.updater;
 
 import org.torproject.descriptor.Descriptor;
 
+import java.util.List;
+
 public interface DescriptorListener {
   void processDescriptor(Descriptor descriptor, boolean relay);
-}
 
+  /** Processes a batch of descriptors of the same type in the order in
+   * which they were read, which listeners may override to retrieve and
+   * store each status only once per batch; the default implementation
+   * processes descriptors one by one. */
+  default void processDescriptors(List<Descriptor> descriptors,
+      boolean relay) {
+    for (Descriptor descriptor : descriptors) {
+      this.processDescriptor(descriptor, relay);
+    }
+  }
+}
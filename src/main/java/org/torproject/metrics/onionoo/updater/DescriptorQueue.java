@@ -11,15 +11,11 @@ import org.torproject.descriptor.UnparseableDescriptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.SortedMap;
 import java.util.TreeMap;
 
 class DescriptorQueue {
@@ -31,6 +27,8 @@ class DescriptorQueue {
 
   private DescriptorReader descriptorReader;
 
+  private ParallelDescriptorReader parallelDescriptorReader;
+
   private File historyFile;
 
   private File directory;
@@ -73,6 +71,14 @@ class DescriptorQueue {
     this.descriptorReader.setMaxDescriptorsInQueue(20);
   }
 
+  /** Reads and parses descriptor files using the given number of threads
+   * rather than a single descriptor reader thread, and returns descriptors
+   * in the lexicographical order of file paths. */
+  public void setParallelParsing(int parserThreads, int maxFilesInQueue) {
+    this.parallelDescriptorReader = new ParallelDescriptorReader(
+        parserThreads, maxFilesInQueue);
+  }
+
   public void readHistoryFile(DescriptorHistory descriptorHistory) {
     if (this.statusDir == null) {
       return;
@@ -80,19 +86,9 @@ class DescriptorQueue {
     this.historyFile = new File(this.statusDir,
         descriptorHistory.getFileName());
     if (this.historyFile.exists() && this.historyFile.isFile()) {
-      SortedMap<String, Long> excludedFiles = new TreeMap<>();
-      try (BufferedReader br = new BufferedReader(new FileReader(
-          this.historyFile))) {
-        String line;
-        while ((line = br.readLine()) != null) {
-          try {
-            String[] parts = line.split(" ", 2);
-            excludedFiles.put(parts[1], Long.parseLong(parts[0]));
-          } catch (NumberFormatException e) {
-            logger.error("Illegal line '{}' in parse history. Skipping line.",
-                line);
-          }
-        }
+      Map<String, Long> excludedFiles;
+      try {
+        excludedFiles = ParseHistory.read(this.historyFile);
       } catch (IOException e) {
         logger.error("Could not read history file '{}'. Not excluding "
             + "descriptors in this execution.",
@@ -100,7 +96,11 @@ class DescriptorQueue {
         return;
       }
       this.historySizeBefore = excludedFiles.size();
-      this.descriptorReader.setExcludedFiles(excludedFiles);
+      if (null != this.parallelDescriptorReader) {
+        this.parallelDescriptorReader.setExcludedFiles(excludedFiles);
+      } else {
+        this.descriptorReader.setExcludedFiles(new TreeMap<>(excludedFiles));
+      }
     }
   }
 
@@ -113,23 +113,29 @@ class DescriptorQueue {
           + "single descriptor from {}.", this.historyFile, this.directory);
       return;
     }
-    SortedMap<String, Long> excludedAndParsedFiles = new TreeMap<>();
-    excludedAndParsedFiles.putAll(
-        this.descriptorReader.getExcludedFiles());
-    excludedAndParsedFiles.putAll(this.descriptorReader.getParsedFiles());
+    Map<String, Long> excludedAndParsedFiles = new HashMap<>();
+    if (null != this.parallelDescriptorReader) {
+      excludedAndParsedFiles.putAll(
+          this.parallelDescriptorReader.getExcludedFiles());
+      excludedAndParsedFiles.putAll(
+          this.parallelDescriptorReader.getParsedFiles());
+    } else {
+      excludedAndParsedFiles.putAll(
+          this.descriptorReader.getExcludedFiles());
+      excludedAndParsedFiles.putAll(this.descriptorReader.getParsedFiles());
+    }
+    /* Prune files that have been deleted since, so that the history does
+     * not grow without bounds. */
+    excludedAndParsedFiles.keySet().removeIf(
+        absolutePath -> !new File(absolutePath).exists());
     this.historySizeAfter = excludedAndParsedFiles.size();
     this.historyFile.getParentFile().mkdirs();
-    try (BufferedWriter bw = new BufferedWriter(new FileWriter(
-        this.historyFile))) {
-      for (Map.Entry<String, Long> e : excludedAndParsedFiles.entrySet()) {
-        String absolutePath = e.getKey();
-        long lastModifiedMillis = e.getValue();
-        bw.write(lastModifiedMillis + " " + absolutePath + "\n");
-      }
+    try {
+      ParseHistory.write(this.historyFile, excludedAndParsedFiles);
     } catch (IOException e) {
       logger.error("Could not write history file '{}'. Not excluding "
           + "descriptors in next execution.",
-          this.historyFile.getAbsolutePath());
+          this.historyFile.getAbsolutePath(), e);
     }
   }
 
@@ -140,8 +146,10 @@ class DescriptorQueue {
     if (null == this.descriptors) {
       if (this.directory.exists()
           && directory.isDirectory()) {
-        this.descriptors = this.descriptorReader.readDescriptors(
-            this.directory).iterator();
+        this.descriptors = null != this.parallelDescriptorReader
+            ? this.parallelDescriptorReader.readDescriptors(this.directory)
+            : this.descriptorReader.readDescriptors(this.directory)
+            .iterator();
       } else {
         logger.error("Directory {} either does not exist or is not a "
             + "directory. Not adding to descriptor reader.",
@@ -4,9 +4,9 @@
 package org.torproject.metrics.onionoo.updater;
 
 import org.torproject.descriptor.Descriptor;
-import org.torproject.descriptor.DescriptorCollector;
 import org.torproject.metrics.onionoo.util.FormattingUtils;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,6 +14,8 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -38,7 +40,39 @@ public class DescriptorSource {
 
   private final File statusDir = new File("status");
 
-  private DescriptorQueue archiveDescriptorQueue;
+  private ArchiveDescriptorReader archiveDescriptorReader;
+
+  /* Number of threads for reading and parsing recent descriptor files, and
+   * maximum number of files to read and parse ahead of the file whose
+   * descriptors are currently processed, which can both be configured
+   * using system properties. */
+  private final int parserThreads = Integer.getInteger(
+      "onionoo.parser.threads", Runtime.getRuntime().availableProcessors());
+
+  private final int parserQueueFiles = Integer.getInteger(
+      "onionoo.parser.queue", 4 * this.parserThreads);
+
+  /* Number of threads for decompressing and parsing archived tarballs, and
+   * maximum number of tarball entries that each of these threads parses
+   * ahead, which can both be configured using system properties. */
+  private final int archiveThreads = Integer.getInteger(
+      "onionoo.archive.threads", this.parserThreads);
+
+  private final int archiveQueueEntries = Integer.getInteger(
+      "onionoo.archive.queue", 16);
+
+  /* Maximum number of concurrent connections for downloading descriptors
+   * from all CollecTor hosts, which can be configured using a system
+   * property. */
+  private final int downloadThreads = Integer.getInteger(
+      "onionoo.download.threads", 4);
+
+  private DescriptorDownloader descriptorDownloader;
+
+  /* Maximum number of descriptors of the same type that are delivered to
+   * listeners at once, which can be configured using a system property. */
+  private final DescriptorBatcher descriptorBatcher = new DescriptorBatcher(
+      Integer.getInteger("onionoo.listener.batch", 1000));
 
   /** Instantiates a new descriptor source. */
   public DescriptorSource() {
@@ -66,6 +100,8 @@ public class DescriptorSource {
       DescriptorQueue descriptorQueue = new DescriptorQueue(
           this.inCollecTorHostRecentDirs[collecTorHostIndex], descriptorType,
           this.inCollecTorHostDirs[collecTorHostIndex]);
+      descriptorQueue.setParallelParsing(this.parserThreads,
+          this.parserQueueFiles);
       if (descriptorHistory != null) {
         descriptorQueue.readHistoryFile(descriptorHistory);
       }
@@ -78,6 +114,24 @@ public class DescriptorSource {
   private Map<DescriptorType, Set<DescriptorListener>>
       descriptorListeners;
 
+  /* Digests of all descriptors provided to listeners in this execution,
+   * which are used to skip identical descriptors read from different
+   * CollecTor hosts or from both recent and archived descriptors. */
+  private final DigestSet processedDigests = new DigestSet();
+
+  private long skippedDuplicateDescriptors = 0L;
+
+  /* Returns whether the given descriptor has not been provided to
+   * listeners before, and remembers it as provided. */
+  private boolean isFirstOccurrence(Descriptor descriptor) {
+    if (this.processedDigests.add(DigestUtils.sha256(
+        descriptor.getRawDescriptorBytes()))) {
+      return true;
+    }
+    this.skippedDuplicateDescriptors++;
+    return false;
+  }
+
   /** Registers a descriptor listener for a given descriptor type. */
   public void registerDescriptorListener(DescriptorListener listener,
       DescriptorType descriptorType) {
@@ -85,26 +139,25 @@ public class DescriptorSource {
     this.descriptorListeners.get(descriptorType).add(listener);
   }
 
-  /** Downloads descriptors from CollecTor. */
+  /** Downloads descriptors from all CollecTor hosts concurrently. */
   public void downloadDescriptors() {
     List<String> remoteDirectoriesList = new ArrayList<>();
     for (DescriptorType descriptorType : DescriptorType.values()) {
       remoteDirectoriesList.add("/recent/" + descriptorType.getDir());
     }
+    String[] remoteDirectories = remoteDirectoriesList.toArray(new String[0]);
+    Map<String, File> localDirectories = new LinkedHashMap<>();
     for (int collecTorHostIndex = 0;
          collecTorHostIndex < this.collecTorHosts.length;
          collecTorHostIndex++) {
-      String collecTorBaseUrl = "https://"
-          + this.collecTorHosts[collecTorHostIndex];
-      String[] remoteDirectories = remoteDirectoriesList.toArray(new String[0]);
-      long minLastModified = 0L;
-      File localDirectory = this.inCollecTorHostDirs[collecTorHostIndex];
-      boolean deleteExtraneousLocalFiles = true;
-      DescriptorCollector dc = org.torproject.descriptor.DescriptorSourceFactory
-          .createDescriptorCollector();
-      dc.collectDescriptors(collecTorBaseUrl, remoteDirectories,
-          minLastModified, localDirectory, deleteExtraneousLocalFiles);
+      localDirectories.put("https://"
+          + this.collecTorHosts[collecTorHostIndex],
+          this.inCollecTorHostDirs[collecTorHostIndex]);
     }
+    this.descriptorDownloader = new DescriptorDownloader(
+        this.downloadThreads);
+    this.descriptorDownloader.collectDescriptors(localDirectories,
+        remoteDirectories);
   }
 
   /** Reads archived and recent descriptors from disk and feeds them into
@@ -151,11 +204,13 @@ public class DescriptorSource {
         : this.getDescriptorQueues(descriptorType, descriptorHistory)) {
       Descriptor descriptor;
       while ((descriptor = descriptorQueue.nextDescriptor()) != null) {
-        for (DescriptorListener descriptorListener : descriptorListeners) {
-          descriptorListener.processDescriptor(descriptor, relay);
+        if (!this.isFirstOccurrence(descriptor)) {
+          continue;
         }
+        this.descriptorBatcher.add(descriptor, descriptorListeners, relay);
       }
     }
+    this.descriptorBatcher.flush();
     logger.info("Read recent/{}.", descriptorType.getDir());
   }
 
@@ -166,13 +221,17 @@ public class DescriptorSource {
       return;
     }
     logger.info("Reading archived descriptors...");
-    this.archiveDescriptorQueue = new DescriptorQueue(this.inArchiveDir,
-        null, this.statusDir);
-    this.archiveDescriptorQueue.readHistoryFile(
-        DescriptorHistory.ARCHIVED_HISTORY);
-    Descriptor descriptor;
-    while ((descriptor = this.archiveDescriptorQueue.nextDescriptor())
-        != null) {
+    this.archiveDescriptorReader = new ArchiveDescriptorReader(
+        this.archiveThreads, this.archiveQueueEntries);
+    this.archiveDescriptorReader.readHistoryFiles(
+        new File(this.statusDir,
+        DescriptorHistory.ARCHIVED_HISTORY.getFileName()),
+        new File(this.statusDir,
+        DescriptorHistory.ARCHIVED_CHECKPOINTS.getFileName()));
+    Iterator<Descriptor> descriptors =
+        this.archiveDescriptorReader.readDescriptors(this.inArchiveDir);
+    while (descriptors.hasNext()) {
+      Descriptor descriptor = descriptors.next();
       DescriptorType descriptorType = null;
       boolean relay = false;
       for (String annotation : descriptor.getAnnotations()) {
@@ -211,27 +270,79 @@ public class DescriptorSource {
             descriptor.getAnnotations());
         continue;
       }
-      for (DescriptorListener descriptorListener :
-          this.descriptorListeners.get(descriptorType)) {
-        descriptorListener.processDescriptor(descriptor, relay);
+      if (!this.descriptorListeners.containsKey(descriptorType)
+          || !this.isFirstOccurrence(descriptor)) {
+        continue;
       }
+      this.descriptorBatcher.add(descriptor,
+          this.descriptorListeners.get(descriptorType), relay);
     }
-    this.archiveDescriptorQueue.writeHistoryFile();
+    this.descriptorBatcher.flush();
     logger.info("Read archived descriptors");
   }
 
-  /** Writes parse histories for recent descriptors to disk. */
+  /** Writes parse histories for recent descriptors and parse history and
+   * checkpoints for archived descriptors to disk, which must only happen
+   * after statuses have been persisted. */
   public void writeHistoryFiles() {
+    if (!this.descriptorBatcher.isEmpty()) {
+      logger.error("Writing parse histories while descriptors are still "
+          + "held back in a batch, which means that these descriptors are "
+          + "skipped in the next run. This is a bug.");
+    }
     logger.debug("Writing parse histories for recent descriptors...");
     for (DescriptorQueue descriptorQueue : this.recentDescriptorQueues) {
       descriptorQueue.writeHistoryFile();
     }
+    if (this.archiveDescriptorReader != null) {
+      logger.debug("Writing parse history for archived descriptors...");
+      this.archiveDescriptorReader.writeHistoryFiles();
+    }
+  }
+
+  /** Returns the number of recent and archived descriptors provided to
+   * listeners so far. */
+  public long getReadDescriptors() {
+    long descriptors = 0L;
+    for (DescriptorQueue descriptorQueue : this.recentDescriptorQueues) {
+      descriptors += descriptorQueue.getReturnedDescriptors();
+    }
+    if (this.archiveDescriptorReader != null) {
+      descriptors += this.archiveDescriptorReader.getReturnedDescriptors();
+    }
+    return descriptors;
+  }
+
+  /** Returns the number of bytes of recent and archived descriptors
+   * provided to listeners so far. */
+  public long getReadBytes() {
+    long bytes = 0L;
+    for (DescriptorQueue descriptorQueue : this.recentDescriptorQueues) {
+      bytes += descriptorQueue.getReturnedBytes();
+    }
+    if (this.archiveDescriptorReader != null) {
+      bytes += this.archiveDescriptorReader.getReturnedBytes();
+    }
+    return bytes;
   }
 
   /** Returns a string with statistics on the number of processed
    * descriptors during the current execution. */
   public String getStatsString() {
     StringBuilder sb = new StringBuilder();
+    if (this.descriptorDownloader != null) {
+      sb.append("    ").append(FormattingUtils.formatDecimalNumber(
+          this.descriptorDownloader.getDownloadedFiles()))
+          .append(" descriptor files downloaded (")
+          .append(FormattingUtils.formatDecimalNumber(
+          this.descriptorDownloader.getResumedFiles())).append(" resumed, ")
+          .append(FormattingUtils.formatBytes(
+          this.descriptorDownloader.getDownloadedBytes())).append("), ")
+          .append(FormattingUtils.formatDecimalNumber(
+          this.descriptorDownloader.getUnchangedFiles()))
+          .append(" unchanged, ").append(FormattingUtils.formatDecimalNumber(
+          this.descriptorDownloader.getFailedFiles())).append(" failed\n");
+    }
     sb.append("    ").append(this.recentDescriptorQueues.size())
       .append(" descriptor ").append("queues created for recent descriptors\n");
     int historySizeBefore = 0;
@@ -254,14 +365,23 @@ public class DescriptorSource {
     sb.append("    ").append(FormattingUtils.formatDecimalNumber(
         historySizeAfter)).append(" recent descriptors excluded from next ")
         .append("execution\n");
-    if (this.archiveDescriptorQueue != null) {
+    if (this.archiveDescriptorReader != null) {
       sb.append("    ").append(FormattingUtils.formatDecimalNumber(
-          this.archiveDescriptorQueue.getReturnedDescriptors()))
+          this.archiveDescriptorReader.getReturnedDescriptors()))
         .append(" archived descriptors provided\n");
       sb.append("    ").append(FormattingUtils.formatBytes(
-          this.archiveDescriptorQueue.getReturnedBytes())).append(" of ")
+          this.archiveDescriptorReader.getReturnedBytes())).append(" of ")
         .append("archived descriptors provided\n");
+      sb.append("    ").append(FormattingUtils.formatDecimalNumber(
+          this.archiveDescriptorReader.getCompletedFiles()))
+        .append(" archived descriptor files read completely\n");
+      sb.append("    ").append(FormattingUtils.formatDecimalNumber(
+          this.archiveDescriptorReader.getResumedFiles()))
+        .append(" archived descriptor files resumed from checkpoints\n");
     }
+    sb.append("    ").append(FormattingUtils.formatDecimalNumber(
+        this.skippedDuplicateDescriptors)).append(" duplicate descriptors ")
+        .append("skipped\n");
     return sb.toString();
   }
 }
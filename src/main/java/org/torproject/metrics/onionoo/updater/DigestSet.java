@@ -0,0 +1,80 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+/**
+ * Set of 128-bit digests stored in a single open-addressing hash table of
+ * primitive longs, which takes between 32 and 64 bytes per digest and
+ * avoids allocating an object per digest.
+ *
+ * <p>Only the first 16 bytes of longer digests are used, which is more
+ * than enough to tell apart all descriptors processed in a single
+ * execution.  This class is not thread-safe.</p>
+ */
+class DigestSet {
+
+  private static final int INITIAL_CAPACITY = 1 << 10;
+
+  /* Pairs of longs with the first and second eight bytes of each digest,
+   * with (0, 0) marking an empty slot. */
+  private long[] table = new long[2 * INITIAL_CAPACITY];
+
+  private int size;
+
+  int size() {
+    return this.size;
+  }
+
+  /** Adds the given digest of at least 16 bytes, and returns whether it
+   * was not contained in this set before. */
+  boolean add(byte[] digest) {
+    long high = toLong(digest, 0);
+    long low = toLong(digest, 8);
+    if (high == 0L && low == 0L) {
+      low = 1L;
+    }
+    if (2 * (this.size + 1) > this.table.length / 2) {
+      this.resize();
+    }
+    if (insert(this.table, high, low)) {
+      this.size++;
+      return true;
+    }
+    return false;
+  }
+
+  private static long toLong(byte[] bytes, int offset) {
+    long value = 0L;
+    for (int i = offset; i < offset + 8; i++) {
+      value = (value << 8) | (bytes[i] & 0xffL);
+    }
+    return value;
+  }
+
+  /* Inserts the given digest into the given table using linear probing,
+   * unless it is already contained. */
+  private static boolean insert(long[] table, long high, long low) {
+    int slots = table.length / 2;
+    int slot = (int) (high ^ (high >>> 32)) & (slots - 1);
+    while (table[2 * slot] != 0L || table[2 * slot + 1] != 0L) {
+      if (table[2 * slot] == high && table[2 * slot + 1] == low) {
+        return false;
+      }
+      slot = (slot + 1) & (slots - 1);
+    }
+    table[2 * slot] = high;
+    table[2 * slot + 1] = low;
+    return true;
+  }
+
+  private void resize() {
+    long[] resized = new long[2 * this.table.length];
+    for (int i = 0; i < this.table.length; i += 2) {
+      if (this.table[i] != 0L || this.table[i + 1] != 0L) {
+        insert(resized, this.table[i], this.table[i + 1]);
+      }
+    }
+    this.table = resized;
+  }
+}
@@ -13,22 +13,31 @@ import org.torproject.descriptor.RelayNetworkStatusConsensus;
 import org.torproject.descriptor.ServerDescriptor;
 import org.torproject.metrics.onionoo.docs.DateTimeHelper;
 import org.torproject.metrics.onionoo.docs.DetailsStatus;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.NodeStatus;
+import org.torproject.metrics.onionoo.docs.NodeStatusTable;
+import org.torproject.metrics.onionoo.util.FamilyGraph;
 import org.torproject.metrics.onionoo.util.FormattingUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /*
  * Status updater for both node and details statuses.
@@ -62,7 +71,15 @@ import java.util.TreeSet;
  *      node statuses with contents from newly parsed descriptors, update
  *      details statuses with results from lookup operations, new path
  *      selection probabilities, and effective families, and store details
- *      statuses and node statuses back to disk.
+ *      statuses and node statuses back to disk.  Nodes are considered
+ *      changed if any descriptors or exit list entries were parsed for
+ *      them in this execution, if they were seen in the past week and are
+ *      therefore subject to lookups, probabilities, families, and changes
+ *      of their running status, if they have recent exit addresses that
+ *      may expire, if they are contained in a new bridge pool assignment,
+ *      or if their version status changes.  All other nodes are skipped.
+ *      Details statuses of changed nodes are updated in parallel using
+ *      read-only views of all lookup and calculation results.
  */
 public class NodeDetailsStatusUpdater implements DescriptorListener,
     StatusUpdater {
@@ -80,7 +97,10 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
 
   private long now;
 
-  private SortedMap<String, NodeStatus> knownNodes = new TreeMap<>();
+  /* All relays and bridges ever seen, kept in a columnar table rather than
+   * as node status objects; node statuses obtained from this table need
+   * to be put back after changing them. */
+  private NodeStatusTable knownNodes = new NodeStatusTable();
 
   private long relaysLastValidAfterMillis = -1L;
 
@@ -94,6 +114,14 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
 
   private int bridgeStatusesProcessed = 0;
 
+  /* Fingerprints of nodes with changed inputs in this execution, whose node
+   * and details statuses need to be updated in step 4. */
+  private SortedSet<String> changedNodes = new TreeSet<>();
+
+  private int updatedNodes = 0;
+
+  private int skippedNodes = 0;
+
   /** Initializes a new status updater, obtains references to all relevant
    * singleton instances, and registers as listener at the (singleton)
    * descriptor source. */
@@ -148,13 +176,92 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
     }
   }
 
+  /* Details statuses retrieved while processing the current batch of
+   * descriptors, or null if descriptors are processed one by one. */
+  private Map<String, DetailsStatus> batchDetailsStatuses = null;
+
+  /* Fingerprints of details statuses that were modified while processing
+   * the current batch and that need to be stored at the end of it. */
+  private Set<String> batchChangedDetailsStatuses = null;
+
+  /* Node statuses retrieved or created while processing the current batch
+   * of descriptors, or null if descriptors are processed one by one. */
+  private Map<String, NodeStatus> batchNodeStatuses = null;
+
+  /* Processes a batch of descriptors while retrieving and storing each
+   * details status and each node status at most once, regardless of how
+   * many descriptors or status entries in the batch refer to it. */
+  @Override
+  public void processDescriptors(List<Descriptor> descriptors,
+      boolean relay) {
+    this.batchDetailsStatuses = new HashMap<>();
+    this.batchChangedDetailsStatuses = new HashSet<>();
+    this.batchNodeStatuses = new HashMap<>();
+    try {
+      for (Descriptor descriptor : descriptors) {
+        this.processDescriptor(descriptor, relay);
+      }
+      for (String fingerprint : this.batchChangedDetailsStatuses) {
+        this.documentStore.store(this.batchDetailsStatuses.get(fingerprint),
+            fingerprint);
+      }
+      for (NodeStatus nodeStatus : this.batchNodeStatuses.values()) {
+        this.knownNodes.put(nodeStatus);
+      }
+    } finally {
+      this.batchDetailsStatuses = null;
+      this.batchChangedDetailsStatuses = null;
+      this.batchNodeStatuses = null;
+    }
+  }
+
+  private DetailsStatus retrieveDetailsStatus(String fingerprint) {
+    if (null == this.batchDetailsStatuses) {
+      return this.documentStore.retrieve(DetailsStatus.class, true,
+          fingerprint);
+    }
+    if (!this.batchDetailsStatuses.containsKey(fingerprint)) {
+      this.batchDetailsStatuses.put(fingerprint, this.documentStore.retrieve(
+          DetailsStatus.class, true, fingerprint));
+    }
+    return this.batchDetailsStatuses.get(fingerprint);
+  }
+
+  private void storeDetailsStatus(DetailsStatus detailsStatus,
+      String fingerprint) {
+    if (null == this.batchDetailsStatuses) {
+      this.documentStore.store(detailsStatus, fingerprint);
+    } else {
+      this.batchDetailsStatuses.put(fingerprint, detailsStatus);
+      this.batchChangedDetailsStatuses.add(fingerprint);
+    }
+  }
+
+  private NodeStatus getKnownNode(String fingerprint) {
+    if (null == this.batchNodeStatuses) {
+      return this.knownNodes.get(fingerprint);
+    }
+    NodeStatus nodeStatus = this.batchNodeStatuses.get(fingerprint);
+    if (null == nodeStatus) {
+      nodeStatus = this.knownNodes.get(fingerprint);
+    }
+    return nodeStatus;
+  }
+
+  private void putKnownNode(NodeStatus nodeStatus) {
+    if (null == this.batchNodeStatuses) {
+      this.knownNodes.put(nodeStatus);
+    } else {
+      this.batchNodeStatuses.put(nodeStatus.getFingerprint(), nodeStatus);
+    }
+  }
+
   private Map<String, SortedSet<String>> declaredFamilies = new HashMap<>();
 
   private void processRelayServerDescriptor(
       ServerDescriptor descriptor) {
     String fingerprint = descriptor.getFingerprint();
-    DetailsStatus detailsStatus = this.documentStore.retrieve(
-        DetailsStatus.class, true, fingerprint);
+    DetailsStatus detailsStatus = this.retrieveDetailsStatus(fingerprint);
     if (detailsStatus == null) {
       detailsStatus = new DetailsStatus();
     } else if (detailsStatus.getDescPublished() != null
@@ -205,7 +312,8 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
     detailsStatus.setHibernating(descriptor.isHibernating() ? true :
         null);
     detailsStatus.setAdvertisedOrAddresses(descriptor.getOrAddresses());
-    this.documentStore.store(detailsStatus, fingerprint);
+    this.storeDetailsStatus(detailsStatus, fingerprint);
+    this.changedNodes.add(fingerprint);
   }
 
   private Long calculateLastRestartedMillis(ServerDescriptor descriptor) {
@@ -233,6 +341,7 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
         if (this.exitListEntries.get(fingerprint).getOrDefault(exitAddress, 0L)
             < scanMillis) {
           this.exitListEntries.get(fingerprint).put(exitAddress, scanMillis);
+          this.changedNodes.add(fingerprint);
         }
       }
     }
@@ -252,11 +361,11 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
         consensus.getStatusEntries().entrySet()) {
       String fingerprint = e.getKey();
       NetworkStatusEntry entry = e.getValue();
-      NodeStatus nodeStatus = this.knownNodes.get(fingerprint);
+      NodeStatus nodeStatus = this.getKnownNode(fingerprint);
       if (nodeStatus == null) {
         nodeStatus = new NodeStatus(fingerprint);
-        this.knownNodes.put(fingerprint, nodeStatus);
       }
+      this.changedNodes.add(fingerprint);
       String address = entry.getAddress();
       int orPort = entry.getOrPort();
       int dirPort = entry.getDirPort();
@@ -287,6 +396,7 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
         }
         nodeStatus.setVersion(version);
       }
+      this.putKnownNode(nodeStatus);
       if (entry.getUnmeasured()) {
         if (this.lastSeenUnmeasured.getOrDefault(fingerprint, 0L)
             < validAfterMillis) {
@@ -317,8 +427,7 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
   private void processBridgeServerDescriptor(
       ServerDescriptor descriptor) {
     String fingerprint = descriptor.getFingerprint();
-    DetailsStatus detailsStatus = this.documentStore.retrieve(
-        DetailsStatus.class, true, fingerprint);
+    DetailsStatus detailsStatus = this.retrieveDetailsStatus(fingerprint);
     if (detailsStatus == null) {
       detailsStatus = new DetailsStatus();
     } else if (detailsStatus.getDescPublished() != null
@@ -334,14 +443,14 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
     detailsStatus.setLastRestarted(calculateLastRestartedMillis(descriptor));
     detailsStatus.setAdvertisedBandwidth(advertisedBandwidth);
     detailsStatus.setPlatform(descriptor.getPlatform());
-    this.documentStore.store(detailsStatus, fingerprint);
+    this.storeDetailsStatus(detailsStatus, fingerprint);
+    this.changedNodes.add(fingerprint);
   }
 
   private void processBridgeExtraInfoDescriptor(
       ExtraInfoDescriptor descriptor) {
     String fingerprint = descriptor.getFingerprint();
-    DetailsStatus detailsStatus = this.documentStore.retrieve(
-        DetailsStatus.class, true, fingerprint);
+    DetailsStatus detailsStatus = this.retrieveDetailsStatus(fingerprint);
     if (detailsStatus == null) {
       detailsStatus = new DetailsStatus();
     } else if (null != detailsStatus.getExtraInfoDescPublished()
@@ -353,7 +462,8 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
     detailsStatus.setExtraInfoDescPublished(
         descriptor.getPublishedMillis());
     detailsStatus.setTransports(descriptor.getTransports());
-    this.documentStore.store(detailsStatus, fingerprint);
+    this.storeDetailsStatus(detailsStatus, fingerprint);
+    this.changedNodes.add(fingerprint);
   }
 
   private void processBridgeNetworkStatus(BridgeNetworkStatus status) {
@@ -365,11 +475,11 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
         status.getStatusEntries().entrySet()) {
       String fingerprint = e.getKey();
       NetworkStatusEntry entry = e.getValue();
-      NodeStatus nodeStatus = this.knownNodes.get(fingerprint);
+      NodeStatus nodeStatus = this.getKnownNode(fingerprint);
       if (nodeStatus == null) {
         nodeStatus = new NodeStatus(fingerprint);
-        this.knownNodes.put(fingerprint, nodeStatus);
       }
+      this.changedNodes.add(fingerprint);
       if (nodeStatus.getFirstSeenMillis() == 0L
           || publishedMillis < nodeStatus.getFirstSeenMillis()) {
         nodeStatus.setFirstSeenMillis(publishedMillis);
@@ -385,6 +495,7 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
         nodeStatus.setRelayFlags(entry.getFlags());
         nodeStatus.setLastSeenMillis(publishedMillis);
       }
+      this.putKnownNode(nodeStatus);
     }
     this.bridgeStatusesProcessed++;
   }
@@ -420,6 +531,8 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
 
   /* Step 2: read node statuses from disk. */
 
+  private long recentlySeenCutoffMillis = -1L;
+
   private SortedSet<String> currentRelays = new TreeSet<>();
 
   private SortedSet<String> runningRelays = new TreeSet<>();
@@ -454,14 +567,12 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
     }
     long cutoff = Math.max(this.relaysLastValidAfterMillis,
         this.bridgesLastPublishedMillis) - DateTimeHelper.ONE_WEEK;
-    for (Map.Entry<String, NodeStatus> e : this.knownNodes.entrySet()) {
-      String fingerprint = e.getKey();
-      NodeStatus nodeStatus = e.getValue();
-      if (nodeStatus.isRelay()
-          && nodeStatus.getLastSeenMillis() >= cutoff) {
+    this.recentlySeenCutoffMillis = cutoff;
+    for (String fingerprint : this.knownNodes.getFingerprints()) {
+      long lastSeenMillis = this.knownNodes.getLastSeenMillis(fingerprint);
+      if (this.knownNodes.isRelay(fingerprint) && lastSeenMillis >= cutoff) {
         this.currentRelays.add(fingerprint);
-        if (nodeStatus.getLastSeenMillis()
-            == this.relaysLastValidAfterMillis) {
+        if (lastSeenMillis == this.relaysLastValidAfterMillis) {
           this.runningRelays.add(fingerprint);
         }
       }
@@ -470,7 +581,7 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
       NodeStatus nodeStatus = this.documentStore.retrieve(
           NodeStatus.class, true, fingerprint);
       NodeStatus updatedNodeStatus;
-      if (this.knownNodes.containsKey(fingerprint)) {
+      if (this.knownNodes.contains(fingerprint)) {
         updatedNodeStatus = this.knownNodes.get(fingerprint);
         String address = nodeStatus.getAddress();
         if (address.equals(updatedNodeStatus.getAddress())) {
@@ -522,8 +633,8 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
             nodeStatus.getExtendedFamily());
       } else {
         updatedNodeStatus = nodeStatus;
-        this.knownNodes.put(fingerprint, nodeStatus);
       }
+      this.knownNodes.put(updatedNodeStatus);
       if (updatedNodeStatus.isRelay()
           && updatedNodeStatus.getLastSeenMillis() >= cutoff) {
         this.currentRelays.add(fingerprint);
@@ -537,12 +648,12 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
      * learned when parsing server descriptors in this run.  These are
      * guaranteed to come from more recent server descriptors, so it's
      * safe to override whatever is in node statuses. */
-    for (Map.Entry<String, NodeStatus> e : this.knownNodes.entrySet()) {
-      String fingerprint = e.getKey();
-      if (this.declaredFamilies.containsKey(fingerprint)) {
-        NodeStatus nodeStatus = e.getValue();
-        nodeStatus.setDeclaredFamily(
-            this.declaredFamilies.get(fingerprint));
+    for (Map.Entry<String, SortedSet<String>> e
+        : this.declaredFamilies.entrySet()) {
+      NodeStatus nodeStatus = this.knownNodes.get(e.getKey());
+      if (null != nodeStatus) {
+        nodeStatus.setDeclaredFamily(e.getValue());
+        this.knownNodes.put(nodeStatus);
       }
     }
     this.declaredFamilies.clear();
@@ -692,7 +803,7 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
   }
 
   private void computeEffectiveAndExtendedFamilies() {
-    SortedMap<String, SortedSet<String>> declaredFamilies = new TreeMap<>();
+    Map<String, SortedSet<String>> declaredFamilies = new HashMap<>();
     for (String fingerprint : this.currentRelays) {
       NodeStatus nodeStatus = this.knownNodes.get(fingerprint);
       if (nodeStatus != null && nodeStatus.getDeclaredFamily() != null
@@ -700,67 +811,55 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
         declaredFamilies.put(fingerprint, nodeStatus.getDeclaredFamily());
       }
     }
-    SortedMap<String, SortedSet<String>> effectiveFamilies = new TreeMap<>();
-    for (Map.Entry<String, SortedSet<String>> e :
-        declaredFamilies.entrySet()) {
-      String fingerprint = e.getKey();
-      SortedSet<String> declaredFamily = e.getValue();
-      SortedSet<String> effectiveFamily = new TreeSet<>();
-      for (String declaredFamilyMember : declaredFamily) {
-        if (declaredFamilies.containsKey(declaredFamilyMember)
-            && declaredFamilies.get(declaredFamilyMember).contains(
-            fingerprint)) {
-          effectiveFamily.add(declaredFamilyMember);
-        }
-      }
-      if (!effectiveFamily.isEmpty()) {
-        effectiveFamilies.put(fingerprint, effectiveFamily);
+    FamilyGraph familyGraph =
+        FamilyGraph.fromDeclaredFamilies(declaredFamilies);
+    Map<String, String[]> extendedFamilies = new HashMap<>();
+    for (String[] extendedFamily : familyGraph.getExtendedFamilies()) {
+      for (String member : extendedFamily) {
+        extendedFamilies.put(member, extendedFamily);
       }
     }
-    SortedMap<String, SortedSet<String>> extendedFamilies = new TreeMap<>();
-    SortedSet<String> visited = new TreeSet<>();
-    for (String fingerprint : effectiveFamilies.keySet()) {
-      if (visited.contains(fingerprint)) {
-        continue;
-      }
-      SortedSet<String> toVisit = new TreeSet<>();
-      toVisit.add(fingerprint);
-      SortedSet<String> extendedFamily = new TreeSet<>();
-      while (!toVisit.isEmpty()) {
-        String visiting = toVisit.first();
-        toVisit.remove(visiting);
-        extendedFamily.add(visiting);
-        SortedSet<String> members = effectiveFamilies.get(visiting);
-        if (members != null) {
-          for (String member : members) {
-            if (!toVisit.contains(member) && !visited.contains(member)) {
-              toVisit.add(member);
-            }
+    for (String fingerprint : this.currentRelays) {
+      NodeStatus nodeStatus = this.knownNodes.get(fingerprint);
+      String[] effectiveFamily = null;
+      if (declaredFamilies.containsKey(fingerprint)) {
+        /* A relay that declares itself is part of its effective family. */
+        List<String> members = familyGraph.getFamily(fingerprint);
+        boolean declaresItself =
+            declaredFamilies.get(fingerprint).contains(fingerprint);
+        if (declaresItself || !members.isEmpty()) {
+          effectiveFamily = members.toArray(
+              new String[members.size() + (declaresItself ? 1 : 0)]);
+          if (declaresItself) {
+            effectiveFamily[members.size()] = fingerprint;
+            Arrays.sort(effectiveFamily);
           }
         }
-        visited.add(visiting);
-      }
-      if (extendedFamily.size() > 1) {
-        for (String member : extendedFamily) {
-          SortedSet<String> extendedFamilyWithoutMember =
-              new TreeSet<>(extendedFamily);
-          extendedFamilyWithoutMember.remove(member);
-          extendedFamilies.put(member, extendedFamilyWithoutMember);
+      }
+      /* Extended families are stored without the relay itself, which
+       * would otherwise show up in its own indirect family. */
+      String[] extendedFamily = null;
+      String[] component = extendedFamilies.get(fingerprint);
+      if (null != component) {
+        extendedFamily = new String[component.length - 1];
+        int position = 0;
+        for (String member : component) {
+          if (!member.equals(fingerprint)) {
+            extendedFamily[position++] = member;
+          }
         }
       }
-    }
-    for (String fingerprint : this.currentRelays) {
-      NodeStatus nodeStatus = this.knownNodes.get(fingerprint);
-      if (effectiveFamilies.containsKey(fingerprint)
-          || extendedFamilies.containsKey(fingerprint)) {
-        nodeStatus.setEffectiveFamily(effectiveFamilies.get(fingerprint));
-        nodeStatus.setExtendedFamily(extendedFamilies.get(fingerprint));
+      if (null != effectiveFamily || null != extendedFamily) {
+        nodeStatus.setEffectiveAndExtendedFamily(effectiveFamily,
+            extendedFamily);
+        this.knownNodes.put(nodeStatus);
       } else if ((nodeStatus.getEffectiveFamily() != null
           && !nodeStatus.getEffectiveFamily().isEmpty())
           || (nodeStatus.getIndirectFamily() != null
           && !nodeStatus.getIndirectFamily().isEmpty())) {
         nodeStatus.setEffectiveFamily(null);
         nodeStatus.setExtendedFamily(null);
+        this.knownNodes.put(nodeStatus);
       }
     }
   }
@@ -797,199 +896,391 @@ public class NodeDetailsStatusUpdater implements DescriptorListener,
 
   /* Step 4: update details statuses and then node statuses. */
 
-  private void updateNodeDetailsStatuses() {
-    for (Map.Entry<String, NodeStatus> entry : this.knownNodes.entrySet()) {
-      String fingerprint = entry.getKey();
-      NodeStatus nodeStatus = entry.getValue();
+  /* Adds all nodes to the set of changed nodes whose node or details
+   * statuses may change in step 4 even though no descriptors were parsed
+   * for them in this execution. */
+  private void addIndirectlyChangedNodes() {
+    for (String fingerprint : this.knownNodes.getFingerprints()) {
+      if (this.knownNodes.getLastSeenMillis(fingerprint)
+          >= this.recentlySeenCutoffMillis) {
+        this.changedNodes.add(fingerprint);
+        continue;
+      }
+      if (this.knownNodes.hasExitAddresses(fingerprint)
+          || this.isVersionStatusChanged(fingerprint)) {
+        this.changedNodes.add(fingerprint);
+      }
+    }
+    this.changedNodes.addAll(this.geoIpLookupResults.keySet());
+    this.changedNodes.addAll(this.consensusWeightFractions.keySet());
+    this.changedNodes.addAll(this.rdnsVerifiedLookupResults.keySet());
+    this.changedNodes.addAll(this.rdnsUnverifiedLookupResults.keySet());
+    if (null != this.latestBridgePoolAssignments) {
+      this.changedNodes.addAll(
+          this.latestBridgePoolAssignments.getEntries().keySet());
+      this.addBridgesWithOutdatedDistributor();
+    }
+  }
+
+  /* Adds all bridges to the set of changed nodes that are not contained in
+   * the latest bridge pool assignment but that still have a BridgeDB
+   * distributor from an older assignment, which needs to be reset. */
+  private void addBridgesWithOutdatedDistributor() {
+    long publishedMillis =
+        this.latestBridgePoolAssignments.getPublishedMillis();
+    for (String fingerprint : this.knownNodes.getFingerprints()) {
+      if (this.knownNodes.isRelay(fingerprint)
+          || this.changedNodes.contains(fingerprint)) {
+        continue;
+      }
       DetailsStatus detailsStatus = this.documentStore.retrieve(
           DetailsStatus.class, true, fingerprint);
-      if (detailsStatus == null) {
-        detailsStatus = new DetailsStatus();
+      if (null != detailsStatus
+          && null != detailsStatus.getBridgedbDistributor()
+          && (null == detailsStatus.getBridgePoolAssignmentPublished()
+          || detailsStatus.getBridgePoolAssignmentPublished()
+          < publishedMillis)) {
+        this.changedNodes.add(fingerprint);
       }
+    }
+  }
 
-      nodeStatus.setContact(detailsStatus.getContact());
-      if (null != detailsStatus.getPlatform()) {
-        String[] platformParts = detailsStatus.getPlatform().split(" on ");
-        if (platformParts.length > 1) {
-          nodeStatus.setOperatingSystem(platformParts[1].toLowerCase());
-        }
-      }
+  /* Returns whether the recommended version flag or the version status of
+   * the known node with the given fingerprint differs from what the
+   * recommended server versions in the last known consensus say about its
+   * version. */
+  private boolean isVersionStatusChanged(String fingerprint) {
+    if (null == this.lastRecommendedServerVersions) {
+      return false;
+    }
+    String version = this.knownNodes.getVersion(fingerprint);
+    if (null == version) {
+      return false;
+    }
+    TorVersion torVersion = TorVersion.of(version);
+    TorVersionStatus versionStatus = null != torVersion
+        ? torVersion.determineVersionStatus(
+            this.lastRecommendedServerVersions)
+        : TorVersionStatus.UNRECOMMENDED;
+    return !Boolean.valueOf(this.lastRecommendedServerVersions.contains(
+        torVersion)).equals(this.knownNodes.isRecommendedVersion(fingerprint))
+        || versionStatus != this.knownNodes.getVersionStatus(fingerprint);
+  }
 
-      /* Extract tor software version for bridges from their "platform" line.
-       * (We already know this for relays from "v" lines in the consensus.) */
-      if (!nodeStatus.isRelay()) {
-        String version = null;
-        if (null != detailsStatus.getPlatform()
-            && detailsStatus.getPlatform().startsWith("Tor ")) {
-          version = detailsStatus.getPlatform().split(" ")[1];
-        }
-        nodeStatus.setVersion(version);
-      }
+  /* Number of threads for updating node and details statuses, which can
+   * be configured using a system property. */
+  private final int detailsThreads = Integer.getInteger(
+      "onionoo.details.threads", Runtime.getRuntime().availableProcessors());
 
-      /* Compare tor software version (for relays and bridges) with the
-       * recommended-server-versions line in the last known consensus and set
-       * the recommended_version field accordingly. */
-      if (null != this.lastRecommendedServerVersions
-          && null != nodeStatus.getVersion()) {
-        TorVersion torVersion = TorVersion.of(nodeStatus.getVersion());
-        nodeStatus.setRecommendedVersion(this.lastRecommendedServerVersions
-            .contains(torVersion));
-        nodeStatus.setVersionStatus(null != torVersion
-            ? torVersion.determineVersionStatus(
-                this.lastRecommendedServerVersions)
-            : TorVersionStatus.UNRECOMMENDED);
-      }
-
-      Map<String, Long> exitAddresses = new HashMap<>();
-      if (detailsStatus.getExitAddresses() != null) {
-        for (Map.Entry<String, Long> e :
-            detailsStatus.getExitAddresses().entrySet()) {
-          if (e.getValue() >= this.now - DateTimeHelper.ONE_DAY) {
-            exitAddresses.put(e.getKey(), e.getValue());
-          }
-        }
-      }
-      if (this.exitListEntries.containsKey(fingerprint)) {
-        for (Map.Entry<String, Long> e :
-            this.exitListEntries.get(fingerprint).entrySet()) {
-          String exitAddress = e.getKey();
-          long scanMillis = e.getValue();
-          if (exitAddresses.getOrDefault(exitAddress, 0L) < scanMillis) {
-            exitAddresses.put(exitAddress, scanMillis);
-          }
+  /* Maximum number of fingerprints that are updated by a single task
+   * without splitting it into two tasks. */
+  private static final int FINGERPRINTS_PER_TASK = 64;
+
+  /* Task that updates node and details statuses of a contiguous range of
+   * sorted fingerprints, which it splits into two halves with different
+   * fingerprint prefixes until it is small enough, and puts updated node
+   * statuses at the same positions into a shared array. */
+  private class UpdateTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> fingerprints;
+
+    private final NodeStatus[] updatedNodeStatuses;
+
+    private final int offset;
+
+    private UpdateTask(List<String> fingerprints,
+        NodeStatus[] updatedNodeStatuses, int offset) {
+      this.fingerprints = fingerprints;
+      this.updatedNodeStatuses = updatedNodeStatuses;
+      this.offset = offset;
+    }
+
+    @Override
+    protected void compute() {
+      int size = this.fingerprints.size();
+      if (size <= FINGERPRINTS_PER_TASK) {
+        for (int i = 0; i < size; i++) {
+          String fingerprint = this.fingerprints.get(i);
+          NodeStatus nodeStatus = knownNodes.get(fingerprint);
+          updateNodeDetailsStatus(fingerprint, nodeStatus);
+          this.updatedNodeStatuses[this.offset + i] = nodeStatus;
         }
+      } else {
+        invokeAll(new UpdateTask(this.fingerprints.subList(0, size / 2),
+            this.updatedNodeStatuses, this.offset),
+            new UpdateTask(this.fingerprints.subList(size / 2, size),
+            this.updatedNodeStatuses, this.offset + size / 2));
       }
-      detailsStatus.setExitAddresses(exitAddresses);
-      nodeStatus.setExitAddresses(new TreeSet<>(exitAddresses.keySet()));
+    }
+  }
 
-      if (null != this.latestBridgePoolAssignments
-          && (null == detailsStatus.getBridgePoolAssignmentPublished()
-          || detailsStatus.getBridgePoolAssignmentPublished()
-          < this.latestBridgePoolAssignments.getPublishedMillis())) {
-        if (this.latestBridgePoolAssignments.getEntries()
-            .containsKey(fingerprint)) {
-          detailsStatus.setBridgePoolAssignmentPublished(
-              this.latestBridgePoolAssignments.getPublishedMillis());
-          String assignment = this.latestBridgePoolAssignments.getEntries()
-              .get(fingerprint);
-          if (null != assignment && !assignment.isEmpty()) {
-            String bridgedbDistributor = assignment.split(" ")[0];
-            detailsStatus.setBridgedbDistributor(bridgedbDistributor);
-          }
-        } else {
-          detailsStatus.setBridgePoolAssignmentPublished(0L);
-          detailsStatus.setBridgedbDistributor(null);
-        }
+  /* Replaces all inputs of step 4 that are shared between fingerprints by
+   * read-only views, so that they cannot be modified accidentally while
+   * updating statuses concurrently. */
+  private void freezeInputs() {
+    this.knownNodes.freeze();
+    this.exitListEntries = Collections.unmodifiableMap(this.exitListEntries);
+    this.lastSeenMeasured = Collections.unmodifiableMap(
+        this.lastSeenMeasured);
+    this.lastSeenUnmeasured = Collections.unmodifiableMap(
+        this.lastSeenUnmeasured);
+    this.geoIpLookupResults = Collections.unmodifiableSortedMap(
+        this.geoIpLookupResults);
+    this.consensusWeightFractions = Collections.unmodifiableSortedMap(
+        this.consensusWeightFractions);
+    this.guardProbabilities = Collections.unmodifiableSortedMap(
+        this.guardProbabilities);
+    this.middleProbabilities = Collections.unmodifiableSortedMap(
+        this.middleProbabilities);
+    this.exitProbabilities = Collections.unmodifiableSortedMap(
+        this.exitProbabilities);
+    this.rdnsVerifiedLookupResults = Collections.unmodifiableSortedMap(
+        this.rdnsVerifiedLookupResults);
+    this.rdnsUnverifiedLookupResults = Collections.unmodifiableSortedMap(
+        this.rdnsUnverifiedLookupResults);
+    if (null != this.lastRecommendedServerVersions) {
+      this.lastRecommendedServerVersions = Collections.unmodifiableSortedSet(
+          this.lastRecommendedServerVersions);
+    }
+  }
+
+  /* Updates details statuses of all changed nodes in parallel, storing
+   * them as they are updated, and then stores node statuses of these nodes
+   * sequentially, because node statuses are kept in a shared cache by the
+   * document store. */
+  private void updateNodeDetailsStatuses() {
+    this.addIndirectlyChangedNodes();
+    this.freezeInputs();
+    List<String> fingerprints = new ArrayList<>();
+    for (String fingerprint : this.changedNodes) {
+      if (this.knownNodes.contains(fingerprint)) {
+        fingerprints.add(fingerprint);
       }
+    }
+    NodeStatus[] updatedNodeStatuses = new NodeStatus[fingerprints.size()];
+    ForkJoinPool forkJoinPool = new ForkJoinPool(Math.max(1,
+        this.detailsThreads));
+    try {
+      forkJoinPool.invoke(new UpdateTask(fingerprints, updatedNodeStatuses,
+          0));
+    } finally {
+      forkJoinPool.shutdown();
+    }
+    for (int i = 0; i < updatedNodeStatuses.length; i++) {
+      this.documentStore.store(updatedNodeStatuses[i], fingerprints.get(i));
+    }
+    this.updatedNodes += fingerprints.size();
+    this.skippedNodes += this.knownNodes.size() - fingerprints.size();
+    this.changedNodes.clear();
+  }
 
-      detailsStatus.setAllegedFamily(nodeStatus.getAllegedFamily());
-      detailsStatus.setEffectiveFamily(nodeStatus.getEffectiveFamily());
-      detailsStatus.setIndirectFamily(nodeStatus.getIndirectFamily());
+  /* Updates the given node status and the corresponding details status,
+   * and stores the details status. */
+  private void updateNodeDetailsStatus(String fingerprint,
+      NodeStatus nodeStatus) {
+    DetailsStatus detailsStatus = this.documentStore.retrieve(
+        DetailsStatus.class, true, fingerprint);
+    if (detailsStatus == null) {
+      detailsStatus = new DetailsStatus();
+    }
 
-      if (this.geoIpLookupResults.containsKey(fingerprint)) {
-        LookupResult lookupResult = this.geoIpLookupResults.get(
-            fingerprint);
-        detailsStatus.setCountryCode(lookupResult.getCountryCode());
-        detailsStatus.setCountryName(lookupResult.getCountryName());
-        detailsStatus.setRegionName(lookupResult.getRegionName());
-        detailsStatus.setCityName(lookupResult.getCityName());
-        detailsStatus.setLatitude(lookupResult.getLatitude());
-        detailsStatus.setLongitude(lookupResult.getLongitude());
-        detailsStatus.setAsNumber(lookupResult.getAsNumber());
-        detailsStatus.setAsName(lookupResult.getAsName());
-        nodeStatus.setCountryCode(lookupResult.getCountryCode());
-        nodeStatus.setAsNumber(lookupResult.getAsNumber());
-        if (null != lookupResult.getAsName()) {
-          nodeStatus.setAsName(lookupResult.getAsName().toLowerCase());
-        }
+    nodeStatus.setContact(detailsStatus.getContact());
+    if (null != detailsStatus.getPlatform()) {
+      String[] platformParts = detailsStatus.getPlatform().split(" on ");
+      if (platformParts.length > 1) {
+        nodeStatus.setOperatingSystem(platformParts[1].toLowerCase());
       }
+    }
 
-      if (this.consensusWeightFractions.containsKey(fingerprint)) {
-        detailsStatus.setConsensusWeightFraction(
-            this.consensusWeightFractions.get(fingerprint));
+    /* Extract tor software version for bridges from their "platform" line.
+     * (We already know this for relays from "v" lines in the consensus.) */
+    if (!nodeStatus.isRelay()) {
+      String version = null;
+      if (null != detailsStatus.getPlatform()
+          && detailsStatus.getPlatform().startsWith("Tor ")) {
+        version = detailsStatus.getPlatform().split(" ")[1];
       }
-      if (this.guardProbabilities.containsKey(fingerprint)) {
-        detailsStatus.setGuardProbability(
-            this.guardProbabilities.get(fingerprint));
+      nodeStatus.setVersion(version);
+    }
+
+    /* Compare tor software version (for relays and bridges) with the
+     * recommended-server-versions line in the last known consensus and set
+     * the recommended_version field accordingly. */
+    if (null != this.lastRecommendedServerVersions
+        && null != nodeStatus.getVersion()) {
+      TorVersion torVersion = TorVersion.of(nodeStatus.getVersion());
+      nodeStatus.setRecommendedVersion(this.lastRecommendedServerVersions
+          .contains(torVersion));
+      nodeStatus.setVersionStatus(null != torVersion
+          ? torVersion.determineVersionStatus(
+              this.lastRecommendedServerVersions)
+          : TorVersionStatus.UNRECOMMENDED);
+    }
+
+    Map<String, Long> exitAddresses = new HashMap<>();
+    if (detailsStatus.getExitAddresses() != null) {
+      for (Map.Entry<String, Long> e :
+          detailsStatus.getExitAddresses().entrySet()) {
+        if (e.getValue() >= this.now - DateTimeHelper.ONE_DAY) {
+          exitAddresses.put(e.getKey(), e.getValue());
+        }
       }
-      if (this.middleProbabilities.containsKey(fingerprint)) {
-        detailsStatus.setMiddleProbability(
-            this.middleProbabilities.get(fingerprint));
+    }
+    if (this.exitListEntries.containsKey(fingerprint)) {
+      for (Map.Entry<String, Long> e :
+          this.exitListEntries.get(fingerprint).entrySet()) {
+        String exitAddress = e.getKey();
+        long scanMillis = e.getValue();
+        if (exitAddresses.getOrDefault(exitAddress, 0L) < scanMillis) {
+          exitAddresses.put(exitAddress, scanMillis);
+        }
       }
-      if (this.exitProbabilities.containsKey(fingerprint)) {
-        detailsStatus.setExitProbability(
-            this.exitProbabilities.get(fingerprint));
+    }
+    detailsStatus.setExitAddresses(exitAddresses);
+    nodeStatus.setExitAddresses(new TreeSet<>(exitAddresses.keySet()));
+
+    if (null != this.latestBridgePoolAssignments
+        && (null == detailsStatus.getBridgePoolAssignmentPublished()
+        || detailsStatus.getBridgePoolAssignmentPublished()
+        < this.latestBridgePoolAssignments.getPublishedMillis())) {
+      if (this.latestBridgePoolAssignments.getEntries()
+          .containsKey(fingerprint)) {
+        detailsStatus.setBridgePoolAssignmentPublished(
+            this.latestBridgePoolAssignments.getPublishedMillis());
+        String assignment = this.latestBridgePoolAssignments.getEntries()
+            .get(fingerprint);
+        if (null != assignment && !assignment.isEmpty()) {
+          String bridgedbDistributor = assignment.split(" ")[0];
+          detailsStatus.setBridgedbDistributor(bridgedbDistributor);
+        }
+      } else {
+        detailsStatus.setBridgePoolAssignmentPublished(0L);
+        detailsStatus.setBridgedbDistributor(null);
       }
+    }
 
-      if (this.rdnsVerifiedLookupResults.containsKey(fingerprint)) {
-        SortedSet<String> verifiedHostNames =
-            this.rdnsVerifiedLookupResults.get(fingerprint);
-        detailsStatus.setVerifiedHostNames(verifiedHostNames);
-        nodeStatus.setVerifiedHostNames(verifiedHostNames);
-        nodeStatus.setLastRdnsLookup(this.startedRdnsLookups);
+    detailsStatus.setAllegedFamily(nodeStatus.getAllegedFamily());
+    detailsStatus.setEffectiveFamily(nodeStatus.getEffectiveFamily());
+    detailsStatus.setIndirectFamily(nodeStatus.getIndirectFamily());
+
+    if (this.geoIpLookupResults.containsKey(fingerprint)) {
+      LookupResult lookupResult = this.geoIpLookupResults.get(
+          fingerprint);
+      detailsStatus.setCountryCode(lookupResult.getCountryCode());
+      detailsStatus.setCountryName(lookupResult.getCountryName());
+      detailsStatus.setRegionName(lookupResult.getRegionName());
+      detailsStatus.setCityName(lookupResult.getCityName());
+      detailsStatus.setLatitude(lookupResult.getLatitude());
+      detailsStatus.setLongitude(lookupResult.getLongitude());
+      detailsStatus.setAsNumber(lookupResult.getAsNumber());
+      detailsStatus.setAsName(lookupResult.getAsName());
+      nodeStatus.setCountryCode(lookupResult.getCountryCode());
+      nodeStatus.setAsNumber(lookupResult.getAsNumber());
+      if (null != lookupResult.getAsName()) {
+        nodeStatus.setAsName(lookupResult.getAsName().toLowerCase());
       }
+    }
 
-      if (this.rdnsUnverifiedLookupResults.containsKey(fingerprint)) {
-        SortedSet<String> unverifiedHostNames =
-            this.rdnsUnverifiedLookupResults.get(fingerprint);
-        detailsStatus.setUnverifiedHostNames(unverifiedHostNames);
-        nodeStatus.setUnverifiedHostNames(unverifiedHostNames);
-        nodeStatus.setLastRdnsLookup(this.startedRdnsLookups);
-      }
+    if (this.consensusWeightFractions.containsKey(fingerprint)) {
+      detailsStatus.setConsensusWeightFraction(
+          this.consensusWeightFractions.get(fingerprint));
+    }
+    if (this.guardProbabilities.containsKey(fingerprint)) {
+      detailsStatus.setGuardProbability(
+          this.guardProbabilities.get(fingerprint));
+    }
+    if (this.middleProbabilities.containsKey(fingerprint)) {
+      detailsStatus.setMiddleProbability(
+          this.middleProbabilities.get(fingerprint));
+    }
+    if (this.exitProbabilities.containsKey(fingerprint)) {
+      detailsStatus.setExitProbability(
+          this.exitProbabilities.get(fingerprint));
+    }
 
-      if (detailsStatus.getLastSeenMillis()
-          < nodeStatus.getLastSeenMillis()) {
-        if (this.lastSeenMeasured.containsKey(fingerprint)) {
-          if (this.lastSeenUnmeasured.containsKey(fingerprint)
-              && this.lastSeenUnmeasured.get(fingerprint)
-              > this.lastSeenMeasured.get(fingerprint)) {
-            detailsStatus.setMeasured(false);
-          } else {
-            detailsStatus.setMeasured(true);
-          }
-        } else if (this.lastSeenUnmeasured.containsKey(fingerprint)) {
+    if (this.rdnsVerifiedLookupResults.containsKey(fingerprint)) {
+      SortedSet<String> verifiedHostNames =
+          this.rdnsVerifiedLookupResults.get(fingerprint);
+      detailsStatus.setVerifiedHostNames(verifiedHostNames);
+      nodeStatus.setVerifiedHostNames(verifiedHostNames);
+      nodeStatus.setLastRdnsLookup(this.startedRdnsLookups);
+    }
+
+    if (this.rdnsUnverifiedLookupResults.containsKey(fingerprint)) {
+      SortedSet<String> unverifiedHostNames =
+          this.rdnsUnverifiedLookupResults.get(fingerprint);
+      detailsStatus.setUnverifiedHostNames(unverifiedHostNames);
+      nodeStatus.setUnverifiedHostNames(unverifiedHostNames);
+      nodeStatus.setLastRdnsLookup(this.startedRdnsLookups);
+    }
+
+    if (detailsStatus.getLastSeenMillis()
+        < nodeStatus.getLastSeenMillis()) {
+      if (this.lastSeenMeasured.containsKey(fingerprint)) {
+        if (this.lastSeenUnmeasured.containsKey(fingerprint)
+            && this.lastSeenUnmeasured.get(fingerprint)
+            > this.lastSeenMeasured.get(fingerprint)) {
           detailsStatus.setMeasured(false);
+        } else {
+          detailsStatus.setMeasured(true);
         }
+      } else if (this.lastSeenUnmeasured.containsKey(fingerprint)) {
+        detailsStatus.setMeasured(false);
       }
+    }
 
-      detailsStatus.setRelay(nodeStatus.isRelay());
-      detailsStatus.setRunning(nodeStatus.getRelayFlags().contains("Running")
-          && nodeStatus.getLastSeenMillis()
-          == (nodeStatus.isRelay() ? this.relaysLastValidAfterMillis
-          : this.bridgesLastPublishedMillis));
-      detailsStatus.setNickname(nodeStatus.getNickname());
-      detailsStatus.setAddress(nodeStatus.getAddress());
-      detailsStatus.setOrAddressesAndPorts(
-          nodeStatus.getOrAddressesAndPorts());
-      detailsStatus.setFirstSeenMillis(nodeStatus.getFirstSeenMillis());
-      detailsStatus.setLastSeenMillis(nodeStatus.getLastSeenMillis());
-      detailsStatus.setOrPort(nodeStatus.getOrPort());
-      detailsStatus.setDirPort(nodeStatus.getDirPort());
-      detailsStatus.setRelayFlags(nodeStatus.getRelayFlags());
-      detailsStatus.setConsensusWeight(nodeStatus.getConsensusWeight());
-      detailsStatus.setDefaultPolicy(nodeStatus.getDefaultPolicy());
-      detailsStatus.setPortList(nodeStatus.getPortList());
-      detailsStatus.setRecommendedVersion(
-          nodeStatus.isRecommendedVersion());
-      detailsStatus.setLastChangedOrAddressOrPort(
-          nodeStatus.getLastChangedOrAddressOrPort());
-      detailsStatus.setVersion(nodeStatus.getVersion());
-      if (null != nodeStatus.getVersionStatus()) {
-        detailsStatus.setVersionStatus(nodeStatus.getVersionStatus()
-            .toString());
-      }
-
-      this.documentStore.store(detailsStatus, fingerprint);
-      this.documentStore.store(nodeStatus, fingerprint);
+    detailsStatus.setRelay(nodeStatus.isRelay());
+    detailsStatus.setRunning(nodeStatus.getRelayFlags().contains("Running")
+        && nodeStatus.getLastSeenMillis()
+        == (nodeStatus.isRelay() ? this.relaysLastValidAfterMillis
+        : this.bridgesLastPublishedMillis));
+    detailsStatus.setNickname(nodeStatus.getNickname());
+    detailsStatus.setAddress(nodeStatus.getAddress());
+    detailsStatus.setOrAddressesAndPorts(
+        nodeStatus.getOrAddressesAndPorts());
+    detailsStatus.setFirstSeenMillis(nodeStatus.getFirstSeenMillis());
+    detailsStatus.setLastSeenMillis(nodeStatus.getLastSeenMillis());
+    detailsStatus.setOrPort(nodeStatus.getOrPort());
+    detailsStatus.setDirPort(nodeStatus.getDirPort());
+    detailsStatus.setRelayFlags(nodeStatus.getRelayFlags());
+    detailsStatus.setConsensusWeight(nodeStatus.getConsensusWeight());
+    detailsStatus.setDefaultPolicy(nodeStatus.getDefaultPolicy());
+    detailsStatus.setPortList(nodeStatus.getPortList());
+    detailsStatus.setRecommendedVersion(
+        nodeStatus.isRecommendedVersion());
+    detailsStatus.setLastChangedOrAddressOrPort(
+        nodeStatus.getLastChangedOrAddressOrPort());
+    detailsStatus.setVersion(nodeStatus.getVersion());
+    if (null != nodeStatus.getVersionStatus()) {
+      detailsStatus.setVersionStatus(nodeStatus.getVersionStatus()
+          .toString());
     }
+
+    this.documentStore.store(detailsStatus, fingerprint);
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(NodeStatus.class, DetailsStatus.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return new HashSet<>(Arrays.asList(NodeStatus.class, DetailsStatus.class));
   }
 
   @Override
   public String getStatsString() {
     return String.format("    %s relay consensuses processed\n"
-        + "    %s bridge statuses processed\n",
+        + "    %s bridge statuses processed\n"
+        + "    %s node and details statuses updated\n"
+        + "    %s unchanged node and details statuses skipped\n",
         FormattingUtils.formatDecimalNumber(relayConsensusesProcessed),
-        FormattingUtils.formatDecimalNumber(bridgeStatusesProcessed));
+        FormattingUtils.formatDecimalNumber(bridgeStatusesProcessed),
+        FormattingUtils.formatDecimalNumber(this.updatedNodes),
+        FormattingUtils.formatDecimalNumber(this.skippedNodes));
   }
 }
 
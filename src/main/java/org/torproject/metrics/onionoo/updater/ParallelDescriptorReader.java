@@ -0,0 +1,217 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import org.torproject.descriptor.Descriptor;
+import org.torproject.descriptor.DescriptorParser;
+import org.torproject.descriptor.DescriptorSourceFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Reader for descriptor files in a directory that reads and parses files
+ * in parallel while still returning descriptors in a well-defined order.
+ *
+ * <p>Files are processed in the lexicographical order of their paths,
+ * which, given CollecTor's file naming, puts consensuses and other
+ * statuses in valid-after order.  A bounded number of files is read and
+ * parsed ahead by a pool of parser threads, and descriptors of a file are
+ * only returned after all descriptors of preceding files.</p>
+ *
+ * <p>Like metrics-lib's descriptor reader, this reader skips files that
+ * are contained in the given excluded files with the same last-modified
+ * time, and it keeps track of parsed files for the next execution.</p>
+ */
+class ParallelDescriptorReader {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ParallelDescriptorReader.class);
+
+  private final int parserThreads;
+
+  private final int maxFilesInQueue;
+
+  private final Function<File, List<Descriptor>> fileParser;
+
+  private Map<String, Long> excludedFiles = new HashMap<>();
+
+  private final Map<String, Long> parsedFiles =
+      Collections.synchronizedMap(new HashMap<>());
+
+  /* Parsers are created once per parser thread, because they are not
+   * guaranteed to be thread-safe. */
+  private static final ThreadLocal<DescriptorParser> descriptorParsers =
+      ThreadLocal.withInitial(DescriptorSourceFactory::createDescriptorParser);
+
+  /** Creates a reader using the given number of parser threads that reads
+   * and parses at most the given number of files ahead. */
+  ParallelDescriptorReader(int parserThreads, int maxFilesInQueue) {
+    this(parserThreads, maxFilesInQueue,
+        ParallelDescriptorReader::parseDescriptorFile);
+  }
+
+  /* Creates a reader with a custom file parser, which facilitates
+   * testing. */
+  ParallelDescriptorReader(int parserThreads, int maxFilesInQueue,
+      Function<File, List<Descriptor>> fileParser) {
+    this.parserThreads = Math.max(1, parserThreads);
+    this.maxFilesInQueue = Math.max(this.parserThreads, maxFilesInQueue);
+    this.fileParser = fileParser;
+  }
+
+  private static List<Descriptor> parseDescriptorFile(File file) {
+    List<Descriptor> descriptors = new ArrayList<>();
+    try {
+      byte[] rawDescriptorBytes = Files.readAllBytes(file.toPath());
+      for (Descriptor descriptor : descriptorParsers.get().parseDescriptors(
+          rawDescriptorBytes, file, file.getName())) {
+        descriptors.add(descriptor);
+      }
+    } catch (IOException e) {
+      logger.warn("Unable to read descriptor file {}. Skipping.", file, e);
+      return null;
+    }
+    return descriptors;
+  }
+
+  /** Sets files to skip together with their last-modified times, which
+   * is best given as a hash map for constant-time lookups. */
+  void setExcludedFiles(Map<String, Long> excludedFiles) {
+    this.excludedFiles = excludedFiles;
+  }
+
+  Map<String, Long> getExcludedFiles() {
+    return this.excludedFiles;
+  }
+
+  /** Returns files parsed so far together with their last-modified times,
+   * not including files that could not be read. */
+  Map<String, Long> getParsedFiles() {
+    synchronized (this.parsedFiles) {
+      return new HashMap<>(this.parsedFiles);
+    }
+  }
+
+  /** Returns an iterator over all descriptors in files in the given
+   * directory and its subdirectories, which starts reading and parsing
+   * files right away. */
+  Iterator<Descriptor> readDescriptors(File directory) {
+    List<File> files = new ArrayList<>();
+    this.listFiles(directory, files);
+    files.sort(null);
+    return new DescriptorIterator(files);
+  }
+
+  private void listFiles(File directory, List<File> files) {
+    File[] children = directory.listFiles();
+    if (null == children) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        this.listFiles(child, files);
+      } else if (!child.getName().startsWith(".")) {
+        Long excludedLastModified =
+            this.excludedFiles.get(child.getAbsolutePath());
+        if (null == excludedLastModified
+            || excludedLastModified != child.lastModified()) {
+          files.add(child);
+        }
+      }
+    }
+  }
+
+  private class DescriptorIterator implements Iterator<Descriptor> {
+
+    private final Iterator<File> files;
+
+    private final ExecutorService executorService;
+
+    private final Deque<Future<List<Descriptor>>> parsedFutures =
+        new ArrayDeque<>();
+
+    private Iterator<Descriptor> currentDescriptors =
+        Collections.emptyIterator();
+
+    private DescriptorIterator(List<File> files) {
+      this.files = files.iterator();
+      this.executorService = Executors.newFixedThreadPool(
+          Math.min(parserThreads, Math.max(1, files.size())), runnable -> {
+            Thread thread = new Thread(runnable, "descriptor-parser");
+            thread.setDaemon(true);
+            return thread;
+          });
+      this.submitFiles();
+    }
+
+    /* Submits files for parsing until the queue is full. */
+    private void submitFiles() {
+      while (this.parsedFutures.size() < maxFilesInQueue
+          && this.files.hasNext()) {
+        File file = this.files.next();
+        this.parsedFutures.add(this.executorService.submit(() -> {
+          long lastModified = file.lastModified();
+          List<Descriptor> descriptors = fileParser.apply(file);
+          if (null != descriptors) {
+            parsedFiles.put(file.getAbsolutePath(), lastModified);
+          }
+          return descriptors;
+        }));
+      }
+      if (this.parsedFutures.isEmpty()) {
+        this.executorService.shutdown();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!this.currentDescriptors.hasNext()
+          && !this.parsedFutures.isEmpty()) {
+        Future<List<Descriptor>> next = this.parsedFutures.removeFirst();
+        this.submitFiles();
+        try {
+          List<Descriptor> descriptors = next.get();
+          if (null != descriptors) {
+            this.currentDescriptors = descriptors.iterator();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          this.executorService.shutdownNow();
+          this.parsedFutures.clear();
+        } catch (ExecutionException e) {
+          logger.warn("Unable to parse descriptor file. Skipping.",
+              e.getCause());
+        }
+      }
+      return this.currentDescriptors.hasNext();
+    }
+
+    @Override
+    public Descriptor next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return this.currentDescriptors.next();
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes parse histories, that is, absolute paths of descriptor
+ * files that have been parsed before together with their last-modified
+ * times.
+ *
+ * <p>Histories are written in a compact binary format: after a four-byte
+ * header, paths are written in lexicographical order, each as the length
+ * of the prefix shared with the previous path, followed by the remaining
+ * suffix, and the difference of its last-modified time to the previous
+ * one, all lengths and differences encoded as variable-length integers.
+ * Paths in the same directory therefore only take a few bytes each.
+ * Histories written by earlier versions in the text format with one
+ * {@code <last-modified> <path>} line per file can still be read.</p>
+ */
+class ParseHistory {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ParseHistory.class);
+
+  private static final byte[] HEADER = new byte[] { 'O', 'P', 'H', 1 };
+
+  private ParseHistory() {
+  }
+
+  /** Reads the given history file in binary or text format and returns
+   * its contents as a map from paths to last-modified times. */
+  static Map<String, Long> read(File historyFile) throws IOException {
+    try (InputStream is = new BufferedInputStream(
+        new FileInputStream(historyFile))) {
+      is.mark(HEADER.length);
+      byte[] header = new byte[HEADER.length];
+      int headerLength = is.read(header);
+      is.reset();
+      if (headerLength == HEADER.length && Arrays.equals(HEADER, header)) {
+        return readBinary(new DataInputStream(is));
+      } else {
+        return readText(is, historyFile);
+      }
+    }
+  }
+
+  private static Map<String, Long> readBinary(DataInputStream dis)
+      throws IOException {
+    dis.skipBytes(HEADER.length);
+    int entries = readVarInt(dis);
+    Map<String, Long> history = new HashMap<>(2 * entries);
+    byte[] path = new byte[256];
+    int pathLength = 0;
+    long lastModified = 0L;
+    for (int i = 0; i < entries; i++) {
+      int sharedLength = readVarInt(dis);
+      int suffixLength = readVarInt(dis);
+      if (sharedLength > pathLength) {
+        throw new IOException("Corrupt parse history entry.");
+      }
+      pathLength = sharedLength + suffixLength;
+      if (pathLength > path.length) {
+        path = Arrays.copyOf(path, Math.max(pathLength, 2 * path.length));
+      }
+      dis.readFully(path, sharedLength, suffixLength);
+      lastModified += readVarLong(dis);
+      history.put(new String(path, 0, pathLength, StandardCharsets.UTF_8),
+          lastModified);
+    }
+    return history;
+  }
+
+  private static Map<String, Long> readText(InputStream is, File historyFile)
+      throws IOException {
+    Map<String, Long> history = new HashMap<>();
+    BufferedReader br = new BufferedReader(new InputStreamReader(is,
+        StandardCharsets.UTF_8));
+    String line;
+    while ((line = br.readLine()) != null) {
+      try {
+        String[] parts = line.split(" ", 2);
+        history.put(parts[1], Long.parseLong(parts[0]));
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        logger.error("Illegal line '{}' in parse history {}. Skipping line.",
+            line, historyFile);
+      }
+    }
+    return history;
+  }
+
+  /** Writes the given map from paths to last-modified times to the given
+   * history file in binary format, replacing the file only after all
+   * entries have been written. */
+  static void write(File historyFile, Map<String, Long> history)
+      throws IOException {
+    String[] paths = history.keySet().toArray(new String[0]);
+    Arrays.sort(paths);
+    File tempFile = new File(historyFile.getParentFile(),
+        historyFile.getName() + ".tmp");
+    try (DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      dos.write(HEADER);
+      writeVarInt(dos, paths.length);
+      byte[] previousPath = new byte[0];
+      long previousLastModified = 0L;
+      for (String path : paths) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        int sharedLength = 0;
+        int maxSharedLength = Math.min(previousPath.length,
+            pathBytes.length);
+        while (sharedLength < maxSharedLength
+            && previousPath[sharedLength] == pathBytes[sharedLength]) {
+          sharedLength++;
+        }
+        writeVarInt(dos, sharedLength);
+        writeVarInt(dos, pathBytes.length - sharedLength);
+        dos.write(pathBytes, sharedLength, pathBytes.length - sharedLength);
+        long lastModified = history.get(path);
+        writeVarLong(dos, lastModified - previousLastModified);
+        previousPath = pathBytes;
+        previousLastModified = lastModified;
+      }
+    }
+    Files.move(tempFile.toPath(), historyFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeVarInt(OutputStream os, int value)
+      throws IOException {
+    writeVarLong(os, value);
+  }
+
+  private static int readVarInt(DataInputStream dis) throws IOException {
+    long value = readVarLong(dis);
+    if (value < 0L || value > Integer.MAX_VALUE) {
+      throw new IOException("Corrupt parse history length.");
+    }
+    return (int) value;
+  }
+
+  /* Writes the given value in zig-zag encoding, so that small negative
+   * values take as few bytes as small positive values, using seven bits
+   * per byte. */
+  private static void writeVarLong(OutputStream os, long value)
+      throws IOException {
+    long zigZag = (value << 1) ^ (value >> 63);
+    while ((zigZag & ~0x7fL) != 0L) {
+      os.write((int) ((zigZag & 0x7fL) | 0x80L));
+      zigZag >>>= 7;
+    }
+    os.write((int) zigZag);
+  }
+
+  private static long readVarLong(DataInputStream dis) throws IOException {
+    long zigZag = 0L;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = dis.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      zigZag |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return (zigZag >>> 1) ^ -(zigZag & 1L);
+      }
+    }
+    throw new IOException("Corrupt parse history number.");
+  }
+}
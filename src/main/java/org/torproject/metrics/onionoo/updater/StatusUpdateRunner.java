@@ -3,6 +3,9 @@
 
 package org.torproject.metrics.onionoo.updater;
 
+import org.torproject.metrics.onionoo.util.RunReport;
+import org.torproject.metrics.onionoo.util.TaskGraph;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +22,11 @@ public class StatusUpdateRunner {
 
   private StatusUpdater[] statusUpdaters;
 
+  /* Maximum number of status updaters to run concurrently, if the
+   * document types they read and write permit that. */
+  private final int updaterThreads = Integer.getInteger(
+      "onionoo.updater.threads", Runtime.getRuntime().availableProcessors());
+
   /** Instantiates a new status update runner with newly created instances
    * of all known status updater implementations. */
   public StatusUpdateRunner() {
@@ -34,13 +42,23 @@ public class StatusUpdateRunner {
         usu };
   }
 
-  /** Lets each configured status updater update its status files. */
-  public void updateStatuses() {
+  /** Lets each configured status updater update its status files, and
+   * adds each of them as a phase to the given run report; updaters are run
+   * concurrently unless one of them reads or writes document types that
+   * an updater configured before it writes, in which case it waits for
+   * that updater to complete first. */
+  public void updateStatuses(RunReport runReport) {
+    TaskGraph taskGraph = new TaskGraph(this.updaterThreads);
     for (StatusUpdater su : this.statusUpdaters) {
-      logger.debug("Begin update of {}", su.getClass().getSimpleName());
-      su.updateStatuses();
-      logger.info("{} updated status files", su.getClass().getSimpleName());
+      String name = su.getClass().getSimpleName();
+      taskGraph.addTask(name, su.getReadDocumentTypes(),
+          su.getWrittenDocumentTypes(), () -> {
+            logger.debug("Begin update of {}", name);
+            su.updateStatuses();
+            logger.info("{} updated status files", name);
+          });
     }
+    taskGraph.run(runReport);
   }
 
   /** Logs statistics of all configured status updaters. */
@@ -3,10 +3,23 @@
 
 package org.torproject.metrics.onionoo.updater;
 
+import org.torproject.metrics.onionoo.docs.Document;
+
+import java.util.Set;
+
 public interface StatusUpdater {
 
   void updateStatuses();
 
+  /** Returns the types of documents that are read while updating
+   * statuses, so that updaters writing them are run first. */
+  Set<Class<? extends Document>> getReadDocumentTypes();
+
+  /** Returns the types of documents that are written while updating
+   * statuses, so that updaters reading or writing them are not run
+   * concurrently. */
+  Set<Class<? extends Document>> getWrittenDocumentTypes();
+
   String getStatsString();
 }
 
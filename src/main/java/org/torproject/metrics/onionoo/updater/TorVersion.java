@@ -4,10 +4,11 @@
 package org.torproject.metrics.onionoo.updater;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Helper class to compare Tor versions.
@@ -23,7 +24,10 @@ public class TorVersion implements Comparable<TorVersion> {
 
   private String statusTag = null;
 
-  private static Map<String, TorVersion> knownVersions = new HashMap<>();
+  /* Parsed versions by version string, with empty values for strings that
+   * are not valid tor versions. */
+  private static Map<String, Optional<TorVersion>> knownVersions =
+      new ConcurrentHashMap<>();
 
   private TorVersion() {
   }
@@ -35,39 +39,41 @@ public class TorVersion implements Comparable<TorVersion> {
     if (null == versionString) {
       return null;
     }
-    if (!knownVersions.containsKey(versionString)) {
-      TorVersion result = new TorVersion();
-      boolean isValid = true;
-      try {
-        String[] components = versionString.split("-")[0].split("\\.", -1);
-        for (int position = 0; position < 4 && position < components.length;
-             position++) {
-          if (!components[position].isEmpty()) {
-            result.versionNumbers.add(Integer.parseInt(components[position]));
-          } else if (0 == position || position < components.length - 1) {
-            /* Version cannot start with a blank, nor can it contain a blank in
-             * between two dots. */
-            isValid = false;
-          }
-        }
-        if (result.versionNumbers.size() >= 3) {
-          result.releaseSeries = String.format("%d.%d.%d",
-              result.versionNumbers.get(0), result.versionNumbers.get(1),
-              result.versionNumbers.get(2));
-        }
-        if (versionString.contains("-")) {
-          result.statusTag = versionString.split("-", 2)[1].split(" ")[0];
+    return knownVersions.computeIfAbsent(versionString,
+        key -> Optional.ofNullable(parse(key))).orElse(null);
+  }
+
+  private static TorVersion parse(String versionString) {
+    TorVersion result = new TorVersion();
+    boolean isValid = true;
+    try {
+      String[] components = versionString.split("-")[0].split("\\.", -1);
+      for (int position = 0; position < 4 && position < components.length;
+           position++) {
+        if (!components[position].isEmpty()) {
+          result.versionNumbers.add(Integer.parseInt(components[position]));
+        } else if (0 == position || position < components.length - 1) {
+          /* Version cannot start with a blank, nor can it contain a blank in
+           * between two dots. */
+          isValid = false;
         }
-      } catch (ArrayIndexOutOfBoundsException
-          | NumberFormatException exception) {
-        isValid = false;
       }
-      if (!isValid) {
-        result = null;
+      if (result.versionNumbers.size() >= 3) {
+        result.releaseSeries = String.format("%d.%d.%d",
+            result.versionNumbers.get(0), result.versionNumbers.get(1),
+            result.versionNumbers.get(2));
+      }
+      if (versionString.contains("-")) {
+        result.statusTag = versionString.split("-", 2)[1].split(" ")[0];
       }
-      knownVersions.put(versionString, result);
+    } catch (ArrayIndexOutOfBoundsException
+        | NumberFormatException exception) {
+      isValid = false;
     }
-    return knownVersions.get(versionString);
+    if (!isValid) {
+      result = null;
+    }
+    return result;
   }
 
   @Override
@@ -8,18 +8,17 @@ import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.NetworkStatusEntry;
 import org.torproject.descriptor.RelayNetworkStatusConsensus;
 import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.UptimeStatus;
 import org.torproject.metrics.onionoo.util.FormattingUtils;
 
-import java.util.BitSet;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
-import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
 public class UptimeStatusUpdater implements DescriptorListener,
     StatusUpdater {
@@ -55,46 +54,17 @@ public class UptimeStatusUpdater implements DescriptorListener,
     }
   }
 
-  private static class Flags {
+  /* Uptime histories collected from descriptors processed in this run,
+   * with one history per relay or bridge fingerprint, and one network
+   * history containing hours with relay consensuses and their known flags
+   * and hours with bridge statuses, which are all merged into stored
+   * uptime statuses in updateStatuses().  Histories are kept as compact
+   * hourly intervals with interned flag sets, so that collecting hours
+   * from many consensuses does not create an object per relay and
+   * hour. */
+  private UptimeStatus newNetworkStatuses = new UptimeStatus();
 
-    private static Map<String, Integer> flagIndexes = new HashMap<>();
-
-    private static Map<Integer, String> flagStrings = new HashMap<>();
-
-    private BitSet flags;
-
-    private Flags(SortedSet<String> flags) {
-      this.flags = new BitSet(flagIndexes.size());
-      for (String flag : flags) {
-        if (!flagIndexes.containsKey(flag)) {
-          flagStrings.put(flagIndexes.size(), flag);
-          flagIndexes.put(flag, flagIndexes.size());
-        }
-        this.flags.set(flagIndexes.get(flag));
-      }
-    }
-
-    public SortedSet<String> getFlags() {
-      SortedSet<String> result = new TreeSet<>();
-      if (this.flags != null) {
-        for (int i = this.flags.nextSetBit(0); i >= 0;
-            i = this.flags.nextSetBit(i + 1)) {
-          result.add(flagStrings.get(i));
-        }
-      }
-      return result;
-    }
-  }
-
-  private SortedMap<Long, Flags> newRelayStatuses = new TreeMap<>();
-
-  private SortedMap<String, SortedMap<Long, Flags>>
-      newRunningRelays = new TreeMap<>();
-
-  private SortedSet<Long> newBridgeStatuses = new TreeSet<>();
-
-  private SortedMap<String, SortedSet<Long>>
-      newRunningBridges = new TreeMap<>();
+  private SortedMap<String, UptimeStatus> newRunningNodes = new TreeMap<>();
 
   private void processRelayNetworkStatusConsensus(
       RelayNetworkStatusConsensus consensus) {
@@ -102,71 +72,56 @@ public class UptimeStatusUpdater implements DescriptorListener,
         / DateTimeHelper.ONE_HOUR) * DateTimeHelper.ONE_HOUR;
     for (NetworkStatusEntry entry :
         consensus.getStatusEntries().values()) {
-      String fingerprint = entry.getFingerprint();
-      this.newRunningRelays.putIfAbsent(fingerprint, new TreeMap<>());
-      this.newRunningRelays.get(fingerprint).put(dateHourMillis,
-          new Flags(entry.getFlags()));
+      this.newRunningNodes.computeIfAbsent(entry.getFingerprint(),
+          fingerprint -> new UptimeStatus()).appendToHistory(true,
+          dateHourMillis, entry.getFlags());
     }
-    this.newRelayStatuses.put(dateHourMillis,
-        new Flags(consensus.getKnownFlags()));
+    this.newNetworkStatuses.appendToHistory(true, dateHourMillis,
+        consensus.getKnownFlags());
   }
 
   private void processBridgeNetworkStatus(BridgeNetworkStatus status) {
-    SortedSet<String> fingerprints = new TreeSet<>();
-    for (NetworkStatusEntry entry :
-        status.getStatusEntries().values()) {
-      fingerprints.add(entry.getFingerprint());
-    }
-    if (!fingerprints.isEmpty()) {
+    if (!status.getStatusEntries().isEmpty()) {
       long dateHourMillis = (status.getPublishedMillis()
           / DateTimeHelper.ONE_HOUR) * DateTimeHelper.ONE_HOUR;
-      for (String fingerprint : fingerprints) {
-        this.newRunningBridges.putIfAbsent(fingerprint, new TreeSet<>());
-        this.newRunningBridges.get(fingerprint).add(dateHourMillis);
+      for (NetworkStatusEntry entry :
+          status.getStatusEntries().values()) {
+        this.newRunningNodes.computeIfAbsent(entry.getFingerprint(),
+            fingerprint -> new UptimeStatus()).appendToHistory(false,
+            dateHourMillis, null);
       }
-      this.newBridgeStatuses.add(dateHourMillis);
+      this.newNetworkStatuses.appendToHistory(false, dateHourMillis, null);
     }
   }
 
   @Override
   public void updateStatuses() {
-    for (Map.Entry<String, SortedMap<Long, Flags>> e :
-        this.newRunningRelays.entrySet()) {
-      this.updateStatus(true, e.getKey(), e.getValue());
+    for (Map.Entry<String, UptimeStatus> e :
+        this.newRunningNodes.entrySet()) {
+      this.updateStatus(e.getKey(), e.getValue());
     }
-    this.updateStatus(true, null, this.newRelayStatuses);
-    for (Map.Entry<String, SortedSet<Long>> e :
-        this.newRunningBridges.entrySet()) {
-      SortedMap<Long, Flags> dateHourMillisNoFlags = new TreeMap<>();
-      for (long dateHourMillis : e.getValue()) {
-        dateHourMillisNoFlags.put(dateHourMillis, null);
-      }
-      this.updateStatus(false, e.getKey(), dateHourMillisNoFlags);
-    }
-    SortedMap<Long, Flags> dateHourMillisNoFlags = new TreeMap<>();
-    for (long dateHourMillis : this.newBridgeStatuses) {
-      dateHourMillisNoFlags.put(dateHourMillis, null);
-    }
-    this.updateStatus(false, null, dateHourMillisNoFlags);
+    this.updateStatus(null, this.newNetworkStatuses);
   }
 
-  private void updateStatus(boolean relay, String fingerprint,
-      SortedMap<Long, Flags> dateHourMillisFlags) {
+  private void updateStatus(String fingerprint, UptimeStatus newStatus) {
+    if (0L == newStatus.getTotalHours(true)
+        && 0L == newStatus.getTotalHours(false)) {
+      return;
+    }
     UptimeStatus uptimeStatus = (fingerprint == null)
-        ? this.documentStore.retrieve(UptimeStatus.class, true)
+        ? this.documentStore.retrieveNetworkUptimeStatus(
+        newStatus.getFirstHourMillis())
         : this.documentStore.retrieve(UptimeStatus.class, true,
         fingerprint);
     if (uptimeStatus == null) {
-      uptimeStatus = new UptimeStatus();
-    }
-    for (Map.Entry<Long, Flags> e : dateHourMillisFlags.entrySet()) {
-      uptimeStatus.addToHistory(relay, e.getKey(),
-          e.getValue() == null ? null : e.getValue().getFlags());
+      uptimeStatus = newStatus;
+      uptimeStatus.compressHistory();
+    } else {
+      uptimeStatus.addToHistory(newStatus);
     }
     if (uptimeStatus.isDirty()) {
-      uptimeStatus.compressHistory();
       if (fingerprint == null) {
-        this.documentStore.store(uptimeStatus);
+        this.documentStore.storeNetworkUptimeStatus(uptimeStatus);
       } else {
         this.documentStore.store(uptimeStatus, fingerprint);
       }
@@ -174,15 +129,26 @@ public class UptimeStatusUpdater implements DescriptorListener,
     }
   }
 
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return Collections.singleton(UptimeStatus.class);
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(UptimeStatus.class);
+  }
+
   @Override
   public String getStatsString() {
     return String.format("    %s hours of relay uptimes processed\n"
         + "    %s hours of bridge uptimes processed\n"
         + "    %s uptime status files updated\n",
-        FormattingUtils.formatDecimalNumber(this.newRelayStatuses.size()),
-        FormattingUtils.formatDecimalNumber(this.newBridgeStatuses.size()),
         FormattingUtils.formatDecimalNumber(
-        this.newRunningRelays.size() + this.newRunningBridges.size()));
+        this.newNetworkStatuses.getTotalHours(true)),
+        FormattingUtils.formatDecimalNumber(
+        this.newNetworkStatuses.getTotalHours(false)),
+        FormattingUtils.formatDecimalNumber(this.newRunningNodes.size()));
   }
 }
 
@@ -6,13 +6,20 @@ package org.torproject.metrics.onionoo.updater;
 import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.NetworkStatusEntry;
 import org.torproject.descriptor.RelayNetworkStatusConsensus;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.NodeStatus;
 import org.torproject.metrics.onionoo.docs.WeightsStatus;
+import org.torproject.metrics.onionoo.util.FormattingUtils;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
@@ -45,15 +52,88 @@ public class WeightsStatusUpdater implements DescriptorListener,
       this.processRelayNetworkConsensus(
           (RelayNetworkStatusConsensus) descriptor);
     }
+    this.updateWeightsStatusesIfBufferFull();
+  }
+
+  /* Buffers weights of all consensuses in the batch by fingerprint before
+   * checking whether the buffer is full, so that each weights status is
+   * retrieved and stored at most once per batch. */
+  @Override
+  public void processDescriptors(List<Descriptor> descriptors,
+      boolean relay) {
+    for (Descriptor descriptor : descriptors) {
+      if (descriptor instanceof RelayNetworkStatusConsensus) {
+        this.processRelayNetworkConsensus(
+            (RelayNetworkStatusConsensus) descriptor);
+      }
+    }
+    this.updateWeightsStatusesIfBufferFull();
   }
 
   @Override
   public void updateStatuses() {
-    /* Nothing to do. */
+    this.updateWeightsStatuses();
   }
 
+  private int processedConsensuses = 0;
+
+  private int updatedStatuses = 0;
+
+  private int retrievedStatuses = 0;
+
+  /* Number of weights per relay and consensus, as computed in
+   * calculatePathSelectionProbabilities(). */
+  private static final int WEIGHTS_PER_CONSENSUS = 7;
+
+  /* Weights of a single relay from all consensuses processed since its
+   * weights status was last updated, stored in primitive arrays with two
+   * interval bounds and seven weights per consensus, in the order in which
+   * consensuses were processed. */
+  private static class WeightsBuffer {
+
+    private long[] intervals = new long[2 * 4];
+
+    private double[] weights = new double[WEIGHTS_PER_CONSENSUS * 4];
+
+    private int size = 0;
+
+    private void add(long validAfterMillis, long freshUntilMillis,
+        double[] weights) {
+      if (2 * (this.size + 1) > this.intervals.length) {
+        this.intervals = Arrays.copyOf(this.intervals,
+            2 * this.intervals.length);
+        this.weights = Arrays.copyOf(this.weights, 2 * this.weights.length);
+      }
+      this.intervals[2 * this.size] = validAfterMillis;
+      this.intervals[2 * this.size + 1] = freshUntilMillis;
+      System.arraycopy(weights, 0, this.weights,
+          WEIGHTS_PER_CONSENSUS * this.size, WEIGHTS_PER_CONSENSUS);
+      this.size++;
+    }
+
+    private void addTo(WeightsStatus weightsStatus) {
+      for (int i = 0; i < this.size; i++) {
+        weightsStatus.addToHistory(this.intervals[2 * i],
+            this.intervals[2 * i + 1], Arrays.copyOfRange(this.weights,
+            WEIGHTS_PER_CONSENSUS * i, WEIGHTS_PER_CONSENSUS * (i + 1)));
+      }
+    }
+  }
+
+  /* Buffered weights by relay fingerprint, which are merged into weights
+   * status files in updateStatuses() or whenever the number of buffered
+   * entries exceeds a limit that can be configured using a system
+   * property, for example while reading archived consensuses. */
+  private Map<String, WeightsBuffer> weightsBuffers = new HashMap<>();
+
+  private int bufferedEntries = 0;
+
+  private final int maxBufferedEntries = Integer.getInteger(
+      "onionoo.weights.buffer", 1000000);
+
   private void processRelayNetworkConsensus(
       RelayNetworkStatusConsensus consensus) {
+    this.processedConsensuses++;
     long validAfterMillis = consensus.getValidAfterMillis();
     long freshUntilMillis = consensus.getFreshUntilMillis();
     SortedMap<String, double[]> pathSelectionWeights =
@@ -67,15 +147,32 @@ public class WeightsStatusUpdater implements DescriptorListener,
       SortedMap<String, double[]> pathSelectionWeights) {
     for (Map.Entry<String, double[]> e
         : pathSelectionWeights.entrySet()) {
+      this.weightsBuffers.computeIfAbsent(e.getKey(),
+          fingerprint -> new WeightsBuffer()).add(validAfterMillis,
+          freshUntilMillis, e.getValue());
+      this.bufferedEntries++;
+    }
+  }
+
+  private void updateWeightsStatusesIfBufferFull() {
+    if (this.bufferedEntries >= this.maxBufferedEntries) {
+      this.updateWeightsStatuses();
+    }
+  }
+
+  /* Merges all buffered weights into weights status files, retrieving,
+   * compressing, and storing each file at most once. */
+  private void updateWeightsStatuses() {
+    for (Map.Entry<String, WeightsBuffer> e
+        : this.weightsBuffers.entrySet()) {
       String fingerprint = e.getKey();
       WeightsStatus weightsStatus = this.documentStore.retrieve(
           WeightsStatus.class, true, fingerprint);
+      this.retrievedStatuses++;
       if (weightsStatus == null) {
         weightsStatus = new WeightsStatus();
       }
-      double[] weights = e.getValue();
-      weightsStatus.addToHistory(validAfterMillis, freshUntilMillis,
-          weights);
+      e.getValue().addTo(weightsStatus);
       if (weightsStatus.isDirty()) {
         NodeStatus nodeStatus = this.documentStore.retrieve(NodeStatus.class,
             true, fingerprint);
@@ -83,9 +180,12 @@ public class WeightsStatusUpdater implements DescriptorListener,
           weightsStatus.compressHistory(nodeStatus.getLastSeenMillis());
         }
         this.documentStore.store(weightsStatus, fingerprint);
+        this.updatedStatuses++;
         weightsStatus.clearDirty();
       }
     }
+    this.weightsBuffers = new HashMap<>();
+    this.bufferedEntries = 0;
   }
 
   private SortedMap<String, double[]> calculatePathSelectionProbabilities(
@@ -198,10 +298,24 @@ public class WeightsStatusUpdater implements DescriptorListener,
     return pathSelectionProbabilities;
   }
 
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(WeightsStatus.class, NodeStatus.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(WeightsStatus.class);
+  }
+
   @Override
   public String getStatsString() {
-    /* TODO Add statistics string. */
-    return null;
+    return String.format("    %s consensuses processed\n"
+        + "    %s weights status files retrieved\n"
+        + "    %s weights status files updated\n",
+        FormattingUtils.formatDecimalNumber(this.processedConsensuses),
+        FormattingUtils.formatDecimalNumber(this.retrievedStatuses),
+        FormattingUtils.formatDecimalNumber(this.updatedStatuses));
   }
 }
 
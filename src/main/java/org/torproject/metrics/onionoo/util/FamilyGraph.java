@@ -0,0 +1,301 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Relay families stored as compressed sparse rows over integer node
+ * identifiers, used by the updater to compute effective and extended
+ * families from declared families and by the server to look up effective
+ * families.
+ *
+ * <p>Node identifiers are indexes into the sorted array of all fingerprints
+ * that are either a relay with an effective family or a member of such a
+ * family.  The effective family of node {@code i}, not including the node
+ * itself, is the slice {@code familyMembers[familyOffsets[i]] ..
+ * familyMembers[familyOffsets[i + 1] - 1]}.</p>
+ */
+public class FamilyGraph {
+
+  private final String[] fingerprints;
+
+  private final int[] familyOffsets;
+
+  private final int[] familyMembers;
+
+  private FamilyGraph(String[] fingerprints, int[] familyOffsets,
+      int[] familyMembers) {
+    this.fingerprints = fingerprints;
+    this.familyOffsets = familyOffsets;
+    this.familyMembers = familyMembers;
+  }
+
+  /** Builds a family graph from effective families, keyed by relay
+   * fingerprint, with each value containing the fingerprints of that
+   * relay's effective family members. */
+  public static FamilyGraph fromEffectiveFamilies(
+      Map<String, ? extends Collection<String>> effectiveFamilies) {
+    SortedSet<String> allFingerprints = new TreeSet<>();
+    for (Map.Entry<String, ? extends Collection<String>> e
+        : effectiveFamilies.entrySet()) {
+      allFingerprints.add(e.getKey());
+      allFingerprints.addAll(e.getValue());
+    }
+    String[] fingerprints = allFingerprints.toArray(new String[0]);
+    int nodes = fingerprints.length;
+
+    /* Count edges per node, then fill them into a single array. */
+    int[] familyOffsets = new int[nodes + 1];
+    for (Map.Entry<String, ? extends Collection<String>> e
+        : effectiveFamilies.entrySet()) {
+      int node = Arrays.binarySearch(fingerprints, e.getKey());
+      for (String member : e.getValue()) {
+        if (!member.equals(e.getKey())) {
+          familyOffsets[node + 1]++;
+        }
+      }
+    }
+    for (int node = 0; node < nodes; node++) {
+      familyOffsets[node + 1] += familyOffsets[node];
+    }
+    int[] familyMembers = new int[familyOffsets[nodes]];
+    for (Map.Entry<String, ? extends Collection<String>> e
+        : effectiveFamilies.entrySet()) {
+      int node = Arrays.binarySearch(fingerprints, e.getKey());
+      int position = familyOffsets[node];
+      for (String member : e.getValue()) {
+        if (!member.equals(e.getKey())) {
+          familyMembers[position++] = Arrays.binarySearch(fingerprints,
+              member);
+        }
+      }
+      Arrays.sort(familyMembers, familyOffsets[node], position);
+    }
+    return new FamilyGraph(fingerprints, familyOffsets, familyMembers);
+  }
+
+  /** Builds a family graph from declared families, keyed by relay
+   * fingerprint, with each value containing the declared family members
+   * of that relay, by keeping only mutual family relationships, which are
+   * looked up in a hashed set of declared edges. */
+  public static FamilyGraph fromDeclaredFamilies(
+      Map<String, ? extends Collection<String>> declaredFamilies) {
+    String[] fingerprints = declaredFamilies.keySet().toArray(new String[0]);
+    Arrays.sort(fingerprints);
+    int nodes = fingerprints.length;
+    Map<String, Integer> nodeIds = new HashMap<>(nodes * 2);
+    for (int node = 0; node < nodes; node++) {
+      nodeIds.put(fingerprints[node], node);
+    }
+
+    /* Translate declared families to node identifiers, skipping the relay
+     * itself and members without declared family, which cannot be in a
+     * mutual relationship, and add all declared relationships to the edge
+     * set. */
+    int[][] declaredMembers = new int[nodes][];
+    int edges = 0;
+    for (int node = 0; node < nodes; node++) {
+      Collection<String> declaredFamily =
+          declaredFamilies.get(fingerprints[node]);
+      int[] members = new int[declaredFamily.size()];
+      int size = 0;
+      for (String member : declaredFamily) {
+        Integer memberNode = nodeIds.get(member);
+        if (null != memberNode && node != memberNode) {
+          members[size++] = memberNode;
+        }
+      }
+      declaredMembers[node] = Arrays.copyOf(members, size);
+      edges += size;
+    }
+    EdgeSet edgeSet = new EdgeSet(edges);
+    for (int node = 0; node < nodes; node++) {
+      for (int memberNode : declaredMembers[node]) {
+        edgeSet.add(node, memberNode);
+      }
+    }
+
+    /* Keep only mutual relationships, and fill them into a single
+     * array. */
+    int[] familyOffsets = new int[nodes + 1];
+    for (int node = 0; node < nodes; node++) {
+      int[] members = declaredMembers[node];
+      int size = 0;
+      for (int memberNode : members) {
+        if (edgeSet.contains(memberNode, node)) {
+          members[size++] = memberNode;
+        }
+      }
+      Arrays.sort(members, 0, size);
+      familyOffsets[node + 1] = familyOffsets[node] + size;
+    }
+    int[] familyMembers = new int[familyOffsets[nodes]];
+    for (int node = 0; node < nodes; node++) {
+      System.arraycopy(declaredMembers[node], 0, familyMembers,
+          familyOffsets[node], familyOffsets[node + 1] - familyOffsets[node]);
+    }
+    return new FamilyGraph(fingerprints, familyOffsets, familyMembers);
+  }
+
+  /* Open-addressing hash set of directed edges between two nodes, encoded
+   * as a single non-negative long. */
+  private static class EdgeSet {
+
+    private static final long EMPTY = -1L;
+
+    private final long[] slots;
+
+    private final int mask;
+
+    private EdgeSet(int expectedEdges) {
+      int capacity = Integer.highestOneBit(Math.max(2, expectedEdges) * 2)
+          << 1;
+      this.slots = new long[capacity];
+      Arrays.fill(this.slots, EMPTY);
+      this.mask = capacity - 1;
+    }
+
+    private static long edge(int from, int to) {
+      return ((long) from << 32) | to;
+    }
+
+    private int slot(long edge) {
+      long hash = edge * 0x9E3779B97F4A7C15L;
+      return (int) (hash ^ (hash >>> 32)) & this.mask;
+    }
+
+    private void add(int from, int to) {
+      long edge = edge(from, to);
+      int slot = this.slot(edge);
+      while (this.slots[slot] != EMPTY && this.slots[slot] != edge) {
+        slot = (slot + 1) & this.mask;
+      }
+      this.slots[slot] = edge;
+    }
+
+    private boolean contains(int from, int to) {
+      long edge = edge(from, to);
+      int slot = this.slot(edge);
+      while (this.slots[slot] != EMPTY) {
+        if (this.slots[slot] == edge) {
+          return true;
+        }
+        slot = (slot + 1) & this.mask;
+      }
+      return false;
+    }
+  }
+
+  /** Returns the number of distinct fingerprints in this graph. */
+  public int getNodeCount() {
+    return this.fingerprints.length;
+  }
+
+  /** Returns the fingerprints of all effective family members of the
+   * given relay, not including the relay itself, or an empty list if the
+   * relay has no effective family. */
+  public List<String> getFamily(String fingerprint) {
+    int node = Arrays.binarySearch(this.fingerprints, fingerprint);
+    if (node < 0) {
+      return Collections.emptyList();
+    }
+    return new Slice(this.familyMembers, this.familyOffsets[node],
+        this.familyOffsets[node + 1]);
+  }
+
+  /** Returns all extended families, that is, connected components of at
+   * least two relays in mutual family relationships, computed using
+   * union-find, each as a sorted array of fingerprints that includes all
+   * of its members. */
+  public List<String[]> getExtendedFamilies() {
+    int nodes = this.fingerprints.length;
+    int[] parents = new int[nodes];
+    for (int node = 0; node < nodes; node++) {
+      parents[node] = node;
+    }
+    for (int node = 0; node < nodes; node++) {
+      for (int i = this.familyOffsets[node]; i < this.familyOffsets[node + 1];
+          i++) {
+        union(parents, node, this.familyMembers[i]);
+      }
+    }
+    int[] componentSizes = new int[nodes];
+    for (int node = 0; node < nodes; node++) {
+      componentSizes[find(parents, node)]++;
+    }
+    List<String[]> extendedFamilies = new ArrayList<>();
+    String[][] components = new String[nodes][];
+    int[] componentPositions = new int[nodes];
+    for (int node = 0; node < nodes; node++) {
+      int root = find(parents, node);
+      if (componentSizes[root] < 2) {
+        continue;
+      }
+      if (null == components[root]) {
+        components[root] = new String[componentSizes[root]];
+        extendedFamilies.add(components[root]);
+      }
+      components[root][componentPositions[root]++] = this.fingerprints[node];
+    }
+    return extendedFamilies;
+  }
+
+  private static int find(int[] parents, int node) {
+    while (parents[node] != node) {
+      parents[node] = parents[parents[node]];
+      node = parents[node];
+    }
+    return node;
+  }
+
+  private static void union(int[] parents, int node, int otherNode) {
+    int root = find(parents, node);
+    int otherRoot = find(parents, otherNode);
+    if (root < otherRoot) {
+      parents[otherRoot] = root;
+    } else if (otherRoot < root) {
+      parents[root] = otherRoot;
+    }
+  }
+
+  /* Read-only view of node identifiers in the given range of the family
+   * members array, mapped to their fingerprints. */
+  private class Slice extends AbstractList<String> {
+
+    private final int[] nodes;
+
+    private final int from;
+
+    private final int to;
+
+    private Slice(int[] nodes, int from, int to) {
+      this.nodes = nodes;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public String get(int index) {
+      if (index < 0 || index >= this.size()) {
+        throw new IndexOutOfBoundsException(String.valueOf(index));
+      }
+      return fingerprints[this.nodes[this.from + index]];
+    }
+
+    @Override
+    public int size() {
+      return this.to - this.from;
+    }
+  }
+}
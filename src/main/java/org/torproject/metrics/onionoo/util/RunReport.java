@@ -0,0 +1,228 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.util;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Machine-readable report on resources used by the phases of a single
+ * updater run, which is written to disk as JSON for comparing runs over
+ * time.
+ *
+ * <p>For each phase, the report contains wall-clock time, CPU time of the
+ * whole process, bytes allocated by all threads, garbage collection time,
+ * and the differences of all registered counters, like documents or bytes
+ * read and written, between start and end of the phase.  Allocated bytes
+ * are only counted for threads that are still alive at the end of a
+ * phase.</p>
+ */
+public class RunReport {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      RunReport.class);
+
+  private static final ObjectMapper objectMapper = new ObjectMapper()
+      .enable(SerializationFeature.INDENT_OUTPUT);
+
+  private final Map<String, LongSupplier> counters =
+      new LinkedHashMap<>();
+
+  private final Report report = new Report();
+
+  /* Use snake_case for naming fields and only consider fields. */
+  @JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+  @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY,
+      getterVisibility = JsonAutoDetect.Visibility.NONE,
+      isGetterVisibility = JsonAutoDetect.Visibility.NONE)
+  private static class Report {
+
+    private long startedMillis = System.currentTimeMillis();
+
+    private long wallMillis;
+
+    private List<Phase> phases = new ArrayList<>();
+  }
+
+  @JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+  @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY,
+      getterVisibility = JsonAutoDetect.Visibility.NONE,
+      isGetterVisibility = JsonAutoDetect.Visibility.NONE)
+  private static class Phase {
+
+    private String name;
+
+    private long wallMillis;
+
+    private long cpuMillis;
+
+    private long allocatedBytes;
+
+    private long gcMillis;
+
+    private long gcCount;
+
+    private Map<String, Long> counters = new LinkedHashMap<>();
+  }
+
+  public long getStartedMillis() {
+    return this.report.startedMillis;
+  }
+
+  /** Registers a counter, like the number of documents read, whose
+   * differences between start and end of each phase are included in the
+   * report. */
+  public void addCounter(String name, LongSupplier counter) {
+    this.counters.put(name, counter);
+  }
+
+  /** Runs the given phase and adds its resource usage to the report. */
+  public void measure(String name, Runnable phase) {
+    Snapshot before = new Snapshot(this.counters);
+    try {
+      phase.run();
+    } finally {
+      Snapshot after = new Snapshot(this.counters);
+      Phase measured = new Phase();
+      measured.name = name;
+      measured.wallMillis = (after.nanos - before.nanos) / 1000000L;
+      measured.cpuMillis = after.cpuNanos < 0L || before.cpuNanos < 0L ? -1L
+          : (after.cpuNanos - before.cpuNanos) / 1000000L;
+      measured.allocatedBytes = after.allocatedBytesSince(before);
+      measured.gcMillis = after.gcMillis - before.gcMillis;
+      measured.gcCount = after.gcCount - before.gcCount;
+      for (int i = 0; i < after.counters.length; i++) {
+        measured.counters.put(after.counterNames[i],
+            after.counters[i] - before.counters[i]);
+      }
+      synchronized (this.report) {
+        this.report.phases.add(measured);
+      }
+    }
+  }
+
+  /* Resource usage at a given point in time. */
+  private static class Snapshot {
+
+    private final long nanos = System.nanoTime();
+
+    private long cpuNanos = -1L;
+
+    private final Map<Long, Long> allocatedBytes = new HashMap<>();
+
+    private long gcMillis;
+
+    private long gcCount;
+
+    private final String[] counterNames;
+
+    private final long[] counters;
+
+    private Snapshot(Map<String, LongSupplier> counters) {
+      java.lang.management.OperatingSystemMXBean osBean =
+          ManagementFactory.getOperatingSystemMXBean();
+      if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+        this.cpuNanos = ((com.sun.management.OperatingSystemMXBean) osBean)
+            .getProcessCpuTime();
+      }
+      ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      if (threadBean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean sunThreadBean =
+            (com.sun.management.ThreadMXBean) threadBean;
+        if (sunThreadBean.isThreadAllocatedMemorySupported()
+            && sunThreadBean.isThreadAllocatedMemoryEnabled()) {
+          long[] threadIds = sunThreadBean.getAllThreadIds();
+          long[] threadAllocatedBytes =
+              sunThreadBean.getThreadAllocatedBytes(threadIds);
+          for (int i = 0; i < threadIds.length; i++) {
+            if (threadAllocatedBytes[i] >= 0L) {
+              this.allocatedBytes.put(threadIds[i], threadAllocatedBytes[i]);
+            }
+          }
+        }
+      }
+      for (GarbageCollectorMXBean gcBean
+          : ManagementFactory.getGarbageCollectorMXBeans()) {
+        this.gcMillis += Math.max(0L, gcBean.getCollectionTime());
+        this.gcCount += Math.max(0L, gcBean.getCollectionCount());
+      }
+      this.counterNames = counters.keySet().toArray(new String[0]);
+      this.counters = new long[this.counterNames.length];
+      int i = 0;
+      for (LongSupplier counter : counters.values()) {
+        this.counters[i++] = counter.getAsLong();
+      }
+    }
+
+    private long allocatedBytesSince(Snapshot before) {
+      long allocatedBytesSince = 0L;
+      for (Map.Entry<Long, Long> e : this.allocatedBytes.entrySet()) {
+        allocatedBytesSince += e.getValue()
+            - before.allocatedBytes.getOrDefault(e.getKey(), 0L);
+      }
+      return allocatedBytesSince;
+    }
+  }
+
+  /** Returns this report as JSON string, with the total wall-clock time
+   * taken until now. */
+  public String toJson() throws IOException {
+    synchronized (this.report) {
+      this.report.wallMillis = System.currentTimeMillis()
+          - this.report.startedMillis;
+      return objectMapper.writeValueAsString(this.report);
+    }
+  }
+
+  /** Writes this report to a new file in the given directory, named after
+   * the given run name, and deletes the oldest reports in that directory
+   * except for the given number of most recent reports. */
+  public void writeReport(File reportsDirectory, String runName,
+      int keepReports) {
+    File reportFile = new File(reportsDirectory, runName + ".json");
+    File tempFile = new File(reportsDirectory, runName + ".json.tmp");
+    try {
+      reportsDirectory.mkdirs();
+      Files.write(tempFile.toPath(), this.toJson().getBytes());
+      Files.move(tempFile.toPath(), reportFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      logger.warn("Unable to write run report {}.",
+          reportFile.getAbsolutePath(), e);
+      return;
+    }
+    File[] reportFiles = reportsDirectory.listFiles(
+        (dir, name) -> name.endsWith(".json"));
+    if (null != reportFiles && reportFiles.length > keepReports) {
+      Arrays.sort(reportFiles);
+      for (int i = 0; i < reportFiles.length - keepReports; i++) {
+        if (!reportFiles[i].delete()) {
+          logger.warn("Unable to delete old run report {}.",
+              reportFiles[i].getAbsolutePath());
+        }
+      }
+    }
+  }
+}
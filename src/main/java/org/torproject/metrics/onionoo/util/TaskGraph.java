@@ -0,0 +1,140 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Set of named tasks, like status updaters or document writers, that each
+ * declare which resources they read and write, and that are run
+ * concurrently on a fixed number of threads as long as they do not
+ * conflict.
+ *
+ * <p>A task depends on all previously added tasks that write a resource
+ * it reads or writes, or that read a resource it writes, and is only
+ * started after these tasks have completed.  Tasks without conflicts
+ * are run in parallel.  With a single thread, all tasks are run
+ * sequentially in the order in which they were added.</p>
+ */
+public class TaskGraph {
+
+  private final int threads;
+
+  /* Task with its declared resources and the indexes of previously added
+   * tasks that need to complete first. */
+  private static class Task {
+
+    private final String name;
+
+    private final Set<Object> reads;
+
+    private final Set<Object> writes;
+
+    private final Runnable runnable;
+
+    private final List<Integer> dependencies = new ArrayList<>();
+
+    private Task(String name, Collection<?> reads, Collection<?> writes,
+        Runnable runnable) {
+      this.name = name;
+      this.reads = new HashSet<>(reads);
+      this.writes = new HashSet<>(writes);
+      this.runnable = runnable;
+    }
+
+    private boolean conflictsWith(Task other) {
+      return !Collections.disjoint(this.writes, other.reads)
+          || !Collections.disjoint(this.writes, other.writes)
+          || !Collections.disjoint(this.reads, other.writes);
+    }
+  }
+
+  private final List<Task> tasks = new ArrayList<>();
+
+  /** Creates an empty task graph whose tasks will be run using at most the
+   * given number of threads. */
+  public TaskGraph(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /** Adds a task with the given name that reads and writes the given
+   * resources, and makes it depend on all conflicting tasks added
+   * before. */
+  public void addTask(String name, Collection<?> reads,
+      Collection<?> writes, Runnable runnable) {
+    Task task = new Task(name, reads, writes, runnable);
+    for (int i = 0; i < this.tasks.size(); i++) {
+      if (this.tasks.get(i).conflictsWith(task)) {
+        task.dependencies.add(i);
+      }
+    }
+    this.tasks.add(task);
+  }
+
+  /** Returns the names of all tasks that need to complete before the task
+   * with the given name is started. */
+  public List<String> getDependencies(String name) {
+    List<String> dependencies = new ArrayList<>();
+    for (Task task : this.tasks) {
+      if (task.name.equals(name)) {
+        for (int dependency : task.dependencies) {
+          dependencies.add(this.tasks.get(dependency).name);
+        }
+      }
+    }
+    return dependencies;
+  }
+
+  /** Runs all tasks, each as a separate phase of the given run report, and
+   * waits until all of them have completed; if a task throws an
+   * exception, tasks depending on it are skipped, and the exception is
+   * rethrown after all other tasks have completed. */
+  public void run(RunReport runReport) {
+    if (this.threads == 1 || this.tasks.size() <= 1) {
+      for (Task task : this.tasks) {
+        runReport.measure(task.name, task.runnable);
+      }
+      return;
+    }
+    ExecutorService executorService = Executors.newFixedThreadPool(
+        Math.min(this.threads, this.tasks.size()), runnable -> {
+          Thread thread = new Thread(runnable, "task-graph");
+          thread.setDaemon(true);
+          return thread;
+        });
+    try {
+      List<CompletableFuture<Void>> futures = new ArrayList<>();
+      for (Task task : this.tasks) {
+        CompletableFuture<?>[] dependencies =
+            new CompletableFuture<?>[task.dependencies.size()];
+        for (int i = 0; i < dependencies.length; i++) {
+          dependencies[i] = futures.get(task.dependencies.get(i));
+        }
+        futures.add(CompletableFuture.allOf(dependencies).thenRunAsync(
+            () -> runReport.measure(task.name, task.runnable),
+            executorService));
+      }
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+          .join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      } else if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    } finally {
+      executorService.shutdown();
+    }
+  }
+}
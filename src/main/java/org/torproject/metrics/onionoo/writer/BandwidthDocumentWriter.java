@@ -6,16 +6,22 @@ package org.torproject.metrics.onionoo.writer;
 import org.torproject.metrics.onionoo.docs.BandwidthDocument;
 import org.torproject.metrics.onionoo.docs.BandwidthStatus;
 import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.GraphHistory;
 import org.torproject.metrics.onionoo.docs.UpdateStatus;
+import org.torproject.metrics.onionoo.util.FormattingUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Period;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 
@@ -30,6 +36,8 @@ public class BandwidthDocumentWriter implements DocumentWriter {
     this.documentStore = DocumentStoreFactory.getDocumentStore();
   }
 
+  private int writtenDocuments = 0;
+
   @Override
   public void writeDocuments(long mostRecentStatusMillis) {
     UpdateStatus updateStatus = this.documentStore.retrieve(
@@ -47,6 +55,7 @@ public class BandwidthDocumentWriter implements DocumentWriter {
       BandwidthDocument bandwidthDocument = this.compileBandwidthDocument(
           fingerprint, mostRecentStatusMillis, bandwidthStatus);
       this.documentStore.store(bandwidthDocument, fingerprint);
+      this.writtenDocuments++;
     }
     logger.info("Wrote bandwidth document files");
   }
@@ -96,10 +105,21 @@ public class BandwidthDocumentWriter implements DocumentWriter {
     return ghc.compileGraphHistories();
   }
 
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(UpdateStatus.class,
+        BandwidthStatus.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(BandwidthDocument.class);
+  }
+
   @Override
   public String getStatsString() {
-    /* TODO Add statistics string. */
-    return null;
+    return String.format("    %s bandwidth document files updated\n",
+        FormattingUtils.formatDecimalNumber(this.writtenDocuments));
   }
 }
 
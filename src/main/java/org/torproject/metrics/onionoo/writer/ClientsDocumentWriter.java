@@ -7,6 +7,7 @@ import org.torproject.metrics.onionoo.docs.ClientsDocument;
 import org.torproject.metrics.onionoo.docs.ClientsHistory;
 import org.torproject.metrics.onionoo.docs.ClientsStatus;
 import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.UpdateStatus;
@@ -16,6 +17,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Period;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.SortedSet;
 
 /*
@@ -114,6 +119,17 @@ public class ClientsDocumentWriter implements DocumentWriter {
     return clientsDocument;
   }
 
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(UpdateStatus.class,
+        ClientsStatus.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(ClientsDocument.class);
+  }
+
   @Override
   public String getStatsString() {
     return String.format("    %s clients document files updated\n",
@@ -5,18 +5,23 @@ package org.torproject.metrics.onionoo.writer;
 
 import org.torproject.metrics.onionoo.docs.DetailsDocument;
 import org.torproject.metrics.onionoo.docs.DetailsStatus;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.UpdateStatus;
+import org.torproject.metrics.onionoo.util.FormattingUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -31,6 +36,8 @@ public class DetailsDocumentWriter implements DocumentWriter {
     this.documentStore = DocumentStoreFactory.getDocumentStore();
   }
 
+  private int writtenDocuments = 0;
+
   @Override
   public void writeDocuments(long mostRecentStatusMillis) {
     UpdateStatus updateStatus = this.documentStore.retrieve(
@@ -47,6 +54,7 @@ public class DetailsDocumentWriter implements DocumentWriter {
       } else {
         this.updateBridgeDetailsFile(fingerprint, detailsStatus);
       }
+      this.writtenDocuments++;
     }
     logger.info("Wrote details document files");
   }
@@ -191,10 +199,21 @@ public class DetailsDocumentWriter implements DocumentWriter {
     this.documentStore.store(detailsDocument, fingerprint);
   }
 
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(UpdateStatus.class,
+        DetailsStatus.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(DetailsDocument.class);
+  }
+
   @Override
   public String getStatsString() {
-    /* TODO Add statistics string. */
-    return null;
+    return String.format("    %s details document files updated\n",
+        FormattingUtils.formatDecimalNumber(this.writtenDocuments));
   }
 }
 
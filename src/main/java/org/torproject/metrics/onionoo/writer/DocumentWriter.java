@@ -3,10 +3,23 @@
 
 package org.torproject.metrics.onionoo.writer;
 
+import org.torproject.metrics.onionoo.docs.Document;
+
+import java.util.Set;
+
 public interface DocumentWriter {
 
   void writeDocuments(long mostRecentStatusMillis);
 
+  /** Returns the types of documents that are read while writing
+   * documents, so that writers writing them are run first. */
+  Set<Class<? extends Document>> getReadDocumentTypes();
+
+  /** Returns the types of documents that are written while writing
+   * documents, so that writers reading or writing them are not run
+   * concurrently. */
+  Set<Class<? extends Document>> getWrittenDocumentTypes();
+
   String getStatsString();
 }
 
@@ -6,6 +6,8 @@ package org.torproject.metrics.onionoo.writer;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.NodeStatus;
+import org.torproject.metrics.onionoo.util.RunReport;
+import org.torproject.metrics.onionoo.util.TaskGraph;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +19,11 @@ public class DocumentWriterRunner {
 
   private DocumentWriter[] documentWriters;
 
+  /* Maximum number of document writers to run concurrently, if the
+   * document types they read and write permit that. */
+  private final int writerThreads = Integer.getInteger(
+      "onionoo.writer.threads", Runtime.getRuntime().availableProcessors());
+
   /** Instantiates a new document writer runner with newly created
    * instances of all known document writer implementations. */
   public DocumentWriterRunner() {
@@ -30,13 +37,23 @@ public class DocumentWriterRunner {
         udw };
   }
 
-  /** Lets each configured document writer write its documents. */
-  public void writeDocuments() {
+  /** Lets each configured document writer write its documents, and adds
+   * each of them as a phase to the given run report; writers are run
+   * concurrently unless one of them reads or writes document types that
+   * a writer configured before it writes, in which case it waits for that
+   * writer to complete first. */
+  public void writeDocuments(RunReport runReport) {
     long mostRecentStatusMillis = retrieveMostRecentStatusMillis();
+    TaskGraph taskGraph = new TaskGraph(this.writerThreads);
     for (DocumentWriter dw : this.documentWriters) {
-      logger.debug("Writing {}", dw.getClass().getSimpleName());
-      dw.writeDocuments(mostRecentStatusMillis);
+      String name = dw.getClass().getSimpleName();
+      taskGraph.addTask(name, dw.getReadDocumentTypes(),
+          dw.getWrittenDocumentTypes(), () -> {
+            logger.debug("Writing {}", name);
+            dw.writeDocuments(mostRecentStatusMillis);
+          });
     }
+    taskGraph.run(runReport);
   }
 
   private long retrieveMostRecentStatusMillis() {
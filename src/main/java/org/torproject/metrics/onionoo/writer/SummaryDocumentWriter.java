@@ -4,6 +4,7 @@
 package org.torproject.metrics.onionoo.writer;
 
 import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.NodeStatus;
@@ -14,7 +15,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.SortedSet;
 
 public class SummaryDocumentWriter implements DocumentWriter {
@@ -111,6 +116,17 @@ public class SummaryDocumentWriter implements DocumentWriter {
     logger.info("Wrote summary document files");
   }
 
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(NodeStatus.class,
+        SummaryDocument.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(SummaryDocument.class);
+  }
+
   @Override
   public String getStatsString() {
     return String.format("    %s summary document files written\n"
@@ -4,6 +4,7 @@
 package org.torproject.metrics.onionoo.writer;
 
 import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.GraphHistory;
@@ -16,9 +17,15 @@ import org.torproject.metrics.onionoo.util.FormattingUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.LocalDateTime;
 import java.time.Period;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
@@ -37,8 +44,8 @@ public class UptimeDocumentWriter implements DocumentWriter {
 
   @Override
   public void writeDocuments(long mostRecentStatusMillis) {
-    UptimeStatus uptimeStatus = this.documentStore.retrieve(
-        UptimeStatus.class, true);
+    UptimeStatus uptimeStatus = this.documentStore.retrieveNetworkUptimeStatus(
+        this.getGraphsStartMillis(mostRecentStatusMillis));
     if (uptimeStatus == null) {
       /* No global uptime information available. */
       return;
@@ -94,6 +101,21 @@ public class UptimeDocumentWriter implements DocumentWriter {
       DateTimeHelper.TWO_DAYS,
       DateTimeHelper.TEN_DAYS };
 
+  /* Returns the earliest time that any graph may start at, so that only
+   * the part of the global uptime status needed for graphs is read. */
+  private long getGraphsStartMillis(long mostRecentStatusMillis) {
+    LocalDateTime graphsEnd = LocalDateTime.ofEpochSecond(
+        (mostRecentStatusMillis + DateTimeHelper.ONE_HOUR) / 1000L, 0,
+        ZoneOffset.UTC);
+    long graphsStartMillis = mostRecentStatusMillis;
+    for (int i = 0; i < this.graphIntervals.length; i++) {
+      graphsStartMillis = Math.min(graphsStartMillis, graphsEnd
+          .minus(this.graphIntervals[i]).toEpochSecond(ZoneOffset.UTC)
+          * 1000L - this.dataPointIntervals[i]);
+    }
+    return graphsStartMillis;
+  }
+
   private UptimeDocument compileUptimeDocument(boolean relay,
       String fingerprint, SortedSet<UptimeHistory> history,
       SortedSet<UptimeHistory> knownStatuses, long mostRecentStatusMillis) {
@@ -178,6 +200,16 @@ public class UptimeDocumentWriter implements DocumentWriter {
        * consider multiple B entries, it may proceed. The loop ends when
        * "current" time has reached the end of the considered A entry. */
       long currentTimeMillis = statuses.getStartMillis();
+
+      /* Skip B entries that end before this A entry starts, which exist if
+       * A entries were only read for the time covered by graphs. */
+      while (null != hist && hist.getEndMillis() <= currentTimeMillis) {
+        do {
+          hist = historyIterator.hasNext() ? historyIterator.next() : null;
+        } while (null != hist && (hist.isRelay() != relay
+            || (null != flag && (null == hist.getFlags()
+            || !hist.getFlags().contains(flag)))));
+      }
       do {
         if (null == hist) {
 
@@ -233,6 +265,16 @@ public class UptimeDocumentWriter implements DocumentWriter {
     return ghc.compileGraphHistories();
   }
 
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(UpdateStatus.class, UptimeStatus.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(UptimeDocument.class);
+  }
+
   @Override
   public String getStatsString() {
     return String.format("    %s uptime document files written\n",
@@ -4,18 +4,24 @@
 package org.torproject.metrics.onionoo.writer;
 
 import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.Document;
 import org.torproject.metrics.onionoo.docs.DocumentStore;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.GraphHistory;
 import org.torproject.metrics.onionoo.docs.UpdateStatus;
 import org.torproject.metrics.onionoo.docs.WeightsDocument;
 import org.torproject.metrics.onionoo.docs.WeightsStatus;
+import org.torproject.metrics.onionoo.util.FormattingUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Period;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 
@@ -30,6 +36,8 @@ public class WeightsDocumentWriter implements DocumentWriter {
     this.documentStore = DocumentStoreFactory.getDocumentStore();
   }
 
+  private int writtenDocuments = 0;
+
   @Override
   public void writeDocuments(long mostRecentStatusMillis) {
     UpdateStatus updateStatus = this.documentStore.retrieve(
@@ -48,6 +56,7 @@ public class WeightsDocumentWriter implements DocumentWriter {
       WeightsDocument weightsDocument = this.compileWeightsDocument(
           fingerprint, history, mostRecentStatusMillis);
       this.documentStore.store(weightsDocument, fingerprint);
+      this.writtenDocuments++;
     }
     logger.info("Wrote weights document files");
   }
@@ -108,10 +117,21 @@ public class WeightsDocumentWriter implements DocumentWriter {
     return ghc.compileGraphHistories();
   }
 
+  @Override
+  public Set<Class<? extends Document>> getReadDocumentTypes() {
+    return new HashSet<>(Arrays.asList(UpdateStatus.class,
+        WeightsStatus.class));
+  }
+
+  @Override
+  public Set<Class<? extends Document>> getWrittenDocumentTypes() {
+    return Collections.singleton(WeightsDocument.class);
+  }
+
   @Override
   public String getStatsString() {
-    /* TODO Add statistics string. */
-    return null;
+    return String.format("    %s weights document files updated\n",
+        FormattingUtils.formatDecimalNumber(this.writtenDocuments));
   }
 }
 
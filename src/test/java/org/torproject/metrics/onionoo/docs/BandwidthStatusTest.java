@@ -11,6 +11,8 @@ import org.torproject.descriptor.BandwidthHistory;
 
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -143,5 +145,78 @@ public class BandwidthStatusTest {
     assertEquals("Two old intervals should not be merged over month end.",
         statusLines, bandwidthStatus.toDocumentString());
   }
-}
 
+  @Test()
+  public void testAddBandwidthStatus() {
+    BandwidthStatus bandwidthStatus = new BandwidthStatus();
+    bandwidthStatus.setFromDocumentString(
+        "w 2014-08-01 00:07:22 2014-08-01 00:22:22 30720\n");
+    BandwidthStatus other = new BandwidthStatus();
+    other.setFromDocumentString(
+        "r 2014-08-01 00:07:22 2014-08-01 00:22:22 1024\n"
+        + "w 2014-08-01 00:07:22 2014-08-01 00:22:22 0\n"
+        + "w 2014-08-01 00:22:22 2014-08-01 00:37:22 4096\n");
+    bandwidthStatus.addToHistory(other);
+    assertTrue(bandwidthStatus.isDirty());
+    assertEquals("Only non-overlapping intervals should be added.",
+        "w 2014-08-01 00:07:22 2014-08-01 00:22:22 30720\n"
+        + "w 2014-08-01 00:22:22 2014-08-01 00:37:22 4096\n"
+        + "r 2014-08-01 00:07:22 2014-08-01 00:22:22 1024\n",
+        bandwidthStatus.toDocumentString());
+  }
+
+  private static final String STATUS_LINES =
+      "w 2013-07-31 23:52:22 2013-08-01 00:07:22 4096\n"
+      + "w 2013-08-01 00:07:22 2013-08-01 00:37:22 30720\n"
+      + "w 2014-08-01 00:22:22 2014-08-01 00:37:22 0\n"
+      + "r 2014-08-01 00:07:22 2014-08-01 00:22:22 1024\n";
+
+  @Test()
+  public void testBinaryRoundTrip() {
+    BandwidthStatus bandwidthStatus = new BandwidthStatus();
+    bandwidthStatus.setFromDocumentString(STATUS_LINES);
+    byte[] documentBytes = bandwidthStatus.toDocumentBytes();
+    assertTrue("Binary encoding should be smaller than text format.",
+        documentBytes.length < STATUS_LINES.length() / 4);
+    BandwidthStatus parsedStatus = new BandwidthStatus();
+    assertTrue(parsedStatus.setFromDocumentBytes(documentBytes));
+    assertEquals(STATUS_LINES, parsedStatus.toDocumentString());
+    assertFalse(parsedStatus.isDirty());
+  }
+
+  @Test()
+  public void testBinaryEmptyStatus() {
+    BandwidthStatus parsedStatus = new BandwidthStatus();
+    assertTrue(parsedStatus.setFromDocumentBytes(
+        new BandwidthStatus().toDocumentBytes()));
+    assertEquals("", parsedStatus.toDocumentString());
+  }
+
+  @Test()
+  public void testTextFormatNotParsedAsBinary() {
+    BandwidthStatus bandwidthStatus = new BandwidthStatus();
+    assertFalse(bandwidthStatus.setFromDocumentBytes(
+        STATUS_LINES.getBytes(StandardCharsets.US_ASCII)));
+    assertTrue(bandwidthStatus.getWriteHistory().isEmpty());
+  }
+
+  @Test()
+  public void testBinaryUnsupportedVersion() {
+    BandwidthStatus bandwidthStatus = new BandwidthStatus();
+    assertFalse(bandwidthStatus.setFromDocumentBytes(new byte[] { 0, 99 }));
+    assertTrue(bandwidthStatus.getWriteHistory().isEmpty());
+  }
+
+  @Test()
+  public void testBinaryTruncated() {
+    BandwidthStatus bandwidthStatus = new BandwidthStatus();
+    bandwidthStatus.setFromDocumentString(STATUS_LINES);
+    byte[] documentBytes = bandwidthStatus.toDocumentBytes();
+    BandwidthStatus parsedStatus = new BandwidthStatus();
+    assertFalse(parsedStatus.setFromDocumentBytes(Arrays.copyOf(
+        documentBytes, documentBytes.length - 1)));
+    assertTrue("Intervals read before the end of the input should not be "
+        + "kept.", parsedStatus.getWriteHistory().isEmpty());
+    assertTrue(parsedStatus.getReadHistory().isEmpty());
+  }
+}
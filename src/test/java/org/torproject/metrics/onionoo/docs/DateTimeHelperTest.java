@@ -0,0 +1,166 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+
+public class DateTimeHelperTest {
+
+  private static final String[] FIXED_FORMATS = new String[] {
+      DateTimeHelper.ISO_DATETIME_FORMAT,
+      DateTimeHelper.ISO_DATETIME_TAB_FORMAT,
+      DateTimeHelper.DATEHOUR_NOSPACE_FORMAT,
+      DateTimeHelper.ISO_YEARMONTH_FORMAT };
+
+  /* Characters used for mutating formatted timestamps, including
+   * non-ASCII digits that date formats accept. */
+  private static final String MUTATION_CHARS = "0123456789-: \t+x٣";
+
+  private static DateFormat referenceDateFormat(String format) {
+    DateFormat dateFormat = new SimpleDateFormat(format);
+    dateFormat.setLenient(false);
+    return dateFormat;
+  }
+
+  private static long referenceParse(DateFormat dateFormat, String string) {
+    try {
+      return dateFormat.parse(string).getTime();
+    } catch (ParseException e) {
+      return DateTimeHelper.NO_TIME_AVAILABLE;
+    }
+  }
+
+  /* Returns a random time between 1960 and 2060, or up to year 9999 or
+   * before 1970 in some cases, to cover fallbacks. */
+  private static long randomMillis(Random random) {
+    switch (random.nextInt(10)) {
+      case 0:
+        return (long) (random.nextDouble() * 253402300800000L);
+      case 1:
+        return -(long) (random.nextDouble() * 315532800000L);
+      default:
+        return (long) (random.nextDouble() * 3155760000000L) - 315532800000L;
+    }
+  }
+
+  @Test
+  public void testFormatSameAsDateFormat() {
+    Random random = new Random(1L);
+    for (String format : FIXED_FORMATS) {
+      DateFormat dateFormat = referenceDateFormat(format);
+      for (int i = 0; i < 10000; i++) {
+        long millis = randomMillis(random);
+        String expected = dateFormat.format(millis);
+        assertEquals(expected, DateTimeHelper.format(millis, format));
+        assertEquals("prefix " + expected, DateTimeHelper.appendTo(
+            new StringBuilder("prefix "), millis, format).toString());
+      }
+    }
+  }
+
+  @Test
+  public void testFormatBoundaries() {
+    for (String format : FIXED_FORMATS) {
+      DateFormat dateFormat = referenceDateFormat(format);
+      for (long millis : new long[] { -1L, 0L, 1L, 951782400000L,
+          951868799999L, 4107542399999L, 253402300799999L,
+          253402300800000L }) {
+        assertEquals(dateFormat.format(millis),
+            DateTimeHelper.format(millis, format));
+      }
+    }
+  }
+
+  @Test
+  public void testParseSameAsDateFormat() {
+    Random random = new Random(2L);
+    for (String format : FIXED_FORMATS) {
+      DateFormat dateFormat = referenceDateFormat(format);
+      for (int i = 0; i < 10000; i++) {
+        String string = dateFormat.format(randomMillis(random));
+        assertEquals(string, referenceParse(dateFormat, string),
+            DateTimeHelper.parse(string, format));
+      }
+    }
+  }
+
+  @Test
+  public void testParseMutatedSameAsDateFormat() {
+    Random random = new Random(3L);
+    for (String format : FIXED_FORMATS) {
+      DateFormat dateFormat = referenceDateFormat(format);
+      for (int i = 0; i < 500; i++) {
+        StringBuilder sb = new StringBuilder(dateFormat.format(
+            randomMillis(random)));
+        switch (random.nextInt(3)) {
+          case 0:
+            sb.setCharAt(random.nextInt(sb.length()), MUTATION_CHARS.charAt(
+                random.nextInt(MUTATION_CHARS.length())));
+            break;
+          case 1:
+            sb.setLength(random.nextInt(sb.length()));
+            break;
+          default:
+            sb.insert(random.nextInt(sb.length() + 1), MUTATION_CHARS.charAt(
+                random.nextInt(MUTATION_CHARS.length())));
+            break;
+        }
+        String string = sb.toString();
+        assertEquals(string, referenceParse(dateFormat, string),
+            DateTimeHelper.parse(string, format));
+      }
+    }
+  }
+
+  @Test
+  public void testParseInvalidFieldValues() {
+    for (String string : new String[] { "2019-02-29 00:00:00",
+        "2020-04-31 00:00:00", "2020-13-01 00:00:00", "2020-00-01 00:00:00",
+        "2020-01-00 00:00:00", "2020-01-01 24:00:00", "2020-01-01 00:60:00",
+        "2020-01-01 00:00:60", "2020-01-01T00:00:00", "2020-01-01 00:00",
+        "" }) {
+      assertEquals(string, DateTimeHelper.NO_TIME_AVAILABLE,
+          DateTimeHelper.parse(string));
+    }
+    assertEquals(951782400000L, DateTimeHelper.parse("2000-02-29 00:00:00"));
+  }
+
+  @Test
+  public void testParseTrailingCharactersSameAsDateFormat() {
+    String string = "2020-01-01 12:34:56 trailing";
+    assertEquals(referenceParse(referenceDateFormat(
+        DateTimeHelper.ISO_DATETIME_FORMAT), string),
+        DateTimeHelper.parse(string));
+  }
+
+  @Test
+  public void testParseRange() {
+    String line = "w 2020-01-01 12:34:56 2020-01-01 12:49:56 1024";
+    assertEquals(DateTimeHelper.parse("2020-01-01 12:34:56"),
+        DateTimeHelper.parse(line, 2, 21, DateTimeHelper.ISO_DATETIME_FORMAT));
+    assertEquals(DateTimeHelper.parse("2020-01-01 12:49:56"),
+        DateTimeHelper.parse(line, 22, 41,
+        DateTimeHelper.ISO_DATETIME_FORMAT));
+  }
+
+  @Test
+  public void testParseNull() {
+    assertEquals(DateTimeHelper.NO_TIME_AVAILABLE,
+        DateTimeHelper.parse(null));
+  }
+
+  @Test
+  public void testOtherFormat() {
+    String format = "yyyy-MM-dd";
+    assertEquals("2020-01-01", DateTimeHelper.format(
+        DateTimeHelper.parse("2020-01-01", format), format));
+  }
+}
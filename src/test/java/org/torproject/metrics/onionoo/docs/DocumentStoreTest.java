@@ -0,0 +1,186 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class DocumentStoreTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File statusDir;
+
+  private DocumentStore documentStore;
+
+  private static final String NETWORK_UPTIME_SAMPLE =
+      "r 2013-07-22-17 1161\n" /* ends 2013-09-09 02:00:00 */
+      + "r 2013-09-09-03 2445\n" /* ends 2013-12-20 00:00:00 */
+      + "b 2013-12-20-01 10\n";
+
+  @Before
+  public void createDocumentStore() {
+    this.statusDir = new File(this.temporaryFolder.getRoot(), "status");
+    this.documentStore = new DocumentStore();
+    this.documentStore.setStatusDir(this.statusDir);
+  }
+
+  private File segmentFile(String month) {
+    return new File(new File(this.statusDir, "uptime-months"), month);
+  }
+
+  private void storeNetworkUptimeStatus(String documentString) {
+    UptimeStatus uptimeStatus = new UptimeStatus();
+    uptimeStatus.setFromDocumentString(documentString);
+    assertTrue(this.documentStore.storeNetworkUptimeStatus(uptimeStatus));
+  }
+
+  @Test
+  public void testNoNetworkUptimeStatus() {
+    assertNull(this.documentStore.retrieveNetworkUptimeStatus(0L));
+    assertNull(this.documentStore.retrieve(UptimeStatus.class, true));
+  }
+
+  @Test
+  public void testNetworkUptimeStatusMonthlySegments() {
+    this.storeNetworkUptimeStatus(NETWORK_UPTIME_SAMPLE);
+    for (String month : new String[] { "2013-07", "2013-08", "2013-09",
+        "2013-10", "2013-11", "2013-12" }) {
+      assertTrue(this.segmentFile(month).exists());
+    }
+    assertFalse(this.segmentFile("2014-01").exists());
+    assertFalse(new File(this.statusDir, "uptime").exists());
+    UptimeStatus uptimeStatus = this.documentStore.retrieve(
+        UptimeStatus.class, true);
+    assertEquals(NETWORK_UPTIME_SAMPLE, uptimeStatus.toDocumentString());
+    assertFalse(uptimeStatus.isDirty());
+  }
+
+  @Test
+  public void testNetworkUptimeStatusReadOnlyRecentSegments() {
+    this.storeNetworkUptimeStatus(NETWORK_UPTIME_SAMPLE);
+    UptimeStatus uptimeStatus = this.documentStore
+        .retrieveNetworkUptimeStatus(DateTimeHelper.parse(
+        "2013-11-15 00:00:00"));
+    assertEquals("r 2013-11-01-00 1176\nb 2013-12-20-01 10\n",
+        uptimeStatus.toDocumentString());
+    assertEquals(2L, this.documentStore.getRetrievedFiles());
+  }
+
+  @Test
+  public void testNetworkUptimeStatusRewriteOnlyChangedSegments()
+      throws IOException {
+    this.storeNetworkUptimeStatus(NETWORK_UPTIME_SAMPLE);
+    byte[] julySegment = Files.readAllBytes(
+        this.segmentFile("2013-07").toPath());
+    long storedFiles = this.documentStore.getStoredFiles();
+    UptimeStatus uptimeStatus = this.documentStore
+        .retrieveNetworkUptimeStatus(DateTimeHelper.parse(
+        "2013-12-20 02:00:00"));
+    uptimeStatus.appendToHistory(false,
+        DateTimeHelper.parse("2013-12-20 11:00:00"), null);
+    assertTrue(this.documentStore.storeNetworkUptimeStatus(uptimeStatus));
+    assertEquals(storedFiles + 1L, this.documentStore.getStoredFiles());
+    assertArrayEquals(julySegment, Files.readAllBytes(
+        this.segmentFile("2013-07").toPath()));
+    assertEquals(NETWORK_UPTIME_SAMPLE.replace(" 10\n", " 11\n"),
+        this.documentStore.retrieve(UptimeStatus.class, true)
+        .toDocumentString());
+  }
+
+  @Test
+  public void testNetworkUptimeStatusMigrateLegacyFile() throws IOException {
+    this.statusDir.mkdirs();
+    File legacyFile = new File(this.statusDir, "uptime");
+    Files.write(legacyFile.toPath(),
+        NETWORK_UPTIME_SAMPLE.getBytes(StandardCharsets.US_ASCII));
+    UptimeStatus uptimeStatus = this.documentStore
+        .retrieveNetworkUptimeStatus(DateTimeHelper.parse(
+        "2013-12-20 02:00:00"));
+    assertEquals(NETWORK_UPTIME_SAMPLE, uptimeStatus.toDocumentString());
+    this.storeNetworkUptimeStatus("r 2014-01-01-00 1\n");
+    assertFalse(legacyFile.exists());
+    assertTrue(this.segmentFile("2013-07").exists());
+    assertEquals("r 2013-07-22-17 1161\nr 2013-09-09-03 2445\n"
+        + "r 2014-01-01-00 1\nb 2013-12-20-01 10\n",
+        this.documentStore.retrieve(UptimeStatus.class, true)
+        .toDocumentString());
+  }
+
+  private static final String FINGERPRINT =
+      "F2044413DAC2E02E3D6BCF4735A19BCA1DE97281";
+
+  private static final String BANDWIDTH_STATUS_LINES =
+      "w 2014-08-01 00:07:22 2014-08-01 00:22:22 30720\n"
+      + "r 2014-08-01 00:07:22 2014-08-01 00:22:22 1024\n";
+
+  @Test
+  public void testBandwidthStatusMigrateTextFormat() throws IOException {
+    File statusFile = new File(this.statusDir,
+        "bandwidth/F/2/" + FINGERPRINT);
+    statusFile.getParentFile().mkdirs();
+    Files.write(statusFile.toPath(),
+        BANDWIDTH_STATUS_LINES.getBytes(StandardCharsets.US_ASCII));
+    BandwidthStatus bandwidthStatus = this.documentStore.retrieve(
+        BandwidthStatus.class, true, FINGERPRINT);
+    assertEquals(BANDWIDTH_STATUS_LINES, bandwidthStatus.toDocumentString());
+    assertTrue(this.documentStore.store(bandwidthStatus, FINGERPRINT));
+    assertArrayEquals(bandwidthStatus.toDocumentBytes(),
+        Files.readAllBytes(statusFile.toPath()));
+    assertEquals(BANDWIDTH_STATUS_LINES, this.documentStore.retrieve(
+        BandwidthStatus.class, true, FINGERPRINT).toDocumentString());
+    assertTrue(this.documentStore.store(bandwidthStatus, FINGERPRINT));
+    assertEquals(1L, this.documentStore.getStoredFiles());
+  }
+
+  @Test
+  public void testCorruptBinaryBandwidthStatusNotParsed() throws IOException {
+    File statusFile = new File(this.statusDir,
+        "bandwidth/F/2/" + FINGERPRINT);
+    statusFile.getParentFile().mkdirs();
+    BandwidthStatus bandwidthStatus = new BandwidthStatus();
+    bandwidthStatus.setFromDocumentString(BANDWIDTH_STATUS_LINES);
+    byte[] documentBytes = bandwidthStatus.toDocumentBytes();
+    Files.write(statusFile.toPath(), Arrays.copyOf(documentBytes,
+        documentBytes.length - 1));
+    assertNull(this.documentStore.retrieve(BandwidthStatus.class, true,
+        FINGERPRINT));
+  }
+
+  private static final String WEIGHTS_STATUS_LINES =
+      "2015-05-07 21:00:00 2015-05-07 22:00:00  0.000178279826 0.000261827632"
+      + " 0.000200304932 0.000000000000  6980.000000000000\n";
+
+  @Test
+  public void testWeightsStatusMigrateTextFormat() throws IOException {
+    File statusFile = new File(this.statusDir,
+        "weights/F/2/" + FINGERPRINT);
+    statusFile.getParentFile().mkdirs();
+    Files.write(statusFile.toPath(),
+        WEIGHTS_STATUS_LINES.getBytes(StandardCharsets.US_ASCII));
+    WeightsStatus weightsStatus = this.documentStore.retrieve(
+        WeightsStatus.class, true, FINGERPRINT);
+    assertEquals(WEIGHTS_STATUS_LINES, weightsStatus.toDocumentString());
+    assertTrue(this.documentStore.store(weightsStatus, FINGERPRINT));
+    assertArrayEquals(weightsStatus.toDocumentBytes(),
+        Files.readAllBytes(statusFile.toPath()));
+    assertEquals(WEIGHTS_STATUS_LINES, this.documentStore.retrieve(
+        WeightsStatus.class, true, FINGERPRINT).toDocumentString());
+  }
+}
@@ -91,36 +91,44 @@ public class DummyDocumentStore extends DocumentStore {
     return this.performedRetrieveOperations;
   }
 
-  public <T extends Document> T retrieve(Class<T> documentType,
+  public synchronized <T extends Document> T retrieve(Class<T> documentType,
       boolean parse) {
     return this.retrieve(documentType, parse, null);
   }
 
   @SuppressWarnings("JavadocMethod")
-  public <T extends Document> T retrieve(Class<T> documentType,
+  public synchronized <T extends Document> T retrieve(Class<T> documentType,
       boolean parse, String fingerprint) {
     this.performedRetrieveOperations++;
     return documentType.cast(this.getStoredDocumentsByClass(documentType)
         .get(fingerprint == null ? FINGERPRINT_NULL : fingerprint));
   }
 
+  public UptimeStatus retrieveNetworkUptimeStatus(long fromMillis) {
+    return this.retrieve(UptimeStatus.class, true);
+  }
+
   private int performedStoreOperations = 0;
 
   public int getPerformedStoreOperations() {
     return this.performedStoreOperations;
   }
 
-  public <T extends Document> boolean store(T document) {
+  public synchronized <T extends Document> boolean store(T document) {
     return this.store(document, null);
   }
 
   @SuppressWarnings("JavadocMethod")
-  public <T extends Document> boolean store(T document,
+  public synchronized <T extends Document> boolean store(T document,
       String fingerprint) {
     this.performedStoreOperations++;
     this.getStoredDocumentsByClass(document.getClass()).put(
         fingerprint == null ? FINGERPRINT_NULL : fingerprint, document);
     return true;
   }
+
+  public boolean storeNetworkUptimeStatus(UptimeStatus uptimeStatus) {
+    return this.store(uptimeStatus);
+  }
 }
 
@@ -0,0 +1,217 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.metrics.onionoo.updater.TorVersionStatus;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+public class NodeStatusTableTest {
+
+  private static final String GABELMOO_NODE_STATUS =
+      "r\tgabelmoo\tF2044413DAC2E02E3D6BCF4735A19BCA1DE97281\t"
+      + "131.188.40.189;[2001:638:a000:4140::ffff:189]:443;\t2015-08-13\t"
+      + "08:00:00\t443\t80\tAuthority,HSDir,Running,Stable,V2Dir,Valid\t"
+      + "20\tde\t\t-1\treject\t1-65535\t2015-08-04\t12:00:00\t"
+      + "2015-08-04\t12:00:00\tAS680\t"
+      + "4096r/261c5fbe77285f88fb0c343266c8c2d7c5aa446d sebastian hahn "
+      + "<tor@sebastianhahn.net> - 12nbrajag5u3llwetsf7fstcdaz32mu5cn\t"
+      + "true\tnull";
+
+  private static final String A = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+  private static final String B = "BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB";
+
+  private static final String G = "F2044413DAC2E02E3D6BCF4735A19BCA1DE97281";
+
+  private NodeStatus createBridge(String fingerprint, long lastSeenMillis) {
+    NodeStatus nodeStatus = new NodeStatus(fingerprint);
+    nodeStatus.setNickname("bridge");
+    nodeStatus.setRelay(false);
+    nodeStatus.setFirstSeenMillis(lastSeenMillis);
+    nodeStatus.setLastSeenMillis(lastSeenMillis);
+    return nodeStatus;
+  }
+
+  @Test
+  public void testRoundTrip() {
+    NodeStatus nodeStatus = NodeStatus.fromString(GABELMOO_NODE_STATUS);
+    nodeStatus.setDeclaredFamily(new TreeSet<>(Arrays.asList(A, B)));
+    nodeStatus.setEffectiveFamily(new TreeSet<>(Arrays.asList(A)));
+    nodeStatus.setExtendedFamily(new TreeSet<>(Arrays.asList(A, B)));
+    NodeStatusTable table = new NodeStatusTable();
+    table.put(nodeStatus);
+    NodeStatus retrieved = table.get(G);
+    assertNotSame(nodeStatus, retrieved);
+    assertEquals(nodeStatus.toString(), retrieved.toString());
+    assertTrue(table.isRelay(G));
+    assertEquals(nodeStatus.getLastSeenMillis(), table.getLastSeenMillis(G));
+    assertEquals(nodeStatus.getRelayFlags(), retrieved.getRelayFlags());
+    assertEquals(nodeStatus.getOrAddressesAndPorts(),
+        retrieved.getOrAddressesAndPorts());
+    assertEquals(nodeStatus.getLastAddresses(),
+        retrieved.getLastAddresses());
+  }
+
+  @Test
+  public void testNullFieldsRoundTrip() {
+    NodeStatus nodeStatus = new NodeStatus(A);
+    NodeStatusTable table = new NodeStatusTable();
+    table.put(nodeStatus);
+    NodeStatus retrieved = table.get(A);
+    assertNull(retrieved.getNickname());
+    assertNull(retrieved.getContact());
+    assertNull(retrieved.getVersion());
+    assertNull(retrieved.isRecommendedVersion());
+    assertEquals(new TreeSet<>(Arrays.asList(A)),
+        retrieved.getDeclaredFamily());
+    assertEquals(nodeStatus.toString(), retrieved.toString());
+  }
+
+  @Test
+  public void testModifiedNodeStatusNotStoredUntilPut() {
+    NodeStatusTable table = new NodeStatusTable();
+    table.put(createBridge(A, 1000L));
+    NodeStatus nodeStatus = table.get(A);
+    nodeStatus.setLastSeenMillis(2000L);
+    assertEquals(1000L, table.get(A).getLastSeenMillis());
+    table.put(nodeStatus);
+    assertEquals(2000L, table.get(A).getLastSeenMillis());
+    assertEquals(1, table.size());
+  }
+
+  @Test
+  public void testGetAbsent() {
+    NodeStatusTable table = new NodeStatusTable();
+    assertNull(table.get(A));
+    assertFalse(table.contains(A));
+    assertFalse(table.isRelay(A));
+    assertEquals(0L, table.getLastSeenMillis(A));
+    assertFalse(table.hasExitAddresses(A));
+    assertNull(table.getVersion(A));
+    assertNull(table.isRecommendedVersion(A));
+    assertNull(table.getVersionStatus(A));
+  }
+
+  @Test
+  public void testExitAddressesAndVersionColumns() {
+    NodeStatus nodeStatus = createBridge(A, 1000L);
+    nodeStatus.setExitAddresses(new TreeSet<>(Arrays.asList("1.2.3.4")));
+    nodeStatus.setVersion("0.4.3.5");
+    nodeStatus.setRecommendedVersion(false);
+    nodeStatus.setVersionStatus(TorVersionStatus.OBSOLETE);
+    NodeStatusTable table = new NodeStatusTable();
+    table.put(nodeStatus);
+    table.put(createBridge(B, 1000L));
+    assertTrue(table.hasExitAddresses(A));
+    assertEquals("0.4.3.5", table.getVersion(A));
+    assertEquals(Boolean.FALSE, table.isRecommendedVersion(A));
+    assertEquals(TorVersionStatus.OBSOLETE, table.getVersionStatus(A));
+    assertEquals(TorVersionStatus.OBSOLETE, table.get(A).getVersionStatus());
+    assertFalse(table.hasExitAddresses(B));
+    assertNull(table.getVersion(B));
+    assertNull(table.isRecommendedVersion(B));
+    assertNull(table.getVersionStatus(B));
+  }
+
+  @Test
+  public void testRemoveMovesLastRow() {
+    NodeStatusTable table = new NodeStatusTable();
+    table.put(createBridge(A, 1000L));
+    table.put(createBridge(B, 2000L));
+    table.put(NodeStatus.fromString(GABELMOO_NODE_STATUS));
+    assertTrue(table.remove(A));
+    assertFalse(table.remove(A));
+    assertEquals(2, table.size());
+    assertFalse(table.contains(A));
+    assertEquals(2000L, table.getLastSeenMillis(B));
+    assertEquals(NodeStatus.fromString(GABELMOO_NODE_STATUS).toString(),
+        table.get(G).toString());
+    SortedSet<String> expectedFingerprints =
+        new TreeSet<>(Arrays.asList(B, G));
+    assertEquals(expectedFingerprints, table.getFingerprints());
+    table.put(createBridge(A, 3000L));
+    assertEquals(3000L, table.getLastSeenMillis(A));
+    assertEquals(3, table.size());
+  }
+
+  @Test
+  public void testManyReplacementsCompactRecords() {
+    NodeStatusTable table = new NodeStatusTable();
+    NodeStatus nodeStatus = NodeStatus.fromString(GABELMOO_NODE_STATUS);
+    for (int i = 0; i < 100000; i++) {
+      nodeStatus.setConsensusWeight(i);
+      table.put(nodeStatus);
+    }
+    table.put(createBridge(A, 1000L));
+    assertEquals(2, table.size());
+    assertEquals(nodeStatus.toString(), table.get(G).toString());
+    assertEquals(1000L, table.get(A).getLastSeenMillis());
+  }
+
+  @Test
+  public void testCompactionDropsUnusedStrings() {
+    NodeStatusTable table = new NodeStatusTable();
+    NodeStatus nodeStatus = NodeStatus.fromString(GABELMOO_NODE_STATUS);
+    nodeStatus.setDeclaredFamily(new TreeSet<>(Arrays.asList(A, B)));
+    nodeStatus.setEffectiveFamily(new TreeSet<>(Arrays.asList(A)));
+    nodeStatus.setExtendedFamily(new TreeSet<>(Arrays.asList(A, B)));
+    for (int i = 0; i < 100000; i++) {
+      nodeStatus.setNickname("gabelmoo" + i);
+      nodeStatus.setContact("contact" + i);
+      table.put(nodeStatus);
+    }
+    assertTrue("Nicknames and contacts of replaced node statuses should "
+        + "have been dropped.", table.getPooledStrings() < 100000);
+    assertEquals(nodeStatus.toString(), table.get(G).toString());
+  }
+
+  @Test
+  public void testManyPutsAndRemoves() {
+    NodeStatusTable table = new NodeStatusTable();
+    SortedSet<String> expectedFingerprints = new TreeSet<>();
+    for (int i = 0; i < 10000; i++) {
+      String fingerprint = String.format("%040X", i % 1000);
+      if (i % 3 == 0) {
+        assertEquals(expectedFingerprints.remove(fingerprint),
+            table.remove(fingerprint));
+      } else {
+        table.put(createBridge(fingerprint, i));
+        expectedFingerprints.add(fingerprint);
+      }
+    }
+    assertEquals(expectedFingerprints, table.getFingerprints());
+    assertEquals(expectedFingerprints.size(), table.size());
+    for (int i = 0; i < 1000; i++) {
+      String fingerprint = String.format("%040X", i);
+      assertEquals(expectedFingerprints.contains(fingerprint),
+          table.contains(fingerprint));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testPutFrozen() {
+    NodeStatusTable table = new NodeStatusTable();
+    table.freeze();
+    table.put(createBridge(A, 1000L));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testRemoveFrozen() {
+    NodeStatusTable table = new NodeStatusTable();
+    table.put(createBridge(A, 1000L));
+    table.freeze();
+    table.remove(A);
+  }
+}
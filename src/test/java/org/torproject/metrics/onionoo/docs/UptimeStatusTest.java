@@ -9,7 +9,11 @@ import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.time.YearMonth;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -263,5 +267,134 @@ public class UptimeStatusTest {
     assertEquals("Relay history with different flags must not be "
         + "compressed.", 2, uptimeStatus.getRelayHistory().size());
   }
-}
 
+  @Test()
+  public void testAddDisjointUptimeStatus() {
+    UptimeStatus uptimeStatus = new UptimeStatus();
+    uptimeStatus.setFromDocumentString("r 2013-07-22-17 1161\n");
+    UptimeStatus other = new UptimeStatus();
+    other.setFromDocumentString("r 2013-09-09-02 2446\n"
+        + "b 2013-09-09-02 5\n");
+    uptimeStatus.addToHistory(other);
+    assertTrue(uptimeStatus.isDirty());
+    assertEquals("Adjacent histories must be compressed.", 1,
+        uptimeStatus.getRelayHistory().size());
+    assertEquals(1161 + 2446,
+        uptimeStatus.getRelayHistory().first().getUptimeHours());
+    assertEquals(1, uptimeStatus.getBridgeHistory().size());
+    assertEquals("Added history must not be modified.", 2446,
+        other.getRelayHistory().first().getUptimeHours());
+  }
+
+  @Test()
+  public void testAddOverlappingUptimeStatus() {
+    UptimeStatus uptimeStatus = new UptimeStatus();
+    uptimeStatus.setFromDocumentString(RELAYS_FLAGS_UPTIME_SAMPLE);
+    UptimeStatus other = new UptimeStatus();
+    other.setFromDocumentString("R 2014-03-21-18 4 Running Valid\n");
+    uptimeStatus.addToHistory(other);
+    assertEquals("Overlapping hours must take flags of the added status.",
+        2, uptimeStatus.getRelayHistory().size());
+    assertEquals(5809,
+        uptimeStatus.getRelayHistory().first().getUptimeHours());
+    assertEquals(RUNNING_VALID_FLAGS,
+        uptimeStatus.getRelayHistory().last().getFlags());
+    assertEquals(4, uptimeStatus.getRelayHistory().last().getUptimeHours());
+  }
+
+  @Test()
+  public void testAppendConsecutiveHoursCompact() {
+    UptimeStatus uptimeStatus = new UptimeStatus();
+    long startMillis = DateTimeHelper.parse("2013-12-20 00:00:00");
+    for (int hour = 0; hour < 720; hour++) {
+      uptimeStatus.appendToHistory(true,
+          startMillis + hour * DateTimeHelper.ONE_HOUR, RUNNING_FLAG);
+    }
+    assertEquals("Appended hours must be merged right away.", 1,
+        uptimeStatus.getRelayHistory().size());
+    assertEquals(720,
+        uptimeStatus.getRelayHistory().first().getUptimeHours());
+    assertEquals(720L, uptimeStatus.getTotalHours(true));
+  }
+
+  @Test()
+  public void testAddContainedUptimeStatusNotDirty() {
+    UptimeStatus uptimeStatus = new UptimeStatus();
+    uptimeStatus.setFromDocumentString(RELAYS_FLAGS_UPTIME_SAMPLE);
+    UptimeStatus other = new UptimeStatus();
+    other.setFromDocumentString("R 2013-09-09-02 24 Running\n");
+    uptimeStatus.addToHistory(other);
+    assertFalse("Already contained hours must not make status dirty.",
+        uptimeStatus.isDirty());
+    assertEquals(RELAYS_FLAGS_UPTIME_SAMPLE,
+        uptimeStatus.toDocumentString());
+  }
+
+  @Test()
+  public void testAddUptimeStatusSameAsHourByHour() {
+    Random random = new Random(3L);
+    List<SortedSet<String>> flagSets = Arrays.asList(null, RUNNING_FLAG,
+        RUNNING_VALID_FLAGS);
+    long startMillis = DateTimeHelper.parse("2020-01-01 00:00:00");
+    for (int round = 0; round < 100; round++) {
+      UptimeStatus merged = new UptimeStatus();
+      UptimeStatus hourByHour = new UptimeStatus();
+      UptimeStatus other = new UptimeStatus();
+      for (int i = 0; i < 50; i++) {
+        long hourMillis = startMillis
+            + random.nextInt(100) * DateTimeHelper.ONE_HOUR;
+        SortedSet<String> flags = flagSets.get(random.nextInt(3));
+        merged.appendToHistory(true, hourMillis, flags);
+        hourByHour.addToHistory(true, hourMillis, flags);
+      }
+      for (int i = 0; i < 50; i++) {
+        long hourMillis = startMillis
+            + random.nextInt(100) * DateTimeHelper.ONE_HOUR;
+        SortedSet<String> flags = flagSets.get(random.nextInt(3));
+        other.addToHistory(true, hourMillis, flags);
+      }
+      merged.addToHistory(other);
+      for (UptimeHistory interval : other.getRelayHistory()) {
+        for (int hour = 0; hour < interval.getUptimeHours(); hour++) {
+          hourByHour.addToHistory(true, interval.getStartMillis()
+              + hour * DateTimeHelper.ONE_HOUR, interval.getFlags());
+        }
+      }
+      hourByHour.compressHistory();
+      assertEquals(hourByHour.toDocumentString(),
+          merged.toDocumentString());
+    }
+  }
+
+  @Test()
+  public void testMonthSegmentsSameAsDocumentString() throws IOException {
+    UptimeStatus uptimeStatus = new UptimeStatus();
+    uptimeStatus.setFromDocumentString(RELAY_UPTIME_SAMPLE
+        + "R 2014-03-21-20 100 Running\n" + "b 2013-11-30-20 10\n");
+    assertEquals(9, uptimeStatus.getMonths().size());
+    UptimeStatus segmentedStatus = new UptimeStatus();
+    for (YearMonth month : uptimeStatus.getMonths()) {
+      segmentedStatus.addMonthSegment(uptimeStatus.toMonthSegment(month));
+    }
+    segmentedStatus.compressHistory();
+    assertEquals(uptimeStatus.toDocumentString(),
+        segmentedStatus.toDocumentString());
+    assertFalse(segmentedStatus.isDirty());
+  }
+
+  @Test()
+  public void testMonthSegmentContainsOnlyMonth() throws IOException {
+    UptimeStatus uptimeStatus = new UptimeStatus();
+    uptimeStatus.setFromDocumentString(RELAY_UPTIME_SAMPLE);
+    UptimeStatus segmentedStatus = new UptimeStatus();
+    segmentedStatus.addMonthSegment(uptimeStatus.toMonthSegment(
+        YearMonth.of(2013, 12)));
+    assertEquals("r 2013-12-01-00 456\nr 2013-12-20-01 287\n",
+        segmentedStatus.toDocumentString());
+  }
+
+  @Test(expected = IOException.class)
+  public void testMonthSegmentUnsupportedVersion() throws IOException {
+    new UptimeStatus().addMonthSegment(new byte[] { 0 });
+  }
+}
@@ -9,6 +9,7 @@ import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.SortedMap;
@@ -45,9 +46,11 @@ public class WeightsStatusTest {
           lastSeenMillis - j * hourMillis,
           new double[]{ 1.0 * j, 2.0 * j, 1.0 * j, 2.0 * j, 1.0 * j,
               2.0 * j, Double.NaN});
+      history = ws.getHistory();
       assertEquals("have: " + mapToString(history), (int) j, history.size());
     }
     ws.compressHistory(lastSeenMillis);
+    history = ws.getHistory();
     assertEquals("history map: " + mapToString(history), 9, history.size());
     assertFalse("document shouldn't contain NaN: " + ws.toDocumentString(),
         ws.toDocumentString().contains("NaN"));
@@ -65,9 +68,11 @@ public class WeightsStatusTest {
           longerAgo - j * hourMillis,
           new double[]{ 1.0 * j, 2.0 * j, 1.0 * j, 2.0 * j, 1.0 * j,
               2.0 * j, j * 0.5});
+      history = ws.getHistory();
       assertEquals("have: " + mapToString(history), (int) j, history.size());
     }
     ws.compressHistory(1515670935476L);
+    history = ws.getHistory();
     assertEquals("history map: " + mapToString(history), 1, history.size());
     assertFalse("document shouldn't contain NaN: " + ws.toDocumentString(),
         ws.toDocumentString().contains("NaN"));
@@ -255,5 +260,72 @@ public class WeightsStatusTest {
           + ws.toDocumentString(), newStyle[i], ws.toDocumentString());
     }
   }
+
+  @Test()
+  public void testAddToHistoryOutOfOrder() {
+    WeightsStatus ws = new WeightsStatus();
+    for (int i = correctLines.length - 1; i >= 0; i--) {
+      WeightsStatus line = new WeightsStatus();
+      line.setFromDocumentString(correctLines[i]);
+      ws.addToHistory(line);
+      ws.addToHistory(line);
+    }
+    assertTrue(ws.isDirty());
+    assertEquals(String.join("", correctLines), ws.toDocumentString());
+  }
+
+  @Test()
+  public void testBinaryRoundTrip() {
+    String documentString = String.join("", compareLines)
+        + String.join("", correctLines2);
+    WeightsStatus ws = new WeightsStatus();
+    ws.setFromDocumentString(documentString);
+    byte[] documentBytes = ws.toDocumentBytes();
+    assertTrue("Binary encoding should be smaller than text format.",
+        documentBytes.length < documentString.length() / 2);
+    WeightsStatus parsedStatus = new WeightsStatus();
+    assertTrue(parsedStatus.setFromDocumentBytes(documentBytes));
+    assertEquals(documentString, parsedStatus.toDocumentString());
+    assertEquals(mapToString(ws.getHistory()),
+        mapToString(parsedStatus.getHistory()));
+    assertFalse(parsedStatus.isDirty());
+  }
+
+  @Test()
+  public void testBinaryFullPrecision() {
+    WeightsStatus ws = new WeightsStatus();
+    ws.addToHistory(1431032400000L, 1431036000000L, new double[] { -1.0,
+        1.0 / 3.0, Double.NaN, 0.0, 1e-300, -1.0, 12345.678901234567 });
+    WeightsStatus parsedStatus = new WeightsStatus();
+    assertTrue(parsedStatus.setFromDocumentBytes(ws.toDocumentBytes()));
+    assertEquals(mapToString(ws.getHistory()),
+        mapToString(parsedStatus.getHistory()));
+  }
+
+  @Test()
+  public void testTextFormatNotParsedAsBinary() {
+    WeightsStatus ws = new WeightsStatus();
+    assertFalse(ws.setFromDocumentBytes(String.join("", correctLines)
+        .getBytes(StandardCharsets.US_ASCII)));
+    assertTrue(ws.getHistory().isEmpty());
+  }
+
+  @Test()
+  public void testBinaryUnsupportedVersion() {
+    WeightsStatus ws = new WeightsStatus();
+    assertFalse(ws.setFromDocumentBytes(new byte[] { 0, 99 }));
+    assertTrue(ws.getHistory().isEmpty());
+  }
+
+  @Test()
+  public void testBinaryTruncated() {
+    WeightsStatus ws = new WeightsStatus();
+    ws.setFromDocumentString(String.join("", correctLines2));
+    byte[] documentBytes = ws.toDocumentBytes();
+    WeightsStatus parsedStatus = new WeightsStatus();
+    assertFalse(parsedStatus.setFromDocumentBytes(Arrays.copyOf(
+        documentBytes, documentBytes.length - 1)));
+    assertTrue(parsedStatus.getHistory().isEmpty());
+  }
 }
 
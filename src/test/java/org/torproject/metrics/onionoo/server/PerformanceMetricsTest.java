@@ -3,10 +3,16 @@
 
 package org.torproject.metrics.onionoo.server;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class PerformanceMetricsTest {
 
   @Test
@@ -39,11 +45,35 @@ public class PerformanceMetricsTest {
   }
 
   @Test
-  public void testCounterOverflow() {
+  public void testCounterBeyondMaxInt() {
     Counter count = new Counter();
-    count.value = Integer.MAX_VALUE;
+    count.value.add(Integer.MAX_VALUE);
     count.increment();
-    assertEquals(String.valueOf(Integer.MIN_VALUE), count.toString());
+    assertEquals(String.valueOf(Integer.MAX_VALUE + 1L), count.toString());
+  }
+
+  @Test
+  public void testCounterConcurrent() throws InterruptedException {
+    Counter count = new Counter();
+    runConcurrently(4, 10000, count::increment);
+    assertEquals("40000", count.toString());
+  }
+
+  private static void runConcurrently(int threads, int iterations,
+      Runnable runnable) throws InterruptedException {
+    List<Thread> started = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread(() -> {
+        for (int j = 0; j < iterations; j++) {
+          runnable.run();
+        }
+      });
+      thread.start();
+      started.add(thread);
+    }
+    for (Thread thread : started) {
+      thread.join();
+    }
   }
 
   @Test
@@ -104,6 +134,28 @@ public class PerformanceMetricsTest {
     assertEquals("B (4), D (4), E (3), A, C", mfs.toString());
   }
 
+  @Test
+  public void testMostFrequentStringBounded() {
+    MostFrequentString mfs = new MostFrequentString();
+    for (int i = 0; i < MostFrequentString.MAX_DISTINCT_STRINGS; i++) {
+      mfs.addString(String.valueOf(i));
+    }
+    mfs.addString("foo");
+    mfs.addString("0");
+    assertEquals(MostFrequentString.MAX_DISTINCT_STRINGS,
+        mfs.stringFrequencies.size());
+    assertTrue(mfs.toString().startsWith("0 (2), "));
+    assertFalse(mfs.toString().contains("foo"));
+  }
+
+  @Test
+  public void testMostFrequentStringConcurrent()
+      throws InterruptedException {
+    MostFrequentString mfs = new MostFrequentString();
+    runConcurrently(4, 10000, () -> mfs.addString("foo"));
+    assertEquals("foo (40000)", mfs.toString());
+  }
+
   @Test
   public void testIntegerDistributionNothing() {
     IntegerDistribution id = new IntegerDistribution();
@@ -120,6 +172,16 @@ public class PerformanceMetricsTest {
         id.toString());
   }
 
+  @Test
+  public void testIntegerDistributionClearMaxLong() {
+    IntegerDistribution id = new IntegerDistribution();
+    id.addLong(Long.MAX_VALUE);
+    id.addLong(-1L);
+    id.clear();
+    assertEquals(".500<null, .900<null, .990<null, .999<null",
+        id.toString());
+  }
+
   @Test
   public void testIntegerDistributionMinusOne() {
     IntegerDistribution id = new IntegerDistribution();
@@ -224,5 +286,75 @@ public class PerformanceMetricsTest {
     assertEquals(".500<128, .900<128, .990<128, .999<256",
         id.toString());
   }
-}
 
+  @Test
+  public void testIntegerDistributionConcurrent()
+      throws InterruptedException {
+    IntegerDistribution id = new IntegerDistribution();
+    runConcurrently(4, 10000, () -> id.addLong(5L));
+    assertEquals(".500<8, .900<8, .990<8, .999<8", id.toString());
+    assertEquals(40000L, id.logValues.sum()[4]);
+  }
+
+  @Test
+  public void testThreadLocalCountsTerminatedThreads()
+      throws InterruptedException {
+    ThreadLocalCounts counts = new ThreadLocalCounts(2);
+    counts.increment(1);
+    runConcurrently(3, 5, () -> counts.add(0, 2L));
+    assertArrayEquals(new long[] { 30L, 1L }, counts.sum());
+    assertArrayEquals(new long[] { 30L, 1L }, counts.sum());
+    counts.clear();
+    assertArrayEquals(new long[] { 0L, 0L }, counts.sum());
+  }
+
+  @Test
+  public void testLatencyHistogramBucketsExact() {
+    for (long value = 0L; value < 8L; value++) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertEquals(value, LatencyHistogram.bucketUpperBound(index));
+    }
+  }
+
+  @Test
+  public void testLatencyHistogramBucketsContainValue() {
+    for (long value = 0L; value < 300000L; value += 7L) {
+      int index = LatencyHistogram.bucketIndex(value);
+      if (index < LatencyHistogram.FINITE_BUCKETS) {
+        assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+        assertTrue(index == 0
+            || value > LatencyHistogram.bucketUpperBound(index - 1));
+        assertTrue(LatencyHistogram.bucketUpperBound(index) < value * 5 / 4
+            + 1);
+      } else {
+        assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testLatencyHistogramNegative() {
+    assertEquals(0, LatencyHistogram.bucketIndex(-1L));
+  }
+
+  @Test
+  public void testLatencyHistogramAppendTo() {
+    LatencyHistogram lh = new LatencyHistogram();
+    lh.record(3L);
+    lh.record(10L);
+    lh.record(Long.MAX_VALUE / 2L);
+    assertEquals(3L, lh.getCount());
+    StringBuilder sb = new StringBuilder();
+    lh.appendTo(sb, "latency", "resource=\"summary\"");
+    String histogram = sb.toString();
+    assertTrue(histogram.contains(
+        "latency_bucket{resource=\"summary\",le=\"0.002\"} 0\n"));
+    assertTrue(histogram.contains(
+        "latency_bucket{resource=\"summary\",le=\"0.003\"} 1\n"));
+    assertTrue(histogram.contains(
+        "latency_bucket{resource=\"summary\",le=\"0.011\"} 2\n"));
+    assertTrue(histogram.contains(
+        "latency_bucket{resource=\"summary\",le=\"+Inf\"} 3\n"));
+    assertTrue(histogram.contains("latency_count{resource=\"summary\"} 3\n"));
+  }
+}
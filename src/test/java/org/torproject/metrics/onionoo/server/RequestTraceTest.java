@@ -0,0 +1,33 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.server;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RequestTraceTest {
+
+  @Test
+  public void testEmpty() {
+    RequestTrace trace = new RequestTrace();
+    assertEquals(0, trace.getSpanCount());
+    assertEquals("; read 0 documents, 0 bytes in 0 us", trace.toString());
+  }
+
+  @Test
+  public void testSpansAndDocumentReads() {
+    RequestTrace trace = new RequestTrace();
+    trace.addSpan("index", 12345L, 7, 3);
+    trace.addSpan("type", 999L, 7, 0);
+    trace.addDocumentRead(2000L, 100);
+    trace.addDocumentRead(3000L, 0);
+    assertEquals(2, trace.getSpanCount());
+    assertEquals(2, trace.getDocumentsRead());
+    assertEquals(100L, trace.getBytesRead());
+    assertEquals("index 12 us (7 relays, 3 bridges), type 0 us (7 relays, "
+        + "0 bridges); read 2 documents, 100 bytes in 5 us",
+        trace.toString());
+  }
+}
@@ -0,0 +1,225 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.descriptor.Descriptor;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ArchiveDescriptorReaderTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File archiveDir;
+
+  private File historyFile;
+
+  private File checkpointsFile;
+
+  /* Creates three tarballs with 24 consensuses each, named in valid-after
+   * order and containing the valid-after hour, and a plain file with the
+   * last hour. */
+  @Before
+  public void createTarballs() throws IOException {
+    this.archiveDir = this.temporaryFolder.newFolder("archive");
+    for (int day = 0; day < 3; day++) {
+      File tarball = new File(this.archiveDir,
+          String.format("consensuses-2020-05-%02d.tar.xz", day + 1));
+      writeTarball(new XZCompressorOutputStream(
+          new FileOutputStream(tarball)), day * 24, (day + 1) * 24);
+    }
+    Files.write(new File(this.archiveDir, "extra-consensus").toPath(),
+        "72".getBytes(StandardCharsets.US_ASCII));
+    this.historyFile = new File(this.temporaryFolder.getRoot(),
+        "archived-history");
+    this.checkpointsFile = new File(this.temporaryFolder.getRoot(),
+        "archived-checkpoints");
+  }
+
+  /* Writes a tarball with one consensus entry for each of the given hours
+   * to the given output stream, and closes that stream. */
+  private static void writeTarball(OutputStream outputStream, int fromHour,
+      int toHour) throws IOException {
+    try (TarArchiveOutputStream taos = new TarArchiveOutputStream(
+        outputStream)) {
+      for (int hour = fromHour; hour < toHour; hour++) {
+        byte[] content = String.valueOf(hour).getBytes(
+            StandardCharsets.US_ASCII);
+        TarArchiveEntry entry = new TarArchiveEntry(String.format(
+            "consensuses-2020-05/%02d-consensus", hour));
+        entry.setSize(content.length);
+        taos.putArchiveEntry(entry);
+        taos.write(content);
+        taos.closeArchiveEntry();
+      }
+    }
+  }
+
+  /* Replaces the first tarball with an uncompressed tarball that ends
+   * right after the header of the entry with the given hour, and returns
+   * the new tarball. */
+  private File truncateFirstTarball(int truncatedHour) throws IOException {
+    assertTrue(new File(this.archiveDir, "consensuses-2020-05-01.tar.xz")
+        .delete());
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    writeTarball(baos, 0, 24);
+    File tarball = new File(this.archiveDir, "consensuses-2020-05-01.tar");
+    /* Each entry consists of a header block and a content block. */
+    Files.write(tarball.toPath(), Arrays.copyOf(baos.toByteArray(),
+        (2 * truncatedHour + 1) * 512));
+    return tarball;
+  }
+
+  /* Parses a consensus entry after a random delay, so that tarballs are
+   * read at different speeds. */
+  private static List<Descriptor> parseConsensusEntry(
+      byte[] rawDescriptorBytes, File file, String entryName) {
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextInt(2));
+    } catch (InterruptedException e) {
+      return Collections.emptyList();
+    }
+    DummyConsensus consensus = new DummyConsensus();
+    consensus.setValidAfterMillis(Long.parseLong(
+        new String(rawDescriptorBytes, StandardCharsets.US_ASCII)));
+    List<Descriptor> descriptors = new ArrayList<>();
+    descriptors.add(consensus);
+    return descriptors;
+  }
+
+  private ArchiveDescriptorReader createReader() {
+    ArchiveDescriptorReader reader = new ArchiveDescriptorReader(3, 2,
+        ArchiveDescriptorReaderTest::parseConsensusEntry);
+    reader.readHistoryFiles(this.historyFile, this.checkpointsFile);
+    return reader;
+  }
+
+  private static List<Long> readValidAfterHours(
+      Iterator<Descriptor> descriptors, int maxDescriptors) {
+    List<Long> validAfterHours = new ArrayList<>();
+    while (validAfterHours.size() < maxDescriptors && descriptors.hasNext()) {
+      validAfterHours.add(
+          ((DummyConsensus) descriptors.next()).getValidAfterMillis());
+    }
+    return validAfterHours;
+  }
+
+  private static List<Long> hours(long from, long to) {
+    List<Long> hours = new ArrayList<>();
+    for (long hour = from; hour < to; hour++) {
+      hours.add(hour);
+    }
+    return hours;
+  }
+
+  @Test
+  public void testOrderedDelivery() {
+    ArchiveDescriptorReader reader = this.createReader();
+    assertEquals(hours(0, 73), readValidAfterHours(
+        reader.readDescriptors(this.archiveDir), Integer.MAX_VALUE));
+    reader.writeHistoryFiles();
+    assertEquals(4, reader.getCompletedFiles());
+    assertEquals(0, reader.getResumedFiles());
+    assertEquals(73L, reader.getReturnedDescriptors());
+  }
+
+  @Test
+  public void testCompletedFilesSkipped() {
+    ArchiveDescriptorReader firstReader = this.createReader();
+    readValidAfterHours(firstReader.readDescriptors(this.archiveDir),
+        Integer.MAX_VALUE);
+    firstReader.writeHistoryFiles();
+    ArchiveDescriptorReader secondReader = this.createReader();
+    assertEquals(4, secondReader.getHistorySizeBefore());
+    assertFalse(secondReader.readDescriptors(this.archiveDir).hasNext());
+  }
+
+  @Test
+  public void testTruncatedTarballResumed() throws IOException {
+    this.truncateFirstTarball(10);
+    ArchiveDescriptorReader firstReader = this.createReader();
+    List<Long> expectedHours = hours(0, 10);
+    expectedHours.addAll(hours(24, 73));
+    assertEquals(expectedHours, readValidAfterHours(
+        firstReader.readDescriptors(this.archiveDir), Integer.MAX_VALUE));
+    assertEquals(3, firstReader.getCompletedFiles());
+    firstReader.writeHistoryFiles();
+    assertTrue(this.checkpointsFile.exists());
+    ArchiveDescriptorReader secondReader = this.createReader();
+    assertEquals(3, secondReader.getHistorySizeBefore());
+    assertFalse("Entries of a truncated tarball that were processed in "
+        + "the previous execution should have been skipped.",
+        secondReader.readDescriptors(this.archiveDir).hasNext());
+    assertEquals(1, secondReader.getResumedFiles());
+    assertEquals(0, secondReader.getCompletedFiles());
+  }
+
+  @Test
+  public void testNothingSkippedAfterCrash() {
+    ArchiveDescriptorReader firstReader = this.createReader();
+    Iterator<Descriptor> descriptors =
+        firstReader.readDescriptors(this.archiveDir);
+    assertEquals(hours(0, 50), readValidAfterHours(descriptors, 50));
+    assertTrue(descriptors.hasNext());
+    /* Crash before statuses were persisted and history files written. */
+    firstReader.close();
+    assertFalse(this.historyFile.exists());
+    assertFalse(this.checkpointsFile.exists());
+    ArchiveDescriptorReader secondReader = this.createReader();
+    assertEquals(0, secondReader.getHistorySizeBefore());
+    assertEquals(hours(0, 73), readValidAfterHours(
+        secondReader.readDescriptors(this.archiveDir), Integer.MAX_VALUE));
+    assertEquals(0, secondReader.getResumedFiles());
+  }
+
+  @Test
+  public void testModifiedFileReadAgain() throws IOException {
+    File firstTarball = this.truncateFirstTarball(10);
+    ArchiveDescriptorReader firstReader = this.createReader();
+    readValidAfterHours(firstReader.readDescriptors(this.archiveDir),
+        Integer.MAX_VALUE);
+    firstReader.writeHistoryFiles();
+    assertTrue(firstTarball.setLastModified(
+        firstTarball.lastModified() - 10000L));
+    ArchiveDescriptorReader secondReader = this.createReader();
+    assertEquals(hours(0, 10), readValidAfterHours(
+        secondReader.readDescriptors(this.archiveDir), Integer.MAX_VALUE));
+    assertEquals(0, secondReader.getResumedFiles());
+  }
+
+  @Test
+  public void testCorruptTarballNotCompleted() throws IOException {
+    Files.write(new File(this.archiveDir, "consensuses-2020-05-00.tar.xz")
+        .toPath(), "not a tarball".getBytes(StandardCharsets.US_ASCII));
+    ArchiveDescriptorReader reader = this.createReader();
+    assertEquals(hours(0, 73), readValidAfterHours(
+        reader.readDescriptors(this.archiveDir), Integer.MAX_VALUE));
+    assertEquals(4, reader.getCompletedFiles());
+  }
+}
@@ -0,0 +1,181 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.metrics.onionoo.docs.BandwidthStatus;
+import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.DocumentStore;
+import org.torproject.metrics.onionoo.docs.NodeStatus;
+import org.torproject.metrics.onionoo.docs.UptimeStatus;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+public class BackfillRunnerTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final String FINGERPRINT =
+      "F2044413DAC2E02E3D6BCF4735A19BCA1DE97281";
+
+  private static List<File> tarballs(String... names) {
+    List<File> tarballs = new ArrayList<>();
+    for (String name : names) {
+      tarballs.add(new File(name));
+    }
+    return tarballs;
+  }
+
+  @Test
+  public void testShardJvmArgumentsSplitHeap() {
+    assertEquals(Arrays.asList("-Dfoo=bar", "-Xmx1024m"),
+        BackfillRunner.createShardJvmArguments(Arrays.asList("-Xmx4g",
+        "-Dfoo=bar", "-Xms4g", "-XX:MaxRAMPercentage=50"), null,
+        4096L * 1024L * 1024L, 4));
+  }
+
+  @Test
+  public void testShardJvmArgumentsConfiguredHeap() {
+    assertEquals(Arrays.asList("-Dfoo=bar", "-Xmx2g"),
+        BackfillRunner.createShardJvmArguments(Arrays.asList(
+        "-XX:MaxHeapSize=8g", "-Dfoo=bar"), "2g", 8L << 30, 4));
+  }
+
+  @Test
+  public void testShardJvmArgumentsUnlimitedHeap() {
+    assertEquals(Arrays.asList("-Dfoo=bar"),
+        BackfillRunner.createShardJvmArguments(Arrays.asList("-Dfoo=bar"),
+        null, Long.MAX_VALUE, 4));
+  }
+
+  @Test
+  public void testPlanShards() {
+    List<BackfillRunner.Shard> shards = BackfillRunner.planShards(tarballs(
+        "consensuses-2019-01.tar.xz", "server-descriptors-2019-01.tar.xz",
+        "consensuses-2019-02.tar.xz", "consensuses-2019-03.tar.xz",
+        "consensuses-2019-04.tar.xz", "consensuses-2019-05.tar.xz",
+        "consensuses-2018-12.tar.xz", "README"), "2019-01", "2019-04", 2);
+    assertEquals(2, shards.size());
+    assertEquals("2019-01--2019-02", shards.get(0).getName());
+    assertEquals(tarballs("consensuses-2019-01.tar.xz",
+        "consensuses-2019-02.tar.xz", "server-descriptors-2019-01.tar.xz"),
+        shards.get(0).tarballs);
+    assertEquals("2019-03--2019-04", shards.get(1).getName());
+    assertEquals(2, shards.get(1).tarballs.size());
+  }
+
+  @Test
+  public void testPlanMoreShardsThanMonths() {
+    List<BackfillRunner.Shard> shards = BackfillRunner.planShards(tarballs(
+        "consensuses-2019-01.tar.xz", "consensuses-2019-02.tar.xz"),
+        "2000-01", "2099-12", 8);
+    assertEquals(2, shards.size());
+    assertEquals("2019-01--2019-01", shards.get(0).getName());
+    assertEquals("2019-02--2019-02", shards.get(1).getName());
+  }
+
+  @Test
+  public void testPlanNoMonths() {
+    assertTrue(BackfillRunner.planShards(tarballs(
+        "consensuses-2019-01.tar.xz"), "2020-01", "2020-12", 4).isEmpty());
+  }
+
+  private DocumentStore createDocumentStore(String directoryName) {
+    DocumentStore documentStore = new DocumentStore();
+    documentStore.setStatusDir(new File(this.temporaryFolder.getRoot(),
+        directoryName));
+    return documentStore;
+  }
+
+  /* Writes a shard status tree with a node status seen from the given
+   * first to the given last time, with the given address and a single
+   * uptime hour and bandwidth interval at the last time. */
+  private void writeShard(String directoryName, String firstSeen,
+      String lastSeen, String address) {
+    DocumentStore documentStore = this.createDocumentStore(directoryName);
+    NodeStatus nodeStatus = new NodeStatus(FINGERPRINT);
+    nodeStatus.setRelay(true);
+    nodeStatus.setNickname("gabelmoo");
+    nodeStatus.setAddress(address);
+    nodeStatus.setOrAddressesAndPorts(new TreeSet<>());
+    nodeStatus.setFirstSeenMillis(DateTimeHelper.parse(firstSeen));
+    nodeStatus.setLastSeenMillis(DateTimeHelper.parse(lastSeen));
+    nodeStatus.setRelayFlags(new TreeSet<>(Arrays.asList("Running")));
+    nodeStatus.setOrPort(443);
+    nodeStatus.addLastAddresses(DateTimeHelper.parse(lastSeen), address,
+        443, 0, new TreeSet<>());
+    documentStore.store(nodeStatus, FINGERPRINT);
+    UptimeStatus uptimeStatus = new UptimeStatus();
+    uptimeStatus.addToHistory(true, DateTimeHelper.parse(lastSeen), null);
+    documentStore.store(uptimeStatus, FINGERPRINT);
+    documentStore.store(uptimeStatus);
+    BandwidthStatus bandwidthStatus = new BandwidthStatus();
+    bandwidthStatus.setFromDocumentString("w " + firstSeen + " "
+        + lastSeen + " 4096\n");
+    documentStore.store(bandwidthStatus, FINGERPRINT);
+    documentStore.flushDocumentCache();
+  }
+
+  @Test
+  public void testMergeStatusTrees() {
+    this.writeShard("shard-1", "2019-01-01 00:00:00", "2019-01-31 23:00:00",
+        "1.1.1.1");
+    this.writeShard("shard-2", "2019-02-01 00:00:00", "2019-02-28 23:00:00",
+        "2.2.2.2");
+    DocumentStore documentStore = this.createDocumentStore("status");
+    BackfillRunner.mergeStatusTree(
+        new File(this.temporaryFolder.getRoot(), "shard-1"), documentStore);
+    BackfillRunner.mergeStatusTree(
+        new File(this.temporaryFolder.getRoot(), "shard-2"), documentStore);
+    documentStore.flushDocumentCache();
+
+    DocumentStore mergedDocumentStore = this.createDocumentStore("status");
+    NodeStatus nodeStatus = mergedDocumentStore.retrieve(NodeStatus.class,
+        true, FINGERPRINT);
+    assertNotNull(nodeStatus);
+    assertEquals(DateTimeHelper.parse("2019-01-01 00:00:00"),
+        nodeStatus.getFirstSeenMillis());
+    assertEquals(DateTimeHelper.parse("2019-02-28 23:00:00"),
+        nodeStatus.getLastSeenMillis());
+    assertEquals("2.2.2.2", nodeStatus.getAddress());
+    assertEquals(DateTimeHelper.parse("2019-02-28 23:00:00"),
+        nodeStatus.getLastChangedOrAddressOrPort());
+    assertEquals(2, mergedDocumentStore.retrieve(UptimeStatus.class, true,
+        FINGERPRINT).getRelayHistory().size());
+    assertEquals(2, mergedDocumentStore.retrieve(UptimeStatus.class, true)
+        .getRelayHistory().size());
+    assertEquals(2, mergedDocumentStore.retrieve(BandwidthStatus.class,
+        true, FINGERPRINT).getWriteHistory().size());
+  }
+
+  @Test
+  public void testMergeOlderShardKeepsNewerNodeStatus() {
+    this.writeShard("shard-1", "2019-01-01 00:00:00", "2019-01-31 23:00:00",
+        "1.1.1.1");
+    this.writeShard("shard-2", "2019-02-01 00:00:00", "2019-02-28 23:00:00",
+        "2.2.2.2");
+    DocumentStore documentStore = this.createDocumentStore("status");
+    BackfillRunner.mergeStatusTree(
+        new File(this.temporaryFolder.getRoot(), "shard-2"), documentStore);
+    BackfillRunner.mergeStatusTree(
+        new File(this.temporaryFolder.getRoot(), "shard-1"), documentStore);
+    NodeStatus nodeStatus = documentStore.retrieve(NodeStatus.class, true,
+        FINGERPRINT);
+    assertEquals("2.2.2.2", nodeStatus.getAddress());
+    assertEquals(DateTimeHelper.parse("2019-01-01 00:00:00"),
+        nodeStatus.getFirstSeenMillis());
+  }
+}
@@ -0,0 +1,145 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import static org.junit.Assert.assertEquals;
+
+import org.torproject.descriptor.BandwidthHistory;
+import org.torproject.descriptor.ExtraInfoDescriptor;
+import org.torproject.metrics.onionoo.docs.BandwidthStatus;
+import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
+import org.torproject.metrics.onionoo.docs.DummyDocumentStore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public class BandwidthStatusUpdaterTest {
+
+  private DummyDescriptorSource descriptorSource;
+
+  @Before
+  public void createDummyDescriptorSource() {
+    this.descriptorSource = new DummyDescriptorSource();
+    DescriptorSourceFactory.setDescriptorSource(this.descriptorSource);
+  }
+
+  private DummyDocumentStore documentStore;
+
+  @Before
+  public void createDummyDocumentStore() {
+    this.documentStore = new DummyDocumentStore();
+    DocumentStoreFactory.setDocumentStore(this.documentStore);
+  }
+
+  private static final String GABELMOO_FINGERPRINT =
+      "F2044413DAC2E02E3D6BCF4735A19BCA1DE97281";
+
+  private static final String TOR26_FINGERPRINT =
+      "847B1F850344D7876491A54892F904934E4EB85D";
+
+  /* Creates a bandwidth history with the given number of 15-minute
+   * intervals ending at the given time, each with the given value. */
+  private static BandwidthHistory bandwidthHistory(String historyEnd,
+      int intervals, long value) {
+    long historyEndMillis = DateTimeHelper.parse(historyEnd);
+    SortedMap<Long, Long> bandwidthValues = new TreeMap<>();
+    for (int i = 0; i < intervals; i++) {
+      bandwidthValues.put(historyEndMillis
+          - i * DateTimeHelper.FIFTEEN_MINUTES, value);
+    }
+    return (BandwidthHistory) Proxy.newProxyInstance(
+        BandwidthHistory.class.getClassLoader(),
+        new Class<?>[] { BandwidthHistory.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getHistoryEndMillis":
+              return historyEndMillis;
+            case "getIntervalLength":
+              return 900L;
+            case "getBandwidthValues":
+              return bandwidthValues;
+            default:
+              return null;
+          }
+        });
+  }
+
+  /* Adds an extra-info descriptor with the given fingerprint and the given
+   * write and read histories. */
+  private void addExtraInfoDescriptor(String fingerprint,
+      BandwidthHistory writeHistory, BandwidthHistory readHistory) {
+    this.descriptorSource.addDescriptor(DescriptorType.RELAY_EXTRA_INFOS,
+        (ExtraInfoDescriptor) Proxy.newProxyInstance(
+        ExtraInfoDescriptor.class.getClassLoader(),
+        new Class<?>[] { ExtraInfoDescriptor.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getFingerprint":
+              return fingerprint;
+            case "getWriteHistory":
+              return writeHistory;
+            case "getReadHistory":
+              return readHistory;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              return null;
+          }
+        }));
+  }
+
+  @Test
+  public void testOneStoreOperationPerRelay() {
+    BandwidthStatusUpdater updater = new BandwidthStatusUpdater();
+    this.addExtraInfoDescriptor(GABELMOO_FINGERPRINT,
+        bandwidthHistory("2020-05-01 12:00:00", 4, 1024L),
+        bandwidthHistory("2020-05-01 12:00:00", 4, 2048L));
+    this.addExtraInfoDescriptor(GABELMOO_FINGERPRINT,
+        bandwidthHistory("2020-05-02 06:00:00", 4, 4096L), null);
+    this.addExtraInfoDescriptor(TOR26_FINGERPRINT,
+        bandwidthHistory("2020-05-01 12:00:00", 2, 1024L), null);
+    this.descriptorSource.readDescriptors();
+    assertEquals("Histories should only be buffered while processing "
+        + "descriptors.", 0, this.documentStore.getPerformedStoreOperations());
+    updater.updateStatuses();
+    assertEquals(2, this.documentStore.getPerformedStoreOperations());
+    BandwidthStatus bandwidthStatus = this.documentStore.getDocument(
+        BandwidthStatus.class, GABELMOO_FINGERPRINT);
+    assertEquals(8, bandwidthStatus.getWriteHistory().size());
+    assertEquals(4, bandwidthStatus.getReadHistory().size());
+    assertEquals(2, this.documentStore.getDocument(BandwidthStatus.class,
+        TOR26_FINGERPRINT).getWriteHistory().size());
+  }
+
+  @Test
+  public void testNewerIntervalReplacesOlderOne() {
+    BandwidthStatusUpdater updater = new BandwidthStatusUpdater();
+    this.addExtraInfoDescriptor(GABELMOO_FINGERPRINT,
+        bandwidthHistory("2020-05-01 12:00:00", 2, 1024L), null);
+    this.addExtraInfoDescriptor(GABELMOO_FINGERPRINT,
+        bandwidthHistory("2020-05-01 12:00:00", 1, 4096L), null);
+    this.descriptorSource.readDescriptors();
+    updater.updateStatuses();
+    SortedMap<Long, long[]> writeHistory = this.documentStore.getDocument(
+        BandwidthStatus.class, GABELMOO_FINGERPRINT).getWriteHistory();
+    assertEquals(2, writeHistory.size());
+    assertEquals(1024L, writeHistory.get(writeHistory.firstKey())[2]);
+    assertEquals(4096L, writeHistory.get(writeHistory.lastKey())[2]);
+  }
+
+  @Test
+  public void testNoDescriptorsNoStatusFiles() {
+    BandwidthStatusUpdater updater = new BandwidthStatusUpdater();
+    this.descriptorSource.readDescriptors();
+    updater.updateStatuses();
+    assertEquals(0, this.documentStore.getPerformedStoreOperations());
+  }
+}
@@ -0,0 +1,107 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.descriptor.Descriptor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class DescriptorBatcherTest {
+
+  /* Listener that records the valid-after times of all consensuses it
+   * receives and the sizes of all batches. */
+  private static class RecordingListener implements DescriptorListener {
+
+    private final List<Long> validAfterMillis = new ArrayList<>();
+
+    private final List<Integer> batchSizes = new ArrayList<>();
+
+    private final List<Boolean> relays = new ArrayList<>();
+
+    @Override
+    public void processDescriptor(Descriptor descriptor, boolean relay) {
+      this.validAfterMillis.add(
+          ((DummyConsensus) descriptor).getValidAfterMillis());
+    }
+
+    @Override
+    public void processDescriptors(List<Descriptor> descriptors,
+        boolean relay) {
+      this.batchSizes.add(descriptors.size());
+      this.relays.add(relay);
+      DescriptorListener.super.processDescriptors(descriptors, relay);
+    }
+  }
+
+  private static Descriptor consensus(long validAfterMillis) {
+    DummyConsensus consensus = new DummyConsensus();
+    consensus.setValidAfterMillis(validAfterMillis);
+    return consensus;
+  }
+
+  @Test
+  public void testFullBatchesDelivered() {
+    RecordingListener listener = new RecordingListener();
+    Set<DescriptorListener> listeners = Collections.singleton(listener);
+    DescriptorBatcher batcher = new DescriptorBatcher(3);
+    for (long i = 0L; i < 7L; i++) {
+      batcher.add(consensus(i), listeners, true);
+    }
+    assertEquals(Arrays.asList(3, 3), listener.batchSizes);
+    assertFalse(batcher.isEmpty());
+    batcher.flush();
+    assertTrue(batcher.isEmpty());
+    assertEquals(Arrays.asList(3, 3, 1), listener.batchSizes);
+    assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L),
+        listener.validAfterMillis);
+    assertEquals(3L, batcher.getDeliveredBatches());
+  }
+
+  @Test
+  public void testOrderKeptAcrossListenerSets() {
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    Set<DescriptorListener> firstOnly = Collections.singleton(first);
+    Set<DescriptorListener> both = new HashSet<>(Arrays.asList(first,
+        second));
+    DescriptorBatcher batcher = new DescriptorBatcher(100);
+    batcher.add(consensus(0L), firstOnly, true);
+    batcher.add(consensus(1L), both, true);
+    batcher.add(consensus(2L), both, true);
+    batcher.add(consensus(3L), firstOnly, true);
+    batcher.flush();
+    assertEquals(Arrays.asList(0L, 1L, 2L, 3L), first.validAfterMillis);
+    assertEquals(Arrays.asList(1, 2, 1), first.batchSizes);
+    assertEquals(Arrays.asList(1L, 2L), second.validAfterMillis);
+  }
+
+  @Test
+  public void testRelayFlagStartsNewBatch() {
+    RecordingListener listener = new RecordingListener();
+    Set<DescriptorListener> listeners = Collections.singleton(listener);
+    DescriptorBatcher batcher = new DescriptorBatcher(100);
+    batcher.add(consensus(0L), listeners, true);
+    batcher.add(consensus(1L), listeners, false);
+    batcher.flush();
+    assertEquals(Arrays.asList(true, false), listener.relays);
+  }
+
+  @Test
+  public void testFlushEmptyBatch() {
+    DescriptorBatcher batcher = new DescriptorBatcher(10);
+    batcher.flush();
+    assertEquals(0L, batcher.getDeliveredBatches());
+  }
+}
@@ -0,0 +1,265 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class DescriptorDownloaderTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final String LAST_MODIFIED = "2020-05-01 12:00";
+
+  private static final String[] REMOTE_DIRECTORIES =
+      new String[] { "/recent/exit-lists" };
+
+  private HttpServer server;
+
+  private String baseUrl;
+
+  private final Map<String, byte[]> remoteFiles = new TreeMap<>();
+
+  private final List<String> requests =
+      Collections.synchronizedList(new ArrayList<>());
+
+  /* Starts a local HTTP server that serves an index of all remote files
+   * below /recent/exit-lists and the files themselves with an entity tag,
+   * including ranges requested with a single open-ended Range header
+   * unless an If-Range header does not match the entity tag. */
+  @Before
+  public void startServer() throws IOException {
+    this.remoteFiles.put("2020-05-01-11-02-00", bytes("first exit list"));
+    this.remoteFiles.put("2020-05-01-12-02-00", bytes("second exit list"));
+    this.server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/", this::handle);
+    this.server.start();
+    this.baseUrl = "http://127.0.0.1:"
+        + this.server.getAddress().getPort();
+  }
+
+  @After
+  public void stopServer() {
+    this.server.stop(0);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    this.requests.add(null == range ? path : path + " " + range);
+    byte[] body;
+    int responseCode = 200;
+    if ("/index/index.json".equals(path)) {
+      body = bytes(this.createIndex());
+    } else if (path.startsWith("/recent/exit-lists/")
+        && this.remoteFiles.containsKey(path.substring(19))) {
+      body = this.remoteFiles.get(path.substring(19));
+      String entityTag = entityTag(body);
+      exchange.getResponseHeaders().add("ETag", entityTag);
+      String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+      if (null != range && (null == ifRange || ifRange.equals(entityTag))) {
+        int offset = Integer.parseInt(range.substring(6,
+            range.length() - 1));
+        byte[] partialBody = new byte[body.length - offset];
+        System.arraycopy(body, offset, partialBody, 0, partialBody.length);
+        body = partialBody;
+        responseCode = 206;
+      }
+    } else {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+    exchange.sendResponseHeaders(responseCode, body.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(body);
+    }
+  }
+
+  private static String entityTag(byte[] body) {
+    return "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+  }
+
+  private String createIndex() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, byte[]> e : this.remoteFiles.entrySet()) {
+      sb.append(sb.length() == 0 ? "" : ",").append(String.format(
+          "{\"path\":\"%s\",\"size\":%d,\"last_modified\":\"%s\"}",
+          e.getKey(), e.getValue().length, LAST_MODIFIED));
+    }
+    return "{\"index_created\":\"" + LAST_MODIFIED + "\",\"directories\":["
+        + "{\"path\":\"recent\",\"directories\":[{\"path\":\"exit-lists\","
+        + "\"files\":[" + sb.toString() + "]}]}]}";
+  }
+
+  private File localDirectory;
+
+  @Before
+  public void createLocalDirectory() throws IOException {
+    this.localDirectory = this.temporaryFolder.newFolder("collector");
+  }
+
+  private DescriptorDownloader download() {
+    return this.download(Collections.singletonMap(this.baseUrl,
+        this.localDirectory));
+  }
+
+  private DescriptorDownloader download(Map<String, File> localDirectories) {
+    DescriptorDownloader downloader = new DescriptorDownloader(2);
+    downloader.collectDescriptors(localDirectories, REMOTE_DIRECTORIES);
+    return downloader;
+  }
+
+  private File localFile(String name) {
+    return new File(this.localDirectory, "recent/exit-lists/" + name);
+  }
+
+  @Test
+  public void testDownloadAllFiles() throws IOException {
+    DescriptorDownloader downloader = this.download();
+    assertEquals(2L, downloader.getDownloadedFiles());
+    assertEquals(0L, downloader.getFailedFiles());
+    for (Map.Entry<String, byte[]> e : this.remoteFiles.entrySet()) {
+      File localFile = this.localFile(e.getKey());
+      assertArrayEquals(e.getValue(),
+          Files.readAllBytes(localFile.toPath()));
+      assertEquals(DateTimeHelper.parse(LAST_MODIFIED, "yyyy-MM-dd HH:mm"),
+          localFile.lastModified());
+    }
+  }
+
+  @Test
+  public void testUnchangedFilesNotDownloadedAgain() {
+    this.download();
+    this.requests.clear();
+    DescriptorDownloader downloader = this.download();
+    assertEquals(0L, downloader.getDownloadedFiles());
+    assertEquals(2L, downloader.getUnchangedFiles());
+    assertEquals(Collections.singletonList("/index/index.json"),
+        this.requests);
+  }
+
+  @Test
+  public void testChangedFileDownloadedAgain() throws IOException {
+    this.download();
+    this.remoteFiles.put("2020-05-01-12-02-00", bytes("updated exit list"));
+    this.requests.clear();
+    DescriptorDownloader downloader = this.download();
+    assertEquals(1L, downloader.getDownloadedFiles());
+    assertArrayEquals(bytes("updated exit list"), Files.readAllBytes(
+        this.localFile("2020-05-01-12-02-00").toPath()));
+  }
+
+  private File writePartialDownload(String partialContent,
+      String validator) throws IOException {
+    File partFile = this.localFile(".2020-05-01-12-02-00.part");
+    assertTrue(partFile.getParentFile().mkdirs());
+    Files.write(partFile.toPath(), bytes(partialContent));
+    if (null != validator) {
+      Files.write(this.localFile(".2020-05-01-12-02-00.validator").toPath(),
+          bytes(validator));
+    }
+    return partFile;
+  }
+
+  @Test
+  public void testResumePartialDownload() throws IOException {
+    File partFile = this.writePartialDownload("second ",
+        entityTag(bytes("second exit list")));
+    DescriptorDownloader downloader = this.download();
+    assertEquals(2L, downloader.getDownloadedFiles());
+    assertEquals(1L, downloader.getResumedFiles());
+    assertTrue(this.requests.contains(
+        "/recent/exit-lists/2020-05-01-12-02-00 bytes=7-"));
+    assertArrayEquals(bytes("second exit list"), Files.readAllBytes(
+        this.localFile("2020-05-01-12-02-00").toPath()));
+    assertFalse(partFile.exists());
+    assertFalse(this.localFile(".2020-05-01-12-02-00.validator").exists());
+  }
+
+  @Test
+  public void testPartialDownloadOfChangedFileRestarted() throws IOException {
+    this.writePartialDownload("outdated ",
+        entityTag(bytes("outdated exit list")));
+    DescriptorDownloader downloader = this.download();
+    assertEquals(2L, downloader.getDownloadedFiles());
+    assertEquals(0L, downloader.getResumedFiles());
+    assertArrayEquals(bytes("second exit list"), Files.readAllBytes(
+        this.localFile("2020-05-01-12-02-00").toPath()));
+  }
+
+  @Test
+  public void testPartialDownloadWithoutValidatorRestarted()
+      throws IOException {
+    this.writePartialDownload("outdated ", null);
+    DescriptorDownloader downloader = this.download();
+    assertEquals(2L, downloader.getDownloadedFiles());
+    assertEquals(0L, downloader.getResumedFiles());
+    assertTrue(this.requests.contains(
+        "/recent/exit-lists/2020-05-01-12-02-00"));
+    assertArrayEquals(bytes("second exit list"), Files.readAllBytes(
+        this.localFile("2020-05-01-12-02-00").toPath()));
+  }
+
+  @Test
+  public void testDeleteExtraneousFiles() throws IOException {
+    File extraneousFile = this.localFile("2020-04-30-23-02-00");
+    File stalePartFile = this.localFile(".2020-04-30-22-02-00.part");
+    assertTrue(extraneousFile.getParentFile().mkdirs());
+    Files.write(extraneousFile.toPath(), bytes("old exit list"));
+    Files.write(stalePartFile.toPath(), bytes("old"));
+    this.download();
+    assertFalse(extraneousFile.exists());
+    assertFalse(stalePartFile.exists());
+    assertTrue(this.localFile("2020-05-01-11-02-00").exists());
+  }
+
+  @Test
+  public void testUnreachableHostSkipped() throws IOException {
+    File otherLocalDirectory = this.temporaryFolder.newFolder("other");
+    File keptFile = new File(otherLocalDirectory,
+        "recent/exit-lists/2020-04-30-23-02-00");
+    assertTrue(keptFile.getParentFile().mkdirs());
+    Files.write(keptFile.toPath(), bytes("old exit list"));
+    Map<String, File> localDirectories = new LinkedHashMap<>();
+    localDirectories.put(this.baseUrl, this.localDirectory);
+    localDirectories.put(this.baseUrl + "/unreachable", otherLocalDirectory);
+    DescriptorDownloader downloader = this.download(localDirectories);
+    assertEquals(2L, downloader.getDownloadedFiles());
+    assertTrue(keptFile.exists());
+  }
+}
@@ -0,0 +1,53 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+public class DigestSetTest {
+
+  @Test
+  public void testAddTwice() {
+    DigestSet digestSet = new DigestSet();
+    assertTrue(digestSet.add(DigestUtils.sha256("descriptor")));
+    assertFalse(digestSet.add(DigestUtils.sha256("descriptor")));
+    assertEquals(1, digestSet.size());
+  }
+
+  @Test
+  public void testAddManyWithResizing() {
+    DigestSet digestSet = new DigestSet();
+    for (int i = 0; i < 100000; i++) {
+      assertTrue(digestSet.add(DigestUtils.sha256("descriptor " + i)));
+    }
+    for (int i = 0; i < 100000; i++) {
+      assertFalse(digestSet.add(DigestUtils.sha256("descriptor " + i)));
+    }
+    assertEquals(100000, digestSet.size());
+  }
+
+  @Test
+  public void testAllZeroDigest() {
+    DigestSet digestSet = new DigestSet();
+    assertTrue(digestSet.add(new byte[32]));
+    assertFalse(digestSet.add(new byte[32]));
+    assertEquals(1, digestSet.size());
+  }
+
+  @Test
+  public void testSameHighBits() {
+    DigestSet digestSet = new DigestSet();
+    byte[] first = new byte[16];
+    byte[] second = new byte[16];
+    second[15] = 2;
+    assertTrue(digestSet.add(first));
+    assertTrue(digestSet.add(second));
+    assertEquals(2, digestSet.size());
+  }
+}
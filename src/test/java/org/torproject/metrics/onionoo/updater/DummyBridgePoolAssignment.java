@@ -0,0 +1,54 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import org.torproject.descriptor.BridgePoolAssignment;
+
+import java.io.File;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public class DummyBridgePoolAssignment implements BridgePoolAssignment {
+
+  public byte[] getRawDescriptorBytes() {
+    return null;
+  }
+
+  public int getRawDescriptorLength() {
+    return 0;
+  }
+
+  public List<String> getAnnotations() {
+    return null;
+  }
+
+  public List<String> getUnrecognizedLines() {
+    return null;
+  }
+
+  public File getDescriptorFile() {
+    return null;
+  }
+
+  private long publishedMillis;
+
+  public void setPublishedMillis(long publishedMillis) {
+    this.publishedMillis = publishedMillis;
+  }
+
+  public long getPublishedMillis() {
+    return this.publishedMillis;
+  }
+
+  private SortedMap<String, String> entries = new TreeMap<>();
+
+  public void addEntry(String fingerprint, String assignment) {
+    this.entries.put(fingerprint, assignment);
+  }
+
+  public SortedMap<String, String> getEntries() {
+    return this.entries;
+  }
+}
@@ -9,6 +9,7 @@ import org.torproject.descriptor.NetworkStatusEntry;
 import org.torproject.descriptor.RelayNetworkStatusConsensus;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.SortedMap;
 import java.util.SortedSet;
@@ -59,8 +60,14 @@ public class DummyConsensus implements RelayNetworkStatusConsensus {
     return this.validAfterMillis;
   }
 
+  private long freshUntilMillis;
+
+  public void setFreshUntilMillis(long freshUntilMillis) {
+    this.freshUntilMillis = freshUntilMillis;
+  }
+
   public long getFreshUntilMillis() {
-    return 0;
+    return this.freshUntilMillis;
   }
 
   public long getValidUntilMillis() {
@@ -75,8 +82,14 @@ public class DummyConsensus implements RelayNetworkStatusConsensus {
     return 0;
   }
 
+  private List<String> recommendedServerVersions = new ArrayList<>();
+
+  public void addRecommendedServerVersion(String version) {
+    this.recommendedServerVersions.add(version);
+  }
+
   public List<String> getRecommendedServerVersions() {
-    return null;
+    return this.recommendedServerVersions;
   }
 
   public List<String> getRecommendedClientVersions() {
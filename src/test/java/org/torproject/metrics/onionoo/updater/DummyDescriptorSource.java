@@ -8,6 +8,7 @@ import org.torproject.descriptor.Descriptor;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -31,7 +32,7 @@ public class DummyDescriptorSource extends DescriptorSource {
 
   private Set<Descriptor> getDescriptorsByType(
       DescriptorType descriptorType) {
-    this.descriptors.putIfAbsent(descriptorType, new HashSet<>());
+    this.descriptors.putIfAbsent(descriptorType, new LinkedHashSet<>());
     return this.descriptors.get(descriptorType);
   }
 
@@ -5,6 +5,7 @@ package org.torproject.metrics.onionoo.updater;
 
 import org.torproject.descriptor.NetworkStatusEntry;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedMap;
@@ -40,8 +41,14 @@ public class DummyStatusEntry implements NetworkStatusEntry {
     return 0;
   }
 
+  private String address;
+
+  public void setAddress(String address) {
+    this.address = address;
+  }
+
   public String getAddress() {
-    return null;
+    return this.address;
   }
 
   public int getOrPort() {
@@ -61,7 +68,7 @@ public class DummyStatusEntry implements NetworkStatusEntry {
   }
 
   public List<String> getOrAddresses() {
-    return null;
+    return new ArrayList<>();
   }
 
   private SortedSet<String> flags = new TreeSet<>();
@@ -78,8 +85,14 @@ public class DummyStatusEntry implements NetworkStatusEntry {
     return null;
   }
 
+  private long bandwidth;
+
+  public void setBandwidth(long bandwidth) {
+    this.bandwidth = bandwidth;
+  }
+
   public long getBandwidth() {
-    return 0;
+    return this.bandwidth;
   }
 
   public long getMeasured() {
@@ -4,6 +4,7 @@
 package org.torproject.metrics.onionoo.updater;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -12,15 +13,23 @@ import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorParser;
 import org.torproject.descriptor.DescriptorSourceFactory;
 import org.torproject.descriptor.ServerDescriptor;
+import org.torproject.metrics.onionoo.docs.DateTimeHelper;
 import org.torproject.metrics.onionoo.docs.DetailsStatus;
 import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
 import org.torproject.metrics.onionoo.docs.DummyDocumentStore;
+import org.torproject.metrics.onionoo.docs.NodeStatus;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 public class NodeDetailsStatusUpdaterTest {
 
@@ -138,5 +147,241 @@ public class NodeDetailsStatusUpdaterTest {
       + "DXd4yh+SZ86zaAWLUbr1VhRvSLWbFJwNn/aAQdAu70M=\n"
       + "-----END SIGNATURE-----\n";
 
-}
+  /* Resolver that does not perform any lookups. */
+  private static class NoopReverseDomainNameResolver
+      extends ReverseDomainNameResolver {
+
+    @Override
+    public void startReverseDomainNameLookups() {
+      /* Nothing to do. */
+    }
+
+    @Override
+    public void finishReverseDomainNameLookups() {
+      /* Nothing to do. */
+    }
+
+    @Override
+    public Map<String, SortedSet<String>> getVerifiedLookupResults() {
+      return new HashMap<>();
+    }
+
+    @Override
+    public Map<String, SortedSet<String>> getUnverifiedLookupResults() {
+      return new HashMap<>();
+    }
+  }
+
+  private static final String RUNNING_FP =
+      "F2044413DAC2E02E3D6BCF4735A19BCA1DE97281";
+
+  private static final String OFFLINE_FP =
+      "847B1F850344D7876491A54892F904934E4EB85D";
+
+  private static final long VALID_AFTER = DateTimeHelper.parse(
+      "2020-05-01 12:00:00");
+
+  /* Adds node and details statuses of a relay that was last seen a year
+   * before the consensus, running the given version. */
+  private DetailsStatus addOfflineRelay(String version) {
+    NodeStatus nodeStatus = new NodeStatus(OFFLINE_FP);
+    nodeStatus.setRelay(true);
+    nodeStatus.setNickname("offline");
+    nodeStatus.setAddress("192.0.2.2");
+    nodeStatus.setOrAddressesAndPorts(new TreeSet<>());
+    nodeStatus.setFirstSeenMillis(VALID_AFTER
+        - 2 * DateTimeHelper.ROUGHLY_ONE_YEAR);
+    nodeStatus.setLastSeenMillis(VALID_AFTER
+        - DateTimeHelper.ROUGHLY_ONE_YEAR);
+    nodeStatus.setRelayFlags(new TreeSet<>(Arrays.asList("Running")));
+    nodeStatus.setVersion(version);
+    nodeStatus.setRecommendedVersion(true);
+    nodeStatus.setVersionStatus(TorVersionStatus.RECOMMENDED);
+    this.docStore.addDocument(nodeStatus, OFFLINE_FP);
+    DetailsStatus detailsStatus = new DetailsStatus();
+    detailsStatus.setRunning(true);
+    this.docStore.addDocument(detailsStatus, OFFLINE_FP);
+    return detailsStatus;
+  }
+
+  /* Processes a consensus with one running relay, recommending the given
+   * version, and updates all statuses. */
+  private void updateStatusesWithConsensus(String recommendedVersion) {
+    DummyConsensus consensus = new DummyConsensus();
+    consensus.setValidAfterMillis(VALID_AFTER);
+    consensus.addRecommendedServerVersion(recommendedVersion);
+    DummyStatusEntry statusEntry = new DummyStatusEntry(RUNNING_FP);
+    statusEntry.setAddress("192.0.2.1");
+    statusEntry.addFlag("Running");
+    consensus.addStatusEntry(statusEntry);
+    NodeDetailsStatusUpdater ndsu = new NodeDetailsStatusUpdater(
+        new NoopReverseDomainNameResolver(),
+        new LookupService(new File("no-such-geoip-dir")));
+    ndsu.processDescriptor(consensus, true);
+    ndsu.updateStatuses();
+  }
+
+  @Test
+  public void testUnchangedOfflineRelaySkipped() {
+    DetailsStatus offlineDetailsStatus = this.addOfflineRelay(null);
+    this.updateStatusesWithConsensus("0.4.3.5");
+    assertTrue("Details status of a relay that was not touched in this "
+        + "execution should not have been updated.",
+        offlineDetailsStatus.isRunning());
+    DetailsStatus runningDetailsStatus = this.docStore.getDocument(
+        DetailsStatus.class, RUNNING_FP);
+    assertNotNull(runningDetailsStatus);
+    assertTrue(runningDetailsStatus.isRunning());
+  }
+
+  @Test
+  public void testOfflineRelayWithChangedVersionStatusUpdated() {
+    DetailsStatus offlineDetailsStatus = this.addOfflineRelay("0.4.3.5");
+    this.updateStatusesWithConsensus("0.4.4.1");
+    assertFalse(offlineDetailsStatus.isRunning());
+    assertFalse(this.docStore.getDocument(NodeStatus.class, OFFLINE_FP)
+        .isRecommendedVersion());
+  }
+
+  @Test
+  public void testOfflineBridgeDistributorReset() {
+    String assignedFingerprint = "1111111111111111111111111111111111111111";
+    NodeStatus nodeStatus = new NodeStatus(OFFLINE_FP);
+    nodeStatus.setRelay(false);
+    nodeStatus.setNickname("offline");
+    nodeStatus.setLastSeenMillis(VALID_AFTER
+        - DateTimeHelper.ROUGHLY_ONE_YEAR);
+    this.docStore.addDocument(nodeStatus, OFFLINE_FP);
+    DetailsStatus detailsStatus = new DetailsStatus();
+    detailsStatus.setBridgePoolAssignmentPublished(VALID_AFTER
+        - DateTimeHelper.ONE_DAY);
+    detailsStatus.setBridgedbDistributor("moat");
+    this.docStore.addDocument(detailsStatus, OFFLINE_FP);
+    DummyBridgePoolAssignment bridgePoolAssignment =
+        new DummyBridgePoolAssignment();
+    bridgePoolAssignment.setPublishedMillis(VALID_AFTER);
+    bridgePoolAssignment.addEntry(assignedFingerprint, "https ring=1");
+    DummyConsensus consensus = new DummyConsensus();
+    consensus.setValidAfterMillis(VALID_AFTER);
+    NodeDetailsStatusUpdater ndsu = new NodeDetailsStatusUpdater(
+        new NoopReverseDomainNameResolver(),
+        new LookupService(new File("no-such-geoip-dir")));
+    ndsu.processDescriptor(consensus, true);
+    ndsu.processDescriptor(bridgePoolAssignment, false);
+    ndsu.updateStatuses();
+    assertNull("BridgeDB distributor of a bridge that is not contained in "
+        + "the latest bridge pool assignment should have been reset.",
+        detailsStatus.getBridgedbDistributor());
+    assertEquals(Long.valueOf(0L),
+        detailsStatus.getBridgePoolAssignmentPublished());
+  }
+
+  @Test
+  public void testManyRelaysUpdatedInParallel() {
+    DummyConsensus consensus = new DummyConsensus();
+    consensus.setValidAfterMillis(VALID_AFTER);
+    for (int i = 0; i < 1000; i++) {
+      DummyStatusEntry statusEntry = new DummyStatusEntry(
+          String.format("%040X", i * 4294967311L));
+      statusEntry.setAddress("10.0." + (i / 256) + "." + (i % 256));
+      statusEntry.addFlag("Running");
+      consensus.addStatusEntry(statusEntry);
+    }
+    NodeDetailsStatusUpdater ndsu = new NodeDetailsStatusUpdater(
+        new NoopReverseDomainNameResolver(),
+        new LookupService(new File("no-such-geoip-dir")));
+    ndsu.processDescriptor(consensus, true);
+    ndsu.updateStatuses();
+    assertEquals(1000, this.docStore.storedDocuments.get(DetailsStatus.class)
+        .size());
+    for (String fingerprint : consensus.getStatusEntries().keySet()) {
+      DetailsStatus detailsStatus = this.docStore.getDocument(
+          DetailsStatus.class, fingerprint);
+      assertTrue(detailsStatus.isRunning());
+      assertEquals(consensus.getStatusEntries().get(fingerprint)
+          .getAddress(), detailsStatus.getAddress());
+      assertNotNull(this.docStore.getDocument(NodeStatus.class,
+          fingerprint));
+    }
+  }
+
+  /* Adds the node status of a running relay with the given declared
+   * family. */
+  private void addRelayWithDeclaredFamily(String fingerprint,
+      String... declaredFamily) {
+    NodeStatus nodeStatus = new NodeStatus(fingerprint);
+    nodeStatus.setRelay(true);
+    nodeStatus.setNickname("relay");
+    nodeStatus.setAddress("192.0.2.1");
+    nodeStatus.setOrAddressesAndPorts(new TreeSet<>());
+    nodeStatus.setFirstSeenMillis(VALID_AFTER);
+    nodeStatus.setLastSeenMillis(VALID_AFTER);
+    nodeStatus.setRelayFlags(new TreeSet<>(Arrays.asList("Running")));
+    nodeStatus.setDeclaredFamily(new TreeSet<>(
+        Arrays.asList(declaredFamily)));
+    this.docStore.addDocument(nodeStatus, fingerprint);
+  }
 
+  @Test
+  public void testRelayNotInOwnIndirectFamily() {
+    String a = "A000000000000000000000000000000000000000";
+    String b = "B000000000000000000000000000000000000000";
+    String c = "C000000000000000000000000000000000000000";
+    this.addRelayWithDeclaredFamily(a, b);
+    this.addRelayWithDeclaredFamily(b, a, c);
+    this.addRelayWithDeclaredFamily(c, b);
+    NodeDetailsStatusUpdater ndsu = new NodeDetailsStatusUpdater(
+        new NoopReverseDomainNameResolver(),
+        new LookupService(new File("no-such-geoip-dir")));
+    ndsu.updateStatuses();
+    for (String fingerprint : Arrays.asList(a, b, c)) {
+      NodeStatus nodeStatus = this.docStore.getDocument(NodeStatus.class,
+          fingerprint);
+      assertFalse(nodeStatus.getExtendedFamily().contains(fingerprint));
+      assertFalse(nodeStatus.getIndirectFamily().contains(fingerprint));
+    }
+    NodeStatus nodeStatus = this.docStore.getDocument(NodeStatus.class, a);
+    assertEquals(new TreeSet<>(Arrays.asList(a, b)),
+        nodeStatus.getEffectiveFamily());
+    assertEquals(new TreeSet<>(Arrays.asList(b, c)),
+        nodeStatus.getExtendedFamily());
+    assertEquals(new TreeSet<>(Arrays.asList(c)),
+        nodeStatus.getIndirectFamily());
+    assertEquals(new TreeSet<>(Arrays.asList(a, c)), this.docStore
+        .getDocument(NodeStatus.class, b).getExtendedFamily());
+  }
+
+  @Test
+  public void testConsensusBatch() {
+    List<Descriptor> batch = new ArrayList<>();
+    for (int i = 1; i >= 0; i--) {
+      DummyConsensus consensus = new DummyConsensus();
+      consensus.setValidAfterMillis(VALID_AFTER
+          - i * DateTimeHelper.ONE_HOUR);
+      DummyStatusEntry statusEntry = new DummyStatusEntry(RUNNING_FP);
+      statusEntry.setAddress("192.0.2." + (i + 1));
+      statusEntry.addFlag("Running");
+      consensus.addStatusEntry(statusEntry);
+      batch.add(consensus);
+    }
+    NodeDetailsStatusUpdater ndsu = new NodeDetailsStatusUpdater(
+        new NoopReverseDomainNameResolver(),
+        new LookupService(new File("no-such-geoip-dir")));
+    ndsu.processDescriptors(batch, true);
+    ndsu.updateStatuses();
+    NodeStatus nodeStatus = this.docStore.getDocument(NodeStatus.class,
+        RUNNING_FP);
+    assertEquals(VALID_AFTER - DateTimeHelper.ONE_HOUR,
+        nodeStatus.getFirstSeenMillis());
+    assertEquals(VALID_AFTER, nodeStatus.getLastSeenMillis());
+    assertEquals("192.0.2.1", nodeStatus.getAddress());
+    assertEquals(2, nodeStatus.getLastAddresses().size());
+  }
+
+  @Test
+  public void testOfflineRelayWithUnchangedVersionStatusSkipped() {
+    DetailsStatus offlineDetailsStatus = this.addOfflineRelay("0.4.3.5");
+    this.updateStatusesWithConsensus("0.4.3.5");
+    assertTrue(offlineDetailsStatus.isRunning());
+  }
+}
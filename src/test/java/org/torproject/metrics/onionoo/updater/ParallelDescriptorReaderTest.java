@@ -0,0 +1,128 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.descriptor.Descriptor;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ParallelDescriptorReaderTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File consensusesDir;
+
+  /* Creates 50 consensus files with names in valid-after order and the
+   * valid-after hour as content, in random order. */
+  @Before
+  public void createConsensusFiles() throws IOException {
+    this.consensusesDir = this.temporaryFolder.newFolder("consensuses");
+    List<Integer> hours = new ArrayList<>();
+    for (int hour = 0; hour < 50; hour++) {
+      hours.add(hour);
+    }
+    Collections.shuffle(hours);
+    for (int hour : hours) {
+      File dayDir = new File(this.consensusesDir, "day-" + (hour / 24));
+      dayDir.mkdirs();
+      Files.write(new File(dayDir, String.format("%02d-consensus", hour))
+          .toPath(), String.valueOf(hour).getBytes());
+    }
+  }
+
+  /* Parses a consensus file after a random delay, so that files are
+   * parsed out of order. */
+  private static List<Descriptor> parseConsensusFile(File file) {
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+      DummyConsensus consensus = new DummyConsensus();
+      consensus.setValidAfterMillis(Long.parseLong(
+          new String(Files.readAllBytes(file.toPath()))));
+      return Collections.singletonList(consensus);
+    } catch (InterruptedException | IOException e) {
+      return null;
+    }
+  }
+
+  private List<Long> readValidAfterHours(ParallelDescriptorReader reader) {
+    List<Long> validAfterHours = new ArrayList<>();
+    Iterator<Descriptor> descriptors =
+        reader.readDescriptors(this.consensusesDir);
+    while (descriptors.hasNext()) {
+      validAfterHours.add(
+          ((DummyConsensus) descriptors.next()).getValidAfterMillis());
+    }
+    return validAfterHours;
+  }
+
+  @Test
+  public void testOrderedDelivery() {
+    ParallelDescriptorReader reader = new ParallelDescriptorReader(8, 3,
+        ParallelDescriptorReaderTest::parseConsensusFile);
+    List<Long> validAfterHours = this.readValidAfterHours(reader);
+    assertEquals(50, validAfterHours.size());
+    for (int i = 0; i < validAfterHours.size(); i++) {
+      assertEquals(i, (long) validAfterHours.get(i));
+    }
+    assertEquals(50, reader.getParsedFiles().size());
+  }
+
+  @Test
+  public void testExcludedFiles() {
+    ParallelDescriptorReader firstReader = new ParallelDescriptorReader(4,
+        16, ParallelDescriptorReaderTest::parseConsensusFile);
+    this.readValidAfterHours(firstReader);
+    Map<String, Long> excludedFiles =
+        new HashMap<>(firstReader.getParsedFiles());
+    File modifiedFile = new File(new File(this.consensusesDir, "day-1"),
+        "30-consensus");
+    excludedFiles.put(modifiedFile.getAbsolutePath(),
+        modifiedFile.lastModified() - 1000L);
+    ParallelDescriptorReader secondReader = new ParallelDescriptorReader(4,
+        16, ParallelDescriptorReaderTest::parseConsensusFile);
+    secondReader.setExcludedFiles(excludedFiles);
+    assertEquals(Collections.singletonList(30L),
+        this.readValidAfterHours(secondReader));
+    assertEquals(1, secondReader.getParsedFiles().size());
+  }
+
+  @Test
+  public void testUnreadableFileSkipped() {
+    ParallelDescriptorReader reader = new ParallelDescriptorReader(2, 2,
+        file -> file.getName().startsWith("07") ? null
+        : parseConsensusFile(file));
+    List<Long> validAfterHours = this.readValidAfterHours(reader);
+    assertEquals(49, validAfterHours.size());
+    assertFalse(validAfterHours.contains(7L));
+    assertEquals(49, reader.getParsedFiles().size());
+  }
+
+  @Test
+  public void testEmptyDirectory() throws IOException {
+    ParallelDescriptorReader reader = new ParallelDescriptorReader(2, 2,
+        ParallelDescriptorReaderTest::parseConsensusFile);
+    assertFalse(reader.readDescriptors(this.temporaryFolder.newFolder())
+        .hasNext());
+    assertTrue(reader.getParsedFiles().isEmpty());
+  }
+}
@@ -0,0 +1,109 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ParseHistoryTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Map<String, Long> writeAndRead(Map<String, Long> history)
+      throws IOException {
+    File historyFile = new File(this.temporaryFolder.getRoot(), "history");
+    ParseHistory.write(historyFile, history);
+    return ParseHistory.read(historyFile);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Map<String, Long> history = new HashMap<>();
+    for (int hour = 0; hour < 72; hour++) {
+      history.put(String.format("/srv/onionoo/in/recent/relay-descriptors/"
+          + "consensuses/2020-05-%02d-%02d-00-00-consensus", 1 + hour / 24,
+          hour % 24), 1588291200000L + hour * 3600000L);
+    }
+    history.put("/srv/onionoo/in/recent/bridge-descriptors/extra-infos/"
+        + "2020-05-01-00-00-00-extra-infos", 1588291200000L);
+    assertEquals(history, this.writeAndRead(history));
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    assertTrue(this.writeAndRead(new HashMap<>()).isEmpty());
+  }
+
+  @Test
+  public void testNegativeAndLargeDifferences() throws IOException {
+    Map<String, Long> history = new HashMap<>();
+    history.put("/a", Long.MAX_VALUE);
+    history.put("/ab", 0L);
+    history.put("/abc", -1L);
+    history.put("/b", Long.MIN_VALUE);
+    assertEquals(history, this.writeAndRead(history));
+  }
+
+  @Test
+  public void testNonAsciiPaths() throws IOException {
+    Map<String, Long> history = new HashMap<>();
+    history.put("/srv/önionoo/a", 1L);
+    history.put("/srv/önionoo/ä", 2L);
+    history.put("/srv/önionoo/ää", 3L);
+    assertEquals(history, this.writeAndRead(history));
+  }
+
+  @Test
+  public void testBinarySmallerThanText() throws IOException {
+    Map<String, Long> history = new HashMap<>();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      String path = String.format("/srv/onionoo/in/recent/relay-descriptors/"
+          + "server-descriptors/%040x", i);
+      history.put(path, 1588291200000L + i);
+      text.append(1588291200000L + i).append(' ').append(path).append('\n');
+    }
+    File historyFile = new File(this.temporaryFolder.getRoot(), "history");
+    ParseHistory.write(historyFile, history);
+    assertTrue(historyFile.length() < text.length() / 4);
+  }
+
+  @Test
+  public void testReadTextFormat() throws IOException {
+    File historyFile = this.temporaryFolder.newFile();
+    Files.write(historyFile.toPath(), ("1588291200000 /srv/a b\n"
+        + "illegal\n"
+        + "1588294800000 /srv/c\n").getBytes(StandardCharsets.UTF_8));
+    Map<String, Long> expected = new HashMap<>();
+    expected.put("/srv/a b", 1588291200000L);
+    expected.put("/srv/c", 1588294800000L);
+    assertEquals(expected, ParseHistory.read(historyFile));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedBinary() throws IOException {
+    Map<String, Long> history = new HashMap<>();
+    history.put("/srv/a", 1L);
+    history.put("/srv/b", 2L);
+    File historyFile = new File(this.temporaryFolder.getRoot(), "history");
+    ParseHistory.write(historyFile, history);
+    byte[] bytes = Files.readAllBytes(historyFile.toPath());
+    byte[] truncated = new byte[bytes.length - 3];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+    Files.write(historyFile.toPath(), truncated);
+    ParseHistory.read(historyFile);
+  }
+}
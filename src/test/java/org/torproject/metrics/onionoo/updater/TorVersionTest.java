@@ -4,6 +4,8 @@
 package org.torproject.metrics.onionoo.updater;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
@@ -131,5 +133,18 @@ public class TorVersionTest {
           || this.expectedCompareToResult > 0 && actualCompareToResult > 0);
     }
   }
-}
 
+  public static class TorVersionCacheTest {
+
+    @Test
+    public void testSameInstance() {
+      assertSame(TorVersion.of("0.4.3.5"), TorVersion.of("0.4.3.5"));
+    }
+
+    @Test
+    public void testInvalidVersionTwice() {
+      assertNull(TorVersion.of("0..4"));
+      assertNull(TorVersion.of("0..4"));
+    }
+  }
+}
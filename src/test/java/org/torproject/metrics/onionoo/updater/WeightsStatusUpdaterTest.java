@@ -0,0 +1,151 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.torproject.descriptor.Descriptor;
+import org.torproject.metrics.onionoo.docs.DateTimeHelper;
+import org.torproject.metrics.onionoo.docs.DocumentStoreFactory;
+import org.torproject.metrics.onionoo.docs.DummyDocumentStore;
+import org.torproject.metrics.onionoo.docs.WeightsStatus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class WeightsStatusUpdaterTest {
+
+  private DummyDescriptorSource descriptorSource;
+
+  @Before
+  public void createDummyDescriptorSource() {
+    this.descriptorSource = new DummyDescriptorSource();
+    DescriptorSourceFactory.setDescriptorSource(this.descriptorSource);
+  }
+
+  private DummyDocumentStore documentStore;
+
+  @Before
+  public void createDummyDocumentStore() {
+    this.documentStore = new DummyDocumentStore();
+    DocumentStoreFactory.setDocumentStore(this.documentStore);
+  }
+
+  private static final String GABELMOO_FINGERPRINT =
+      "F2044413DAC2E02E3D6BCF4735A19BCA1DE97281";
+
+  private static final String TOR26_FINGERPRINT =
+      "847B1F850344D7876491A54892F904934E4EB85D";
+
+  private static final long FIRST_VALID_AFTER =
+      DateTimeHelper.parse("2020-05-01 00:00:00");
+
+  /* Adds the given number of hourly consensuses with two running relays
+   * that have consensus weights of 1 and 3, respectively. */
+  private void addConsensuses(int consensuses) {
+    for (Descriptor consensus : this.createConsensuses(consensuses)) {
+      this.descriptorSource.addDescriptor(DescriptorType.RELAY_CONSENSUSES,
+          consensus);
+    }
+  }
+
+  private List<Descriptor> createConsensuses(int consensuses) {
+    List<Descriptor> result = new ArrayList<>();
+    for (int i = 0; i < consensuses; i++) {
+      DummyConsensus consensus = new DummyConsensus();
+      long validAfterMillis = FIRST_VALID_AFTER + i * DateTimeHelper.ONE_HOUR;
+      consensus.setValidAfterMillis(validAfterMillis);
+      consensus.setFreshUntilMillis(validAfterMillis
+          + DateTimeHelper.ONE_HOUR);
+      consensus.addKnownFlag("Running");
+      DummyStatusEntry gabelmoo = new DummyStatusEntry(GABELMOO_FINGERPRINT);
+      gabelmoo.addFlag("Running");
+      gabelmoo.setBandwidth(1L);
+      consensus.addStatusEntry(gabelmoo);
+      DummyStatusEntry tor26 = new DummyStatusEntry(TOR26_FINGERPRINT);
+      tor26.addFlag("Running");
+      tor26.setBandwidth(3L);
+      consensus.addStatusEntry(tor26);
+      result.add(consensus);
+    }
+    return result;
+  }
+
+  @Test
+  public void testOneStoreOperationPerRelay() {
+    WeightsStatusUpdater updater = new WeightsStatusUpdater();
+    this.addConsensuses(3);
+    this.descriptorSource.readDescriptors();
+    assertEquals("Weights should only be buffered while processing "
+        + "descriptors.", 0, this.documentStore.getPerformedStoreOperations());
+    updater.updateStatuses();
+    assertEquals(2, this.documentStore.getPerformedStoreOperations());
+    WeightsStatus weightsStatus = this.documentStore.getDocument(
+        WeightsStatus.class, TOR26_FINGERPRINT);
+    assertEquals(3, weightsStatus.getHistory().size());
+    for (Map.Entry<long[], double[]> e
+        : weightsStatus.getHistory().entrySet()) {
+      assertEquals(DateTimeHelper.ONE_HOUR, e.getKey()[1] - e.getKey()[0]);
+      assertEquals(0.75, e.getValue()[1], 1e-9);
+      assertEquals(3.0, e.getValue()[6], 1e-9);
+    }
+  }
+
+  @Test
+  public void testBufferFlushedOncePerBatch() {
+    System.setProperty("onionoo.weights.buffer", "2");
+    WeightsStatusUpdater updater;
+    try {
+      updater = new WeightsStatusUpdater();
+    } finally {
+      System.clearProperty("onionoo.weights.buffer");
+    }
+    updater.processDescriptors(this.createConsensuses(3), true);
+    assertEquals("A full buffer should only be written once at the end of "
+        + "a batch.", 2, this.documentStore.getPerformedStoreOperations());
+    assertEquals(3, this.documentStore.getDocument(WeightsStatus.class,
+        TOR26_FINGERPRINT).getHistory().size());
+  }
+
+  @Test
+  public void testMergeIntoExistingStatus() {
+    WeightsStatus existing = new WeightsStatus();
+    existing.addToHistory(FIRST_VALID_AFTER - DateTimeHelper.ONE_HOUR,
+        FIRST_VALID_AFTER, new double[] { -1.0, 0.5, -1.0, -1.0, -1.0, -1.0,
+        2.0 });
+    existing.addToHistory(FIRST_VALID_AFTER,
+        FIRST_VALID_AFTER + DateTimeHelper.ONE_HOUR, new double[] { -1.0,
+        0.5, -1.0, -1.0, -1.0, -1.0, 2.0 });
+    this.documentStore.addDocument(existing, GABELMOO_FINGERPRINT);
+    WeightsStatusUpdater updater = new WeightsStatusUpdater();
+    this.addConsensuses(2);
+    this.descriptorSource.readDescriptors();
+    updater.updateStatuses();
+    WeightsStatus weightsStatus = this.documentStore.getDocument(
+        WeightsStatus.class, GABELMOO_FINGERPRINT);
+    assertEquals("The already known interval should be kept and only the "
+        + "new one added.", 3, weightsStatus.getHistory().size());
+    assertEquals(0.5, weightsStatus.getHistory().get(new long[] {
+        FIRST_VALID_AFTER, FIRST_VALID_AFTER + DateTimeHelper.ONE_HOUR })[1],
+        1e-9);
+    assertEquals(0.25, weightsStatus.getHistory().get(new long[] {
+        FIRST_VALID_AFTER + DateTimeHelper.ONE_HOUR,
+        FIRST_VALID_AFTER + 2 * DateTimeHelper.ONE_HOUR })[1], 1e-9);
+  }
+
+  @Test
+  public void testNoConsensusesNoStatusFiles() {
+    WeightsStatusUpdater updater = new WeightsStatusUpdater();
+    this.descriptorSource.readDescriptors();
+    updater.updateStatuses();
+    assertEquals(0, this.documentStore.getPerformedStoreOperations());
+    assertNull(this.documentStore.getDocument(WeightsStatus.class,
+        GABELMOO_FINGERPRINT));
+  }
+}
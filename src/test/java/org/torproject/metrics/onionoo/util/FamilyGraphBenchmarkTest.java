@@ -0,0 +1,123 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Benchmark comparing effective and extended families computed using
+ * {@link FamilyGraph} to the previous computation using sorted maps and
+ * sets, on synthetic large families.
+ *
+ * <p>This benchmark is not run as part of the unit tests; remove the
+ * {@code @Ignore} annotation to run it.</p>
+ */
+@Ignore("Benchmark that takes a while and only reports timings.")
+public class FamilyGraphBenchmarkTest {
+
+  private static final int FAMILIES = 50;
+
+  private static final int RELAYS_PER_FAMILY = 400;
+
+  private static final int ROUNDS = 5;
+
+  /* Computes effective families as done before using sorted maps and
+   * sets. */
+  private static SortedMap<String, SortedSet<String>>
+      computeEffectiveFamilies(
+      SortedMap<String, SortedSet<String>> declaredFamilies) {
+    SortedMap<String, SortedSet<String>> effectiveFamilies = new TreeMap<>();
+    for (Map.Entry<String, SortedSet<String>> e
+        : declaredFamilies.entrySet()) {
+      String fingerprint = e.getKey();
+      SortedSet<String> effectiveFamily = new TreeSet<>();
+      for (String declaredFamilyMember : e.getValue()) {
+        if (declaredFamilies.containsKey(declaredFamilyMember)
+            && declaredFamilies.get(declaredFamilyMember).contains(
+            fingerprint)) {
+          effectiveFamily.add(declaredFamilyMember);
+        }
+      }
+      if (!effectiveFamily.isEmpty()) {
+        effectiveFamilies.put(fingerprint, effectiveFamily);
+      }
+    }
+    return effectiveFamilies;
+  }
+
+  /* Computes extended families as done before using a breadth-first
+   * search over sorted sets, sharing each extended family between all of
+   * its members to keep memory usage of this benchmark in bounds. */
+  private static SortedMap<String, SortedSet<String>>
+      computeExtendedFamilies(
+      SortedMap<String, SortedSet<String>> effectiveFamilies) {
+    SortedMap<String, SortedSet<String>> extendedFamilies = new TreeMap<>();
+    SortedSet<String> visited = new TreeSet<>();
+    for (String fingerprint : effectiveFamilies.keySet()) {
+      if (visited.contains(fingerprint)) {
+        continue;
+      }
+      SortedSet<String> toVisit = new TreeSet<>();
+      toVisit.add(fingerprint);
+      SortedSet<String> extendedFamily = new TreeSet<>();
+      while (!toVisit.isEmpty()) {
+        String visiting = toVisit.first();
+        toVisit.remove(visiting);
+        extendedFamily.add(visiting);
+        SortedSet<String> members = effectiveFamilies.get(visiting);
+        if (members != null) {
+          for (String member : members) {
+            if (!toVisit.contains(member) && !visited.contains(member)) {
+              toVisit.add(member);
+            }
+          }
+        }
+        visited.add(visiting);
+      }
+      if (extendedFamily.size() > 1) {
+        for (String member : extendedFamily) {
+          extendedFamilies.put(member, extendedFamily);
+        }
+      }
+    }
+    return extendedFamilies;
+  }
+
+  @Test
+  public void benchmarkFamilies() {
+    SortedMap<String, SortedSet<String>> declaredFamilies =
+        FamilyGraphTest.createDeclaredFamilies(FAMILIES, RELAYS_PER_FAMILY,
+        1L);
+    for (int round = 0; round < ROUNDS; round++) {
+      long started = System.nanoTime();
+      SortedMap<String, SortedSet<String>> extendedFamilies =
+          computeExtendedFamilies(computeEffectiveFamilies(declaredFamilies));
+      long sortedSetsMillis = (System.nanoTime() - started) / 1000000L;
+      started = System.nanoTime();
+      FamilyGraph familyGraph =
+          FamilyGraph.fromDeclaredFamilies(declaredFamilies);
+      int relaysWithExtendedFamily = 0;
+      List<String[]> components = familyGraph.getExtendedFamilies();
+      for (String[] component : components) {
+        relaysWithExtendedFamily += component.length;
+      }
+      long familyGraphMillis = (System.nanoTime() - started) / 1000000L;
+      assertEquals(extendedFamilies.size(), relaysWithExtendedFamily);
+      System.out.printf("Round %d: %d relays, %d with extended family, "
+          + "sorted sets %d ms, family graph %d ms%n", round,
+          declaredFamilies.size(), relaysWithExtendedFamily,
+          sortedSetsMillis, familyGraphMillis);
+    }
+  }
+}
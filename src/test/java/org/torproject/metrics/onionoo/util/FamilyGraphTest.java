@@ -0,0 +1,189 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class FamilyGraphTest {
+
+  private static final String A = "000C5F55BD4814B917CC474BD537F1A3B33CCE2A";
+
+  private static final String B = "001C13B3A55A71B977CA65EC85539D79C653A3FC";
+
+  private static final String C = "0025C136C1F3A9EEFE2AE3F918F03BFA21B5070B";
+
+  private static final String D = "0000831B236DFF73D409AD17B40E2A728A53994F";
+
+  private static final String E = "1FEDE50ED8DBA1DD9F9165F78C8131E4A44AB756";
+
+  private static final String F = "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF";
+
+  private Map<String, SortedSet<String>> effectiveFamilies;
+
+  @Before
+  public void createEffectiveFamilies() {
+    /* A and B, and B and C are in mutual family relations, and so are D and
+     * E.  F is not part of any family. */
+    this.effectiveFamilies = new HashMap<>();
+    this.effectiveFamilies.put(A, new TreeSet<>(Arrays.asList(B)));
+    this.effectiveFamilies.put(B, new TreeSet<>(Arrays.asList(A, C)));
+    this.effectiveFamilies.put(C, new TreeSet<>(Arrays.asList(B)));
+    this.effectiveFamilies.put(D, new TreeSet<>(Arrays.asList(E)));
+    this.effectiveFamilies.put(E, new TreeSet<>(Arrays.asList(D)));
+  }
+
+  @Test
+  public void testFamily() {
+    FamilyGraph familyGraph =
+        FamilyGraph.fromEffectiveFamilies(this.effectiveFamilies);
+    assertEquals(5, familyGraph.getNodeCount());
+    assertEquals(Arrays.asList(B), familyGraph.getFamily(A));
+    assertEquals(Arrays.asList(A, C), familyGraph.getFamily(B));
+    assertEquals(Arrays.asList(E), familyGraph.getFamily(D));
+    assertTrue(familyGraph.getFamily(F).isEmpty());
+  }
+
+  @Test
+  public void testSelfInFamilyIgnored() {
+    this.effectiveFamilies.put(F, new TreeSet<>(Arrays.asList(F)));
+    FamilyGraph familyGraph =
+        FamilyGraph.fromEffectiveFamilies(this.effectiveFamilies);
+    assertTrue(familyGraph.getFamily(F).isEmpty());
+  }
+
+  @Test
+  public void testEmpty() {
+    FamilyGraph familyGraph =
+        FamilyGraph.fromEffectiveFamilies(new HashMap<>());
+    assertEquals(0, familyGraph.getNodeCount());
+    assertTrue(familyGraph.getFamily(A).isEmpty());
+  }
+
+  @Test
+  public void testFromDeclaredFamilies() {
+    /* A and B as well as B and C declare each other mutually, D declares E
+     * which does not reciprocate, and all relays declare themselves. */
+    Map<String, SortedSet<String>> declaredFamilies = new HashMap<>();
+    declaredFamilies.put(A, new TreeSet<>(Arrays.asList(A, B, D)));
+    declaredFamilies.put(B, new TreeSet<>(Arrays.asList(A, B, C)));
+    declaredFamilies.put(C, new TreeSet<>(Arrays.asList(B, C, "nickname")));
+    declaredFamilies.put(D, new TreeSet<>(Arrays.asList(D, E)));
+    declaredFamilies.put(E, new TreeSet<>(Arrays.asList(E)));
+    FamilyGraph familyGraph =
+        FamilyGraph.fromDeclaredFamilies(declaredFamilies);
+    assertEquals(Arrays.asList(B), familyGraph.getFamily(A));
+    assertEquals(Arrays.asList(A, C), familyGraph.getFamily(B));
+    assertEquals(Arrays.asList(B), familyGraph.getFamily(C));
+    assertTrue(familyGraph.getFamily(D).isEmpty());
+    assertTrue(familyGraph.getFamily(F).isEmpty());
+    List<String[]> extendedFamilies = familyGraph.getExtendedFamilies();
+    assertEquals(1, extendedFamilies.size());
+    assertArrayEquals(new String[] { A, B, C }, extendedFamilies.get(0));
+  }
+
+  @Test
+  public void testExtendedFamilies() {
+    List<String[]> extendedFamilies = FamilyGraph.fromEffectiveFamilies(
+        this.effectiveFamilies).getExtendedFamilies();
+    assertEquals(2, extendedFamilies.size());
+    assertArrayEquals(new String[] { D, E }, extendedFamilies.get(0));
+    assertArrayEquals(new String[] { A, B, C }, extendedFamilies.get(1));
+  }
+
+  /** Creates declared families of the given number of families with the
+   * given number of relays each, where each relay declares itself, most
+   * other members of its family, and a few relays outside of its family. */
+  static SortedMap<String, SortedSet<String>> createDeclaredFamilies(
+      int families, int relaysPerFamily, long seed) {
+    Random random = new Random(seed);
+    SortedMap<String, SortedSet<String>> declaredFamilies = new TreeMap<>();
+    for (int family = 0; family < families; family++) {
+      for (int relay = 0; relay < relaysPerFamily; relay++) {
+        SortedSet<String> declaredFamily = new TreeSet<>();
+        for (int member = 0; member < relaysPerFamily; member++) {
+          if (member == relay || random.nextInt(20) > 0) {
+            declaredFamily.add(String.format("%040X",
+                ((long) family << 32) | member));
+          }
+        }
+        for (int i = 0; i < 3; i++) {
+          declaredFamily.add(String.format("%040X",
+              ((long) random.nextInt(families) << 32)
+              | random.nextInt(relaysPerFamily)));
+        }
+        declaredFamily.add("nickname" + random.nextInt(10));
+        declaredFamilies.put(String.format("%040X",
+            ((long) family << 32) | relay), declaredFamily);
+      }
+    }
+    return declaredFamilies;
+  }
+
+  @Test
+  public void testSameResultsAsSortedSets() {
+    SortedMap<String, SortedSet<String>> declaredFamilies =
+        createDeclaredFamilies(20, 50, 7L);
+    FamilyGraph familyGraph =
+        FamilyGraph.fromDeclaredFamilies(declaredFamilies);
+
+    /* Compare effective families to those computed by looking up each
+     * declared relationship in the declared family of the member. */
+    SortedMap<String, SortedSet<String>> effectiveFamilies = new TreeMap<>();
+    for (Map.Entry<String, SortedSet<String>> e
+        : declaredFamilies.entrySet()) {
+      SortedSet<String> effectiveFamily = new TreeSet<>();
+      for (String member : e.getValue()) {
+        if (!member.equals(e.getKey())
+            && declaredFamilies.containsKey(member)
+            && declaredFamilies.get(member).contains(e.getKey())) {
+          effectiveFamily.add(member);
+        }
+      }
+      effectiveFamilies.put(e.getKey(), effectiveFamily);
+      assertEquals(new ArrayList<>(effectiveFamily),
+          familyGraph.getFamily(e.getKey()));
+    }
+
+    /* Compare extended families to those found by a breadth-first search
+     * over effective families. */
+    SortedSet<String> visited = new TreeSet<>();
+    int extendedFamilies = 0;
+    for (String[] extendedFamily : familyGraph.getExtendedFamilies()) {
+      SortedSet<String> reached = new TreeSet<>();
+      List<String> toVisit = new ArrayList<>();
+      toVisit.add(extendedFamily[0]);
+      while (!toVisit.isEmpty()) {
+        String visiting = toVisit.remove(toVisit.size() - 1);
+        if (reached.add(visiting)) {
+          toVisit.addAll(effectiveFamilies.get(visiting));
+        }
+      }
+      assertEquals(reached, new TreeSet<>(Arrays.asList(extendedFamily)));
+      assertTrue(reached.size() >= 2);
+      visited.addAll(reached);
+      extendedFamilies++;
+    }
+    for (Map.Entry<String, SortedSet<String>> e
+        : effectiveFamilies.entrySet()) {
+      assertEquals(!e.getValue().isEmpty(), visited.contains(e.getKey()));
+    }
+    assertTrue(extendedFamilies > 0);
+  }
+}
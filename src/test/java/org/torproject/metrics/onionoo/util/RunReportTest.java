@@ -0,0 +1,76 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RunReportTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testPhasesAndCounters() throws Exception {
+    RunReport runReport = new RunReport();
+    AtomicLong documentsWritten = new AtomicLong(5L);
+    runReport.addCounter("documents_written", documentsWritten::get);
+    runReport.measure("first", () -> documentsWritten.addAndGet(3L));
+    runReport.measure("second", () -> { });
+    JsonNode report = new ObjectMapper().readTree(runReport.toJson());
+    assertEquals(runReport.getStartedMillis(),
+        report.get("started_millis").asLong());
+    assertTrue(report.get("wall_millis").asLong() >= 0L);
+    JsonNode phases = report.get("phases");
+    assertEquals(2, phases.size());
+    assertEquals("first", phases.get(0).get("name").asText());
+    assertEquals(3L, phases.get(0).get("counters").get("documents_written")
+        .asLong());
+    assertEquals(0L, phases.get(1).get("counters").get("documents_written")
+        .asLong());
+    assertTrue(phases.get(0).has("cpu_millis"));
+    assertTrue(phases.get(0).has("allocated_bytes"));
+    assertTrue(phases.get(0).has("gc_millis"));
+  }
+
+  @Test
+  public void testPhaseFailing() throws Exception {
+    RunReport runReport = new RunReport();
+    try {
+      runReport.measure("failing", () -> {
+        throw new IllegalStateException();
+      });
+    } catch (IllegalStateException e) {
+      /* Expected. */
+    }
+    JsonNode report = new ObjectMapper().readTree(runReport.toJson());
+    assertEquals("failing", report.get("phases").get(0).get("name").asText());
+  }
+
+  @Test
+  public void testWriteReportKeepsMostRecent() throws Exception {
+    File reportsDir = new File(this.temporaryFolder.getRoot(), "run-reports");
+    RunReport runReport = new RunReport();
+    for (String runName : new String[] { "2020-03-01-10-15-00",
+        "2020-03-01-11-15-00", "2020-03-01-12-15-00" }) {
+      runReport.writeReport(reportsDir, runName, 2);
+    }
+    String[] reportFiles = reportsDir.list();
+    Arrays.sort(reportFiles);
+    assertArrayEquals(new String[] { "2020-03-01-11-15-00.json",
+        "2020-03-01-12-15-00.json" }, reportFiles);
+  }
+}
@@ -0,0 +1,134 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.onionoo.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TaskGraphTest {
+
+  private static final Runnable NOOP = () -> { };
+
+  @Test
+  public void testStatusUpdaterDependencies() {
+    TaskGraph taskGraph = new TaskGraph(4);
+    taskGraph.addTask("details", Arrays.asList("node", "details"),
+        Arrays.asList("node", "details"), NOOP);
+    taskGraph.addTask("bandwidth", Arrays.asList("bandwidth", "node"),
+        Collections.singleton("bandwidth"), NOOP);
+    taskGraph.addTask("weights", Arrays.asList("weights", "node"),
+        Collections.singleton("weights"), NOOP);
+    taskGraph.addTask("uptime", Collections.singleton("uptime"),
+        Collections.singleton("uptime"), NOOP);
+    assertEquals(Collections.emptyList(),
+        taskGraph.getDependencies("details"));
+    assertEquals(Collections.singletonList("details"),
+        taskGraph.getDependencies("bandwidth"));
+    assertEquals(Collections.singletonList("details"),
+        taskGraph.getDependencies("weights"));
+    assertEquals(Collections.emptyList(),
+        taskGraph.getDependencies("uptime"));
+  }
+
+  @Test
+  public void testWriteAfterReadDependency() {
+    TaskGraph taskGraph = new TaskGraph(4);
+    taskGraph.addTask("reader", Collections.singleton("node"),
+        Collections.emptySet(), NOOP);
+    taskGraph.addTask("writer", Collections.emptySet(),
+        Collections.singleton("node"), NOOP);
+    assertEquals(Collections.singletonList("reader"),
+        taskGraph.getDependencies("writer"));
+  }
+
+  @Test(timeout = 10000L)
+  public void testIndependentTasksRunConcurrently() {
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    AtomicBoolean concurrent = new AtomicBoolean(true);
+    Runnable awaitOther = () -> {
+      bothStarted.countDown();
+      try {
+        if (!bothStarted.await(5L, TimeUnit.SECONDS)) {
+          concurrent.set(false);
+        }
+      } catch (InterruptedException e) {
+        concurrent.set(false);
+      }
+    };
+    TaskGraph taskGraph = new TaskGraph(2);
+    taskGraph.addTask("first", Collections.emptySet(),
+        Collections.singleton("first"), awaitOther);
+    taskGraph.addTask("second", Collections.emptySet(),
+        Collections.singleton("second"), awaitOther);
+    taskGraph.run(new RunReport());
+    assertTrue(concurrent.get());
+  }
+
+  @Test
+  public void testDependentTaskRunsAfterDependency() {
+    List<String> completed = Collections.synchronizedList(
+        new ArrayList<>());
+    TaskGraph taskGraph = new TaskGraph(4);
+    taskGraph.addTask("details", Collections.emptySet(),
+        Collections.singleton("node"), () -> {
+          try {
+            Thread.sleep(100L);
+          } catch (InterruptedException e) {
+            /* Continue. */
+          }
+          completed.add("details");
+        });
+    taskGraph.addTask("bandwidth", Collections.singleton("node"),
+        Collections.singleton("bandwidth"), () -> completed.add("bandwidth"));
+    taskGraph.run(new RunReport());
+    assertEquals(Arrays.asList("details", "bandwidth"), completed);
+  }
+
+  @Test
+  public void testSingleThreadRunsTasksInOrder() {
+    List<String> completed = new ArrayList<>();
+    TaskGraph taskGraph = new TaskGraph(1);
+    for (String name : new String[] { "a", "b", "c" }) {
+      taskGraph.addTask(name, Collections.emptySet(),
+          Collections.singleton(name), () -> completed.add(name));
+    }
+    taskGraph.run(new RunReport());
+    assertEquals(Arrays.asList("a", "b", "c"), completed);
+  }
+
+  @Test
+  public void testExceptionSkipsDependentTasks() {
+    AtomicBoolean dependentRun = new AtomicBoolean();
+    AtomicBoolean independentRun = new AtomicBoolean();
+    TaskGraph taskGraph = new TaskGraph(4);
+    taskGraph.addTask("failing", Collections.emptySet(),
+        Collections.singleton("node"), () -> {
+          throw new IllegalStateException("failed");
+        });
+    taskGraph.addTask("dependent", Collections.singleton("node"),
+        Collections.emptySet(), () -> dependentRun.set(true));
+    taskGraph.addTask("independent", Collections.emptySet(),
+        Collections.singleton("uptime"), () -> independentRun.set(true));
+    try {
+      taskGraph.run(new RunReport());
+      fail("Expected exception.");
+    } catch (IllegalStateException e) {
+      assertEquals("failed", e.getMessage());
+    }
+    assertFalse(dependentRun.get());
+    assertTrue(independentRun.get());
+  }
+}